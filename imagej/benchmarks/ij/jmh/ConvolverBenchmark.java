@@ -0,0 +1,47 @@
+package ij.jmh;
+import ij.plugin.filter.Convolver;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Convolver.convolve with a square, normalized box kernel. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ConvolverBenchmark {
+
+	@Param({"512", "2048"})
+	public int size;
+
+	@Param({"8", "16", "32"})
+	public int bitDepth;
+
+	@Param({"3", "9", "25"})
+	public int kernelSize;
+
+	private ImageProcessor original;
+	private ImageProcessor ip;
+	private Convolver convolver;
+	private float[] kernel;
+
+	@Setup(Level.Trial)
+	public void createImage() {
+		original = TestImages.create(bitDepth, size);
+		convolver = new Convolver();
+		kernel = new float[kernelSize*kernelSize];
+		Arrays.fill(kernel, 1f);
+	}
+
+	@Setup(Level.Invocation)
+	public void resetImage() {
+		ip = original.duplicate();
+	}
+
+	@Benchmark
+	public ImageProcessor convolve() {
+		convolver.convolve(ip, kernel, kernelSize, kernelSize);
+		return ip;
+	}
+
+}
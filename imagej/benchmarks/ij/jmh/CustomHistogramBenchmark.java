@@ -0,0 +1,51 @@
+package ij.jmh;
+import ij.process.ImageProcessor;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Processing core of Histograma_Expansao_Equalizacao: stretching,
+	equalization and contrast-limited adaptive equalization (CLAHE). */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class CustomHistogramBenchmark {
+
+	private static final String PLUGIN = "Histograma_Expansao_Equalizacao";
+
+	@Param({"512", "2048", "4096"})
+	public int size;
+
+	/** CLAHE only accepts 8 and 16-bit images. */
+	@Param({"8", "16"})
+	public int bitDepth;
+
+	/** Macro options selecting the method. */
+	@Param({"método=Expansão", "método=Equalização", "método=[Equalização adaptativa (CLAHE)]",
+		"método=[Equalização adaptativa (CLAHE)] janela"})
+	public String options;
+
+	private ImageProcessor original;
+	private ImageProcessor ip;
+	private Method process;
+	private Object parameters;
+
+	@Setup(Level.Trial)
+	public void createImage() {
+		original = TestImages.create(bitDepth, size);
+		process = CustomPlugins.core(PLUGIN, "processar", ImageProcessor.class, CustomPlugins.parametersClass(PLUGIN));
+		parameters = CustomPlugins.parameters(PLUGIN, options);
+	}
+
+	@Setup(Level.Invocation)
+	public void resetImage() {
+		ip = original.duplicate();
+	}
+
+	@Benchmark
+	public ImageProcessor process() {
+		CustomPlugins.invoke(process, ip, parameters);
+		return ip;
+	}
+
+}
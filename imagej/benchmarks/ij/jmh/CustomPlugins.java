@@ -0,0 +1,54 @@
+package ij.jmh;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/** Access to the custom_Plugins classes, which live in the default package
+	and therefore cannot be imported from a named one. Their processing cores
+	are looked up once per trial; each plugin's parameter object is built
+	with its Parametros.deMacro(String), i.e. from recorded macro options. */
+class CustomPlugins {
+
+	private CustomPlugins() {
+	}
+
+	/** Returns the static method 'name' of the plugin class. */
+	static Method core(String plugin, String name, Class<?>... types) {
+		try {
+			return Class.forName(plugin).getMethod(name, types);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("custom_Plugins not on the classpath: "+plugin+"."+name, e);
+		}
+	}
+
+	/** Returns the plugin's Parametros class. */
+	static Class<?> parametersClass(String plugin) {
+		try {
+			return Class.forName(plugin+"$Parametros");
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("custom_Plugins not on the classpath: "+plugin, e);
+		}
+	}
+
+	/** Returns a parameter object parsed from macro options, e.g. "brilho=20 contraste=40". */
+	static Object parameters(String plugin, String options) {
+		try {
+			return parametersClass(plugin).getMethod("deMacro", String.class).invoke(null, options);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not parse options for "+plugin, e);
+		}
+	}
+
+	/** Invokes a static core method, unwrapping exceptions thrown by the plugin. */
+	static Object invoke(Method method, Object... args) {
+		try {
+			return method.invoke(null, args);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new IllegalStateException(cause);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
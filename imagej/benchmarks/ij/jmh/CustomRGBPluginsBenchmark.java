@@ -0,0 +1,78 @@
+package ij.jmh;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Processing cores of the RGB custom_Plugins: the point-operation editor,
+	the grayscale converter (double and fixed-point weights) and the channel
+	split/merge, all with the default number of threads (Prefs.getThreads()). */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class CustomRGBPluginsBenchmark {
+
+	private static final String EDITOR = "Editor_Interativo_Ponto_a_Ponto";
+	private static final String CONVERTER = "Converter_RGB_Cinza";
+
+	@Param({"512", "2048", "4096"})
+	public int size;
+
+	private ImageProcessor original;
+	private ImageProcessor ip;
+	private ByteProcessor gray;
+	private ImageProcessor[] channels;
+
+	private Method editor, converter, split, merge;
+	private Object editorParameters, doubleWeights, integerWeights;
+
+	@Setup(Level.Trial)
+	public void createImage() {
+		original = TestImages.create(24, size);
+		gray = new ByteProcessor(size, size);
+
+		editor = CustomPlugins.core(EDITOR, "processar", ImageProcessor.class, CustomPlugins.parametersClass(EDITOR));
+		editorParameters = CustomPlugins.parameters(EDITOR, "brilho=20 contraste=40 solarização=200 dessaturação=0.5");
+
+		converter = CustomPlugins.core(CONVERTER, "converter", ImageProcessor.class, ByteProcessor.class, CustomPlugins.parametersClass(CONVERTER));
+		doubleWeights = CustomPlugins.parameters(CONVERTER, "estratégia=[Luminância Digital]");
+		integerWeights = CustomPlugins.parameters(CONVERTER, "estratégia=[Luminância Digital] pesos");
+
+		split = CustomPlugins.core("Separar_RGB", "separar", ImageProcessor.class);
+		merge = CustomPlugins.core("Mesclar_RGB", "mesclar", ImageProcessor.class, ImageProcessor.class, ImageProcessor.class);
+		channels = (ImageProcessor[])CustomPlugins.invoke(split, original);
+	}
+
+	@Setup(Level.Invocation)
+	public void resetImage() {
+		ip = original.duplicate();
+	}
+
+	@Benchmark
+	public ImageProcessor editor() {
+		CustomPlugins.invoke(editor, ip, editorParameters);
+		return ip;
+	}
+
+	@Benchmark
+	public Object convertDoubleWeights() {
+		return CustomPlugins.invoke(converter, original, gray, doubleWeights);
+	}
+
+	@Benchmark
+	public Object convertIntegerWeights() {
+		return CustomPlugins.invoke(converter, original, gray, integerWeights);
+	}
+
+	@Benchmark
+	public Object splitChannels() {
+		return CustomPlugins.invoke(split, original);
+	}
+
+	@Benchmark
+	public Object mergeChannels() {
+		return CustomPlugins.invoke(merge, channels[0], channels[1], channels[2]);
+	}
+
+}
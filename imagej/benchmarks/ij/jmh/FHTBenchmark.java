@@ -0,0 +1,32 @@
+package ij.jmh;
+import ij.process.FHT;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** FHT.transform (forward) on power-of-2 square images; the input bit depth only
+	affects the conversion to float done by the FHT constructor, which is not timed. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class FHTBenchmark {
+
+	@Param({"256", "1024", "4096"})
+	public int size;
+
+	@Param({"8", "32"})
+	public int bitDepth;
+
+	private FHT fht;
+
+	@Setup(Level.Invocation)
+	public void createFHT() {
+		fht = new FHT(TestImages.create(bitDepth, size));
+	}
+
+	@Benchmark
+	public FHT transform() {
+		fht.transform();
+		return fht;
+	}
+
+}
@@ -0,0 +1,43 @@
+package ij.jmh;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.ImageProcessor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** GaussianBlur.blurGaussian on a fresh copy of the test image. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class GaussianBlurBenchmark {
+
+	@Param({"512", "2048"})
+	public int size;
+
+	@Param({"8", "16", "32"})
+	public int bitDepth;
+
+	@Param({"2", "20"})
+	public double sigma;
+
+	private ImageProcessor original;
+	private ImageProcessor ip;
+	private GaussianBlur gb;
+
+	@Setup(Level.Trial)
+	public void createImage() {
+		original = TestImages.create(bitDepth, size);
+		gb = new GaussianBlur();
+	}
+
+	@Setup(Level.Invocation)
+	public void resetImage() {
+		ip = original.duplicate();
+	}
+
+	@Benchmark
+	public ImageProcessor blurGaussian() {
+		gb.blurGaussian(ip, sigma);
+		return ip;
+	}
+
+}
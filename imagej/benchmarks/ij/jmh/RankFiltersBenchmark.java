@@ -0,0 +1,49 @@
+package ij.jmh;
+import ij.plugin.filter.RankFilters;
+import ij.process.ImageProcessor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** RankFilters.rank (median, minimum and maximum) on a fresh copy of the test image. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class RankFiltersBenchmark {
+
+	@Param({"512", "2048"})
+	public int size;
+
+	@Param({"8", "16", "32"})
+	public int bitDepth;
+
+	@Param({"2", "10"})
+	public double radius;
+
+	@Param({"MEDIAN", "MIN", "MAX"})
+	public String filter;
+
+	private ImageProcessor original;
+	private ImageProcessor ip;
+	private RankFilters rf;
+	private int filterType;
+
+	@Setup(Level.Trial)
+	public void createImage() {
+		original = TestImages.create(bitDepth, size);
+		rf = new RankFilters();
+		filterType = filter.equals("MEDIAN") ? RankFilters.MEDIAN
+			: (filter.equals("MIN") ? RankFilters.MIN : RankFilters.MAX);
+	}
+
+	@Setup(Level.Invocation)
+	public void resetImage() {
+		ip = original.duplicate();
+	}
+
+	@Benchmark
+	public ImageProcessor rank() {
+		rf.rank(ip, radius, filterType);
+		return ip;
+	}
+
+}
@@ -0,0 +1,40 @@
+package ij.jmh;
+import ij.process.ImageProcessor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** ImageProcessor.resize to half and to double size with each interpolation method. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ResizeBenchmark {
+
+	@Param({"512", "2048"})
+	public int size;
+
+	@Param({"8", "16", "24", "32"})
+	public int bitDepth;
+
+	@Param({"NONE", "BILINEAR", "BICUBIC"})
+	public String interpolation;
+
+	private ImageProcessor ip;
+
+	@Setup(Level.Trial)
+	public void createImage() {
+		ip = TestImages.create(bitDepth, size);
+		ip.setInterpolationMethod(interpolation.equals("NONE") ? ImageProcessor.NONE
+			: (interpolation.equals("BILINEAR") ? ImageProcessor.BILINEAR : ImageProcessor.BICUBIC));
+	}
+
+	@Benchmark
+	public ImageProcessor downsize() {
+		return ip.resize(size/2, size/2, true);
+	}
+
+	@Benchmark
+	public ImageProcessor upsize() {
+		return ip.resize(size*2, size*2);
+	}
+
+}
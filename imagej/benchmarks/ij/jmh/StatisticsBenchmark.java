@@ -0,0 +1,41 @@
+package ij.jmh;
+import ij.measure.Measurements;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** ImageStatistics.getStatistics with the default measurements and with all of them. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class StatisticsBenchmark {
+
+	private static final int ALL_MEASUREMENTS = Measurements.AREA+Measurements.MEAN+Measurements.STD_DEV
+		+Measurements.MODE+Measurements.MIN_MAX+Measurements.CENTROID+Measurements.CENTER_OF_MASS
+		+Measurements.SKEWNESS+Measurements.KURTOSIS+Measurements.MEDIAN;
+
+	@Param({"512", "2048"})
+	public int size;
+
+	@Param({"8", "16", "24", "32"})
+	public int bitDepth;
+
+	private ImageProcessor ip;
+
+	@Setup(Level.Trial)
+	public void createImage() {
+		ip = TestImages.create(bitDepth, size);
+	}
+
+	@Benchmark
+	public ImageStatistics defaultMeasurements() {
+		return ImageStatistics.getStatistics(ip);
+	}
+
+	@Benchmark
+	public ImageStatistics allMeasurements() {
+		return ImageStatistics.getStatistics(ip, ALL_MEASUREMENTS, null);
+	}
+
+}
@@ -0,0 +1,54 @@
+package ij.jmh;
+import ij.process.*;
+import java.util.Random;
+
+/** Reproducible synthetic images shared by the JMH benchmarks. */
+public class TestImages {
+
+	private TestImages() {
+	}
+
+	/** Creates a size x size image with the given bit depth (8, 16, 24 or 32).
+		The content is a smooth gradient plus noise, so that filters,
+		histograms and compressors see realistic (non-constant) data. */
+	public static ImageProcessor create(int bitDepth, int size) {
+		Random random = new Random(size*31L+bitDepth);
+		int n = size*size;
+		switch (bitDepth) {
+			case 8:
+				byte[] bytes = new byte[n];
+				for (int i=0; i<n; i++)
+					bytes[i] = (byte)clamp(gradient(i, size)*255 + random.nextGaussian()*20, 255);
+				return new ByteProcessor(size, size, bytes);
+			case 16:
+				short[] shorts = new short[n];
+				for (int i=0; i<n; i++)
+					shorts[i] = (short)clamp(gradient(i, size)*4095 + random.nextGaussian()*300, 65535);
+				return new ShortProcessor(size, size, shorts, null);
+			case 24:
+				int[] rgb = new int[n];
+				for (int i=0; i<n; i++) {
+					int v = clamp(gradient(i, size)*255 + random.nextGaussian()*20, 255);
+					rgb[i] = (v<<16) | ((255-v)<<8) | (random.nextInt()&0xff);
+				}
+				return new ColorProcessor(size, size, rgb);
+			case 32:
+				float[] floats = new float[n];
+				for (int i=0; i<n; i++)
+					floats[i] = (float)(gradient(i, size) + random.nextGaussian()*0.1);
+				return new FloatProcessor(size, size, floats);
+			default:
+				throw new IllegalArgumentException("Unsupported bit depth: "+bitDepth);
+		}
+	}
+
+	private static double gradient(int i, int size) {
+		int x = i%size, y = i/size;
+		return 0.5 + 0.25*Math.sin(x*0.01) + 0.25*Math.cos(y*0.013);
+	}
+
+	private static int clamp(double v, int max) {
+		return v<0 ? 0 : (v>max ? max : (int)v);
+	}
+
+}
@@ -0,0 +1,76 @@
+package ij.jmh;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+import ij.io.ImageReader;
+import ij.io.TiffDecoder;
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Reads back a TIFF stack written to a temporary file: the IFD chain
+	(TiffDecoder.getTiffInfo) and the pixel data of every slice (ImageReader). */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class TiffReadBenchmark {
+
+	@Param({"512", "2048"})
+	public int size;
+
+	@Param({"8", "16", "24", "32"})
+	public int bitDepth;
+
+	@Param({"16"})
+	public int slices;
+
+	private File file;
+	private FileInfo[] info;
+
+	@Setup(Level.Trial)
+	public void writeFile() throws IOException {
+		ImageStack stack = new ImageStack(size, size);
+		for (int i=0; i<slices; i++)
+			stack.addSlice(null, TestImages.create(bitDepth, size));
+		file = File.createTempFile("jmh", ".tif");
+		if (!new FileSaver(new ImagePlus("jmh", stack)).saveAsTiffStack(file.getPath()))
+			throw new IOException("Could not write "+file);
+		info = decode();
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFile() {
+		file.delete();
+	}
+
+	@Benchmark
+	public FileInfo[] decodeHeader() throws IOException {
+		return decode();
+	}
+
+	@Benchmark
+	public Object readPixels() throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			Object pixels = null;
+			long position = 0;
+			for (FileInfo fi : info) {
+				// ImageJ writes a stack as one FileInfo with nImages contiguous slices
+				ImageReader reader = new ImageReader(fi);
+				long skip = fi.getOffset()-position;
+				for (int i=0; i<fi.nImages; i++) {
+					pixels = reader.readPixels(in, skip);
+					skip = fi.getGap();
+				}
+				position = fi.getOffset() + fi.nImages*((long)fi.width*fi.height*fi.getBytesPerPixel()+fi.getGap()) - fi.getGap();
+			}
+			return pixels;
+		}
+	}
+
+	private FileInfo[] decode() throws IOException {
+		TiffDecoder td = new TiffDecoder(file.getParent()+File.separator, file.getName());
+		return td.getTiffInfo();
+	}
+
+}
@@ -0,0 +1,166 @@
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.TypeConverter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Mede a vazão (megapixels por segundo) das operações ponto a ponto
+ * executadas pelo ExecutorParalelo, comparando 1 thread com Prefs.getThreads()
+ * threads e conferindo se as saídas são idênticas.
+ */
+public class Benchmark_Ponto_a_Ponto implements PlugIn {
+
+    @Override
+    public void run(String arg) {
+
+        GenericDialog gd = new GenericDialog("Benchmark Ponto a Ponto");
+        gd.addNumericField("Tamanho (megapixels):", 16, 0);
+        gd.addNumericField("Repetições:", 5, 0);
+        gd.addNumericField("Threads:", Prefs.getThreads(), 0);
+        gd.showDialog();
+
+        if (gd.wasCanceled()) return;
+
+        int megapixels = (int) gd.getNextNumber();
+        int repeticoes = Math.max(1, (int) gd.getNextNumber());
+        int nThreads = Math.max(1, (int) gd.getNextNumber());
+
+        int lado = (int) Math.sqrt(megapixels * 1e6);
+        int totalPixels = lado * lado;
+
+        // imagem RGB aleatória (semente fixa para resultados reproduzíveis)
+        int[] rgb = new int[totalPixels];
+        Random random = new Random(1);
+        for (int i = 0; i < totalPixels; i++)
+            rgb[i] = random.nextInt() & 0xffffff;
+
+        IJ.log("Benchmark Ponto a Ponto: " + lado + "x" + lado + " RGB, " + repeticoes
+                + " repetições, 1 vs " + nThreads + " threads");
+
+        medir("Editor_Interativo_Ponto_a_Ponto", rgb, repeticoes, nThreads, new Operacao() {
+            int[] destino = new int[totalPixels];
+            public Object executar(int[] origem, int threads) {
+                Editor_Interativo_Ponto_a_Ponto.aplicarEfeitos(origem, destino, 20, 40, 200, 0.5, threads);
+                return destino;
+            }
+        });
+
+        medir("Converter_RGB_Cinza", rgb, repeticoes, nThreads, new Operacao() {
+            byte[] destino = new byte[totalPixels];
+            public Object executar(int[] origem, int threads) {
+                Converter_RGB_Cinza.converterPixels(origem, destino, Converter_RGB_Cinza.LUM_DIGITAL, threads);
+                return destino;
+            }
+        });
+
+        medir("Converter_RGB_Cinza (pesos inteiros)", rgb, repeticoes, nThreads, new Operacao() {
+            byte[] destino = new byte[totalPixels];
+            public Object executar(int[] origem, int threads) {
+                Converter_RGB_Cinza.converterPixels(origem, destino, Converter_RGB_Cinza.LUM_ANALOG, true, threads);
+                return destino;
+            }
+        });
+        compararComTypeConverter(rgb, lado, repeticoes, nThreads);
+
+        final byte[] cinza = new byte[totalPixels];
+        Converter_RGB_Cinza.converterPixels(rgb, cinza, Converter_RGB_Cinza.LUM_ANALOG, nThreads);
+        final int[] tabelaLUT = new int[256];
+        for (int i = 0; i < 256; i++)
+            tabelaLUT[i] = 255 - i;
+        medir("Histograma_Expansao_Equalizacao (LUT)", rgb, repeticoes, nThreads, new Operacao() {
+            byte[] destino = new byte[totalPixels];
+            public Object executar(int[] origem, int threads) {
+                System.arraycopy(cinza, 0, destino, 0, totalPixels);
+                Histograma_Expansao_Equalizacao.aplicarLutNaImagem(destino, tabelaLUT, threads);
+                return destino;
+            }
+        });
+    }
+
+    private interface Operacao {
+        /** Executa a operação e devolve o vetor de saída. */
+        Object executar(int[] origem, int nThreads);
+    }
+
+    private void medir(String nome, int[] origem, int repeticoes, int nThreads, Operacao operacao) {
+        Object saidaSerial = copiar(operacao.executar(origem, 1)); // aquecimento do JIT
+        double tempoSerial = melhorTempo(operacao, origem, repeticoes, 1);
+
+        Object saidaParalela = copiar(operacao.executar(origem, nThreads));
+        double tempoParalelo = melhorTempo(operacao, origem, repeticoes, nThreads);
+
+        boolean identicas = (saidaSerial instanceof int[])
+                ? Arrays.equals((int[]) saidaSerial, (int[]) saidaParalela)
+                : Arrays.equals((byte[]) saidaSerial, (byte[]) saidaParalela);
+
+        double megapixels = origem.length / 1e6;
+        IJ.log("  " + nome + ": "
+                + IJ.d2s(megapixels / tempoSerial, 1) + " MP/s (1 thread), "
+                + IJ.d2s(megapixels / tempoParalelo, 1) + " MP/s (" + nThreads + " threads), "
+                + "speedup " + IJ.d2s(tempoSerial / tempoParalelo, 2) + "x, "
+                + (identicas ? "saída idêntica" : "SAÍDA DIFERENTE"));
+    }
+
+    /**
+     * Compara a conversão em ponto fixo, gravando num ByteProcessor reaproveitado,
+     * com TypeConverter.convertRGBToByte (pesos 0,299/0,587/0,114 em double,
+     * um novo vetor a cada chamada, uma thread).
+     */
+    private void compararComTypeConverter(int[] rgb, int lado, int repeticoes, int nThreads) {
+        final ColorProcessor cp = new ColorProcessor(lado, lado, rgb);
+        cp.setRGBWeights(0.299, 0.587, 0.114);
+        final Converter_RGB_Cinza.Parametros parametros = new Converter_RGB_Cinza.Parametros(Converter_RGB_Cinza.LUM_ANALOG, false);
+        parametros.pesosInteiros = true;
+
+        Operacao typeConverter = new Operacao() {
+            public Object executar(int[] origem, int threads) {
+                return new TypeConverter(cp, false).convertToByte().getPixels();
+            }
+        };
+        Operacao pontoFixo = new Operacao() {
+            ByteProcessor destino = new ByteProcessor(lado, lado);
+            public Object executar(int[] origem, int threads) {
+                byte[] pixels = (byte[]) destino.getPixels();
+                Converter_RGB_Cinza.converterPixels(origem, pixels, parametros.metodo, parametros.pesosInteiros, threads);
+                return pixels;
+            }
+        };
+
+        byte[] referencia = (byte[]) typeConverter.executar(rgb, 1); // aquecimento do JIT
+        byte[] saida = (byte[]) pontoFixo.executar(rgb, 1);
+        int diferencaMaxima = 0;
+        for (int i = 0; i < referencia.length; i++)
+            diferencaMaxima = Math.max(diferencaMaxima, Math.abs((referencia[i] & 0xff) - (saida[i] & 0xff)));
+
+        double megapixels = rgb.length / 1e6;
+        double tempoReferencia = melhorTempo(typeConverter, rgb, repeticoes, 1);
+        double tempoSerial = melhorTempo(pontoFixo, rgb, repeticoes, 1);
+        double tempoParalelo = melhorTempo(pontoFixo, rgb, repeticoes, nThreads);
+        IJ.log("  TypeConverter.convertRGBToByte: " + IJ.d2s(megapixels / tempoReferencia, 1) + " MP/s; "
+                + "ponto fixo " + IJ.d2s(tempoReferencia / tempoSerial, 2) + "x (1 thread), "
+                + IJ.d2s(tempoReferencia / tempoParalelo, 2) + "x (" + nThreads + " threads), "
+                + "diferença máxima " + diferencaMaxima + " nível(is)");
+    }
+
+    /** Melhor tempo (em segundos) entre as repetições. */
+    private double melhorTempo(Operacao operacao, int[] origem, int repeticoes, int nThreads) {
+        long melhor = Long.MAX_VALUE;
+        for (int i = 0; i < repeticoes; i++) {
+            long inicio = System.nanoTime();
+            operacao.executar(origem, nThreads);
+            melhor = Math.min(melhor, System.nanoTime() - inicio);
+        }
+        return melhor / 1e9;
+    }
+
+    private static Object copiar(Object vetor) {
+        if (vetor instanceof int[])
+            return ((int[]) vetor).clone();
+        return ((byte[]) vetor).clone();
+    }
+}
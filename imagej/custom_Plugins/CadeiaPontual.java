@@ -0,0 +1,113 @@
+import ij.Prefs;
+
+/**
+ * Cadeia compilada dos ajustes do Editor_Interativo_Ponto_a_Ponto.
+ * Brilho, contraste e solarização são funções 0..255 -> 0..255 de cada canal,
+ * então as três etapas são fundidas em uma tabela de 256 entradas por canal,
+ * calculada uma única vez por conjunto de parâmetros. A dessaturação usa
+ * luminância com pesos inteiros em ponto fixo e uma tabela para a mistura,
+ * de modo que a passada sobre a imagem não faz nenhuma conta em ponto flutuante.
+ */
+public class CadeiaPontual {
+
+    // pesos de luminância (0.299, 0.587, 0.114) em ponto fixo de 16 bits; a soma é 65536
+    private static final int PESO_R = 19595;
+    private static final int PESO_G = 38470;
+    private static final int PESO_B = 7471;
+
+    private final int brilho;
+    private final int contraste;
+    private final int solarizacao;
+    private final double saturacao;
+
+    // tabelas já deslocadas para a posição do canal no pixel RGB
+    private final int[] lutR = new int[256];
+    private final int[] lutG = new int[256];
+    private final int[] lutB = new int[256];
+
+    // mistura com a luminância: tabelaSaturacao[d + 255] = floor(d * saturacao), d = canal - lum
+    private final int[] tabelaSaturacao;
+
+    public CadeiaPontual(int brilho, int contraste, int solarizacao, double saturacao) {
+        this.brilho = brilho;
+        this.contraste = contraste;
+        this.solarizacao = solarizacao;
+        this.saturacao = saturacao;
+
+        float fatorContraste = (259f * (contraste + 255f)) / (255f * (259f - contraste));
+
+        for (int i = 0; i < 256; i++) {
+            int v = i + brilho;
+            v = (v > 255) ? 255 : ((v < 0) ? 0 : v);
+
+            v = (int)((v - 128) * fatorContraste + 128);
+            v = (v > 255) ? 255 : ((v < 0) ? 0 : v);
+
+            if (v > solarizacao) v = 255 - v;
+
+            lutR[i] = v << 16;
+            lutG[i] = v << 8;
+            lutB[i] = v;
+        }
+
+        if (saturacao != 1.0) {
+            // floor(d * s) + lum == floor(lum + d * s), que coincide com o (int) da
+            // fórmula original sempre que o resultado não é negativo (e aí vira 0)
+            tabelaSaturacao = new int[511];
+            for (int d = -255; d <= 255; d++)
+                tabelaSaturacao[d + 255] = (int) Math.floor(d * saturacao);
+        } else {
+            tabelaSaturacao = null;
+        }
+    }
+
+    /** Retorna true se a cadeia foi compilada com estes parâmetros. */
+    public boolean temParametros(int brilho, int contraste, int solarizacao, double saturacao) {
+        return this.brilho == brilho && this.contraste == contraste
+                && this.solarizacao == solarizacao && this.saturacao == saturacao;
+    }
+
+    /** Aplica a cadeia de 'origem' para 'destino' usando Prefs.getThreads() threads. */
+    public void aplicar(int[] origem, int[] destino) {
+        aplicar(origem, destino, Prefs.getThreads());
+    }
+
+    /** Aplica a cadeia de 'origem' para 'destino', dividindo o vetor entre 'nThreads' threads. */
+    public void aplicar(final int[] origem, final int[] destino, int nThreads) {
+        ExecutorParalelo.executar(destino.length, ExecutorParalelo.TAMANHO_BLOCO, nThreads,
+                (inicio, fim) -> aplicar(origem, destino, inicio, fim));
+    }
+
+    /** Aplica a cadeia ao intervalo [inicio, fim); 'origem' e 'destino' podem ser o mesmo vetor. */
+    public void aplicar(int[] origem, int[] destino, int inicio, int fim) {
+        final int[] lutR = this.lutR, lutG = this.lutG, lutB = this.lutB;
+
+        if (tabelaSaturacao == null) {
+            for (int i = inicio; i < fim; i++) {
+                int pixel = origem[i];
+                destino[i] = lutR[(pixel >> 16) & 0xff] | lutG[(pixel >> 8) & 0xff] | lutB[pixel & 0xff];
+            }
+            return;
+        }
+
+        final int[] tabela = tabelaSaturacao;
+        for (int i = inicio; i < fim; i++) {
+            int pixel = origem[i];
+            int r = lutR[(pixel >> 16) & 0xff] >> 16;
+            int g = lutG[(pixel >> 8) & 0xff] >> 8;
+            int b = lutB[pixel & 0xff];
+
+            int lum = (r * PESO_R + g * PESO_G + b * PESO_B) >> 16;
+
+            r = lum + tabela[r - lum + 255];
+            g = lum + tabela[g - lum + 255];
+            b = lum + tabela[b - lum + 255];
+
+            r = (r > 255) ? 255 : ((r < 0) ? 0 : r);
+            g = (g > 255) ? 255 : ((g < 0) ? 0 : g);
+            b = (b > 255) ? 255 : ((b < 0) ? 0 : b);
+
+            destino[i] = (r << 16) | (g << 8) | b;
+        }
+    }
+}
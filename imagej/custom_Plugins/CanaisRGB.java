@@ -0,0 +1,138 @@
+import ij.ImageStack;
+
+/**
+ * Separação e junção de canais RGB direto nos vetores de pixels: lê e grava
+ * byte[]/int[] linha a linha, sem ImageProcessor.get/set por pixel, com as
+ * linhas divididas entre threads pelo ExecutorParalelo.
+ * As versões para pilhas dividem as fatias entre as threads (com poucas
+ * fatias, as linhas de cada fatia), sem criar um ImagePlus por fatia, e
+ * obtêm os pixels de cada fatia uma única vez: numa pilha virtual,
+ * getPixels lê e decodifica a fatia inteira.
+ */
+public class CanaisRGB {
+
+    /** Linhas por bloco de trabalho de cada thread. */
+    private static final int LINHAS_POR_BLOCO = 32;
+
+    private CanaisRGB() {
+    }
+
+    /** Separa 'rgb' (largura x altura) nos vetores de 8 bits 'r', 'g' e 'b'. */
+    public static void separar(final int[] rgb, final byte[] r, final byte[] g, final byte[] b,
+            final int largura, int altura, int nThreads) {
+        ExecutorParalelo.executar(altura, LINHAS_POR_BLOCO, nThreads, (inicio, fim) ->
+                separarLinhas(rgb, r, g, b, inicio * largura, fim * largura));
+    }
+
+    /** Junta os vetores de 8 bits 'r', 'g' e 'b' (largura x altura) em 'rgb'. */
+    public static void mesclar(final byte[] r, final byte[] g, final byte[] b, final int[] rgb,
+            final int largura, int altura, int nThreads) {
+        ExecutorParalelo.executar(altura, LINHAS_POR_BLOCO, nThreads, (inicio, fim) ->
+                mesclarLinhas(r, g, b, rgb, inicio * largura, fim * largura));
+    }
+
+    /**
+     * Separa uma pilha RGB em uma pilha de 8 bits com os canais intercalados
+     * (R, G, B da fatia 1, depois da fatia 2...), a ordem de uma hiperpilha
+     * com 3 canais.
+     */
+    public static ImageStack separarPilha(final ImageStack rgb, int nThreads) {
+        final int largura = rgb.getWidth();
+        final int altura = rgb.getHeight();
+        final int nFatias = rgb.getSize();
+        final String[] nomes = {"Red", "Green", "Blue"};
+
+        final ImageStack canais = new ImageStack(largura, altura);
+        for (int n = 1; n <= nFatias; n++) {
+            String rotulo = rgb.getShortSliceLabel(n);
+            for (int c = 0; c < 3; c++)
+                canais.addSlice(rotulo != null ? rotulo + " (" + nomes[c] + ")" : nomes[c], new byte[largura * altura]);
+        }
+
+        if (nFatias < nThreads) {
+            for (int n = 0; n < nFatias; n++)
+                separar((int[]) rgb.getPixels(n + 1),
+                        (byte[]) canais.getPixels(3 * n + 1), (byte[]) canais.getPixels(3 * n + 2), (byte[]) canais.getPixels(3 * n + 3),
+                        largura, altura, nThreads);
+            return canais;
+        }
+
+        // uma unidade de trabalho por fatia
+        ExecutorParalelo.executar(nFatias, 1, nThreads, (inicio, fim) -> {
+            for (int n = inicio; n < fim; n++)
+                separarLinhas((int[]) rgb.getPixels(n + 1),
+                        (byte[]) canais.getPixels(3 * n + 1), (byte[]) canais.getPixels(3 * n + 2), (byte[]) canais.getPixels(3 * n + 3),
+                        0, largura * altura);
+        });
+        return canais;
+    }
+
+    /** Junta três pilhas de 8 bits do mesmo tamanho em uma pilha RGB. */
+    public static ImageStack mesclarPilhas(final ImageStack r, final ImageStack g, final ImageStack b, int nThreads) {
+        final int largura = r.getWidth();
+        final int altura = r.getHeight();
+        final int nFatias = r.getSize();
+
+        final ImageStack rgb = new ImageStack(largura, altura);
+        for (int n = 1; n <= nFatias; n++)
+            rgb.addSlice(r.getSliceLabel(n), new int[largura * altura]);
+
+        if (nFatias < nThreads) {
+            for (int n = 1; n <= nFatias; n++)
+                mesclar((byte[]) r.getPixels(n), (byte[]) g.getPixels(n), (byte[]) b.getPixels(n),
+                        (int[]) rgb.getPixels(n), largura, altura, nThreads);
+            return rgb;
+        }
+
+        // uma unidade de trabalho por fatia; os canais de cada fatia são lidos só quando ela é processada
+        ExecutorParalelo.executar(nFatias, 1, nThreads, (inicio, fim) -> {
+            for (int n = inicio; n < fim; n++)
+                mesclarLinhas((byte[]) r.getPixels(n + 1), (byte[]) g.getPixels(n + 1), (byte[]) b.getPixels(n + 1),
+                        (int[]) rgb.getPixels(n + 1), 0, largura * altura);
+        });
+        return rgb;
+    }
+
+    /** Junta uma pilha de 8 bits com 3 canais intercalados (R, G, B, R, G, B...) em uma pilha RGB. */
+    public static ImageStack mesclarHiperpilha(final ImageStack canais, int nThreads) {
+        final int largura = canais.getWidth();
+        final int altura = canais.getHeight();
+        final int nFatias = canais.getSize() / 3;
+
+        final ImageStack rgb = new ImageStack(largura, altura);
+        for (int n = 0; n < nFatias; n++)
+            rgb.addSlice(canais.getShortSliceLabel(3 * n + 1), new int[largura * altura]);
+
+        if (nFatias < nThreads) {
+            for (int n = 0; n < nFatias; n++)
+                mesclar((byte[]) canais.getPixels(3 * n + 1), (byte[]) canais.getPixels(3 * n + 2),
+                        (byte[]) canais.getPixels(3 * n + 3), (int[]) rgb.getPixels(n + 1),
+                        largura, altura, nThreads);
+            return rgb;
+        }
+
+        // uma unidade de trabalho por fatia
+        ExecutorParalelo.executar(nFatias, 1, nThreads, (inicio, fim) -> {
+            for (int n = inicio; n < fim; n++)
+                mesclarLinhas((byte[]) canais.getPixels(3 * n + 1), (byte[]) canais.getPixels(3 * n + 2),
+                        (byte[]) canais.getPixels(3 * n + 3), (int[]) rgb.getPixels(n + 1),
+                        0, largura * altura);
+        });
+        return rgb;
+    }
+
+    // R nos bits 16-23, G nos bits 8-15, B nos bits 0-7
+    private static void separarLinhas(int[] rgb, byte[] r, byte[] g, byte[] b, int inicio, int fim) {
+        for (int i = inicio; i < fim; i++) {
+            int pixel = rgb[i];
+            r[i] = (byte) (pixel >> 16);
+            g[i] = (byte) (pixel >> 8);
+            b[i] = (byte) pixel;
+        }
+    }
+
+    private static void mesclarLinhas(byte[] r, byte[] g, byte[] b, int[] rgb, int inicio, int fim) {
+        for (int i = inicio; i < fim; i++)
+            rgb[i] = ((r[i] & 0xff) << 16) | ((g[i] & 0xff) << 8) | (b[i] & 0xff);
+    }
+}
@@ -1,16 +1,58 @@
 import ij.IJ;
 import ij.ImagePlus;
-import ij.WindowManager;
+import ij.ImageStack;
+import ij.Macro;
+import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
-import java.awt.Checkbox;
+import java.awt.GraphicsEnvironment;
 
 public class Converter_RGB_Cinza implements PlugIn {
 
-    private static final String MEDIA = "Média Aritmética";
-    private static final String LUM_ANALOG = "Luminância Analógica";
-    private static final String LUM_DIGITAL = "Luminância Digital";
+    static final String MEDIA = "Média Aritmética";
+    static final String LUM_ANALOG = "Luminância Analógica";
+    static final String LUM_DIGITAL = "Luminância Digital";
+
+    /**
+     * Pesos em ponto fixo (soma 256, resultado >> 8) das luminâncias:
+     * 0,299/0,587/0,114 viram 77/150/29 e 0,2126/0,7152/0,0722 viram 54/183/19.
+     * Branco continua 255 e a diferença para os pesos em double é de no máximo 1 nível.
+     */
+    private static final int[] PESOS_ANALOG = {77, 150, 29};
+    private static final int[] PESOS_DIGITAL = {54, 183, 19};
+
+    private static final String ROTULO_METODO = "Estratégia de Conversão:";
+    private static final String ROTULO_INTEIROS = "Pesos inteiros (ponto fixo)";
+    private static final String ROTULO_PILHA = "Converter todas as fatias";
+    private static final String ROTULO_CRIAR = "Criar nova imagem";
+
+    /** Parâmetros da conversão, usados também fora do ImageJ (lote, servidor sem display). */
+    public static class Parametros {
+        public String metodo = MEDIA;
+        public boolean pesosInteiros = false;
+        public boolean pilha = true;
+        public boolean criarNova = true;
+
+        public Parametros() {
+        }
+
+        public Parametros(String metodo, boolean criarNova) {
+            this.metodo = metodo;
+            this.criarNova = criarNova;
+        }
+
+        /** Lê as opções gravadas pelo Recorder, ex.: "estratégia=[Luminância Digital] pesos converter criar". */
+        public static Parametros deMacro(String opcoes) {
+            Parametros p = new Parametros();
+            p.metodo = OpcoesMacro.texto(opcoes, ROTULO_METODO, p.metodo);
+            p.pesosInteiros = OpcoesMacro.marcado(opcoes, ROTULO_INTEIROS, p.pesosInteiros);
+            p.pilha = OpcoesMacro.marcado(opcoes, ROTULO_PILHA, p.pilha);
+            p.criarNova = OpcoesMacro.marcado(opcoes, ROTULO_CRIAR, p.criarNova);
+            return p;
+        }
+    }
 
     @Override
     public void run(String arg) {
@@ -21,40 +63,147 @@ public class Converter_RGB_Cinza implements PlugIn {
             return;
         }
 
+        int nFatias = imgAtual.getStackSize();
+
+        // sem display não há GenericDialog: as opções vêm direto da macro
+        Parametros parametros = GraphicsEnvironment.isHeadless()
+                ? Parametros.deMacro(Macro.getOptions()) : mostrarDialogo(nFatias);
+        if (parametros == null) return;
+
+        if (nFatias > 1 && parametros.pilha) {
+            if (!parametros.criarNova && imgAtual.getStack().isVirtual()) {
+                IJ.error("Erro", "Pilhas virtuais só podem ser convertidas em uma nova imagem.");
+                return;
+            }
+            converterPilha(imgAtual, parametros);
+        } else {
+            aplicarConversao(imgAtual, parametros);
+        }
+    }
+
+    private Parametros mostrarDialogo(int nFatias) {
+        Parametros padrao = new Parametros();
         GenericDialog gd = new GenericDialog("Conversão");
         
         String[] metodos = {MEDIA, LUM_ANALOG, LUM_DIGITAL};
         
-        gd.addRadioButtonGroup("Estratégia de Conversão:", metodos, 3, 1, MEDIA);
-        gd.addCheckbox("Criar nova imagem", true);
+        gd.addRadioButtonGroup(ROTULO_METODO, metodos, 3, 1, padrao.metodo);
+        gd.addCheckbox(ROTULO_INTEIROS, padrao.pesosInteiros);
+        if (nFatias > 1) {
+            // a chave gravada é só a primeira palavra ("converter"), então o número pode variar
+            gd.addCheckbox("Converter todas as " + nFatias + " fatias", padrao.pilha);
+        }
+        gd.addCheckbox(ROTULO_CRIAR, padrao.criarNova);
         
         gd.showDialog();
 
-        if (gd.wasCanceled()) return;
+        if (gd.wasCanceled()) return null;
+
+        Parametros p = new Parametros();
+        p.metodo = gd.getNextRadioButton();
+        p.pesosInteiros = gd.getNextBoolean();
+        p.pilha = nFatias > 1 && gd.getNextBoolean();
+        p.criarNova = gd.getNextBoolean();
+        return p;
+    }
+
+    private void aplicarConversao(ImagePlus imp, Parametros parametros) {
+        ImageProcessor resultado = converter(imp.getProcessor(), parametros);
+
+        if (parametros.criarNova) {
+            new ImagePlus("Cinza - " + parametros.metodo, resultado).show();
+        } else {
+            imp.updateAndDraw(); 
+        }
+    }
+
+    private void converterPilha(ImagePlus imp, Parametros parametros) {
+        ImageStack resultado = converter(imp.getStack(), parametros);
 
-        String metodoEscolhido = gd.getNextRadioButton();
-        boolean criarNova = gd.getNextBoolean();
+        if (parametros.criarNova) {
+            ImagePlus imgCinza = new ImagePlus("Cinza - " + parametros.metodo, resultado);
+            imgCinza.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+            imgCinza.setCalibration(imp.getCalibration());
+            imgCinza.show();
+        } else {
+            imp.updateAndDraw();
+        }
+    }
 
-        aplicarConversao(imgAtual, metodoEscolhido, criarNova);
+    /**
+     * Núcleo da conversão, sem interface: com 'criarNova' devolve um novo
+     * ByteProcessor; sem, grava o cinza nos 3 canais do próprio 'rgb' e o devolve.
+     */
+    public static ImageProcessor converter(ImageProcessor rgb, Parametros parametros) {
+        if (parametros.criarNova)
+            return converter(rgb, null, parametros);
+        converterPixels((int[]) rgb.getPixels(), rgb.getPixels(), parametros.metodo, parametros.pesosInteiros, Prefs.getThreads());
+        return rgb;
     }
 
-    private void aplicarConversao(ImagePlus imp, String metodo, boolean criarNova) {
+    /**
+     * Converte 'rgb' gravando o cinza no vetor de 'destino', sem alocar nada,
+     * para quem converte muitos quadros do mesmo tamanho em sequência.
+     * Se 'destino' for null ou de outro tamanho, um novo ByteProcessor é criado.
+     * O campo 'criarNova' dos parâmetros é ignorado.
+     */
+    public static ByteProcessor converter(ImageProcessor rgb, ByteProcessor destino, Parametros parametros) {
+        int largura = rgb.getWidth();
+        int altura = rgb.getHeight();
+        if (destino == null || destino.getWidth() != largura || destino.getHeight() != altura)
+            destino = new ByteProcessor(largura, altura);
+        converterPixels((int[]) rgb.getPixels(), destino.getPixels(), parametros.metodo, parametros.pesosInteiros, Prefs.getThreads());
+        return destino;
+    }
 
-        int largura = imp.getWidth();
-        int altura = imp.getHeight();
-        ImageProcessor imageProcessorOrigem = imp.getProcessor(); 
-        ImagePlus imagePlusDestino;
-        ImageProcessor imageProcessorDestino;
+    /**
+     * Converte todas as fatias de uma pilha RGB, uma fatia inteira por thread.
+     * Com 'criarNova' devolve uma nova pilha de 8 bits; sem, grava o cinza nos
+     * 3 canais de cada fatia da própria pilha (que não pode ser virtual) e a devolve.
+     */
+    public static ImageStack converter(final ImageStack rgb, Parametros parametros) {
+        final String metodo = parametros.metodo;
+        final boolean pesosInteiros = parametros.pesosInteiros;
+        final int largura = rgb.getWidth();
+        final int altura = rgb.getHeight();
+        final int nFatias = rgb.getSize();
 
-        if (criarNova) {
-            imagePlusDestino = IJ.createImage("Cinza - " + metodo, "8-bit", largura, altura, 1);
-            imageProcessorDestino = imagePlusDestino.getProcessor();
+        final ImageStack destino;
+        if (parametros.criarNova) {
+            destino = new ImageStack(largura, altura);
+            for (int n = 1; n <= nFatias; n++)
+                destino.addSlice(rgb.getSliceLabel(n), new byte[largura * altura]);
         } else {
-            imagePlusDestino = imp;
-            imageProcessorDestino = imp.getProcessor();
+            destino = rgb;
         }
 
+        // fatias independentes: cada thread converte fatias inteiras, sem dividi-las
+        ExecutorParalelo.executar(nFatias, 1, Prefs.getThreads(), (inicio, fim) -> {
+            for (int n = inicio + 1; n <= fim; n++) {
+                int[] pixels = (int[]) rgb.getPixels(n);
+                Object saida = destino == rgb ? pixels : destino.getPixels(n);
+                converterPixels(pixels, saida, metodo, pesosInteiros, 1);
+            }
+        });
+        return destino;
+    }
+
+    /** Converte com os pesos em double originais (ver a versão com 'pesosInteiros'). */
+    static void converterPixels(int[] origem, Object destino, String metodo, int nThreads) {
+        converterPixels(origem, destino, metodo, false, nThreads);
+    }
+
+    /**
+     * Converte os pixels RGB de 'origem' para cinza. Se 'destino' for byte[]
+     * grava a imagem 8 bits; se for int[] grava o cinza nos 3 canais RGB
+     * ('destino' pode ser o próprio 'origem'). Com 'pesosInteiros' as
+     * luminâncias usam PESOS_ANALOG/PESOS_DIGITAL em ponto fixo; a média já é inteira.
+     * O vetor é dividido entre 'nThreads' threads (ver ExecutorParalelo).
+     */
+    static void converterPixels(final int[] origem, Object destino, String metodo, boolean pesosInteiros, int nThreads) {
+
         double pesoR = 0, pesoG = 0, pesoB = 0;
+        int[] pesos = null;
         boolean media = false;
 
         switch (metodo) {
@@ -63,44 +212,62 @@ public class Converter_RGB_Cinza implements PlugIn {
                 break;
             case LUM_ANALOG: 
                 pesoR = 0.299; pesoG = 0.587; pesoB = 0.114;
+                pesos = PESOS_ANALOG;
                 break;
             case LUM_DIGITAL:
                 pesoR = 0.2126; pesoG = 0.7152; pesoB = 0.0722;
+                pesos = PESOS_DIGITAL;
                 break;
+            default:
+                throw new IllegalArgumentException("Estratégia de conversão desconhecida: " + metodo);
         }
 
-        for (int x = 0; x < largura; x++) {
-            for (int y = 0; y < altura; y++) {
-                
+        final byte[] destinoCinza = (destino instanceof byte[]) ? (byte[]) destino : null;
+        final int[] destinoRGB = (destino instanceof int[]) ? (int[]) destino : null;
+
+        if (media || pesosInteiros) {
+            // só aritmética inteira: a média divide por 3, as luminâncias deslocam >> 8
+            final boolean usarMedia = media;
+            final int iR = media ? 0 : pesos[0], iG = media ? 0 : pesos[1], iB = media ? 0 : pesos[2];
+            ExecutorParalelo.executar(origem.length, ExecutorParalelo.TAMANHO_BLOCO, nThreads, (inicio, fim) -> {
+                for (int i = inicio; i < fim; i++) {
+                    int pixel = origem[i];
+                    int r = (pixel >> 16) & 0xff;
+                    int g = (pixel >> 8) & 0xff;
+                    int b = pixel & 0xff;
+                    int cinza = usarMedia ? (r + g + b) / 3 : (r * iR + g * iG + b * iB) >> 8;
+                    if (destinoCinza != null)
+                        destinoCinza[i] = (byte) cinza;
+                    else
+                        destinoRGB[i] = (cinza << 16) | (cinza << 8) | cinza;
+                }
+            });
+            return;
+        }
+
+        final double wR = pesoR, wG = pesoG, wB = pesoB;
+
+        ExecutorParalelo.executar(origem.length, ExecutorParalelo.TAMANHO_BLOCO, nThreads, (inicio, fim) -> {
+            for (int i = inicio; i < fim; i++) {
+
                 //leitura dos pixels rgb
-                int pixel = imageProcessorOrigem.get(x, y);
+                int pixel = origem[i];
                 int r = (pixel >> 16) & 0xff;
                 int g = (pixel >> 8) & 0xff;
                 int b = pixel & 0xff;
 
                 //valor que representa a intensidade luminosa 
                 // que o pixel terá na imagem final em Escala de Cinza
-                int cinza;
-                if (media) {
-                    cinza = (r + g + b) / 3;
-                } else {
-                    cinza = (int) (r * pesoR + g * pesoG + b * pesoB);
-                }
+                int cinza = (int) (r * wR + g * wG + b * wB);
 
-                if (criarNova) {
+                if (destinoCinza != null) {
                     //imagem 8 bits
-                    imageProcessorDestino.set(x, y, cinza);
+                    destinoCinza[i] = (byte) cinza;
                 } else {
                     //imagem rgb, agrupa os valores cinza nos 3 canais
-                    int cinzaRGB = (cinza << 16) | (cinza << 8) | cinza;
-                    imageProcessorDestino.set(x, y, cinzaRGB);
+                    destinoRGB[i] = (cinza << 16) | (cinza << 8) | cinza;
                 }
             }
-        }
-
-        imagePlusDestino.show();
-        if (!criarNova) {
-            imp.updateAndDraw(); 
-        }
+        });
     }
-}
\ No newline at end of file
+}
@@ -1,21 +1,58 @@
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Macro;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
 import java.awt.AWTEvent;
+import java.awt.GraphicsEnvironment;
 
 public class Editor_Interativo_Ponto_a_Ponto implements PlugIn, DialogListener {
 
     private ImagePlus imagePlus;
     private ImageProcessor imageBackup;
+    private CadeiaPontual cadeia;
+    private PreviaEmSegundoPlano previa;
     
     private static final int BRILHO_PADRAO = 0;
     private static final int CONTRASTE_PADRAO = 0;
     private static final int SOLAR_PADRAO = 256;
     private static final double SAT_PADRAO = 1.0; 
 
+    /** Parâmetros dos ajustes, usados também fora do ImageJ (lote, servidor sem display). */
+    public static class Parametros {
+        public int brilho = BRILHO_PADRAO;
+        public int contraste = CONTRASTE_PADRAO;
+        public int solarizacao = SOLAR_PADRAO;
+        public double saturacao = SAT_PADRAO;
+
+        public Parametros() {
+        }
+
+        public Parametros(int brilho, int contraste, int solarizacao, double saturacao) {
+            this.brilho = brilho;
+            this.contraste = contraste;
+            this.solarizacao = solarizacao;
+            this.saturacao = saturacao;
+        }
+
+        /** Lê as opções gravadas pelo Recorder, ex.: "brilho=20 contraste=40 solarização=256 dessaturação=0.5". */
+        public static Parametros deMacro(String opcoes) {
+            Parametros p = new Parametros();
+            p.brilho = (int) OpcoesMacro.numero(opcoes, "Brilho", p.brilho);
+            p.contraste = (int) OpcoesMacro.numero(opcoes, "Contraste", p.contraste);
+            p.solarizacao = (int) OpcoesMacro.numero(opcoes, "Solarização", p.solarizacao);
+            p.saturacao = OpcoesMacro.numero(opcoes, "Dessaturação", p.saturacao);
+            return p;
+        }
+
+        public CadeiaPontual compilar() {
+            return new CadeiaPontual(brilho, contraste, solarizacao, saturacao);
+        }
+    }
+
     @Override
     public void run(String arg) {
         
@@ -26,6 +63,13 @@ public class Editor_Interativo_Ponto_a_Ponto implements PlugIn, DialogListener {
             return;
         }
 
+        //sem display não há GenericDialog nem prévia: as opções vêm direto da macro
+        if (GraphicsEnvironment.isHeadless()) {
+            processar(imagePlus.getProcessor(), Parametros.deMacro(Macro.getOptions()));
+            imagePlus.updateAndDraw();
+            return;
+        }
+
         //copia limpa da imagem original
         this.imageBackup = imagePlus.getProcessor().duplicate();
 
@@ -37,12 +81,24 @@ public class Editor_Interativo_Ponto_a_Ponto implements PlugIn, DialogListener {
         gd.addSlider("Solarização", 0, 256, SOLAR_PADRAO);
         gd.addSlider("Dessaturação", 0.0, 1.0, SAT_PADRAO);
 
+        //com o diálogo visível, a prévia é calculada fora da thread de eventos
+        if (Macro.getOptions() == null) {
+            previa = new PreviaEmSegundoPlano(imagePlus, imageBackup);
+        }
+
         gd.showDialog();
 
+        if (previa != null) {
+            previa.encerrar();
+        }
+
         if (gd.wasCanceled()) {
             imagePlus.setProcessor(imageBackup);
             imagePlus.updateAndDraw();
-        } 
+        } else if (previa != null && cadeia != null && previa.getCompleta() != cadeia) {
+            //a prévia pode ter sido encerrada antes de chegar à resolução total
+            aplicarCadeia();
+        }
     }
 
     @Override
@@ -54,65 +110,54 @@ public class Editor_Interativo_Ponto_a_Ponto implements PlugIn, DialogListener {
         int solarizacao = (int) gd.getNextNumber();
         double saturacao = gd.getNextNumber();
 
-        aplicarEfeitos(brilho, contraste, solarizacao, saturacao);
+        //as tabelas só são recalculadas quando algum parâmetro muda
+        if (cadeia == null || !cadeia.temParametros(brilho, contraste, solarizacao, saturacao)) {
+            cadeia = new CadeiaPontual(brilho, contraste, solarizacao, saturacao);
+        }
+
+        if (previa != null) {
+            previa.solicitar(cadeia); //retorna na hora; pedidos antigos são descartados
+        } else {
+            aplicarCadeia();
+        }
         
         return true;
     }
 
-    private void aplicarEfeitos(int brilho, int contraste, int solarizacao, double saturacao) {
+    private void aplicarCadeia() {
         ImageProcessor imageProcessorAtual = imagePlus.getProcessor();
 
         int[] pixelsImagem = (int[]) imageProcessorAtual.getPixels();
         int[] pixelsOriginais = (int[]) imageBackup.getPixels();
 
-        int totalPixels = pixelsImagem.length;
-
-        float fatorContraste = (259f * (contraste + 255f)) / (255f * (259f - contraste));
-
-        for (int i = 0; i < totalPixels; i++) {
-            
-            //extração de cores da imagem
-            int pixelAtual = pixelsOriginais[i];
-            int r = (pixelAtual >> 16) & 0xff;
-            int g = (pixelAtual >> 8) & 0xff;
-            int b = pixelAtual & 0xff;
-
-            r += brilho;
-            g += brilho;
-            b += brilho;
-
-            //controle de intensidade
-            r = (r > 255) ? 255 : ((r < 0) ? 0 : r);
-            g = (g > 255) ? 255 : ((g < 0) ? 0 : g);
-            b = (b > 255) ? 255 : ((b < 0) ? 0 : b);
-
-            r = (int)((r - 128) * fatorContraste + 128);
-            g = (int)((g - 128) * fatorContraste + 128);
-            b = (int)((b - 128) * fatorContraste + 128);
-
-            r = (r > 255) ? 255 : ((r < 0) ? 0 : r);
-            g = (g > 255) ? 255 : ((g < 0) ? 0 : g);
-            b = (b > 255) ? 255 : ((b < 0) ? 0 : b);
-
-            if (r > solarizacao) r = 255 - r;
-            if (g > solarizacao) g = 255 - g;
-            if (b > solarizacao) b = 255 - b;
-
-            if (saturacao != 1.0) {
-                int lum = (int)(r * 0.299 + g * 0.587 + b * 0.114);
-                
-                r = (int)(lum + (r - lum) * saturacao);
-                g = (int)(lum + (g - lum) * saturacao);
-                b = (int)(lum + (b - lum) * saturacao);
-                
-                r = (r > 255) ? 255 : ((r < 0) ? 0 : r);
-                g = (g > 255) ? 255 : ((g < 0) ? 0 : g);
-                b = (b > 255) ? 255 : ((b < 0) ? 0 : b);
-            }
-
-            pixelsImagem[i] = (r << 16) | (g << 8) | b;
-        }
+        cadeia.aplicar(pixelsOriginais, pixelsImagem);
 
         imagePlus.updateAndDraw();
     }
+
+    /** Núcleo dos ajustes, sem interface: altera os pixels do ColorProcessor 'ip'. */
+    public static void processar(ImageProcessor ip, Parametros parametros) {
+        int[] pixels = (int[]) ip.getPixels();
+        parametros.compilar().aplicar(pixels, pixels);
+    }
+
+    /** Aplica os ajustes a todas as fatias de uma pilha RGB, com as fatias divididas entre threads. */
+    public static void processar(final ImageStack stack, Parametros parametros) {
+        final CadeiaPontual cadeia = parametros.compilar();
+        ExecutorParalelo.executar(stack.getSize(), 1, (inicio, fim) -> {
+            for (int n = inicio; n < fim; n++) {
+                int[] pixels = (int[]) stack.getPixels(n + 1);
+                cadeia.aplicar(pixels, pixels, 0, pixels.length);
+            }
+        });
+    }
+
+    /**
+     * Núcleo dos ajustes: lê de 'pixelsOriginais' e escreve em 'pixelsImagem'
+     * com uma CadeiaPontual, dividindo o vetor entre 'nThreads' threads.
+     */
+    static void aplicarEfeitos(int[] pixelsOriginais, int[] pixelsImagem, int brilho,
+            int contraste, int solarizacao, double saturacao, int nThreads) {
+        new CadeiaPontual(brilho, contraste, solarizacao, saturacao).aplicar(pixelsOriginais, pixelsImagem, nThreads);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,336 @@
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+/**
+ * Equalização adaptativa com limite de contraste (CLAHE) para imagens
+ * de 8 e 16 bits e pilhas. Usada pelo Histograma_Expansao_Equalizacao.
+ *
+ * No modo por blocos a imagem é dividida em blocos de 'tamanhoBloco' pixels;
+ * cada bloco ganha um histograma recortado e a sua CDF (calculados em paralelo)
+ * e cada pixel interpola bilinearmente os mapeamentos dos 4 blocos mais próximos.
+ * No modo de janela deslizante cada pixel usa o histograma da janela centrada
+ * nele, atualizado de forma incremental (entra uma coluna, sai outra) ao longo
+ * da linha; o recorte também é mantido de forma incremental (JanelaRecortada).
+ *
+ * O recorte usa 'inclinacao' vezes a contagem média por nível como limite,
+ * e o excesso é redistribuído de maneira uniforme entre todos os níveis.
+ * Os histogramas são vetores int[] reaproveitados por thread: nada é alocado
+ * por pixel.
+ */
+public class EqualizacaoAdaptativa {
+
+    private final int tamanhoBloco;
+    private final int niveis;
+    private final double inclinacao;
+    private final boolean janelaDeslizante;
+
+    /**
+     * @param tamanhoBloco lado do bloco (ou da janela deslizante), em pixels
+     * @param niveis número de níveis dos histogramas (no máximo 256 em 8 bits)
+     * @param inclinacao inclinação máxima da CDF; 1 não altera a imagem, valores maiores aumentam o contraste
+     * @param janelaDeslizante usa uma janela centrada em cada pixel em vez de blocos interpolados
+     */
+    public EqualizacaoAdaptativa(int tamanhoBloco, int niveis, double inclinacao, boolean janelaDeslizante) {
+        this.tamanhoBloco = Math.max(2, tamanhoBloco);
+        this.niveis = Math.max(2, niveis);
+        this.inclinacao = inclinacao;
+        this.janelaDeslizante = janelaDeslizante;
+    }
+
+    /** Aplica à imagem (8 ou 16 bits), dividindo o trabalho entre 'nThreads' threads. */
+    public void aplicar(ImageProcessor ip, int nThreads) {
+        aplicar(ip.getPixels(), ip.getWidth(), ip.getHeight(), nThreads);
+    }
+
+    /** Aplica a todas as fatias da pilha, com as fatias divididas entre 'nThreads' threads. */
+    public void aplicar(final ImageStack stack, int nThreads) {
+        final int largura = stack.getWidth();
+        final int altura = stack.getHeight();
+        if (stack.getSize() == 1) {
+            aplicar(stack.getPixels(1), largura, altura, nThreads);
+            return;
+        }
+        ExecutorParalelo.executar(stack.getSize(), 1, nThreads, (inicio, fim) -> {
+            for (int n = inicio; n < fim; n++)
+                aplicar(stack.getPixels(n + 1), largura, altura, 1);
+        });
+    }
+
+    /** Aplica ao vetor de pixels (byte[] ou short[]) de uma imagem largura x altura. */
+    public void aplicar(Object pixels, int largura, int altura, int nThreads) {
+        if (!(pixels instanceof byte[]) && !(pixels instanceof short[]))
+            throw new IllegalArgumentException("CLAHE: só imagens de 8 ou 16 bits");
+        if (pixels instanceof byte[] && niveis > 256) {
+            new EqualizacaoAdaptativa(tamanhoBloco, 256, inclinacao, janelaDeslizante).aplicar(pixels, largura, altura, nThreads);
+            return;
+        }
+
+        int maxSaida = (pixels instanceof byte[]) ? 255 : 65535;
+        int[] nivelDe = tabelaDeNiveis(pixels);
+        if (janelaDeslizante) {
+            aplicarJanela(pixels, largura, altura, nivelDe, maxSaida, nThreads);
+        } else {
+            aplicarBlocos(pixels, largura, altura, nivelDe, maxSaida, nThreads);
+        }
+    }
+
+    /**
+     * Nível do histograma para cada valor de pixel: em 8 bits os 256 tons são
+     * divididos entre os níveis; em 16 bits é a faixa [min, max] da imagem.
+     */
+    private int[] tabelaDeNiveis(Object pixels) {
+        int min = 0, max = 255;
+        int[] nivelDe;
+        if (pixels instanceof byte[]) {
+            nivelDe = new int[256];
+        } else {
+            short[] p = (short[]) pixels;
+            min = 65535;
+            max = 0;
+            for (int i = 0; i < p.length; i++) {
+                int v = p[i] & 0xffff;
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            nivelDe = new int[65536];
+        }
+        int ultimo = niveis - 1;
+        long range = Math.max(1, max - min);
+        for (int v = min; v <= max; v++)
+            nivelDe[v] = (int) ((v - min) * (long) ultimo / range);
+        return nivelDe;
+    }
+
+    private int limiteDeRecorte(int totalPixels) {
+        return Math.max(1, (int) (inclinacao * totalPixels / niveis + 0.5));
+    }
+
+    /** Pixel i como inteiro sem sinal. */
+    private static int valor(Object pixels, int i) {
+        if (pixels instanceof byte[]) return ((byte[]) pixels)[i] & 0xff;
+        return ((short[]) pixels)[i] & 0xffff;
+    }
+
+    // --- MODO POR BLOCOS ---
+
+    private void aplicarBlocos(final Object pixels, final int largura, final int altura,
+            final int[] nivelDe, final int maxSaida, int nThreads) {
+
+        final int nx = (largura + tamanhoBloco - 1) / tamanhoBloco;
+        final int ny = (altura + tamanhoBloco - 1) / tamanhoBloco;
+        final int[][] mapas = new int[nx * ny][];
+
+        // 1. Histograma recortado e CDF de cada bloco, em paralelo
+        ExecutorParalelo.executar(nx * ny, 1, nThreads, (inicio, fim) -> {
+            int[] histograma = new int[niveis];
+            for (int t = inicio; t < fim; t++) {
+                int x0 = (t % nx) * tamanhoBloco, x1 = Math.min(largura, x0 + tamanhoBloco);
+                int y0 = (t / nx) * tamanhoBloco, y1 = Math.min(altura, y0 + tamanhoBloco);
+                Arrays.fill(histograma, 0);
+                if (pixels instanceof byte[]) {
+                    byte[] p = (byte[]) pixels;
+                    for (int y = y0; y < y1; y++)
+                        for (int i = y * largura + x0, fimLinha = y * largura + x1; i < fimLinha; i++)
+                            histograma[nivelDe[p[i] & 0xff]]++;
+                } else {
+                    short[] p = (short[]) pixels;
+                    for (int y = y0; y < y1; y++)
+                        for (int i = y * largura + x0, fimLinha = y * largura + x1; i < fimLinha; i++)
+                            histograma[nivelDe[p[i] & 0xffff]]++;
+                }
+                mapas[t] = mapear(histograma, (x1 - x0) * (y1 - y0), maxSaida);
+            }
+        });
+
+        // 2. Para cada coluna e linha: blocos vizinhos e peso da interpolação
+        final int[] blocoX = new int[largura];
+        final float[] pesoX = new float[largura];
+        centros(largura, nx, blocoX, pesoX);
+        final int[] blocoY = new int[altura];
+        final float[] pesoY = new float[altura];
+        centros(altura, ny, blocoY, pesoY);
+
+        // 3. Interpolação bilinear dos 4 mapeamentos, em blocos de linhas
+        ExecutorParalelo.executar(altura, 16, nThreads, (inicio, fim) -> {
+            for (int y = inicio; y < fim; y++) {
+                int by = blocoY[y];
+                int by1 = Math.min(by + 1, ny - 1);
+                float wy = pesoY[y];
+                for (int x = 0, i = y * largura; x < largura; x++, i++) {
+                    int bx = blocoX[x];
+                    int bx1 = Math.min(bx + 1, nx - 1);
+                    float wx = pesoX[x];
+                    int nivel = nivelDe[valor(pixels, i)];
+                    float cima = (1 - wx) * mapas[by * nx + bx][nivel] + wx * mapas[by * nx + bx1][nivel];
+                    float baixo = (1 - wx) * mapas[by1 * nx + bx][nivel] + wx * mapas[by1 * nx + bx1][nivel];
+                    int saida = (int) ((1 - wy) * cima + wy * baixo + 0.5f);
+                    if (pixels instanceof byte[]) {
+                        ((byte[]) pixels)[i] = (byte) saida;
+                    } else {
+                        ((short[]) pixels)[i] = (short) saida;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Para cada coordenada, o bloco cujo centro fica imediatamente antes dela
+     * e o peso (0..1) do bloco seguinte. Antes do primeiro centro e depois do
+     * último o mapeamento do bloco da borda é usado sozinho.
+     */
+    private void centros(int tamanho, int nBlocos, int[] bloco, float[] peso) {
+        for (int c = 0; c < tamanho; c++) {
+            double posicao = (c + 0.5) / tamanhoBloco - 0.5; // em unidades de bloco, 0 = centro do primeiro
+            int b = (int) Math.floor(posicao);
+            if (b < 0) {
+                bloco[c] = 0;
+                peso[c] = 0;
+            } else if (b >= nBlocos - 1) {
+                bloco[c] = nBlocos - 1;
+                peso[c] = 0;
+            } else {
+                bloco[c] = b;
+                peso[c] = (float) (posicao - b);
+            }
+        }
+    }
+
+    /** Mapeamento nível -> valor de saída a partir da CDF do histograma recortado. */
+    private int[] mapear(int[] histograma, int totalPixels, int maxSaida) {
+        int limite = limiteDeRecorte(totalPixels);
+        long excesso = 0;
+        for (int i = 0; i < niveis; i++)
+            if (histograma[i] > limite) excesso += histograma[i] - limite;
+
+        int[] mapa = new int[niveis];
+        long acumulado = 0;
+        for (int i = 0; i < niveis; i++) {
+            acumulado += Math.min(histograma[i], limite);
+            double cdf = acumulado + (double) excesso * (i + 1) / niveis;
+            mapa[i] = (int) Math.round(cdf * maxSaida / totalPixels);
+        }
+        return mapa;
+    }
+
+    // --- MODO DE JANELA DESLIZANTE ---
+
+    private void aplicarJanela(Object pixels, final int largura, final int altura,
+            final int[] nivelDe, final int maxSaida, int nThreads) {
+
+        // a saída vai para outro vetor, porque as janelas leem os valores originais
+        final Object origem = (pixels instanceof byte[]) ? ((byte[]) pixels).clone() : ((short[]) pixels).clone();
+        final Object destino = pixels;
+        final int raio = tamanhoBloco / 2;
+
+        ExecutorParalelo.executar(altura, 16, nThreads, (inicio, fim) -> {
+            JanelaRecortada janela = new JanelaRecortada(niveis);
+            for (int y = inicio; y < fim; y++) {
+                int y0 = Math.max(0, y - raio);
+                int y1 = Math.min(altura, y + raio + 1);
+
+                // janela inicial: colunas 0..raio-1; a coluna 'raio' entra no primeiro passo
+                janela.limpar();
+                for (int x = 0; x < Math.min(raio, largura); x++)
+                    somarColuna(origem, largura, x, y0, y1, nivelDe, janela, 1);
+
+                for (int x = 0; x < largura; x++) {
+                    if (x + raio < largura)
+                        somarColuna(origem, largura, x + raio, y0, y1, nivelDe, janela, 1);
+                    if (x - raio - 1 >= 0)
+                        somarColuna(origem, largura, x - raio - 1, y0, y1, nivelDe, janela, -1);
+
+                    int colunas = Math.min(largura, x + raio + 1) - Math.max(0, x - raio);
+                    int totalPixels = colunas * (y1 - y0);
+                    int i = y * largura + x;
+                    janela.definirLimite(limiteDeRecorte(totalPixels));
+                    int saida = valorRecortado(janela, nivelDe[valor(origem, i)], totalPixels, maxSaida);
+                    if (destino instanceof byte[]) {
+                        ((byte[]) destino)[i] = (byte) saida;
+                    } else {
+                        ((short[]) destino)[i] = (short) saida;
+                    }
+                }
+            }
+        });
+    }
+
+    private static void somarColuna(Object pixels, int largura, int x, int y0, int y1, int[] nivelDe, JanelaRecortada janela, int sinal) {
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int y = y0, i = y0 * largura + x; y < y1; y++, i += largura)
+                janela.alterar(nivelDe[p[i] & 0xff], sinal);
+        } else {
+            short[] p = (short[]) pixels;
+            for (int y = y0, i = y0 * largura + x; y < y1; y++, i += largura)
+                janela.alterar(nivelDe[p[i] & 0xffff], sinal);
+        }
+    }
+
+    /** O mesmo que mapear(histograma da janela)[nivel], sem percorrer todos os níveis. */
+    private int valorRecortado(JanelaRecortada janela, int nivel, int totalPixels, int maxSaida) {
+        double cdf = janela.acumulado(nivel) + (double) janela.excesso * (nivel + 1) / niveis;
+        return (int) Math.round(cdf * maxSaida / totalPixels);
+    }
+
+    /**
+     * Histograma da janela deslizante com o recorte mantido a cada alteração:
+     * o excesso total acima do limite e a soma das contagens recortadas de cada
+     * grupo de cerca de raiz(niveis) níveis. Um pixel que entra ou sai da janela
+     * custa O(1) e a CDF recortada de um nível O(raiz(niveis)); tudo é recalculado
+     * só quando o limite muda, perto das bordas, onde a janela tem menos pixels.
+     */
+    private static class JanelaRecortada {
+        final int[] histograma;
+        final int[] recortadoPorGrupo;
+        final int bitsGrupo; // cada grupo tem 2^bitsGrupo níveis
+        int limite;
+        long excesso;
+
+        JanelaRecortada(int niveis) {
+            histograma = new int[niveis];
+            bitsGrupo = (33 - Integer.numberOfLeadingZeros(niveis - 1)) / 2;
+            recortadoPorGrupo = new int[((niveis - 1) >> bitsGrupo) + 1];
+        }
+
+        void limpar() {
+            Arrays.fill(histograma, 0);
+            Arrays.fill(recortadoPorGrupo, 0);
+            excesso = 0;
+        }
+
+        void alterar(int nivel, int sinal) {
+            int h = histograma[nivel];
+            if (sinal > 0 ? h >= limite : h > limite)
+                excesso += sinal;
+            else
+                recortadoPorGrupo[nivel >> bitsGrupo] += sinal;
+            histograma[nivel] = h + sinal;
+        }
+
+        void definirLimite(int novoLimite) {
+            if (novoLimite == limite) return;
+            limite = novoLimite;
+            Arrays.fill(recortadoPorGrupo, 0);
+            excesso = 0;
+            for (int i = 0; i < histograma.length; i++) {
+                int h = histograma[i];
+                int recortado = h > limite ? limite : h;
+                recortadoPorGrupo[i >> bitsGrupo] += recortado;
+                excesso += h - recortado;
+            }
+        }
+
+        /** Soma das contagens recortadas dos níveis 0..nivel. */
+        long acumulado(int nivel) {
+            int grupo = nivel >> bitsGrupo;
+            long soma = 0;
+            for (int g = 0; g < grupo; g++)
+                soma += recortadoPorGrupo[g];
+            for (int i = grupo << bitsGrupo; i <= nivel; i++)
+                soma += histograma[i] > limite ? limite : histograma[i];
+            return soma;
+        }
+    }
+}
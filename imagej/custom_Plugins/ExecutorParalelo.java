@@ -0,0 +1,107 @@
+import ij.Prefs;
+import ij.util.ThreadUtil;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor compartilhado pelos plugins de operações ponto a ponto.
+ * Divide um vetor de pixels em blocos do tamanho da cache e distribui
+ * os blocos entre as threads de Edit>Options>Memory & Threads
+ * (Prefs.getThreads()), usando o pool de ij.util.ThreadUtil.
+ * Cada pixel é calculado de forma independente, portanto o resultado
+ * é idêntico ao da execução serial.
+ */
+public class ExecutorParalelo {
+
+    /** Pixels por bloco: 64K pixels RGB ocupam 256 KB, o que cabe na cache L2. */
+    public static final int TAMANHO_BLOCO = 64 * 1024;
+
+    /** Trabalho sobre o intervalo [inicio, fim) do vetor de pixels. */
+    public interface Tarefa {
+        void processar(int inicio, int fim);
+    }
+
+    private ExecutorParalelo() {
+    }
+
+    /** Executa a tarefa sobre [0, total) com blocos padrão e Prefs.getThreads() threads. */
+    public static void executar(int total, Tarefa tarefa) {
+        executar(total, TAMANHO_BLOCO, Prefs.getThreads(), tarefa);
+    }
+
+    /** Executa a tarefa sobre [0, total) com Prefs.getThreads() threads. */
+    public static void executar(int total, int tamanhoBloco, Tarefa tarefa) {
+        executar(total, tamanhoBloco, Prefs.getThreads(), tarefa);
+    }
+
+    /**
+     * Executa a tarefa sobre [0, total) em blocos de 'tamanhoBloco' elementos.
+     * As threads pegam o próximo bloco livre de um contador compartilhado, o que
+     * equilibra a carga quando alguns blocos são mais caros que outros.
+     * Com nThreads=1 (ou um único bloco) tudo roda na thread atual.
+     * Se a thread chamadora for interrompida, os blocos restantes são descartados;
+     * mesmo assim o método só retorna quando nenhuma thread está mais escrevendo,
+     * para que um cálculo cancelado não sobrescreva o resultado de outro.
+     */
+    public static void executar(final int total, int tamanhoBloco, int nThreads, final Tarefa tarefa) {
+        if (total <= 0) return;
+
+        final int bloco = Math.max(1, tamanhoBloco);
+        final int nBlocos = (int) (((long) total + bloco - 1) / bloco);
+        if (nThreads > nBlocos) nThreads = nBlocos;
+
+        if (nThreads <= 1) {
+            processarBlocos(new AtomicInteger(), nBlocos, bloco, total, tarefa);
+            return;
+        }
+
+        final AtomicInteger proximoBloco = new AtomicInteger();
+        final int[] ativas = new int[1]; // tarefas dentro de call(), protegido por 'ativas'
+        Callable<?>[] callables = new Callable<?>[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            callables[t] = new Callable<Void>() {
+                @Override
+                public Void call() {
+                    synchronized (ativas) {
+                        ativas[0]++;
+                    }
+                    try {
+                        processarBlocos(proximoBloco, nBlocos, bloco, total, tarefa);
+                    } finally {
+                        synchronized (ativas) {
+                            ativas[0]--;
+                            ativas.notifyAll();
+                        }
+                    }
+                    return null;
+                }
+            };
+        }
+        ThreadUtil.startAndJoin(callables);
+
+        // com interrupção, joinAll cancela as tarefas sem esperar as que já rodam:
+        // nenhum bloco novo começa, e as tarefas em andamento terminam o bloco atual
+        proximoBloco.set(nBlocos);
+        boolean interrompida = false;
+        synchronized (ativas) {
+            while (ativas[0] > 0) {
+                try {
+                    ativas.wait();
+                } catch (InterruptedException e) {
+                    interrompida = true;
+                }
+            }
+        }
+        if (interrompida) Thread.currentThread().interrupt();
+    }
+
+    private static void processarBlocos(AtomicInteger proximoBloco, int nBlocos, int bloco, int total, Tarefa tarefa) {
+        Thread thread = Thread.currentThread();
+        for (int b = proximoBloco.getAndIncrement(); b < nBlocos; b = proximoBloco.getAndIncrement()) {
+            if (thread.isInterrupted()) return;
+            int inicio = b * bloco;
+            int fim = (int) Math.min((long) inicio + bloco, total);
+            tarefa.processar(inicio, fim);
+        }
+    }
+}
@@ -1,60 +1,308 @@
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Macro;
+import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.gui.Plot;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import java.awt.GraphicsEnvironment;
+import java.lang.reflect.Array;
 
 public class Histograma_Expansao_Equalizacao implements PlugIn {
 
+    private static final String[] METODOS = {"Expansão", "Equalização", "Equalização adaptativa (CLAHE)"};
+
+    // Imagens 32 bits são quantizadas neste número de níveis entre o mínimo e o máximo
+    static final int NIVEIS_FLOAT = 65536;
+
+    private static final String ROTULO_METODO = "Método:";
+    private static final String ROTULO_PILHA = "Processar todas as fatias";
+    private static final String ROTULO_GLOBAL = "Histograma global da pilha";
+    private static final String ROTULO_CRIAR = "Criar nova imagem";
+    private static final String ROTULO_BLOCO = "Tamanho do bloco:";
+    private static final String ROTULO_NIVEIS = "Níveis do histograma:";
+    private static final String ROTULO_INCLINACAO = "Inclinação máxima:";
+    private static final String ROTULO_JANELA = "Janela deslizante (sem blocos, mais lenta)";
+    private static final String ROTULO_MOSTRAR = "Mostrar histogramas";
+
+    /** Parâmetros do processamento, usados também fora do ImageJ (lote, servidor sem display). */
+    public static class Parametros {
+        public String metodo = METODOS[0];
+        public boolean pilha = true;
+        public boolean global = false;
+        public boolean criarNova = true;
+        // equalização adaptativa (CLAHE)
+        public int tamanhoBloco = 64;
+        public int niveis = 256;
+        public double inclinacao = 3.0;
+        public boolean janelaDeslizante = false;
+        public boolean mostrarHistogramas = true;
+
+        /** Lê as opções gravadas pelo Recorder, ex.: "método=Equalização processar global criar". */
+        public static Parametros deMacro(String opcoes) {
+            Parametros p = new Parametros();
+            p.metodo = OpcoesMacro.texto(opcoes, ROTULO_METODO, p.metodo);
+            p.pilha = OpcoesMacro.marcado(opcoes, ROTULO_PILHA, p.pilha);
+            p.global = OpcoesMacro.marcado(opcoes, ROTULO_GLOBAL, p.global);
+            p.criarNova = OpcoesMacro.marcado(opcoes, ROTULO_CRIAR, p.criarNova);
+            p.tamanhoBloco = (int) OpcoesMacro.numero(opcoes, ROTULO_BLOCO, p.tamanhoBloco);
+            p.niveis = (int) OpcoesMacro.numero(opcoes, ROTULO_NIVEIS, p.niveis);
+            p.inclinacao = OpcoesMacro.numero(opcoes, ROTULO_INCLINACAO, p.inclinacao);
+            p.janelaDeslizante = OpcoesMacro.marcado(opcoes, ROTULO_JANELA, p.janelaDeslizante);
+            p.mostrarHistogramas = OpcoesMacro.marcado(opcoes, ROTULO_MOSTRAR, false);
+            return p;
+        }
+
+        /** 0 = expansão, 1 = equalização, 2 = equalização adaptativa. */
+        int indiceMetodo() {
+            for (int i = 0; i < METODOS.length; i++)
+                if (METODOS[i].equals(metodo)) return i;
+            throw new IllegalArgumentException("Método desconhecido: " + metodo);
+        }
+    }
+
     @Override
     public void run(String arg) {
         ImagePlus imagemOriginal = IJ.getImage();
+        int tipo = imagemOriginal.getType();
 
-        // Validação: Garante que é uma imagem 8-bit (tons de cinza)
-        if (imagemOriginal.getType() != ImagePlus.GRAY8) {
-            IJ.error("Erro", "A imagem precisa estar em escala de cinza (8-bit).");
+        // Validação: Garante que é uma imagem em tons de cinza (8, 16 ou 32 bits)
+        if (tipo != ImagePlus.GRAY8 && tipo != ImagePlus.GRAY16 && tipo != ImagePlus.GRAY32) {
+            IJ.error("Erro", "A imagem precisa estar em escala de cinza (8, 16 ou 32 bits).");
             return;
         }
 
-        // Exibe o histograma de como a imagem é AGORA
-        mostrarGraficoHistograma(imagemOriginal, "Histograma Original");
+        // Exibe o histograma de como a imagem é AGORA (só quando há alguém olhando)
+        boolean semDisplay = GraphicsEnvironment.isHeadless();
+        boolean interativo = !semDisplay && Macro.getOptions() == null;
+        if (interativo) {
+            mostrarGraficoHistograma(imagemOriginal.getProcessor(), "Histograma Original");
+        }
+
+        // sem display não há GenericDialog: as opções vêm direto da macro
+        Parametros parametros = semDisplay ? Parametros.deMacro(Macro.getOptions()) : mostrarDialogo(imagemOriginal);
+        if (parametros == null) return;
 
-        // Abre a caixa de diálogo
-        GenericDialog gd = new GenericDialog("Processamento de Histograma");
-        String[] opcoes = {"Expansão", "Equalização"};
-        gd.addRadioButtonGroup("Método:", opcoes, 2, 1, opcoes[0]);
-        gd.showDialog();
+        int nFatias = imagemOriginal.getStackSize();
+        boolean pilha = nFatias > 1 && parametros.pilha;
+        boolean adaptativa = parametros.indiceMetodo() == 2;
+
+        if (adaptativa && tipo == ImagePlus.GRAY32) {
+            IJ.error("Erro", "A equalização adaptativa só aceita imagens de 8 ou 16 bits.");
+            return;
+        }
+
+        if (pilha && !parametros.criarNova && imagemOriginal.getStack().isVirtual()) {
+            IJ.error("Erro", "Pilhas virtuais só podem ser processadas em uma nova imagem.");
+            return;
+        }
+
+        if (!interativo && parametros.mostrarHistogramas) {
+            mostrarGraficoHistograma(imagemOriginal.getProcessor(), "Histograma Original");
+        }
+
+        ImagePlus imagemResultado;
+        if (parametros.criarNova) {
+            // Cria uma cópia para não estragar a original; sem a pilha, copia só a fatia atual
+            if (pilha) {
+                imagemResultado = imagemOriginal.duplicate();
+            } else {
+                imagemResultado = new ImagePlus("", imagemOriginal.getProcessor().duplicate());
+                imagemResultado.setCalibration(imagemOriginal.getCalibration());
+            }
+            imagemResultado.setTitle("Resultado - " + parametros.metodo);
+        } else {
+            imagemResultado = imagemOriginal;
+        }
 
-        if (gd.wasCanceled()) return;
-
-        // Processamento
-        String metodo = gd.getNextRadioButton();
-        
-        // Cria uma cópia para não estragar a original se der erro
-        ImagePlus imagemResultado = imagemOriginal.duplicate();
-        imagemResultado.setTitle("Resultado - " + metodo);
-        
-        if (metodo.equals(opcoes[0])) {
-            aplicarExpansao(imagemResultado);
+        if (pilha) {
+            processar(imagemResultado.getStack(), imagemResultado.getNChannels(), parametros);
         } else {
-            aplicarEqualizacao(imagemResultado);
+            processar(imagemResultado.getProcessor(), parametros);
         }
+        ajustarExibicao(imagemResultado);
 
         // Mostra a imagem nova e o histograma novo
-        imagemResultado.show();
-        mostrarGraficoHistograma(imagemResultado, "Histograma após " + metodo);
+        if (parametros.criarNova) {
+            imagemResultado.show();
+        } else {
+            imagemResultado.updateAndDraw();
+        }
+        if (parametros.mostrarHistogramas) {
+            mostrarGraficoHistograma(imagemResultado.getProcessor(), "Histograma após " + parametros.metodo);
+        }
+    }
+
+    private Parametros mostrarDialogo(ImagePlus imp) {
+        Parametros padrao = new Parametros();
+        int nFatias = imp.getStackSize();
+
+        GenericDialog gd = new GenericDialog("Processamento de Histograma");
+        gd.addRadioButtonGroup(ROTULO_METODO, METODOS, 3, 1, padrao.metodo);
+        if (nFatias > 1) {
+            // a chave gravada é só a primeira palavra ("processar"), então o número pode variar
+            gd.addCheckbox("Processar todas as " + nFatias + " fatias", padrao.pilha);
+            gd.addCheckbox(ROTULO_GLOBAL, padrao.global);
+        }
+        gd.addCheckbox(ROTULO_CRIAR, padrao.criarNova);
+        gd.addMessage("Equalização adaptativa (8 e 16 bits):");
+        gd.addNumericField(ROTULO_BLOCO, padrao.tamanhoBloco, 0, 6, "pixels");
+        gd.addNumericField(ROTULO_NIVEIS, padrao.niveis, 0);
+        gd.addNumericField(ROTULO_INCLINACAO, padrao.inclinacao, 2);
+        gd.addCheckbox(ROTULO_JANELA, padrao.janelaDeslizante);
+        gd.addCheckbox(ROTULO_MOSTRAR, padrao.mostrarHistogramas);
+        gd.showDialog();
+
+        if (gd.wasCanceled()) return null;
+
+        Parametros p = new Parametros();
+        p.metodo = gd.getNextRadioButton();
+        p.pilha = nFatias > 1 && gd.getNextBoolean();
+        p.global = nFatias > 1 && gd.getNextBoolean();
+        p.criarNova = gd.getNextBoolean();
+        p.tamanhoBloco = (int) gd.getNextNumber();
+        p.niveis = (int) gd.getNextNumber();
+        p.inclinacao = gd.getNextNumber();
+        p.janelaDeslizante = gd.getNextBoolean();
+        p.mostrarHistogramas = gd.getNextBoolean();
+        return p;
     }
 
     // --- MÉTODOS DE PROCESSAMENTO ---
 
-    private void aplicarExpansao(ImagePlus imp) {
-        ImageProcessor ip = imp.getProcessor();
-        int[] histograma = ip.getHistogram(); // O ImageJ já calcula isso rápido pra nós!
-        
+    /** Núcleo do plugin, sem interface: processa a imagem 'ip' no lugar. */
+    public static void processar(ImageProcessor ip, Parametros parametros) {
+        int metodo = parametros.indiceMetodo();
+        if (metodo == 2) {
+            new EqualizacaoAdaptativa(parametros.tamanhoBloco, parametros.niveis, parametros.inclinacao,
+                    parametros.janelaDeslizante).aplicar(ip, Prefs.getThreads());
+        } else {
+            processarFatia(ip, metodo == 1, Prefs.getThreads());
+        }
+    }
+
+    /** Núcleo do plugin para pilhas e hiperpilhas ('nCanais' canais intercalados), no lugar. */
+    public static void processar(ImageStack stack, int nCanais, Parametros parametros) {
+        int metodo = parametros.indiceMetodo();
+        if (metodo == 2) {
+            new EqualizacaoAdaptativa(parametros.tamanhoBloco, parametros.niveis, parametros.inclinacao,
+                    parametros.janelaDeslizante).aplicar(stack, Prefs.getThreads());
+        } else {
+            processarPilha(stack, metodo == 1, parametros.global, nCanais, Prefs.getThreads());
+        }
+    }
+
+    /**
+     * Expande ou equaliza uma única imagem. O histograma e a aplicação da LUT
+     * dividem o vetor de pixels entre 'nThreads' threads.
+     */
+    static void processarFatia(ImageProcessor ip, boolean equalizar, int nThreads) {
+        Object pixels = ip.getPixels();
+        double[] faixa = faixaDeValores(pixels);
+        double escala = escalaFloat(faixa);
+
+        long[] histograma = histogramaParalelo(pixels, faixa[0], escala, nThreads);
+        int[] tabelaLUT = equalizar ? tabelaEqualizacao(histograma) : tabelaExpansao(histograma);
+        aplicarLutNaImagem(pixels, tabelaLUT, faixa[0], escala, nThreads);
+    }
+
+    /**
+     * Expande ou equaliza todas as fatias de uma pilha (ou hiperpilha), com as
+     * fatias divididas entre 'nThreads' threads.
+     * Sem 'global', cada fatia usa o próprio histograma. Com 'global', cada thread
+     * acumula um histograma parcial das suas fatias; os parciais são somados
+     * (como em ij.process.StackStatistics) e uma única LUT por canal é aplicada
+     * a todas as fatias. Em hiperpilhas com 'nCanais' > 1 os canais não se misturam.
+     */
+    static void processarPilha(final ImageStack stack, final boolean equalizar, boolean global, int nCanais, int nThreads) {
+        final int nFatias = stack.getSize();
+
+        if (!global) {
+            ExecutorParalelo.executar(nFatias, 1, nThreads, (inicio, fim) -> {
+                for (int n = inicio; n < fim; n++) {
+                    Object pixels = stack.getPixels(n + 1);
+                    double[] faixa = faixaDeValores(pixels);
+                    double escala = escalaFloat(faixa);
+                    long[] histograma = new long[niveis(pixels)];
+                    acumular(pixels, 0, stack.getWidth() * stack.getHeight(), histograma, faixa[0], escala);
+                    int[] tabelaLUT = equalizar ? tabelaEqualizacao(histograma) : tabelaExpansao(histograma);
+                    aplicarTabela(pixels, 0, stack.getWidth() * stack.getHeight(), tabelaLUT, faixa[0], escala);
+                }
+            });
+            return;
+        }
+
+        final int canais = Math.max(1, nCanais);
+        final int totalPixels = stack.getWidth() * stack.getHeight();
+        final int niveis = niveis(stack.getPixels(1));
+        final int bloco = (nFatias + nThreads - 1) / nThreads;
+        final int nBlocos = (nFatias + bloco - 1) / bloco;
+
+        // 32 bits: faixa de valores de cada canal em toda a pilha
+        final double[] minimo = new double[canais];
+        final double[] escala = new double[canais];
+        if (stack.getBitDepth() == 32) {
+            final double[][] faixasParciais = new double[nFatias][];
+            ExecutorParalelo.executar(nFatias, bloco, nThreads, (inicio, fim) -> {
+                for (int n = inicio; n < fim; n++)
+                    faixasParciais[n] = faixaDeValores(stack.getPixels(n + 1));
+            });
+            for (int c = 0; c < canais; c++) {
+                double[] faixa = {Double.MAX_VALUE, -Double.MAX_VALUE};
+                for (int n = c; n < nFatias; n += canais) {
+                    faixa[0] = Math.min(faixa[0], faixasParciais[n][0]);
+                    faixa[1] = Math.max(faixa[1], faixasParciais[n][1]);
+                }
+                minimo[c] = faixa[0];
+                escala[c] = escalaFloat(faixa);
+            }
+        }
+
+        // histogramas parciais: um por bloco de fatias (ou seja, por thread) e por canal;
+        // 'long' porque uma pilha grande passa facilmente de 2^31 pixels
+        final long[][][] parciais = new long[nBlocos][canais][];
+        ExecutorParalelo.executar(nFatias, bloco, nThreads, (inicio, fim) -> {
+            long[][] meus = parciais[inicio / bloco];
+            for (int n = inicio; n < fim; n++) {
+                int c = n % canais;
+                if (meus[c] == null) meus[c] = new long[niveis];
+                acumular(stack.getPixels(n + 1), 0, totalPixels, meus[c], minimo[c], escala[c]);
+            }
+        });
+
+        final int[][] tabelas = new int[canais][];
+        for (int c = 0; c < canais; c++) {
+            long[] histograma = new long[niveis];
+            for (int b = 0; b < nBlocos; b++) {
+                long[] parcial = parciais[b][c];
+                if (parcial == null) continue;
+                for (int i = 0; i < niveis; i++)
+                    histograma[i] += parcial[i];
+            }
+            tabelas[c] = equalizar ? tabelaEqualizacao(histograma) : tabelaExpansao(histograma);
+        }
+
+        ExecutorParalelo.executar(nFatias, 1, nThreads, (inicio, fim) -> {
+            for (int n = inicio; n < fim; n++) {
+                int c = n % canais;
+                aplicarTabela(stack.getPixels(n + 1), 0, totalPixels, tabelas[c], minimo[c], escala[c]);
+            }
+        });
+    }
+
+    /**
+     * Tabela de expansão: leva o tom mínimo a 0 e o máximo ao último nível
+     * (255 em 8 bits, 65535 em 16 bits, 1.0 em 32 bits).
+     */
+    static int[] tabelaExpansao(long[] histograma) {
+        int ultimo = histograma.length - 1;
+
         // 1. Encontrar o tom Mínimo (primeiro índice com valor > 0)
         int tomMin = 0;
-        for (int i = 0; i < 256; i++) {
+        for (int i = 0; i <= ultimo; i++) {
             if (histograma[i] > 0) {
                 tomMin = i;
                 break;
@@ -62,8 +310,8 @@ public class Histograma_Expansao_Equalizacao implements PlugIn {
         }
 
         // 2. Encontrar o tom Máximo (último índice com valor > 0)
-        int tomMax = 255;
-        for (int i = 255; i >= 0; i--) {
+        int tomMax = ultimo;
+        for (int i = ultimo; i >= 0; i--) {
             if (histograma[i] > 0) {
                 tomMax = i;
                 break;
@@ -72,86 +320,185 @@ public class Histograma_Expansao_Equalizacao implements PlugIn {
 
         // 3. Criar a Tabela de Consulta (LUT)
         // Isso evita fazer conta de divisão dentro do loop de pixels
-        int[] tabelaLUT = new int[256];
+        int[] tabelaLUT = new int[histograma.length];
         double range = tomMax - tomMin;
-        
-        for (int i = 0; i < 256; i++) {
+
+        for (int i = 0; i <= ultimo; i++) {
             if (i < tomMin) {
                 tabelaLUT[i] = 0;
             } else if (i > tomMax) {
-                tabelaLUT[i] = 255;
+                tabelaLUT[i] = ultimo;
             } else {
-                // Fórmula: (Valor - Min) * (255 / Range)
-                tabelaLUT[i] = (int) (( (i - tomMin) / range ) * 255.0);
+                // Fórmula: (Valor - Min) * (L-1 / Range)
+                tabelaLUT[i] = (int) (( (i - tomMin) / range ) * (double) ultimo);
             }
         }
-
-        // 4. Aplicar a tabela na imagem
-        aplicarLutNaImagem(ip, tabelaLUT);
+        return tabelaLUT;
     }
 
-    private void aplicarEqualizacao(ImagePlus imp) {
-        ImageProcessor ip = imp.getProcessor();
-        int[] histograma = ip.getHistogram();
-        int totalPixels = ip.getPixelCount();
+    /** Tabela de equalização: (CDF * (L-1)) / total de pixels. */
+    static int[] tabelaEqualizacao(long[] histograma) {
+        int ultimo = histograma.length - 1;
+        long totalPixels = 0;
+        for (int i = 0; i <= ultimo; i++)
+            totalPixels += histograma[i];
 
-        // 1. Calcular Histograma Acumulado (CDF) e LUT simultaneamente
-        int[] tabelaLUT = new int[256];
+        // Calcular Histograma Acumulado (CDF) e LUT simultaneamente
+        int[] tabelaLUT = new int[histograma.length];
         long somaAcumulada = 0; // 'long' para evitar estouro em imagens gigantes
 
-        // Encontra o primeiro valor não nulo (cdfMin) para normalização perfeita (opcional, mas recomendado)
-        // Aqui usaremos a fórmula simplificada: (cdf * 255) / total
-        
-        for (int i = 0; i < 256; i++) {
+        for (int i = 0; i <= ultimo; i++) {
             somaAcumulada += histograma[i];
-            
+
             // Fórmula da Equalização: CDF * (L - 1)
             // Math.round para arredondar corretamente o tom de cinza
-            tabelaLUT[i] = (int) Math.round((double) somaAcumulada * 255 / totalPixels);
+            tabelaLUT[i] = totalPixels == 0 ? i : (int) Math.round((double) somaAcumulada * ultimo / totalPixels);
         }
-
-        // 2. Aplicar a tabela na imagem
-        aplicarLutNaImagem(ip, tabelaLUT);
+        return tabelaLUT;
     }
 
     // --- MÉTODOS AUXILIARES ---
 
+    /** Número de níveis do histograma: um por valor em 8 e 16 bits, NIVEIS_FLOAT em 32 bits. */
+    static int niveis(Object pixels) {
+        if (pixels instanceof byte[]) return 256;
+        if (pixels instanceof short[]) return 65536;
+        return NIVEIS_FLOAT;
+    }
+
+    /** Mínimo e máximo dos pixels de 32 bits (NaN é ignorado); {0, 0} nos outros tipos. */
+    static double[] faixaDeValores(Object pixels) {
+        if (!(pixels instanceof float[])) return new double[] {0, 0};
+        float[] p = (float[]) pixels;
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (int i = 0; i < p.length; i++) {
+            float v = p[i];
+            if (v < min) min = v;
+            if (v > max) max = v; // NaN falha nas duas comparações
+        }
+        if (min > max) return new double[] {0, 0};
+        return new double[] {min, max};
+    }
+
+    /** Fator que leva [min, max] para os níveis 0..NIVEIS_FLOAT-1. */
+    static double escalaFloat(double[] faixa) {
+        double range = faixa[1] - faixa[0];
+        return range > 0 ? (NIVEIS_FLOAT - 1) / range : 0;
+    }
+
+    /** Histograma do vetor inteiro, com um histograma parcial por thread somado no final. */
+    static long[] histogramaParalelo(final Object pixels, final double min, final double escala, int nThreads) {
+        final int niveis = niveis(pixels);
+        int totalPixels = Array.getLength(pixels);
+        final int bloco = Math.max(ExecutorParalelo.TAMANHO_BLOCO, (totalPixels + nThreads - 1) / nThreads);
+        final long[][] parciais = new long[(totalPixels + bloco - 1) / bloco][];
+
+        ExecutorParalelo.executar(totalPixels, bloco, nThreads, (inicio, fim) -> {
+            long[] parcial = new long[niveis];
+            acumular(pixels, inicio, fim, parcial, min, escala);
+            parciais[inicio / bloco] = parcial;
+        });
+
+        long[] histograma = new long[niveis];
+        for (long[] parcial : parciais) {
+            if (parcial == null) continue;
+            for (int i = 0; i < niveis; i++)
+                histograma[i] += parcial[i];
+        }
+        return histograma;
+    }
+
+    /** Soma ao histograma os pixels [inicio, fim); em 32 bits o nível é (v - min) * escala. */
+    static void acumular(Object pixels, int inicio, int fim, long[] histograma, double min, double escala) {
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int i = inicio; i < fim; i++)
+                histograma[p[i] & 0xff]++;
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int i = inicio; i < fim; i++)
+                histograma[p[i] & 0xffff]++;
+        } else {
+            float[] p = (float[]) pixels;
+            int ultimo = histograma.length - 1;
+            for (int i = inicio; i < fim; i++) {
+                float v = p[i];
+                if (v != v) continue; // NaN
+                int nivel = (int) ((v - min) * escala);
+                histograma[nivel < 0 ? 0 : (nivel > ultimo ? ultimo : nivel)]++;
+            }
+        }
+    }
+
     /**
-     * Aplica uma tabela de transformação (LUT) usando vetor de bytes.
+     * Aplica uma tabela de transformação (LUT) usando o vetor de pixels.
      * Substitui getPixel/putPixel por acesso direto à memória.
      */
-    private void aplicarLutNaImagem(ImageProcessor ip, int[] tabelaLUT) {
-        // Acesso direto ao vetor de bytes (A tal "Tripa" de pixels)
-        // Nota: Em Java, bytes vão de -128 a 127. Precisamos tratar isso.
-        byte[] pixels = (byte[]) ip.getPixels();
+    static void aplicarLutNaImagem(final Object pixels, final int[] tabelaLUT, final double min, final double escala, int nThreads) {
+        ExecutorParalelo.executar(Array.getLength(pixels), ExecutorParalelo.TAMANHO_BLOCO, nThreads,
+                (inicio, fim) -> aplicarTabela(pixels, inicio, fim, tabelaLUT, min, escala));
+    }
 
-        for (int i = 0; i < pixels.length; i++) {
-            // Conversão de byte assinado para inteiro 0-255
-            // (0xff é a máscara que corrige o sinal negativo do Java)
-            int valorOriginal = pixels[i] & 0xff;
+    /** Versão para 8 bits, com o vetor dividido em blocos entre 'nThreads' threads. */
+    static void aplicarLutNaImagem(byte[] pixels, int[] tabelaLUT, int nThreads) {
+        aplicarLutNaImagem(pixels, tabelaLUT, 0, 0, nThreads);
+    }
 
-            // Consulta a tabela: "Se o valor era X, qual é o novo valor?"
-            int novoValor = tabelaLUT[valorOriginal];
+    /** Troca cada pixel de [inicio, fim) por tabelaLUT[nível]; em 32 bits o resultado fica em [0, 1]. */
+    static void aplicarTabela(Object pixels, int inicio, int fim, int[] tabelaLUT, double min, double escala) {
+        if (pixels instanceof byte[]) {
+            // Acesso direto ao vetor de bytes (A tal "Tripa" de pixels)
+            // Nota: Em Java, bytes vão de -128 a 127. A máscara 0xff corrige o sinal.
+            byte[] p = (byte[]) pixels;
+            for (int i = inicio; i < fim; i++)
+                p[i] = (byte) tabelaLUT[p[i] & 0xff];
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int i = inicio; i < fim; i++)
+                p[i] = (short) tabelaLUT[p[i] & 0xffff];
+        } else {
+            float[] p = (float[]) pixels;
+            int ultimo = tabelaLUT.length - 1;
+            float fator = 1f / ultimo;
+            for (int i = inicio; i < fim; i++) {
+                float v = p[i];
+                if (v != v) continue; // NaN continua NaN
+                int nivel = (int) ((v - min) * escala);
+                p[i] = tabelaLUT[nivel < 0 ? 0 : (nivel > ultimo ? ultimo : nivel)] * fator;
+            }
+        }
+    }
 
-            // Grava de volta no vetor (fazendo cast para byte)
-            pixels[i] = (byte) novoValor;
+    /** Faixa de exibição igual à faixa de saída: 0-65535 em 16 bits e 0-1 em 32 bits. */
+    private void ajustarExibicao(ImagePlus imp) {
+        int bitDepth = imp.getBitDepth();
+        if (bitDepth == 8) return;
+        double max = bitDepth == 16 ? 65535 : 1.0;
+        int canalAtual = imp.getC();
+        for (int c = 1; c <= imp.getNChannels(); c++) {
+            imp.setC(c);
+            imp.setDisplayRange(0, max);
         }
+        imp.setC(canalAtual);
     }
 
-    private void mostrarGraficoHistograma(ImagePlus imp, String titulo) {
-        int[] hist = imp.getProcessor().getHistogram();
-        
+    private void mostrarGraficoHistograma(ImageProcessor ip, String titulo) {
+        // 256 classes entre o mínimo e o máximo (em 8 bits, uma por tom)
+        ImageStatistics stats = ip.getStats();
+        int[] hist = stats.histogram;
+
         // Prepara dados para o Plot (X = tons, Y = frequência)
-        double[] x = new double[256];
-        double[] y = new double[256];
-        
-        for (int i = 0; i < 256; i++) {
-            x[i] = i;
+        double[] x = new double[hist.length];
+        double[] y = new double[hist.length];
+
+        for (int i = 0; i < hist.length; i++) {
+            x[i] = stats.histMin + i * stats.binSize;
             y[i] = hist[i];
         }
 
-        Plot plot = new Plot(titulo, "Tom de Cinza (0-255)", "Quantidade de Pixels");
+        String eixoX = (ip.getBitDepth() == 8) ? "Tom de Cinza (0-255)" : "Tom de Cinza";
+        Plot plot = new Plot(titulo, eixoX, "Quantidade de Pixels");
         plot.add("bar", x, y); // Tipo 'bar' desenha como gráfico de barras
         plot.show();
     }
-}
\ No newline at end of file
+}
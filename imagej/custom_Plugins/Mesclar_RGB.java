@@ -1,40 +1,115 @@
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Macro;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog; 
 import ij.plugin.PlugIn;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
+import java.awt.GraphicsEnvironment;
 
 public class Mesclar_RGB implements PlugIn {
 
+    // a chave de macro é a primeira palavra do rótulo, por isso cada uma começa diferente
+    private static final String ROTULO_R = "Vermelho (R):";
+    private static final String ROTULO_G = "Verde (G):";
+    private static final String ROTULO_B = "Azul (B):";
+    private static final String ROTULO_HIPERPILHA = "Hiperpilha atual: juntar seus 3 canais";
+
+    /** Títulos das imagens de cada canal, usados também fora do ImageJ (lote, servidor sem display). */
+    public static class Parametros {
+        public String vermelho;
+        public String verde;
+        public String azul;
+        /** Juntar os canais da hiperpilha atual (8 bits, 3 canais) em vez de três imagens. */
+        public boolean hiperpilha;
+
+        /** Lê as opções gravadas pelo Recorder, ex.: "vermelho=r.tif verde=g.tif azul=b.tif" ou "hiperpilha". */
+        public static Parametros deMacro(String opcoes) {
+            Parametros p = new Parametros();
+            p.vermelho = OpcoesMacro.texto(opcoes, ROTULO_R, null);
+            p.verde = OpcoesMacro.texto(opcoes, ROTULO_G, null);
+            p.azul = OpcoesMacro.texto(opcoes, ROTULO_B, null);
+            p.hiperpilha = OpcoesMacro.marcado(opcoes, ROTULO_HIPERPILHA, false);
+            return p;
+        }
+    }
+
     @Override
     public void run(String arg) {
 
+        // hiperpilha de 8 bits com 3 canais: o diálogo oferece juntar os canais de cada fatia
+        ImagePlus atual = WindowManager.getCurrentImage();
+        boolean temHiperpilha = atual != null && atual.getType() == ImagePlus.GRAY8 && atual.getNChannels() == 3;
+
+        if (WindowManager.getImageCount() < 3 && !temHiperpilha) {
+            IJ.error("Erro", "É necessário ter pelo menos 3 imagens abertas.");
+            return;
+        }
+
+        // sem display não há GenericDialog: as opções vêm direto da macro
+        Parametros parametros = GraphicsEnvironment.isHeadless()
+                ? Parametros.deMacro(Macro.getOptions()) : mostrarDialogo(temHiperpilha);
+        if (parametros == null) return;
+
+        if (parametros.hiperpilha) {
+            if (!temHiperpilha) {
+                IJ.error("Erro", "A imagem atual não é uma hiperpilha de 8 bits com 3 canais.");
+                return;
+            }
+            mesclarHiperpilha(atual);
+            return;
+        }
+
         if (WindowManager.getImageCount() < 3) {
             IJ.error("Erro", "É necessário ter pelo menos 3 imagens abertas.");
             return;
         }
 
+        // imagens baseadas nas escolhas
+        ImagePlus imgR = WindowManager.getImage(parametros.vermelho);
+        ImagePlus imgG = WindowManager.getImage(parametros.verde);
+        ImagePlus imgB = WindowManager.getImage(parametros.azul);
+
+        if (imgR == null || imgG == null || imgB == null) {
+            IJ.error("Erro", "Imagem não encontrada para algum dos canais.");
+            return;
+        }
+
+        if (validarImagens(imgR, imgG, imgB)) {
+            construirImagemRGB(imgR, imgG, imgB);
+        }
+    }
+
+    private Parametros mostrarDialogo(boolean temHiperpilha) {
         String[] titulos = WindowManager.getImageTitles();
+        boolean temTresImagens = titulos.length >= 3;
 
         // caixa de diálogo
         GenericDialog gd = new GenericDialog("Mesclar Canais RGB");
 
-        gd.addChoice("Canal Vermelho (R):", titulos, titulos[0]);
-        gd.addChoice("Canal Verde (G):", titulos, titulos[1]);
-        gd.addChoice("Canal Azul (B):", titulos, titulos[2]);
+        if (temTresImagens) {
+            gd.addChoice(ROTULO_R, titulos, titulos[0]);
+            gd.addChoice(ROTULO_G, titulos, titulos[1]);
+            gd.addChoice(ROTULO_B, titulos, titulos[2]);
+        }
+        // marcada por padrão só quando não há três imagens para escolher
+        if (temHiperpilha)
+            gd.addCheckbox(ROTULO_HIPERPILHA, !temTresImagens);
         gd.showDialog();
 
-        if (gd.wasCanceled()) return;
-
-        // imagens baseadas nas escolhas
-        ImagePlus imgR = WindowManager.getImage(gd.getNextChoice());
-        ImagePlus imgG = WindowManager.getImage(gd.getNextChoice());
-        ImagePlus imgB = WindowManager.getImage(gd.getNextChoice());
+        if (gd.wasCanceled()) return null;
 
-        if (validarImagens(imgR, imgG, imgB)) {
-            construirImagemRGB(imgR, imgG, imgB);
+        Parametros p = new Parametros();
+        if (temTresImagens) {
+            p.vermelho = gd.getNextChoice();
+            p.verde = gd.getNextChoice();
+            p.azul = gd.getNextChoice();
         }
+        p.hiperpilha = temHiperpilha && gd.getNextBoolean();
+        return p;
     }
 
     public boolean validarImagens(ImagePlus r, ImagePlus g, ImagePlus b) {
@@ -49,37 +124,57 @@ public class Mesclar_RGB implements PlugIn {
             IJ.error("Erro", "As imagens devem ter as mesmas dimensões.");
             return false;
         }
+
+        if (r.getStackSize() != g.getStackSize() || r.getStackSize() != b.getStackSize()) {
+            IJ.error("Erro", "As pilhas devem ter o mesmo número de fatias.");
+            return false;
+        }
         return true;
     }
 
     public void construirImagemRGB(ImagePlus r, ImagePlus g, ImagePlus b) {
-        int largura = r.getWidth();
-        int altura = r.getHeight();
+        // pilhas: todas as fatias de uma vez, sem criar um ImagePlus por fatia
+        if (r.getStackSize() > 1) {
+            ImageStack rgb = mesclar(r.getStack(), g.getStack(), b.getStack());
+            ImagePlus imgFinal = new ImagePlus("Resultado RGB", rgb);
+            imgFinal.setDimensions(1, r.getNSlices(), r.getNFrames());
+            imgFinal.setCalibration(r.getCalibration());
+            imgFinal.show();
+            return;
+        }
 
-        // processors para ler os pixels das imagens de entrada
-        ImageProcessor ipR = r.getProcessor();
-        ImageProcessor ipG = g.getProcessor();
-        ImageProcessor ipB = b.getProcessor();
+        ImagePlus imgFinal = new ImagePlus("Resultado RGB", mesclar(r.getProcessor(), g.getProcessor(), b.getProcessor()));
+        imgFinal.show();
+    }
 
-        // cria nova imagem configurada para ser RGB
-        ImagePlus imgFinal = IJ.createImage("Resultado RGB", "RGB", largura, altura, 1);
-        ImageProcessor ipFinal = imgFinal.getProcessor();
+    /** Núcleo do plugin, sem interface: junta três imagens de 8 bits do mesmo tamanho. */
+    public static ColorProcessor mesclar(ImageProcessor r, ImageProcessor g, ImageProcessor b) {
+        int largura = r.getWidth();
+        int altura = r.getHeight();
 
-        for (int x = 0; x < largura; x++) {
-            for (int y = 0; y < altura; y++) {
-                // lê a intensidade de cada pixel naquela posição da matriz (de 0-255)
-                int valR = ipR.get(x, y);
-                int valG = ipG.get(x, y);
-                int valB = ipB.get(x, y);
+        // vetores das imagens de entrada (intensidades de 0-255)
+        byte[] pixelsR = (byte[]) r.getPixels();
+        byte[] pixelsG = (byte[]) g.getPixels();
+        byte[] pixelsB = (byte[]) b.getPixels();
 
-                // empacota os 3 valores em um único inteiro
-                // R vai para a esquerda (bits 16-23), G para o meio (bits 8-15), B fica na direita (bits 0-7)
-                int pixelRGB = (valR << 16) | (valG << 8) | valB;
+        // empacota os 3 valores em um único inteiro, linha a linha
+        // R vai para a esquerda (bits 16-23), G para o meio (bits 8-15), B fica na direita (bits 0-7)
+        int[] pixelsRGB = new int[largura * altura];
+        CanaisRGB.mesclar(pixelsR, pixelsG, pixelsB, pixelsRGB, largura, altura, Prefs.getThreads());
+        return new ColorProcessor(largura, altura, pixelsRGB);
+    }
 
-                ipFinal.set(x, y, pixelRGB);
-            }
-        }
+    /** Núcleo do plugin para pilhas: junta três pilhas de 8 bits com o mesmo número de fatias. */
+    public static ImageStack mesclar(ImageStack r, ImageStack g, ImageStack b) {
+        return CanaisRGB.mesclarPilhas(r, g, b, Prefs.getThreads());
+    }
 
+    /** Junta os 3 canais de uma hiperpilha de 8 bits em uma imagem (ou pilha) RGB. */
+    public void mesclarHiperpilha(ImagePlus imp) {
+        ImageStack rgb = CanaisRGB.mesclarHiperpilha(imp.getStack(), Prefs.getThreads());
+        ImagePlus imgFinal = new ImagePlus(imp.getTitle() + " (RGB)", rgb);
+        imgFinal.setDimensions(1, imp.getNSlices(), imp.getNFrames());
+        imgFinal.setCalibration(imp.getCalibration());
         imgFinal.show();
     }
 }
\ No newline at end of file
@@ -0,0 +1,41 @@
+import ij.Macro;
+
+/**
+ * Leitura de uma string de opções de macro (Macro.getOptions()) com as mesmas
+ * regras do GenericDialog: a chave é a primeira palavra do rótulo, em minúsculas
+ * (Macro.trimKey), e uma caixa de seleção está marcada se a chave aparece sozinha.
+ * Usada pelos plugins quando não há display (java.awt.headless), onde o
+ * GenericDialog não pode ser criado.
+ */
+public class OpcoesMacro {
+
+    private OpcoesMacro() {
+    }
+
+    /** Valor da chave do rótulo, ou 'padrao' se ela não aparece (ou se 'opcoes' é null). */
+    public static String texto(String opcoes, String rotulo, String padrao) {
+        if (opcoes == null) return padrao;
+        return Macro.getValue(opcoes, Macro.trimKey(rotulo), padrao);
+    }
+
+    /** Valor numérico da chave do rótulo, ou 'padrao' se ela não aparece ou não é um número. */
+    public static double numero(String opcoes, String rotulo, double padrao) {
+        String valor = texto(opcoes, rotulo, null);
+        if (valor == null) return padrao;
+        try {
+            return Double.parseDouble(valor.trim());
+        } catch (NumberFormatException e) {
+            return padrao;
+        }
+    }
+
+    /**
+     * Estado de uma caixa de seleção. Sem opções de macro vale 'padrao'; com
+     * opções, como no GenericDialog, só está marcada se a chave foi gravada.
+     */
+    public static boolean marcado(String opcoes, String rotulo, boolean padrao) {
+        if (opcoes == null) return padrao;
+        String chave = Macro.trimKey(rotulo);
+        return (" " + opcoes + " ").contains(" " + chave + " ");
+    }
+}
@@ -0,0 +1,156 @@
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Prévia do Editor_Interativo_Ponto_a_Ponto calculada fora da thread de eventos.
+ * Guarda apenas a última CadeiaPontual pedida (pedidos antigos são descartados),
+ * desenha primeiro uma versão reduzida da imagem ampliada por vizinho mais próximo
+ * e, quando o slider fica parado por ESPERA_REFINAR ms, refaz em resolução total.
+ * Um pedido novo interrompe o cálculo em andamento, como em
+ * PlugInFilterRunner.runPreview; o ExecutorParalelo para ao ver a interrupção
+ * e só retorna depois que todas as suas threads pararam, então um cálculo
+ * descartado nunca escreve por cima de uma prévia mais nova.
+ */
+public class PreviaEmSegundoPlano implements Runnable {
+
+    /** Tempo sem novos pedidos antes de calcular a resolução total. */
+    public static final int ESPERA_REFINAR = 250;
+
+    /** Imagens menores que isso (em pixels) vão direto para a resolução total. */
+    private static final int PIXELS_REDUZIDA = 1024 * 1024;
+
+    private final ImagePlus imagePlus;
+    private final ImageProcessor imageBackup;
+    private final Thread thread;
+
+    private final int fatorReducao;
+    private ImageProcessor reduzidaOriginal;
+    private int[] reduzidaDestino;
+
+    // estado compartilhado com a thread de eventos, protegido por 'this'
+    private CadeiaPontual pendente;
+    private CadeiaPontual completa;
+    private boolean calculando;
+    private boolean ativa = true;
+
+    public PreviaEmSegundoPlano(ImagePlus imagePlus, ImageProcessor imageBackup) {
+        this.imagePlus = imagePlus;
+        this.imageBackup = imageBackup;
+        int totalPixels = imageBackup.getWidth() * imageBackup.getHeight();
+        this.fatorReducao = (int) Math.ceil(Math.sqrt((double) totalPixels / PIXELS_REDUZIDA));
+        this.thread = new Thread(this, "Previa-" + imagePlus.getTitle());
+        thread.setPriority(Math.max(thread.getPriority() - 2, Thread.MIN_PRIORITY));
+        thread.start();
+    }
+
+    /** Pede a prévia de 'cadeia', descartando qualquer pedido ainda não atendido. */
+    public synchronized void solicitar(CadeiaPontual cadeia) {
+        pendente = cadeia;
+        if (calculando) thread.interrupt();
+        notifyAll();
+    }
+
+    /**
+     * Para a thread de prévia e espera o seu término. Ao retornar, nenhuma
+     * thread da prévia escreve mais na imagem.
+     */
+    public void encerrar() {
+        synchronized (this) {
+            ativa = false;
+            pendente = null;
+            thread.interrupt();
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Retorna a última cadeia que foi aplicada à imagem inteira sem interrupção. */
+    public synchronized CadeiaPontual getCompleta() {
+        return completa;
+    }
+
+    @Override
+    public void run() {
+        CadeiaPontual cadeia = null; // cadeia já mostrada em versão reduzida, esperando o refinamento
+        while (true) {
+            boolean reduzida;
+            synchronized (this) {
+                Thread.interrupted(); // interrupções antigas não valem para o próximo pedido
+                calculando = false;
+                long limite = System.currentTimeMillis() + ESPERA_REFINAR;
+                try {
+                    while (ativa && pendente == null) {
+                        if (cadeia == null) {
+                            wait();
+                        } else {
+                            long resta = limite - System.currentTimeMillis();
+                            if (resta <= 0) break; // o slider parou
+                            wait(resta);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (!ativa) return;
+                if (pendente != null) {
+                    cadeia = pendente;
+                    pendente = null;
+                    reduzida = fatorReducao > 1;
+                } else {
+                    reduzida = false;
+                }
+                calculando = true;
+            }
+
+            if (reduzida) {
+                desenharReduzida(cadeia);
+                if (!Thread.currentThread().isInterrupted())
+                    imagePlus.updateAndDraw();
+                continue;
+            }
+
+            cadeia.aplicar((int[]) imageBackup.getPixels(), (int[]) imagePlus.getProcessor().getPixels());
+            if (!Thread.currentThread().isInterrupted()) {
+                imagePlus.updateAndDraw();
+                synchronized (this) {
+                    completa = cadeia;
+                }
+                cadeia = null;
+            }
+        }
+    }
+
+    /** Aplica a cadeia à cópia reduzida e amplia o resultado, por vizinho mais próximo, na imagem. */
+    private void desenharReduzida(CadeiaPontual cadeia) {
+        if (reduzidaOriginal == null) {
+            int largura = Math.max(1, imageBackup.getWidth() / fatorReducao);
+            int altura = Math.max(1, imageBackup.getHeight() / fatorReducao);
+            reduzidaOriginal = imageBackup.resize(largura, altura);
+            reduzidaDestino = new int[largura * altura];
+        }
+        final int[] reduzida = reduzidaDestino;
+        cadeia.aplicar((int[]) reduzidaOriginal.getPixels(), reduzida);
+        if (Thread.currentThread().isInterrupted()) return;
+
+        final int[] pixelsImagem = (int[]) imagePlus.getProcessor().getPixels();
+        final int largura = imageBackup.getWidth();
+        final int altura = imageBackup.getHeight();
+        final int larguraReduzida = reduzidaOriginal.getWidth();
+        final int alturaReduzida = reduzidaOriginal.getHeight();
+
+        // blocos de linhas inteiras; cada linha consulta uma linha da reduzida
+        ExecutorParalelo.executar(altura, 64, (inicio, fim) -> {
+            for (int y = inicio; y < fim; y++) {
+                int yr = Math.min(y * alturaReduzida / altura, alturaReduzida - 1);
+                int linha = yr * larguraReduzida;
+                int i = y * largura;
+                for (int x = 0; x < largura; x++)
+                    pixelsImagem[i++] = reduzida[linha + Math.min(x * larguraReduzida / largura, larguraReduzida - 1)];
+            }
+        });
+    }
+}
@@ -1,7 +1,11 @@
+import ij.CompositeImage;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
+import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 
 public class Separar_RGB implements PlugIn {
@@ -25,50 +29,51 @@ public class Separar_RGB implements PlugIn {
     }
 
     public void extrairCanais(ImagePlus implus) {
-    
-    int largura = implus.getWidth();
-    int altura = implus.getHeight();
-   
-    ImagePlus impR = IJ.createImage(implus.getTitle() + " (Red)", "8-bit", largura, altura, 1);
-    ImagePlus impG = IJ.createImage(implus.getTitle() + " (Green)", "8-bit", largura, altura, 1);
-    ImagePlus impB = IJ.createImage(implus.getTitle() + " (Blue)", "8-bit", largura, altura, 1);
-
-    // objeto que manipula os pixels
-    ImageProcessor ipOriginal = implus.getProcessor();
-
-    // processors das novas imagens para manipular
-    ImageProcessor ipR = impR.getProcessor();
-    ImageProcessor ipG = impG.getProcessor();
-    ImageProcessor ipB = impB.getProcessor();
-
-    for (int x = 0; x < largura; x++) {
-        for (int y = 0; y < altura; y++) {
-            
-            // pega o pixel da posição da img original (x,y) 
-            int pixel = ipOriginal.getPixel(x, y);
-            
-            // extrai bits referentes ao vermelho que começa no bit 16
-            // antes: bits AAAAAAAARRRRRRRRGGGGGGGGBBBBBBBB
-            // depois de aplicar Bitwise >> 16: 0000000000000000AAAAAAAARRRRRRRR
-            // mascara 0xff transforma AAA em 000, assim obtendo apenas red
-            // 16-23
-            int r = (pixel >> 16) & 0xff; 
-            
-            // 8-15
-            int g = (pixel >> 8) & 0xff;
-            
-            // 0-7
-            int b = pixel & 0xff;
-
-            // na posição x y pinta o pixel com a intensidade extraida
-            ipR.set(x, y, r);
-            ipG.set(x, y, g);
-            ipB.set(x, y, b);
-        }
+
+    // pilha RGB: vira uma hiperpilha composta de 3 canais, sem um ImagePlus por fatia
+    if (implus.getStackSize() > 1) {
+        ImagePlus impCanais = new ImagePlus(implus.getTitle() + " (RGB)", separar(implus.getStack()));
+        impCanais.setDimensions(3, implus.getNSlices(), implus.getNFrames());
+        impCanais.setCalibration(implus.getCalibration());
+        new CompositeImage(impCanais, IJ.COMPOSITE).show();
+        return;
     }
 
+    ByteProcessor[] canais = separar(implus.getProcessor());
+
+    ImagePlus impR = new ImagePlus(implus.getTitle() + " (Red)", canais[0]);
+    ImagePlus impG = new ImagePlus(implus.getTitle() + " (Green)", canais[1]);
+    ImagePlus impB = new ImagePlus(implus.getTitle() + " (Blue)", canais[2]);
+
     impR.show();
     impG.show();
     impB.show();
     }
-}
\ No newline at end of file
+
+    /** Núcleo do plugin, sem interface: devolve os canais R, G e B de uma imagem RGB. */
+    public static ByteProcessor[] separar(ImageProcessor rgbProcessor) {
+        int largura = rgbProcessor.getWidth();
+        int altura = rgbProcessor.getHeight();
+
+        // vetores das novas imagens, preenchidos direto a partir dos pixels RGB
+        byte[] r = new byte[largura * altura];
+        byte[] g = new byte[largura * altura];
+        byte[] b = new byte[largura * altura];
+
+        // cada pixel AAAAAAAARRRRRRRRGGGGGGGGBBBBBBBB é dividido pelos deslocamentos
+        // >> 16 (bits 16-23), >> 8 (bits 8-15) e nenhum (bits 0-7), linha a linha
+        int[] rgb = (int[]) rgbProcessor.getPixels();
+        CanaisRGB.separar(rgb, r, g, b, largura, altura, Prefs.getThreads());
+
+        return new ByteProcessor[] {
+            new ByteProcessor(largura, altura, r),
+            new ByteProcessor(largura, altura, g),
+            new ByteProcessor(largura, altura, b)
+        };
+    }
+
+    /** Núcleo do plugin para pilhas: devolve uma pilha de 8 bits com os canais intercalados (R, G, B...). */
+    public static ImageStack separar(ImageStack rgb) {
+        return CanaisRGB.separarPilha(rgb, Prefs.getThreads());
+    }
+}
@@ -2497,6 +2497,10 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 			}
 			if (isComposite())
 				((CompositeImage)this).setChannelsUpdated(); //flush
+			if (stack instanceof VirtualStack)
+				((VirtualStack)stack).clearCache();
+			if (stack instanceof FileInfoVirtualStack)
+				((FileInfoVirtualStack)stack).close(); // release the mapped file
 		}
 		setStackNull();
 		img = null;
@@ -0,0 +1,373 @@
+package ij;
+import ij.process.*;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A bounded, least-recently-used cache of the decoded slices of a VirtualStack,
+	with read-ahead. The cache holds at most getMaxBytes() bytes of pixel data,
+	and all caches together hold at most getTotalMaxBytes(), MEMORY_FRACTION of
+	IJ.maxMemory(); beyond that, the least recently used slices of any of the
+	caches are removed. When slices are requested in
+	ascending or descending order (scrolling, ij.plugin.Animator, ZProjector),
+	the next PREFETCH slices in that direction are decoded in background threads,
+	with VirtualStack.readProcessorInBackground(), which does not change global
+	state such as IJ.redirectErrorMessages(). If the stack cannot read a slice that
+	way, it is read when requested and the read-ahead of this cache is turned off.
+	getProcessor() returns a copy of the cached slice, so that, as without the
+	cache, changes to it are lost when another slice is displayed.
+	@see VirtualStack#getCache
+*/
+public class SliceCache {
+	/** Fraction of IJ.maxMemory() that all caches together may use. */
+	public static final double MEMORY_FRACTION = 0.125;
+	/** Maximum number of slices decoded ahead of the current one. */
+	public static final int PREFETCH = 4;
+	private static ThreadPoolExecutor prefetcher;  // shared by all caches
+	private static final ArrayList<WeakReference<SliceCache>> caches = new ArrayList<WeakReference<SliceCache>>();
+	private static final AtomicLong useCount = new AtomicLong();  // for the time of the last use of slices
+
+	private final VirtualStack stack;
+	private final long maxBytes;
+	private final LinkedHashMap<Integer,Slice> slices = new LinkedHashMap<Integer,Slice>(16, 0.75f, true);
+	private final HashMap<Integer,Load> loading = new HashMap<Integer,Load>();
+	private long bytes;
+	private int generation;  // incremented by clear(), so that loads started before are not stored
+	private int lastSlice, direction;
+	private boolean readAhead = true;  // false if the stack cannot read slices in the background
+	private long hits, misses, evictions, prefetches;
+
+	/** Creates a cache for 'stack' that holds at most 'maxBytes' bytes of pixel data. */
+	public SliceCache(VirtualStack stack, long maxBytes) {
+		this.stack = stack;
+		this.maxBytes = maxBytes;
+		synchronized(caches) {
+			caches.add(new WeakReference<SliceCache>(this));
+		}
+	}
+
+	/** Creates a cache for 'stack' that may use all of getTotalMaxBytes(). */
+	public SliceCache(VirtualStack stack) {
+		this(stack, getTotalMaxBytes());
+	}
+
+	/** Returns the maximum size of the pixel data of all caches together,
+		MEMORY_FRACTION of IJ.maxMemory(), in bytes. */
+	public static long getTotalMaxBytes() {
+		return (long)(IJ.maxMemory()*MEMORY_FRACTION);
+	}
+
+	/** Returns a copy of slice 'n', decoding it with VirtualStack.readProcessor(n)
+		if it is not cached, and starts decoding the following slices if the
+		slices are being accessed in order. */
+	public ImageProcessor getProcessor(int n) {
+		Load load;
+		synchronized(this) {
+			updateDirection(n);
+			Slice slice = slices.get(Integer.valueOf(n));
+			if (slice!=null) {
+				hits++;
+				slice.lastUse = useCount.incrementAndGet();
+				prefetch(n);
+				return copy(slice.ip);
+			}
+			misses++;
+			load = loading.get(Integer.valueOf(n));
+			if (load==null)
+				load = newLoad(n);
+			prefetch(n);
+		}
+		// Slices are decoded without the interrupt flag, which would close the FileChannel
+		// of the reader (MappedImageReader); the flag is set again before returning.
+		boolean interrupted = Thread.interrupted();
+		try {
+			load.run();  // does nothing if a background thread has started it already
+			ImageProcessor ip = load.get();
+			if (ip==null && load.prefetched) {  // not readable on a read-ahead thread
+				synchronized(this) {
+					load = newLoad(n);
+				}
+				load.run();
+				ip = load.get();
+			}
+			return ip!=null?copy(ip):null;
+		} catch (InterruptedException e) {  // while waiting for a background thread
+			interrupted = true;
+			return stack.readProcessor(n);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new RuntimeException(cause);
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Returns 'true' if slice 'n' is in the cache. */
+	public synchronized boolean contains(int n) {
+		return slices.containsKey(Integer.valueOf(n));
+	}
+
+	/** Removes all slices from the cache and cancels the pending read-ahead. */
+	public synchronized void clear() {
+		cancelPrefetch();
+		slices.clear();
+		loading.clear();
+		bytes = 0;
+		generation++;
+		lastSlice = 0;
+		direction = 0;
+	}
+
+	/** Returns the maximum size of the cached pixel data, in bytes. */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/** Returns the size of the cached pixel data, in bytes. */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/** Returns the number of cached slices. */
+	public synchronized int size() {
+		return slices.size();
+	}
+
+	/** Returns the number of requests served from the cache. */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** Returns the number of requests for slices that were not cached
+		(including slices that were still being decoded in the background). */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** Returns the number of slices removed to stay within getMaxBytes() or getTotalMaxBytes(). */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/** Returns the number of slices decoded ahead in the background. */
+	public synchronized long getPrefetches() {
+		return prefetches;
+	}
+
+	public synchronized String toString() {
+		return "SliceCache[slices="+slices.size()+", MB="+IJ.d2s(bytes/1048576.0,1)+"/"+IJ.d2s(maxBytes/1048576.0,1)
+			+", hits="+hits+", misses="+misses+", evictions="+evictions+", prefetches="+prefetches+"]";
+	}
+
+	/** Ascending or descending access (possibly skipping a few slices,
+		as Animator does) sets the read-ahead direction; jumps reset it. */
+	private void updateDirection(int n) {
+		int delta = n - lastSlice;
+		int newDirection = delta>0 && delta<=PREFETCH ? 1 : (delta<0 && delta>=-PREFETCH ? -1 : (delta==0?direction:0));
+		if (newDirection!=direction)
+			cancelPrefetch();
+		direction = newDirection;
+		lastSlice = n;
+	}
+
+	/** Queues the next slices in the current direction, as far as half of the cache allows. */
+	private void prefetch(int n) {
+		if (direction==0 || !readAhead)
+			return;
+		long sliceBytes = (long)stack.getWidth()*stack.getHeight()*Math.max(1, stack.getBitDepth()/8);
+		int count = (int)Math.min(PREFETCH, Math.min(maxBytes,getTotalMaxBytes())/2/Math.max(1, sliceBytes));
+		int size = stack.size();
+		for (int i=1; i<=count; i++) {
+			int m = n + i*direction;
+			if (m<1 || m>size)
+				break;
+			Integer key = Integer.valueOf(m);
+			if (slices.containsKey(key) || loading.containsKey(key))
+				continue;
+			Load load = newLoad(m);
+			load.prefetched = true;
+			prefetches++;
+			getPrefetcher().execute(load);
+		}
+	}
+
+	/** Removes the read-ahead tasks that have not started yet. */
+	private void cancelPrefetch() {
+		if (prefetcher==null)
+			return;
+		for (Iterator<Load> it=loading.values().iterator(); it.hasNext();) {
+			Load load = it.next();
+			if (load.prefetched && prefetcher.remove(load)) {
+				it.remove();
+				prefetches--;
+			}
+		}
+	}
+
+	private Load newLoad(int n) {
+		Load load = new Load(n, generation);
+		loading.put(Integer.valueOf(n), load);
+		return load;
+	}
+
+	private synchronized void readAheadFailed() {
+		readAhead = false;
+		cancelPrefetch();
+	}
+
+	private synchronized void loaded(Load load, ImageProcessor ip) {
+		Integer key = Integer.valueOf(load.n);
+		if (loading.get(key)==load)
+			loading.remove(key);
+		if (ip==null || load.generation!=generation)
+			return;
+		long size = bytes(ip);
+		if (size>maxBytes || size>getTotalMaxBytes())
+			return;
+		Slice slice = new Slice(ip);
+		Slice previous = slices.put(key, slice);
+		if (previous!=null)
+			bytes -= bytes(previous.ip);
+		bytes += size;
+		for (Iterator<Slice> it=slices.values().iterator(); bytes>maxBytes && it.hasNext();) {
+			Slice eldest = it.next();
+			if (eldest==slice)
+				continue;
+			bytes -= bytes(eldest.ip);
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/** Removes the least recently used slices of all caches until they hold at most
+		getTotalMaxBytes() together. Must not be called with the lock of a cache held. */
+	private static void trimAll() {
+		long maxTotal = getTotalMaxBytes();
+		synchronized(caches) {
+			ArrayList<SliceCache> live = new ArrayList<SliceCache>(caches.size());
+			long total = 0;
+			for (Iterator<WeakReference<SliceCache>> it=caches.iterator(); it.hasNext();) {
+				SliceCache cache = it.next().get();
+				if (cache==null)
+					it.remove();  // the stack has been garbage collected
+				else {
+					live.add(cache);
+					total += cache.getBytes();
+				}
+			}
+			while (total>maxTotal) {
+				SliceCache oldest = null;
+				long oldestUse = Long.MAX_VALUE;
+				for (SliceCache cache : live) {
+					long lastUse = cache.getEldestUse();
+					if (lastUse<oldestUse) {
+						oldest = cache;
+						oldestUse = lastUse;
+					}
+				}
+				if (oldest==null)
+					break;
+				total -= oldest.removeEldest();
+			}
+		}
+	}
+
+	/** Returns the time of the last use of the least recently used slice, or Long.MAX_VALUE. */
+	private synchronized long getEldestUse() {
+		return slices.isEmpty() ? Long.MAX_VALUE : slices.values().iterator().next().lastUse;
+	}
+
+	/** Removes the least recently used slice and returns its size in bytes. */
+	private synchronized long removeEldest() {
+		Iterator<Slice> it = slices.values().iterator();
+		if (!it.hasNext())
+			return 0;
+		long size = bytes(it.next().ip);
+		it.remove();
+		bytes -= size;
+		evictions++;
+		return size;
+	}
+
+	private static long bytes(ImageProcessor ip) {
+		return (long)ip.getPixelCount()*Math.max(1, ip.getBitDepth()/8);
+	}
+
+	private static ImageProcessor copy(ImageProcessor ip) {
+		ImageProcessor ip2 = ip.duplicate();
+		ip2.setOverlay(ip.getOverlay());
+		ip2.setCalibrationTable(ip.getCalibrationTable());
+		ip2.setSliceNumber(ip.getSliceNumber());
+		return ip2;
+	}
+
+	private static synchronized ThreadPoolExecutor getPrefetcher() {
+		if (prefetcher==null) {
+			int threads = Math.max(1, Math.min(Prefs.getThreads(), PREFETCH));
+			prefetcher = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new PrefetchThread(r);
+						thread.setDaemon(true);
+						thread.setPriority(Thread.NORM_PRIORITY-1);
+						return thread;
+					}
+				});
+			prefetcher.allowCoreThreadTimeOut(true);
+		}
+		return prefetcher;
+	}
+
+	private static class PrefetchThread extends Thread {
+		PrefetchThread(Runnable r) {
+			super(r, "SliceCache-prefetch");
+		}
+	}
+
+	/** A cached slice and the time of its last use (a value of 'useCount'). */
+	private static class Slice {
+		final ImageProcessor ip;
+		long lastUse = useCount.incrementAndGet();
+
+		Slice(ImageProcessor ip) {
+			this.ip = ip;
+		}
+	}
+
+	/** Decodes one slice; run by the thread that needs it, or by a read-ahead thread. */
+	private class Load extends FutureTask<ImageProcessor> {
+		final int n, generation;
+		boolean prefetched;
+
+		Load(final int n, int generation) {
+			super(new Callable<ImageProcessor>() {
+				public ImageProcessor call() {
+					if (!(Thread.currentThread() instanceof PrefetchThread))
+						return stack.readProcessor(n);
+					ImageProcessor ip = stack.readProcessorInBackground(n);
+					if (ip==null)
+						readAheadFailed();
+					return ip;
+				}
+			});
+			this.n = n;
+			this.generation = generation;
+		}
+
+		protected void set(ImageProcessor ip) {
+			loaded(this, ip);
+			trimAll();
+			super.set(ip);
+		}
+
+		protected void setException(Throwable t) {
+			loaded(this, null);
+			super.setException(t);
+		}
+	}
+
+}
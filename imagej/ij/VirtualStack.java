@@ -21,6 +21,8 @@ public class VirtualStack extends ImageStack {
 	private Properties properties;
 	private boolean generateData;
 	private int[] indexes;  // used to translate non-CZT hyperstack slice numbers
+	private SliceCache cache;
+	private long cacheSize = -1;  // -1: default size, 0: slices are not cached
 
 	
 	/** Default constructor. */
@@ -115,6 +117,7 @@ public class VirtualStack extends ImageStack {
 			names[i-1] = names[i];
 		names[nSlices-1] = null;
 		nSlices--;
+		clearCache();
 	}
 	
 	/** Deletes the last slice in the stack. */
@@ -145,8 +148,29 @@ public class VirtualStack extends ImageStack {
 	 * This is because the ImageProcessor may be re-used when a
 	 * different slice is accessed via ImagePlus.setSlice.
 	 * {@link <a href="https://wsr.imagej.net/plugins/Test_Virtual_Stack2.java#gemsiv">Example</a>}
+	 * Slices read from files are kept in a SliceCache, and the
+	 * returned ImageProcessor is a copy of the cached slice.
+	 * Subclasses that read files can override readProcessor()
+	 * instead, so that their slices are also cached.
+	 * @see #getCache
 	*/
 	public ImageProcessor getProcessor(int n) {
+		// FHT stacks are not cached, since getProperties() refers to the slice read last
+		SliceCache cache = isFileBacked() && properties==null ? getCache() : null;
+		if (cache!=null)
+			return cache.getProcessor(n);
+		else
+			return readProcessor(n);
+	}
+
+	/** Reads the specified slice, where {@literal 1<=n<=nslices},
+	 * without using the slice cache. Called by getProcessor() on the thread
+	 * that requests the slice, which may run at the same time as a read-ahead
+	 * thread, so it must not change the state of the stack other than the
+	 * slice labels and properties.
+	 * @see #readProcessorInBackground
+	*/
+	protected ImageProcessor readProcessor(int n) {
 		if (path==null) {  //Help>Examples?JavaScript>Terabyte VirtualStack
 			ImageProcessor ip = null;
 			int w=getWidth(), h=getHeight();
@@ -192,14 +216,7 @@ public class VirtualStack extends ImageStack {
 			int type = imp.getType();
 			ColorModel cm = imp.getProcessor().getColorModel();
 			String info = (String)imp.getProperty("Info");
-			if (info!=null) {
-				if (FolderOpener.useInfo(info))
-					labels[n-1] = info;
-			} else {
-				String sliceLabel = imp.getStack().getSliceLabel(1);
-				if (FolderOpener.useInfo(sliceLabel))
-					labels[n-1] = "Label: "+sliceLabel;
-			}
+			setLabel(n, info, info==null?imp.getStack().getSliceLabel(1):null);
 			depthThisImage = imp.getBitDepth();
 			ip = imp.getProcessor();
 			ip.setOverlay(imp.getOverlay());
@@ -230,6 +247,51 @@ public class VirtualStack extends ImageStack {
 		ip.setSliceNumber(n);
 		return ip;
 	 }
+
+	/** Reads the specified slice on a read-ahead thread of the SliceCache.
+	 * Unlike readProcessor(), this must not change global state, such as
+	 * IJ.redirectErrorMessages(), which the event dispatch and macro threads
+	 * use at the same time. Returns null if the slice cannot be read this way;
+	 * it is then read by readProcessor() when it is requested. This
+	 * implementation reads TIFF slices that match the width, height and bit
+	 * depth of the stack with TiffDecoder and FileOpener.readProcessor().
+	*/
+	protected ImageProcessor readProcessorInBackground(int n) {
+		if (path==null)
+			return null;
+		n = translate(n);
+		String name = names[n-1];
+		String lowerName = name.toLowerCase();
+		if (!(lowerName.endsWith(".tif")||lowerName.endsWith(".tiff")))
+			return null;
+		ImageProcessor ip;
+		FileInfo fi;
+		try {
+			FileInfo[] info = new TiffDecoder(path, name).getTiffInfo();
+			if (info==null || info.length==0)
+				return null;
+			fi = info[0];
+			fi.nImages = 1;
+			ip = new FileOpener(fi).readProcessor();
+		} catch (IOException e) {
+			return null;
+		}
+		if (ip==null || ip.getBitDepth()!=bitDepth || ip.getWidth()!=getWidth() || ip.getHeight()!=getHeight())
+			return null;
+		setLabel(n, fi.info, fi.info==null&&fi.sliceLabels!=null&&fi.sliceLabels.length>0?fi.sliceLabels[0]:null);
+		if (cTable!=null)
+			ip.setCalibrationTable(cTable);
+		ip.setSliceNumber(n);
+		return ip;
+	}
+
+	private void setLabel(int n, String info, String sliceLabel) {
+		if (info!=null) {
+			if (FolderOpener.useInfo(info))
+				labels[n-1] = info;
+		} else if (FolderOpener.useInfo(sliceLabel))
+			labels[n-1] = "Label: "+sliceLabel;
+	}
 	 	 
 	 private void label(ImageProcessor ip, String msg, Color color) {
 		int size = getHeight()/20;
@@ -330,6 +392,7 @@ public class VirtualStack extends ImageStack {
 	/** Sets the table that translates slice numbers of hyperstacks not in default CZT order. */
 	public void setIndexes(int[] indexes) {
 		this.indexes = indexes;
+		clearCache();
 	}
 	
 	/** Translates slice numbers of hyperstacks not in default CZT order. */
@@ -339,6 +402,52 @@ public class VirtualStack extends ImageStack {
 		return n2;
 	}
 	
+	/** Returns the part inside the rectangle 'r' of the specified slice,
+	 * or the whole slice if 'r' is null. This implementation crops a copy
+	 * of the slice. FileInfoVirtualStack reads only the part inside 'r'
+	 * unless the slice is cached, so cropping large images is fast.
+	*/
+	public ImageProcessor getProcessor(int n, Rectangle r) {
+		ImageProcessor ip = getProcessor(n);
+		if (ip==null || r==null)
+			return ip;
+		ip.setRoi(r);
+		return ip.crop();
+	}
+
+	/** Returns true if the slices are read from files, and are therefore cached.
+	 * Returns false for stacks of generated data.
+	*/
+	protected boolean isFileBacked() {
+		return path!=null;
+	}
+
+	/** Returns the cache of the slices of this stack, creating it if needed,
+	 * or null if the cache is disabled.
+	 * @see #setCacheSize
+	*/
+	public synchronized SliceCache getCache() {
+		if (cache==null && cacheSize!=0)
+			cache = cacheSize>0 ? new SliceCache(this, cacheSize) : new SliceCache(this);
+		return cache;
+	}
+
+	/** Sets the maximum size, in bytes, of the decoded slices kept in memory.
+	 * The default, and the limit for the caches of all stacks together, is
+	 * SliceCache.getTotalMaxBytes(); 0 disables the cache.
+	*/
+	public synchronized void setCacheSize(long bytes) {
+		clearCache();
+		cache = null;
+		cacheSize = bytes>0 ? bytes : 0;
+	}
+
+	/** Removes the cached slices, for example after the files have changed. */
+	public synchronized void clearCache() {
+		if (cache!=null)
+			cache.clear();
+	}
+
 	/** Reduces the number of slices in this stack by a factor. */
 	public void reduce(int factor) {
 		if (factor<2 || nSlices/factor<1 || names==null)
@@ -348,6 +457,7 @@ public class VirtualStack extends ImageStack {
 			names[i] = names[i*factor];
 			labels[i] = labels[i*factor];
 		}
+		clearCache();
 		ImagePlus imp = WindowManager.getCurrentImage();
 		if (imp!=null) {
 			imp.setSlice(1);
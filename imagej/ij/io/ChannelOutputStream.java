@@ -0,0 +1,234 @@
+package ij.io;
+import ij.IJ;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** An OutputStream that writes a file through a FileChannel using two direct
+	ByteBuffers: while one buffer is written to disk by a background thread, the
+	other is filled by the caller, so that converting and byte swapping pixels
+	(see ImageWriter) overlaps with the disk writes. 16-bit and float pixel arrays
+	are copied into the buffers in bulk, with the byte order set by the NIO buffer
+	views. close() waits until all the data has been written and rethrows
+	the errors of the background writes.
+	@see FileSaver#saveAsTiffStack
+	@see MappedImageReader
+*/
+public class ChannelOutputStream extends OutputStream {
+	/** Size of each of the two buffers, in bytes. */
+	public static final int BUFFER_SIZE = 1<<20;  // 1 MB
+	private static final int MAX_POOLED = 4;
+	private static final ArrayList<ByteBuffer> pool = new ArrayList<ByteBuffer>();
+	private static ExecutorService writer;  // shared by all streams
+
+	private final String path;
+	private FileOutputStream file;
+	private FileChannel channel;
+	private final ByteBuffer[] buffers = new ByteBuffer[2];
+	private final Future<?>[] writes = new Future<?>[2];
+	private int current;  // the buffer being filled
+	private ByteBuffer buffer;
+	private long position;  // file position of the current buffer
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final long startTime = System.currentTimeMillis();
+	private long endTime;
+
+	/** Creates the file with the specified path, replacing it if it exists. */
+	public ChannelOutputStream(String path) throws IOException {
+		this.path = path;
+		file = new FileOutputStream(path);
+		channel = file.getChannel();
+		buffers[0] = getBuffer();
+		buffers[1] = getBuffer();
+		buffer = buffers[0];
+	}
+
+	public void write(int b) throws IOException {
+		if (!buffer.hasRemaining())
+			handOff();
+		buffer.put((byte)b);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len>0) {
+			if (!buffer.hasRemaining())
+				handOff();
+			int n = Math.min(len, buffer.remaining());
+			buffer.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/** Writes 'len' 16-bit values of 'pixels', starting with pixels[off],
+		in little-endian byte order if 'intelByteOrder' is true. */
+	public void write(short[] pixels, int off, int len, boolean intelByteOrder) throws IOException {
+		ByteOrder order = intelByteOrder?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN;
+		while (len>0) {
+			if (buffer.remaining()<2)
+				handOff();
+			int n = Math.min(len, buffer.remaining()/2);
+			buffer.order(order).asShortBuffer().put(pixels, off, n);
+			buffer.position(buffer.position()+2*n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/** Writes 'len' float values of 'pixels', starting with pixels[off],
+		in little-endian byte order if 'intelByteOrder' is true. */
+	public void write(float[] pixels, int off, int len, boolean intelByteOrder) throws IOException {
+		ByteOrder order = intelByteOrder?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN;
+		while (len>0) {
+			if (buffer.remaining()<4)
+				handOff();
+			int n = Math.min(len, buffer.remaining()/4);
+			buffer.order(order).asFloatBuffer().put(pixels, off, n);
+			buffer.position(buffer.position()+4*n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/** Writes the buffered data and waits until it is on disk. */
+	public void flush() throws IOException {
+		handOff();
+		await(0);
+		await(1);
+	}
+
+	/** Writes the buffered data, waits until all the data has been
+		written and closes the file. */
+	public void close() throws IOException {
+		if (channel==null)
+			return;
+		try {
+			flush();
+		} finally {
+			try {
+				await(0);
+				await(1);
+			} catch (IOException e) {}  // reported by flush()
+			endTime = System.currentTimeMillis();
+			for (int i=0; i<2; i++) {
+				if (writes[i]==null)  // not still being written after an interrupt
+					releaseBuffer(buffers[i]);
+			}
+			buffers[0] = buffers[1] = buffer = null;
+			channel = null;
+			file.close();
+			if (IJ.debugMode) IJ.log(toString());
+		}
+	}
+
+	/** Returns the number of bytes written to disk. */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/** Returns the average write rate, in MB per second, since the stream was created. */
+	public double getMBPerSecond() {
+		long time = (endTime>0?endTime:System.currentTimeMillis()) - startTime;
+		return getBytesWritten()/1048576.0/(Math.max(time,1)/1000.0);
+	}
+
+	public String toString() {
+		return "ChannelOutputStream["+path+", MB="+IJ.d2s(getBytesWritten()/1048576.0,1)
+			+", MB/s="+IJ.d2s(getMBPerSecond(),1)+"]";
+	}
+
+	/** Starts writing the current buffer in the background and continues
+		with the other one, once it has been written. */
+	private void handOff() throws IOException {
+		if (channel==null)
+			throw new IOException("Stream closed");
+		buffer.flip();
+		int length = buffer.remaining();
+		if (length>0) {
+			writes[current] = getWriter().submit(new Write(buffer, position));
+			position += length;
+		}
+		current = 1 - current;
+		await(current);
+		buffer = buffers[current];
+		buffer.clear();
+	}
+
+	/** Waits until buffer 'i' has been written. */
+	private void await(int i) throws IOException {
+		Future<?> write = writes[i];
+		if (write==null)
+			return;
+		try {
+			write.get();
+			writes[i] = null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Writing "+path+" interrupted");
+		} catch (ExecutionException e) {
+			writes[i] = null;
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private static ByteBuffer getBuffer() {
+		synchronized(pool) {
+			if (pool.size()>0) {
+				ByteBuffer buffer = pool.remove(pool.size()-1);
+				buffer.clear();
+				return buffer;
+			}
+		}
+		return ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	private static void releaseBuffer(ByteBuffer buffer) {
+		if (buffer==null)
+			return;
+		synchronized(pool) {
+			if (pool.size()<MAX_POOLED)
+				pool.add(buffer);
+		}
+	}
+
+	private static synchronized ExecutorService getWriter() {
+		if (writer==null) {
+			writer = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ChannelOutputStream-writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return writer;
+	}
+
+	/** Writes a buffer at a given position of the file. */
+	private class Write implements Callable<Void> {
+		private final ByteBuffer data;
+		private long position;
+
+		Write(ByteBuffer data, long position) {
+			this.data = data;
+			this.position = position;
+		}
+
+		public Void call() throws IOException {
+			FileChannel channel = file.getChannel();
+			while (data.hasRemaining()) {
+				int n = channel.write(data, position);
+				position += n;
+				bytesWritten.addAndGet(n);
+			}
+			return null;
+		}
+	}
+
+}
@@ -111,9 +111,10 @@ public class FileInfo implements Cloneable {
     public boolean whiteIsZero;
     public boolean intelByteOrder;
 	public int compression;
-    public int[] stripOffsets;  
+    public int[] stripOffsets;  // Use getStripOffset() to read
     public int[] stripLengths;
     public int rowsPerStrip;
+    public int tileWidth, tileHeight;  // tiled TIFFs, where stripOffsets and stripLengths hold the tile offsets and sizes
 	public int lutSize;
 	public byte[] reds;
 	public byte[] greens;
@@ -137,6 +138,8 @@ public class FileInfo implements Cloneable {
 	public String description;
 	// Use <i>longOffset</i> instead of <i>offset</i> when offset>2147483647.
 	public long longOffset;  // Use getOffset() to read
+	// BigTIFF strip (or tile) offsets, set when an offset is beyond 4GB
+	public long[] longStripOffsets;  // Use getStripOffset() to read
 	// Use <i>longGap</i> instead of <i>gapBetweenImages</i> when gap>2147483647.
 	public long longGap;  // Use getGap() to read
 	// Extra metadata to be stored in the TIFF header
@@ -179,6 +182,11 @@ public class FileInfo implements Cloneable {
     	return longOffset>0L?longOffset:((long)offset)&0xffffffffL;
     }
     
+    /** Returns the offset of the specified strip (or tile) as a long. */
+    public final long getStripOffset(int strip) {
+    	return longStripOffsets!=null?longStripOffsets[strip]:((long)stripOffsets[strip])&0xffffffffL;
+    }
+    
     /** Returns the gap between images as a long. */
     public final long getGap() {
     	return longGap>0L?longGap:((long)gapBetweenImages)&0xffffffffL;
@@ -176,24 +176,77 @@ public class FileOpener {
 	}
 	
 	public ImageProcessor openProcessor() {
+		return createProcessor(readPixels(fi), width, height);
+	}
+
+	/** Reads the image from a local file like openProcessor(), but without
+		the progress bar and without error messages: errors are thrown as
+		IOExceptions. Does not change global state, so it can be called from
+		background threads, such as the read-ahead threads of ij.SliceCache.
+		Returns null if the file type is not supported by openProcessor().
+	*/
+	public ImageProcessor readProcessor() throws IOException {
+		File f = new File(fi.getFilePath());
+		if (!f.isFile())
+			throw new FileNotFoundException(f.getPath());
+		InputStream is;
+		if (fi.compression>=FileInfo.LZW || fi.tileWidth>0)
+			is = new RandomAccessStream(new RandomAccessFile(f, "r"));
+		else
+			is = new FileInputStream(f);
 		Object pixels;
-		ProgressBar pb=null;
-		ImageProcessor ip = null;		
+		try {
+			pixels = new ImageReader(fi).readPixels(is, fi.getOffset());
+		} finally {
+			is.close();
+		}
+		if (pixels==null)
+			throw new IOException("Read error: "+f.getPath());
+		return createProcessor(pixels, width, height);
+	}
+
+	/** Reads the part of the image inside the rectangle 'r' and returns it as an
+		ImageProcessor, or returns null if 'r' is outside the image. Only the tiles
+		or strips of TIFFs that intersect 'r' are read, and only the selected part
+		of each row of uncompressed images, so this is much faster than cropping
+		the image returned by openProcessor() when 'r' is small.
+		@see ImageReader#readRegion
+	*/
+	public ImageProcessor openProcessor(Rectangle r) {
+		r = r.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return null;
+		Object pixels = null;
+		try {
+			InputStream is = createRandomAccessStream(fi);
+			if (is==null)
+				return null;
+			ImageReader reader = new ImageReader(fi);
+			pixels = reader.readRegion(is, r);
+			is.close();
+		}
+		catch (Exception e) {
+			if (!Macro.MACRO_CANCELED.equals(e.getMessage()))
+				IJ.handleException(e);
+		}
+		return createProcessor(pixels, r.width, r.height);
+	}
+
+	private ImageProcessor createProcessor(Object pixels, int width, int height) {
+		if (pixels==null)
+			return null;
+		ImageProcessor ip = null;
 		ColorModel cm = createColorModel(fi);
 		switch (fi.fileType) {
 			case FileInfo.GRAY8:
 			case FileInfo.COLOR8:
 			case FileInfo.BITMAP:
-				pixels = readPixels(fi);
-				if (pixels==null) return null;
 				ip = new ByteProcessor(width, height, (byte[])pixels, cm);
 				break;
 			case FileInfo.GRAY16_SIGNED:
 			case FileInfo.GRAY16_UNSIGNED:
 			case FileInfo.GRAY12_UNSIGNED:
 			case FileInfo.GRAY10_UNSIGNED:
-				pixels = readPixels(fi);
-				if (pixels==null) return null;
 	    		ip = new ShortProcessor(width, height, (short[])pixels, cm);
 				break;
 			case FileInfo.GRAY32_INT:
@@ -201,8 +254,6 @@ public class FileOpener {
 			case FileInfo.GRAY32_FLOAT:
 			case FileInfo.GRAY24_UNSIGNED:
 			case FileInfo.GRAY64_FLOAT:
-				pixels = readPixels(fi);
-				if (pixels==null) return null;
 	    		ip = new FloatProcessor(width, height, (float[])pixels, cm);
 				break;
 			case FileInfo.RGB:
@@ -212,8 +263,6 @@ public class FileOpener {
 			case FileInfo.BARG:
 			case FileInfo.RGB_PLANAR:
 			case FileInfo.CMYK:
-				pixels = readPixels(fi);
-				if (pixels==null) return null;
 				ip = new ColorProcessor(width, height, (int[])pixels);
 				if (fi.fileType==FileInfo.CMYK)
 					ip.invert();
@@ -305,7 +354,7 @@ public class FileOpener {
 		return imp;
 	}
 	
-	private void decodeAndSetRoi(ImagePlus imp, FileInfo fi) {
+	void decodeAndSetRoi(ImagePlus imp, FileInfo fi) {
 		Roi roi = RoiDecoder.openFromByteArray(fi.roi);
 		imp.setRoi(roi);
 		if ((roi instanceof PointRoi) && ((PointRoi)roi).getNCounters()>1) 
@@ -528,11 +577,13 @@ public class FileOpener {
 		    if (gzip) fi.compression = FileInfo.COMPRESSION_UNKNOWN;
 		    if (f==null || !f.exists() || f.isDirectory() || !validateFileInfo(f, fi))
 		    	is = null;
+		    else if (fi.compression>=FileInfo.LZW || fi.tileWidth>0)
+				is = new RandomAccessStream(new RandomAccessFile(f, "r")); // strips beyond 4GB are not kept in memory
 		    else
 				is = new FileInputStream(f);
 		}
 		if (is!=null) {
-			if (fi.compression>=FileInfo.LZW)
+			if ((fi.compression>=FileInfo.LZW || fi.tileWidth>0) && !(is instanceof RandomAccessStream))
 				is = new RandomAccessStream(is);
 			else if (gzip)
 				is = new GZIPInputStream(is, 50000);
@@ -540,6 +591,25 @@ public class FileOpener {
 		return is;
 	}
 	
+	/** Returns a stream for reading parts of the image in any order, which
+		reads local files directly instead of keeping the data read in memory. */
+	private RandomAccessStream createRandomAccessStream(FileInfo fi) throws IOException {
+		boolean local = fi.inputStream==null && (fi.url==null || fi.url.equals(""));
+		boolean gzip = fi.fileName!=null && (fi.fileName.endsWith(".gz")||fi.fileName.endsWith(".GZ"));
+		if (local && !gzip) {
+			if (fi.directory!=null && fi.directory.length()>0 && !(fi.directory.endsWith(Prefs.separator)||fi.directory.endsWith("/")))
+				fi.directory += Prefs.separator;
+			File f = new File(fi.getFilePath());
+			if (!f.isFile() || !validateFileInfo(f, fi))
+				return null;
+			return new RandomAccessStream(new RandomAccessFile(f, "r"));
+		}
+		InputStream is = createInputStream(fi);
+		if (is==null || is instanceof RandomAccessStream)
+			return (RandomAccessStream)is;
+		return new RandomAccessStream(is);
+	}
+
 	static boolean validateFileInfo(File f, FileInfo fi) {
 		long offset = fi.getOffset();
 		long length = 0;
@@ -20,6 +20,7 @@ public class FileSaver {
 	public static final int DEFAULT_JPEG_QUALITY = 85;
 	private static int jpegQuality;
 	private static int bsize = 32768; // 32K default buffer size
+	private static int tiffCompression = FileInfo.COMPRESSION_NONE;
 	
     static {setJpegQuality(ij.Prefs.getInt(ij.Prefs.JPEG, DEFAULT_JPEG_QUALITY));}
 
@@ -29,6 +30,7 @@ public class FileSaver {
 	private String name;
 	private String directory;
 	private boolean saveName;
+	private int compression = tiffCompression;
 
 	/** Constructs a FileSaver from an ImagePlus. */
 	public FileSaver(ImagePlus imp) {
@@ -36,6 +38,17 @@ public class FileSaver {
 		fi = imp.getFileInfo();
 	}
 
+	/** Sets the compression used by saveAsTiff() and saveAsTiffStack():
+		FileInfo.COMPRESSION_NONE (the default), LZW, LZW_WITH_DIFFERENCING, PACK_BITS,
+		ZIP or ZIP_WITH_DIFFERENCING. The "with differencing" variants add the horizontal
+		predictor, which compresses 8-bit, 16-bit and RGB images better. Images of other
+		types (e.g. 48-bit RGB) are saved uncompressed.
+		@see #setTiffCompression
+	*/
+	public void setCompression(int compression) {
+		this.compression = compression;
+	}
+
 	/** Resaves the image. Calls saveAsTiff() if this is a new image, not a TIFF,
 		or if the image was loaded using a URL. Returns false if saveAsTiff() is
 		called and the user selects cancel in the file save dialog box. */
@@ -117,10 +130,11 @@ public class FileSaver {
 		fi.roi = RoiEncoder.saveAsByteArray(imp.getRoi());
 		fi.overlay = getOverlay(imp);
 		fi.properties = imp.getPropertiesAsArray();
-		DataOutputStream out = null;
+		fi.compression = compression;
+		OutputStream out = null;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
-			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path),bsize));
+			out = new ChannelOutputStream(path);
 			file.write(out);
 			out.close();
 		} catch (IOException e) {
@@ -211,10 +225,11 @@ public class FileSaver {
 		fi.overlay = getOverlay(imp);
 		fi.properties = imp.getPropertiesAsArray();
 		if (imp.isComposite()) saveDisplayRangesAndLuts(imp, fi);
-		DataOutputStream out = null;
+		fi.compression = compression;
+		OutputStream out = null;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
-			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path),bsize));
+			out = new ChannelOutputStream(path);
 			file.write(out);
 			out.close();
 		} catch (IOException e) {
@@ -505,7 +520,7 @@ public class FileSaver {
 					pixels[i] = (short)(pixels[i]-32768);
 			}
 			ImageWriter file = new ImageWriter(fi);
-			out = new BufferedOutputStream(new FileOutputStream(path),bsize);
+			out = new ChannelOutputStream(path);
 			file.write(out);
 			out.close();
 		}
@@ -550,7 +565,7 @@ public class FileSaver {
 				}
 			}
 			ImageWriter file = new ImageWriter(fi);
-			out = new BufferedOutputStream(new FileOutputStream(path),bsize);
+			out = new ChannelOutputStream(path);
 			file.write(out);
 			out.close();
 		} catch (IOException e) {
@@ -835,7 +850,23 @@ public class FileSaver {
         return jpegQuality;
     }
     
-    /** Sets the BufferedOutputStream buffer size in bytes (default is 32K). */
+    /** Sets the default compression of TIFF files saved by new FileSavers
+    	(FileInfo.COMPRESSION_NONE, LZW, LZW_WITH_DIFFERENCING, PACK_BITS, ZIP
+    	or ZIP_WITH_DIFFERENCING).
+    	@see #setCompression
+    */
+    public static void setTiffCompression(int compression) {
+        tiffCompression = compression;
+    }
+
+    /** Returns the default compression of TIFF files. */
+    public static int getTiffCompression() {
+        return tiffCompression;
+    }
+
+    /** Sets the BufferedOutputStream buffer size in bytes used when saving
+        in ZIP format (default is 32K). TIFF and raw files are written
+        through a ChannelOutputStream. */
     public static void setBufferSize(int bufferSize) {
         bsize = bufferSize;
         if (bsize<2048) bsize = 2048;
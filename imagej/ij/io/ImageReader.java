@@ -3,10 +3,14 @@ import ij.*;
 import ij.process.*;
 import java.io.*;
 import java.net.*;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.util.zip.Inflater;
 import java.util.zip.DataFormatException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.util.ThreadUtil;
 
 
 /** Reads raw 8-bit, 16-bit or 32-bit (float or RGB)
@@ -64,38 +68,7 @@ public class ImageReader {
 	
 	byte[] readCompressed8bitImage(InputStream in) throws IOException {
 		byte[] pixels = new byte[nPixels];
-		int current = 0;
-		byte last = 0;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
-			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[i]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
-			int length = byteArray.length;
-			length = length - (length%fi.width);
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING||fi.compression==FileInfo.ZIP_WITH_DIFFERENCING) {
-				for (int b=0; b<length; b++) {
-					byteArray[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : byteArray[b];
-				}
-			}
-			if (current+length>pixels.length)
-				length = pixels.length-current;
-			System.arraycopy(byteArray, 0, pixels, current, length);
-			current += length;
-			showProgress(i+1, fi.stripOffsets.length);
-		}
+		readStrips(in, pixels);
 		return pixels;
 	}
 	
@@ -151,45 +124,7 @@ public class ImageReader {
 	short[] readCompressed16bitImage(InputStream in) throws IOException {
 		if (IJ.debugMode) IJ.log("ImageReader.read16bit, offset="+fi.stripOffsets[0]);
 		short[] pixels = new short[nPixels];
-		int base = 0;
-		short last = 0;
-		for (int k=0; k<fi.stripOffsets.length; k++) {
-			//IJ.log("seek: "+k+" "+fi.stripOffsets[k]+" "+fi.stripLengths[k]+"  "+(in instanceof RandomAccessStream));
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
-			int pixelsRead = byteArray.length/bytesPerPixel;
-			pixelsRead = pixelsRead - (pixelsRead%fi.width);
-			int pmax = base+pixelsRead;
-			if (pmax > nPixels) pmax = nPixels;
-			if (fi.intelByteOrder) {
-				for (int i=base,j=0; i<pmax; i++,j+=2)
-					pixels[i] = (short)(((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
-			} else {
-				for (int i=base,j=0; i<pmax; i++,j+=2)
-					pixels[i] = (short)(((byteArray[j]&0xff)<<8) | (byteArray[j+1]&0xff));
-			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING||fi.compression==FileInfo.ZIP_WITH_DIFFERENCING) {
-				for (int b=base; b<pmax; b++) {
-					pixels[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
-				}
-			}
-			base += pixelsRead;
-			showProgress(k+1, fi.stripOffsets.length);
-		}
+		readStrips(in, pixels);
 		if (fi.fileType==FileInfo.GRAY16_SIGNED) {
 			// convert to unsigned
 			for (int i=0; i<nPixels; i++)
@@ -259,59 +194,7 @@ public class ImageReader {
 	
 	float[] readCompressed32bitImage(InputStream in) throws IOException {
 		float[] pixels = new float[nPixels];
-		int base = 0;
-		float last = 0;
-		for (int k=0; k<fi.stripOffsets.length; k++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
-			int pixelsRead = byteArray.length/bytesPerPixel;
-			pixelsRead = pixelsRead - (pixelsRead%fi.width);
-			int pmax = base+pixelsRead;
-			if (pmax > nPixels) pmax = nPixels;
-			int tmp;
-			if (fi.intelByteOrder) {
-				for (int i=base,j=0; i<pmax; i++,j+=4) {
-					tmp = (int)(((byteArray[j+3]&0xff)<<24) | ((byteArray[j+2]&0xff)<<16) | ((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
-					if (fi.fileType==FileInfo.GRAY32_FLOAT)
-						pixels[i] = Float.intBitsToFloat(tmp);
-					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
-						pixels[i] = (float)(tmp&0xffffffffL);
-					else
-						pixels[i] = tmp;
-				}
-			} else {
-				for (int i=base,j=0; i<pmax; i++,j+=4) {
-					tmp = (int)(((byteArray[j]&0xff)<<24) | ((byteArray[j+1]&0xff)<<16) | ((byteArray[j+2]&0xff)<<8) | (byteArray[j+3]&0xff));
-					if (fi.fileType==FileInfo.GRAY32_FLOAT)
-						pixels[i] = Float.intBitsToFloat(tmp);
-					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
-						pixels[i] = (float)(tmp&0xffffffffL);
-					else
-						pixels[i] = tmp;
-				}
-			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING||fi.compression==FileInfo.ZIP_WITH_DIFFERENCING) {
-				for (int b=base; b<pmax; b++) {
-					pixels[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
-				}
-			}
-			base += pixelsRead;
-			showProgress(k+1, fi.stripOffsets.length);
-		}
+		readStrips(in, pixels);
 		return pixels;
 	}
 
@@ -438,29 +321,165 @@ public class ImageReader {
 
 	int[] readCompressedChunkyRGB(InputStream in) throws IOException {
 		int[] pixels = new int[nPixels];
-		int base = 0;
-		int lastRed=0, lastGreen=0, lastBlue=0;
-		int nextByte;
-		int red=0, green=0, blue=0, alpha = 0;
-		boolean bgr = fi.fileType==FileInfo.BGR;
-		boolean cmyk = fi.fileType==FileInfo.CMYK;
+		readStrips(in, pixels);
+		return pixels;
+	}
+
+	/** Reads the strips of a compressed image (or of an uncompressed image with
+		several strips), decompresses them and stores the pixels in 'pixels', which
+		is a byte[], short[], float[] or int[] (RGB) array. With more than one thread
+		(Edit>Options>Memory & Threads), the compressed strips are read first and
+		then decompressed concurrently, each into its own part of the pixel array.
+		This requires every strip to have fi.rowsPerStrip rows, except the last one
+		(of each plane, for planar RGB); otherwise the strips are decompressed one
+		after the other, each one following the rows of the previous one.
+	*/
+	private void readStrips(InputStream in, final Object pixels) throws IOException {
+		final int nStrips = fi.stripOffsets.length;
+		final int[] starts = fi.compression>FileInfo.COMPRESSION_NONE ? getStripStarts() : null;
+		int nThreads = Math.min(Prefs.getThreads(), nStrips);
+		if (starts==null || nThreads<2) {
+			int base = 0;
+			for (int i=0; i<nStrips; i++) {
+				byte[] strip = uncompress(readStrip(in, i));
+				base += storeStrip(strip, pixels, base, nPixels);
+				showProgress(i+1, nStrips);
+			}
+			return;
+		}
+		final byte[][] strips = new byte[nStrips][];
+		for (int i=0; i<nStrips; i++)
+			strips[i] = readStrip(in, i);
+		showProgress(1, 2);
+		final AtomicInteger nextStrip = new AtomicInteger();
+		Callable[] decoders = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			decoders[t] = new Callable<Void>() {
+				public Void call() {
+					for (int i=nextStrip.getAndIncrement(); i<nStrips; i=nextStrip.getAndIncrement()) {
+						storeStrip(uncompress(strips[i]), pixels, starts[i], starts[i+1]);
+						strips[i] = null;
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(decoders);
+		showProgress(2, 2);
+	}
+
+	/** Returns the index of the first pixel of each strip, and the number of pixels
+		as the last element, or null if the strips do not all have fi.rowsPerStrip rows. */
+	private int[] getStripStarts() {
+		int rows = fi.rowsPerStrip;
+		int nStrips = fi.stripOffsets.length;
+		if (rows<=0 || nStrips<2 || fi.stripLengths==null || fi.stripLengths.length!=nStrips)
+			return null;
+		int planes = fi.fileType==FileInfo.RGB_PLANAR?3:1;
+		int stripsPerPlane = (height+rows-1)/rows;
+		if (nStrips!=stripsPerPlane*planes || (long)width*height*planes>nPixels)
+			return null;
+		int[] starts = new int[nStrips+1];
+		for (int i=0; i<nStrips; i++)
+			starts[i] = (i/stripsPerPlane)*width*height + (i%stripsPerPlane)*rows*width;
+		starts[nStrips] = width*height*planes;
+		return starts;
+	}
+
+	/** Reads the compressed data of strip 'strip'. */
+	private byte[] readStrip(InputStream in, int strip) throws IOException {
+		if (in instanceof RandomAccessStream)
+			((RandomAccessStream)in).seek(fi.getStripOffset(strip));
+		else if (strip > 0) {
+			long skip = fi.getStripOffset(strip) - fi.getStripOffset(strip-1) - fi.stripLengths[strip-1];
+			if (skip > 0L) in.skip(skip);
+		}
+		byte[] byteArray = new byte[fi.stripLengths[strip]];
+		int read = 0, left = byteArray.length;
+		while (left > 0) {
+			int r = in.read(byteArray, read, left);
+			if (r == -1) {eofError(); break;}
+			read += r;
+			left -= r;
+		}
+		return byteArray;
+	}
+
+	/** Converts the decompressed strip 'byteArray', undoing horizontal differencing,
+		and stores whole rows of it in 'pixels', from index 'base' up to 'end' at most.
+		Returns the number of pixels in the whole rows of the strip. */
+	private int storeStrip(byte[] byteArray, Object pixels, int base, int end) {
 		boolean differencing = fi.compression==FileInfo.LZW_WITH_DIFFERENCING||fi.compression==FileInfo.ZIP_WITH_DIFFERENCING;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
-			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip > 0L) in.skip(skip);
+		if (pixels instanceof byte[]) {
+			int length = byteArray.length;
+			length = length - (length%fi.width);
+			if (differencing) {
+				byte last = 0;
+				for (int b=0; b<length; b++) {
+					byteArray[b] += last;
+					last = b % fi.width == fi.width - 1 ? 0 : byteArray[b];
+				}
+			}
+			int stored = Math.max(0, Math.min(length, end-base));
+			System.arraycopy(byteArray, 0, (byte[])pixels, base, stored);
+			return stored;
+		}
+		int pixelsRead = byteArray.length/bytesPerPixel;
+		pixelsRead = pixelsRead - (pixelsRead%fi.width);
+		int pmax = base+pixelsRead;
+		if (pmax > end) pmax = end;
+		if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			if (fi.intelByteOrder) {
+				for (int i=base,j=0; i<pmax; i++,j+=2)
+					shorts[i] = (short)(((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
+			} else {
+				for (int i=base,j=0; i<pmax; i++,j+=2)
+					shorts[i] = (short)(((byteArray[j]&0xff)<<8) | (byteArray[j+1]&0xff));
+			}
+			if (differencing) {
+				short last = 0;
+				for (int b=base; b<pmax; b++) {
+					shorts[b] += last;
+					last = b % fi.width == fi.width - 1 ? 0 : shorts[b];
+				}
 			}
-			byte[] byteArray = new byte[fi.stripLengths[i]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
+		} else if (pixels instanceof float[]) {
+			float[] floats = (float[])pixels;
+			int tmp;
+			if (fi.intelByteOrder) {
+				for (int i=base,j=0; i<pmax; i++,j+=4) {
+					tmp = (int)(((byteArray[j+3]&0xff)<<24) | ((byteArray[j+2]&0xff)<<16) | ((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
+					if (fi.fileType==FileInfo.GRAY32_FLOAT)
+						floats[i] = Float.intBitsToFloat(tmp);
+					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
+						floats[i] = (float)(tmp&0xffffffffL);
+					else
+						floats[i] = tmp;
+				}
+			} else {
+				for (int i=base,j=0; i<pmax; i++,j+=4) {
+					tmp = (int)(((byteArray[j]&0xff)<<24) | ((byteArray[j+1]&0xff)<<16) | ((byteArray[j+2]&0xff)<<8) | (byteArray[j+3]&0xff));
+					if (fi.fileType==FileInfo.GRAY32_FLOAT)
+						floats[i] = Float.intBitsToFloat(tmp);
+					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
+						floats[i] = (float)(tmp&0xffffffffL);
+					else
+						floats[i] = tmp;
+				}
+			}
+			if (differencing) {
+				float last = 0;
+				for (int b=base; b<pmax; b++) {
+					floats[b] += last;
+					last = b % fi.width == fi.width - 1 ? 0 : floats[b];
+				}
 			}
-			byteArray = uncompress(byteArray);
+		} else {
+			int[] rgb = (int[])pixels;
+			int red, green, blue, alpha;
+			boolean bgr = fi.fileType==FileInfo.BGR;
+			boolean cmyk = fi.fileType==FileInfo.CMYK;
 			if (differencing) {
 				for (int b=0; b<byteArray.length; b++) {
 					if (b / bytesPerPixel % fi.width == 0) continue;
@@ -468,10 +487,6 @@ public class ImageReader {
 				}
 			}
 			int k = 0;
-			int pixelsRead = byteArray.length/bytesPerPixel;
-			pixelsRead = pixelsRead - (pixelsRead%fi.width);
-			int pmax = base+pixelsRead;
-			if (pmax > nPixels) pmax = nPixels;
 			for (int j=base; j<pmax; j++) {
 				if (bytesPerPixel==4) {
 					red = byteArray[k++]&0xff;
@@ -489,14 +504,12 @@ public class ImageReader {
 					blue = byteArray[k++]&0xff;
 				}
 				if (bgr)
-					pixels[j] = 0xff000000 | (blue<<16) | (green<<8) | red;
+					rgb[j] = 0xff000000 | (blue<<16) | (green<<8) | red;
 				else
-					pixels[j] = 0xff000000 | (red<<16) | (green<<8) | blue;
+					rgb[j] = 0xff000000 | (red<<16) | (green<<8) | blue;
 			}
-			base += pixelsRead;
-			showProgress(i+1, fi.stripOffsets.length);
 		}
-		return pixels;
+		return pixelsRead;
 	}
 	
 	int[] readJPEG(InputStream in) throws IOException {
@@ -585,7 +598,7 @@ public class ImageReader {
 		}
 		for (int i=0; i<fi.stripOffsets.length; i++) {
 			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				long skip = fi.getStripOffset(i) - fi.getStripOffset(i-1) - fi.stripLengths[i-1];
 				if (skip>0L) dis.skip(skip);
 			}
 			int len = fi.stripLengths[i];
@@ -628,7 +641,7 @@ public class ImageReader {
 		int min=65535, max=0;
 		for (int i=0; i<fi.stripOffsets.length; i++) {
 			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				long skip = fi.getStripOffset(i) - fi.getStripOffset(i-1) - fi.stripLengths[i-1];
 				if (skip>0L) dis.skip(skip);
 			}
 			int len = fi.stripLengths[i];
@@ -826,6 +839,8 @@ public class ImageReader {
 	was an IO exception. Does not close the InputStream.
 	*/
 	public Object readPixels(InputStream in) {
+		if (fi.tileWidth>0)
+			return readRegion(in, new Rectangle(0, 0, width, height));
 		Object pixels;
 		startTime = System.currentTimeMillis();
 		try {
@@ -942,6 +957,300 @@ public class ImageReader {
 		return readPixels(is);
 	}
 	
+	/**
+	Reads the part of the image inside the rectangle 'r' and returns its pixel
+	array (byte, short, int or float), as readPixels does for the whole image.
+	Only the tiles or strips of compressed and tiled TIFFs that intersect 'r' are
+	read and decompressed, and only the part of each row inside 'r' is read from
+	uncompressed images, so a small region of a large image is read quickly.
+	The tiles or strips are decompressed in parallel if more than one thread is
+	used (Edit>Options>Memory & Threads). The offsets in the FileInfo are taken from
+	the start of 'in', which is wrapped in a RandomAccessStream if it is not one;
+	the cache of the wrapper is released before returning, and 'in' is not closed.
+	Returns null if 'r' is outside the image or there was an IO exception.
+	*/
+	public Object readRegion(InputStream in, Rectangle r) {
+		r = r.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return null;
+		startTime = System.currentTimeMillis();
+		RandomAccessStream ras = in instanceof RandomAccessStream?(RandomAccessStream)in:new RandomAccessStream(in);
+		try {
+			Object pixels;
+			if (fi.tileWidth>0 || (fi.compression>FileInfo.COMPRESSION_NONE && canReadTiles()))
+				pixels = readTiles(ras, r);
+			else if (canReadRows())
+				pixels = readRows(ras, r);
+			else {  // BITMAP, 12-bit, JPEG, etc.: read the whole image
+				ras.seek(0L);
+				pixels = crop(readPixels(ras), r);
+			}
+			showProgress(1, 1);
+			imageCount++;
+			return pixels;
+		}
+		catch (IOException e) {
+			IJ.log("" + e);
+			return null;
+		} finally {
+			if (ras!=in) {
+				try {ras.closeCache();} catch (IOException e) {}
+			}
+		}
+	}
+
+	/** Returns 'true' if the strips of this compressed image can be read as tiles
+		with the width of the image, one at a time. */
+	private boolean canReadTiles() {
+		if (fi.compression==FileInfo.JPEG || getTileLayout()==null)
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.RGB: case FileInfo.BGR: case FileInfo.ARGB: case FileInfo.ABGR:
+			case FileInfo.BARG: case FileInfo.CMYK: case FileInfo.RGB48: case FileInfo.RGB_PLANAR:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/** Returns 'true' if this uncompressed image can be read row by row. */
+	private boolean canReadRows() {
+		if (fi.compression!=FileInfo.COMPRESSION_NONE)
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT: case FileInfo.GRAY64_FLOAT:
+			case FileInfo.RGB: case FileInfo.BGR: case FileInfo.ARGB: case FileInfo.ABGR:
+			case FileInfo.BARG: case FileInfo.CMYK: case FileInfo.RGB_PLANAR:
+				break;
+			default:
+				return false;
+		}
+		return fi.stripOffsets==null || fi.stripOffsets.length<2 || getTileLayout()!=null;
+	}
+
+	/** Returns the width and height of the tiles (or strips) and the number of tiles
+		across and down the image, or null if the tile offsets do not match them. */
+	private int[] getTileLayout() {
+		int tileWidth = width;
+		int tileHeight = fi.rowsPerStrip>0 && fi.rowsPerStrip<height ? fi.rowsPerStrip : height;
+		if (fi.tileWidth>0) {
+			tileWidth = fi.tileWidth;
+			tileHeight = fi.tileHeight;
+		}
+		if (tileWidth<=0 || tileHeight<=0 || fi.stripOffsets==null || fi.stripLengths==null)
+			return null;
+		int across = (width+tileWidth-1)/tileWidth;
+		int down = (height+tileHeight-1)/tileHeight;
+		int nTiles = across*down*(fi.fileType==FileInfo.RGB_PLANAR?3:1);
+		if (fi.stripOffsets.length!=nTiles || fi.stripLengths.length!=nTiles)
+			return null;
+		return new int[] {tileWidth, tileHeight, across, down};
+	}
+
+	/** Reads the tiles, or strips, that intersect 'r', decompresses them (concurrently
+		if more than one thread is used) and copies the part of each inside 'r'.
+		The planes of planar RGB images are stored as separate tiles. */
+	private Object readTiles(RandomAccessStream in, final Rectangle r) throws IOException {
+		int[] layout = getTileLayout();
+		if (layout==null)
+			throw new IOException("The number of tiles does not match the image size");
+		final int tileWidth=layout[0], tileHeight=layout[1], across=layout[2], down=layout[3];
+		final boolean planar = fi.fileType==FileInfo.RGB_PLANAR;
+		int planes = planar?3:1;
+		int x1=r.x/tileWidth, x2=(r.x+r.width-1)/tileWidth;
+		int y1=r.y/tileHeight, y2=(r.y+r.height-1)/tileHeight;
+		final int nTiles = (x2-x1+1)*(y2-y1+1)*planes;
+		final int[] tiles = new int[nTiles];
+		final byte[][] data = new byte[nTiles][];
+		int n = 0;
+		for (int p=0; p<planes; p++) {
+			for (int y=y1; y<=y2; y++) {
+				for (int x=x1; x<=x2; x++) {
+					int tile = (p*down+y)*across + x;
+					in.seek(fi.getStripOffset(tile));
+					data[n] = new byte[fi.stripLengths[tile]];
+					readFully(in, data[n], 0, data[n].length);
+					tiles[n++] = tile;
+				}
+			}
+		}
+		showProgress(1, 2);
+		final Object[] region = new Object[planes];
+		final AtomicInteger nextTile = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		Callable[] decoders = new Callable[Math.max(1, Math.min(Prefs.getThreads(), nTiles))];
+		for (int t=0; t<decoders.length; t++) {
+			decoders[t] = new Callable<Void>() {
+				public Void call() {
+					for (int i=nextTile.getAndIncrement(); i<nTiles; i=nextTile.getAndIncrement()) {
+						int plane = tiles[i]/(across*down);
+						int tile = tiles[i]%(across*down);
+						int x = (tile%across)*tileWidth;
+						int y = (tile/across)*tileHeight;
+						int h = fi.tileWidth>0 ? tileHeight : Math.min(tileHeight, height-y);
+						Object pixels = decode(data[i], tileWidth, h, planar?FileInfo.GRAY8:fi.fileType, errors);
+						data[i] = null;
+						if (pixels==null)
+							continue;
+						synchronized(region) {
+							if (region[plane]==null)
+								region[plane] = newArray(pixels, r.width*r.height);
+						}
+						Rectangle overlap = r.intersection(new Rectangle(x, y, tileWidth, h));
+						copy(pixels, tileWidth, overlap.x-x, overlap.y-y, region[plane], r.width, overlap.x-r.x, overlap.y-r.y, overlap.width, overlap.height);
+					}
+					return null;
+				}
+			};
+		}
+		if (decoders.length>1)
+			ThreadUtil.startAndJoin(decoders);
+		else {
+			try {
+				decoders[0].call();
+			} catch (Exception e) {
+				throw new IOException(""+e);
+			}
+		}
+		eofErrorCount += errors.get();
+		for (int p=0; p<planes; p++) {
+			if (region[p]==null)
+				return null;
+		}
+		if (planar)
+			return combinePlanes((byte[])region[0], (byte[])region[1], (byte[])region[2]);
+		if (fi.fileType==FileInfo.RGB48)
+			setMinAndMax((short[][])region[0]);
+		return region[0];
+	}
+
+	/** Reads the part inside 'r' of each row of an uncompressed image, reading
+		adjacent rows at once, and converts the pixels. */
+	private Object readRows(RandomAccessStream in, Rectangle r) throws IOException {
+		boolean planar = fi.fileType==FileInfo.RGB_PLANAR;
+		int planes = planar?3:1;
+		int bytesPerPixel = planar?1:fi.getBytesPerPixel();
+		long rowBytes = (long)width*bytesPerPixel;
+		int length = r.width*bytesPerPixel;
+		boolean strips = fi.stripOffsets!=null && fi.stripOffsets.length>1;
+		int rowsPerStrip = strips ? getTileLayout()[1] : height;
+		int stripsPerPlane = (height+rowsPerStrip-1)/rowsPerStrip;
+		byte[] buffer = new byte[planes*r.height*length];
+		long start = 0L;  // adjacent rows are read at once
+		int index=0, count=0;
+		for (int p=0; p<planes; p++) {
+			for (int y=r.y; y<r.y+r.height; y++) {
+				long position;
+				if (strips)
+					position = fi.getStripOffset(p*stripsPerPlane+y/rowsPerStrip) + (y%rowsPerStrip)*rowBytes;
+				else
+					position = fi.getOffset() + (p*(long)height+y)*rowBytes;
+				position += (long)r.x*bytesPerPixel;
+				if (count>0 && position!=start+count) {
+					in.seek(start);
+					readFully(in, buffer, index-count, count);
+					count = 0;
+				}
+				if (count==0)
+					start = position;
+				count += length;
+				index += length;
+			}
+			showProgress(p+1, planes);
+		}
+		in.seek(start);
+		readFully(in, buffer, index-count, count);
+		AtomicInteger errors = new AtomicInteger();
+		Object pixels = decode(buffer, r.width, r.height, fi.fileType, errors);
+		eofErrorCount += errors.get();
+		return pixels;
+	}
+
+	/** Converts the pixels of a tile, or of a region read by readRows(), using a copy
+		of the FileInfo with the size of the tile and 'data' as its only strip. */
+	private Object decode(byte[] data, int width, int height, int fileType, AtomicInteger errors) {
+		FileInfo tfi = (FileInfo)fi.clone();
+		tfi.fileType = fileType;
+		tfi.width = width;
+		tfi.height = height;
+		tfi.offset = 0;
+		tfi.longOffset = 0L;
+		tfi.nImages = 1;
+		tfi.stripOffsets = new int[] {0};
+		tfi.longStripOffsets = null;
+		tfi.stripLengths = new int[] {data.length};
+		tfi.rowsPerStrip = height;
+		tfi.tileWidth = tfi.tileHeight = 0;
+		ImageReader reader = new ImageReader(tfi);
+		reader.showProgressBar = false;
+		Object pixels = reader.readPixels(new ByteArrayInputStream(data));
+		errors.addAndGet(reader.eofErrorCount);
+		return pixels;
+	}
+
+	private void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+		while (length>0) {
+			int count = in.read(buffer, offset, length);
+			if (count==-1) {eofError(); break;}
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/** Returns the part inside 'r' of 'pixels', an image with the width of this one. */
+	private Object crop(Object pixels, Rectangle r) {
+		if (pixels==null || (r.width==width && r.height==height))
+			return pixels;
+		Object pixels2 = newArray(pixels, r.width*r.height);
+		copy(pixels, width, r.x, r.y, pixels2, r.width, 0, 0, r.width, r.height);
+		return pixels2;
+	}
+
+	/** Returns an array of the same type as 'pixels' (or, for 48-bit RGB, with
+		the same number of channels) with 'size' pixels. */
+	private static Object newArray(Object pixels, int size) {
+		if (pixels instanceof short[][])
+			return new short[((short[][])pixels).length][size];
+		return java.lang.reflect.Array.newInstance(pixels.getClass().getComponentType(), size);
+	}
+
+	/** Copies a 'w' by 'h' rectangle from 'src' to 'dst', channel by channel for 48-bit RGB. */
+	private static void copy(Object src, int srcWidth, int srcX, int srcY, Object dst, int dstWidth, int dstX, int dstY, int w, int h) {
+		if (src instanceof Object[]) {
+			Object[] srcChannels=(Object[])src, dstChannels=(Object[])dst;
+			for (int c=0; c<srcChannels.length && c<dstChannels.length; c++)
+				copy(srcChannels[c], srcWidth, srcX, srcY, dstChannels[c], dstWidth, dstX, dstY, w, h);
+			return;
+		}
+		for (int y=0; y<h; y++)
+			System.arraycopy(src, (srcY+y)*srcWidth+srcX, dst, (dstY+y)*dstWidth+dstX, w);
+	}
+
+	private static int[] combinePlanes(byte[] red, byte[] green, byte[] blue) {
+		int[] pixels = new int[red.length];
+		for (int i=0; i<pixels.length; i++)
+			pixels[i] = 0xff000000 | ((red[i]&0xff)<<16) | ((green[i]&0xff)<<8) | (blue[i]&0xff);
+		return pixels;
+	}
+
+	private void setMinAndMax(short[][] channels) {
+		int min=65535, max=0;
+		for (int c=0; c<channels.length; c++) {
+			short[] pixels = channels[c];
+			for (int i=0; i<pixels.length; i++) {
+				int value = pixels[i]&0xffff;
+				if (value<min) min = value;
+				if (value>max) max = value;
+			}
+		}
+		this.min=min; this.max=max;
+	}
+
 	private byte[] uncompress(byte[] input) {
 		if (fi.compression==FileInfo.PACK_BITS)
 			return packBitsUncompress(input, fi.rowsPerStrip*fi.width*fi.getBytesPerPixel());
@@ -2,6 +2,10 @@ package ij.io;
 import java.io.*;
 import ij.*;  //??
 import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 /** Writes a raw image described by a FileInfo object to an OutputStream. */
 public class ImageWriter {
@@ -17,6 +21,15 @@ public class ImageWriter {
 		if (showProgressBar)
 			IJ.showProgress(progress);
 	}
+
+	/** Displays "Writing: n/nImages" in the status bar, followed
+		by the write rate if 'out' is a ChannelOutputStream. */
+	static void showStatus(OutputStream out, int n, int nImages) {
+		String rate = "";
+		if (out instanceof ChannelOutputStream)
+			rate = " ("+IJ.d2s(((ChannelOutputStream)out).getMBPerSecond(),1)+" MB/s)";
+		IJ.showStatus("Writing: " + n + "/" + nImages + rate);
+	}
 	
 	void write8BitImage(OutputStream out, byte[] pixels)  throws IOException {
 		int bytesWritten = 0;
@@ -36,7 +49,7 @@ public class ImageWriter {
 		showProgressBar = false;
 		savingStack = true;
 		for (int i=0; i<fi.nImages; i++) {
-			IJ.showStatus("Writing: " + (i+1) + "/" + fi.nImages);
+			showStatus(out, i+1, fi.nImages);
 			write8BitImage(out, (byte[])stack[i]);
 			IJ.showProgress((double)(i+1)/fi.nImages);
 		}
@@ -46,7 +59,7 @@ public class ImageWriter {
 		showProgressBar = false;
 		boolean flip = "FlipTheseImages".equals(fi.fileName);
 		for (int i=1; i<=fi.nImages; i++) {
-			IJ.showStatus("Writing: " + i + "/" + fi.nImages);
+			showStatus(out, i, fi.nImages);
 			ImageProcessor ip = virtualStack.getProcessor(i);
 			if (flip) ip.flipVertical();
 			byte[] pixels = (byte[])ip.getPixels();
@@ -59,13 +72,20 @@ public class ImageWriter {
 		long bytesWritten = 0L;
 		long size = 2L*fi.width*fi.height;
 		int count = getCount(size);
-		byte[] buffer = new byte[count];
+		ChannelOutputStream channel = out instanceof ChannelOutputStream?(ChannelOutputStream)out:null;
+		byte[] buffer = channel==null?new byte[count]:null;
 
 		while (bytesWritten<size) {
 			if ((bytesWritten + count)>size)
 				count = (int)(size-bytesWritten);
 			int j = (int)(bytesWritten/2L);
 			int value;
+			if (channel!=null) {  // byte swapping done in bulk
+				channel.write(pixels, j, count/2, fi.intelByteOrder);
+				bytesWritten += count;
+				showProgress((double)bytesWritten/size);
+				continue;
+			}
 			if (fi.intelByteOrder)
 				for (int i=0; i < count; i+=2) {
 					value = pixels[j];
@@ -89,7 +109,7 @@ public class ImageWriter {
 	void write16BitStack(OutputStream out, Object[] stack)  throws IOException {
 		showProgressBar = false;
 		for (int i=0; i<fi.nImages; i++) {
-			IJ.showStatus("Writing: " + (i+1) + "/" + fi.nImages);
+			showStatus(out, i+1, fi.nImages);
 			write16BitImage(out, (short[])stack[i]);
 			IJ.showProgress((double)(i+1)/fi.nImages);
 		}
@@ -99,7 +119,7 @@ public class ImageWriter {
 		showProgressBar = false;
 		boolean flip = "FlipTheseImages".equals(fi.fileName);
 		for (int i=1; i<=fi.nImages; i++) {
-			IJ.showStatus("Writing: " + i + "/" + fi.nImages);
+			showStatus(out, i, fi.nImages);
 			ImageProcessor ip = virtualStack.getProcessor(i);
 			if (flip) ip.flipVertical();
 			short[] pixels = (short[])ip.getPixels();
@@ -154,13 +174,20 @@ public class ImageWriter {
 		long bytesWritten = 0L;
 		long size = 4L*fi.width*fi.height;
 		int count = getCount(size);
-		byte[] buffer = new byte[count];
+		ChannelOutputStream channel = out instanceof ChannelOutputStream?(ChannelOutputStream)out:null;
+		byte[] buffer = channel==null?new byte[count]:null;
 		int tmp;
 
 		while (bytesWritten<size) {
 			if ((bytesWritten + count)>size)
 				count = (int)(size-bytesWritten);
 			int j = (int)(bytesWritten/4L);
+			if (channel!=null) {  // byte swapping done in bulk
+				channel.write(pixels, j, count/4, fi.intelByteOrder);
+				bytesWritten += count;
+				showProgress((double)bytesWritten/size);
+				continue;
+			}
 			if (fi.intelByteOrder)
 				for (int i=0; i < count; i+=4) {
 					tmp = Float.floatToRawIntBits(pixels[j]);
@@ -201,7 +228,7 @@ public class ImageWriter {
 	void writeFloatStack(OutputStream out, Object[] stack)  throws IOException {
 		showProgressBar = false;
 		for (int i=0; i<fi.nImages; i++) {
-			IJ.showStatus("Writing: " + (i+1) + "/" + fi.nImages);
+			showStatus(out, i+1, fi.nImages);
 			writeFloatImage(out, (float[])stack[i]);
 			IJ.showProgress((double)(i+1)/fi.nImages);
 		}
@@ -211,7 +238,7 @@ public class ImageWriter {
 		showProgressBar = false;
 		boolean flip = "FlipTheseImages".equals(fi.fileName);
 		for (int i=1; i<=fi.nImages; i++) {
-			IJ.showStatus("Writing: " + i + "/" + fi.nImages);
+			showStatus(out, i, fi.nImages);
 			ImageProcessor ip = virtualStack.getProcessor(i);
 			if (flip) ip.flipVertical();
 			float[] pixels = (float[])ip.getPixels();
@@ -244,7 +271,7 @@ public class ImageWriter {
 	void writeRGBStack(OutputStream out, Object[] stack)  throws IOException {
 		showProgressBar = false;
 		for (int i=0; i<fi.nImages; i++) {
-			IJ.showStatus("Writing: " + (i+1) + "/" + fi.nImages);
+			showStatus(out, i+1, fi.nImages);
 			writeRGBImage(out, (int[])stack[i]);
 			IJ.showProgress((double)(i+1)/fi.nImages);
 		}
@@ -254,7 +281,7 @@ public class ImageWriter {
 		showProgressBar = false;
 		boolean flip = "FlipTheseImages".equals(fi.fileName);
 		for (int i=1; i<=fi.nImages; i++) {
-			IJ.showStatus("Writing: " + i + "/" + fi.nImages);
+			showStatus(out, i, fi.nImages);
 			ImageProcessor ip = virtualStack.getProcessor(i);
 			if (flip) ip.flipVertical();
 			int[] pixels = (int[])ip.getPixels();
@@ -263,6 +290,236 @@ public class ImageWriter {
 		}
 	}
 
+	/** Returns image 'n' ({@literal 1<=n<=fi.nImages}) as TIFF strips of 'rowsPerStrip'
+		rows, compressed as specified by fi.compression (LZW, PACK_BITS or ZIP; LZW_WITH_DIFFERENCING
+		and ZIP_WITH_DIFFERENCING also apply the horizontal predictor). The strips are
+		compressed in parallel, using Prefs.getThreads() threads. Used by TiffEncoder.
+	*/
+	public byte[][] compressImage(int n, int rowsPerStrip) throws IOException {
+		final Object pixels = getImage(n);
+		if (pixels==null)
+			throw new IOException("ImageWriter: no pixels for image "+n);
+		final int rows = rowsPerStrip>0?rowsPerStrip:fi.height;
+		final int nStrips = (fi.height+rows-1)/rows;
+		final byte[][] strips = new byte[nStrips][];
+		final AtomicInteger nextStrip = new AtomicInteger();
+		Callable[] compressors = new Callable[Math.max(1, Math.min(Prefs.getThreads(), nStrips))];
+		for (int t=0; t<compressors.length; t++) {
+			compressors[t] = new Callable<Void>() {
+				public Void call() {
+					for (int i=nextStrip.getAndIncrement(); i<nStrips; i=nextStrip.getAndIncrement()) {
+						int y0 = i*rows;
+						int y1 = Math.min(fi.height, y0+rows);
+						strips[i] = compress(getStrip(pixels, y0, y1), y1-y0);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(compressors);
+		for (int i=0; i<nStrips; i++) {
+			if (strips[i]==null)
+				throw new IOException("ImageWriter: compression failed");
+		}
+		return strips;
+	}
+
+	private Object getImage(int n) {
+		if (fi.nImages>1 && fi.virtualStack!=null) {
+			ImageProcessor ip = fi.virtualStack.getProcessor(n);
+			if ("FlipTheseImages".equals(fi.fileName))
+				ip.flipVertical();
+			return ip.getPixels();
+		} else if (fi.nImages>1)
+			return ((Object[])fi.pixels)[n-1];
+		else
+			return fi.pixels;
+	}
+
+	/** Returns rows y0 to y1-1 of 'pixels' in the byte order of the file, with
+		horizontal differencing of the samples if fi.compression requires it. */
+	private byte[] getStrip(Object pixels, int y0, int y1) {
+		int width = fi.width;
+		boolean differencing = fi.compression==FileInfo.LZW_WITH_DIFFERENCING || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING;
+		if (pixels instanceof byte[]) {
+			byte[] bytes = new byte[(y1-y0)*width];
+			System.arraycopy((byte[])pixels, y0*width, bytes, 0, bytes.length);
+			if (differencing)
+				difference(bytes, width, 1);
+			return bytes;
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			byte[] bytes = new byte[(y1-y0)*width*2];
+			for (int y=y0, j=0; y<y1; y++) {
+				int last = 0;
+				for (int i=y*width; i<(y+1)*width; i++, j+=2) {
+					int value = shorts[i];
+					if (differencing) {
+						int v = value;
+						value -= last;
+						last = v;
+					}
+					if (fi.intelByteOrder) {
+						bytes[j] = (byte)value;
+						bytes[j+1] = (byte)(value>>>8);
+					} else {
+						bytes[j] = (byte)(value>>>8);
+						bytes[j+1] = (byte)value;
+					}
+				}
+			}
+			return bytes;
+		} else if (pixels instanceof float[]) {
+			float[] floats = (float[])pixels;
+			byte[] bytes = new byte[(y1-y0)*width*4];
+			for (int i=y0*width, j=0; i<y1*width; i++, j+=4) {
+				int tmp = Float.floatToRawIntBits(floats[i]);
+				if (fi.intelByteOrder) {
+					bytes[j]   = (byte)tmp;
+					bytes[j+1] = (byte)(tmp>>8);
+					bytes[j+2] = (byte)(tmp>>16);
+					bytes[j+3] = (byte)(tmp>>24);
+				} else {
+					bytes[j]   = (byte)(tmp>>24);
+					bytes[j+1] = (byte)(tmp>>16);
+					bytes[j+2] = (byte)(tmp>>8);
+					bytes[j+3] = (byte)tmp;
+				}
+			}
+			return bytes;
+		} else {
+			int[] rgb = (int[])pixels;
+			byte[] bytes = new byte[(y1-y0)*width*3];
+			for (int i=y0*width, j=0; i<y1*width; i++, j+=3) {
+				bytes[j]   = (byte)(rgb[i]>>16);	//red
+				bytes[j+1] = (byte)(rgb[i]>>8);	//green
+				bytes[j+2] = (byte)rgb[i];		//blue
+			}
+			if (differencing)
+				difference(bytes, width*3, 3);
+			return bytes;
+		}
+	}
+
+	/** Replaces each byte by its difference from the previous sample in the row. */
+	private static void difference(byte[] bytes, int rowLength, int samplesPerPixel) {
+		for (int row=0; row<bytes.length; row+=rowLength) {
+			for (int i=row+rowLength-1; i>=row+samplesPerPixel; i--)
+				bytes[i] -= bytes[i-samplesPerPixel];
+		}
+	}
+
+	private byte[] compress(byte[] strip, int rows) {
+		switch (fi.compression) {
+			case FileInfo.LZW: case FileInfo.LZW_WITH_DIFFERENCING:
+				return lzwCompress(strip);
+			case FileInfo.ZIP: case FileInfo.ZIP_WITH_DIFFERENCING:
+				return zipCompress(strip);
+			case FileInfo.PACK_BITS:
+				return packBitsCompress(strip, strip.length/rows);
+			default:
+				return strip;
+		}
+	}
+
+	/** Compresses 'input' with the Deflate algorithm (TIFF compression 8, Adobe ZIP). */
+	public byte[] zipCompress(byte[] input) {
+		Deflater compressor = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		compressor.setInput(input);
+		compressor.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length/2+64);
+		byte[] buffer = new byte[8192];
+		while (!compressor.finished()) {
+			int length = compressor.deflate(buffer);
+			out.write(buffer, 0, length);
+		}
+		compressor.end();
+		return out.toByteArray();
+	}
+
+	/** Compresses 'input' with TIFF LZW compression (MSB-first codes, code width
+		increased one code early), as decoded by ImageReader.lzwUncompress(). */
+	public byte[] lzwCompress(byte[] input) {
+		final int CLEAR_CODE=256, EOI_CODE=257, FIRST_CODE=258, TABLE_FULL=4094;
+		final int hashSize = 8191;  // prime, about twice the size of the table
+		int[] hashKeys = new int[hashSize];
+		short[] hashCodes = new short[hashSize];
+		java.util.Arrays.fill(hashKeys, -1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length/2+64);
+		int bits = CLEAR_CODE, nBits = 9;  // pending output bits
+		int codeLength = 9;
+		int nextCode = FIRST_CODE;
+		int prefix = input.length>0?input[0]&0xff:-1;
+		for (int i=1; i<=input.length && prefix>=0; i++) {
+			int h = 0, key = 0;
+			if (i<input.length) {
+				int c = input[i]&0xff;
+				key = (prefix<<8) | c;
+				h = key % hashSize;
+				while (hashKeys[h]!=-1 && hashKeys[h]!=key)
+					h = h==0 ? hashSize-1 : h-1;
+				if (hashKeys[h]==key) {  // prefix+c is in the table
+					prefix = hashCodes[h];
+					continue;
+				}
+			}
+			bits = (bits<<codeLength) | prefix;  // write the code of the longest match
+			nBits += codeLength;
+			for (; nBits>=8; nBits-=8)
+				out.write(bits>>>(nBits-8));
+			if (i<input.length) {  // add prefix+c to the table
+				hashKeys[h] = key;
+				hashCodes[h] = (short)nextCode;
+				prefix = key&0xff;
+			}
+			nextCode++;
+			if (nextCode==TABLE_FULL) {
+				bits = (bits<<codeLength) | CLEAR_CODE;
+				nBits += codeLength;
+				for (; nBits>=8; nBits-=8)
+					out.write(bits>>>(nBits-8));
+				java.util.Arrays.fill(hashKeys, -1);
+				nextCode = FIRST_CODE;
+				codeLength = 9;
+			} else if (nextCode==512 || nextCode==1024 || nextCode==2048)
+				codeLength++;
+		}
+		bits = (bits<<codeLength) | EOI_CODE;
+		nBits += codeLength;
+		for (; nBits>=8; nBits-=8)
+			out.write(bits>>>(nBits-8));
+		if (nBits>0)
+			out.write(bits<<(8-nBits));
+		return out.toByteArray();
+	}
+
+	/** Compresses 'input' with PackBits (TIFF compression 32773), each row of 'rowLength' bytes separately. */
+	public byte[] packBitsCompress(byte[] input, int rowLength) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length+input.length/128+16);
+		if (rowLength<=0) rowLength = input.length;
+		for (int row=0; row<input.length; row+=rowLength) {
+			int end = Math.min(input.length, row+rowLength);
+			int i = row;
+			while (i<end) {
+				int run = 1;
+				while (i+run<end && run<128 && input[i+run]==input[i])
+					run++;
+				if (run>1) {  // replicate run
+					out.write(1-run);
+					out.write(input[i]);
+					i += run;
+				} else {  // literal run, up to the next pair of equal bytes
+					int start = i;
+					while (i<end && i-start<128 && !(i+1<end && input[i+1]==input[i]))
+						i++;
+					out.write(i-start-1);
+					out.write(input, start, i-start);
+				}
+			}
+		}
+		return out.toByteArray();
+	}
+
 	/** Writes the image to the specified OutputStream.
 		The OutputStream is not closed. The fi.pixels field
 		must contain the image data. If fi.nImages>1
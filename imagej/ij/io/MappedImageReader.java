@@ -0,0 +1,194 @@
+package ij.io;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/** Reads uncompressed images (FileInfo.COMPRESSION_NONE) directly from a
+	memory-mapped file. The file is mapped in overlapping windows that are kept
+	for later reads, so reading a slice of a large stack needs no system call,
+	no stream and no intermediate buffer: the pixels are copied from the mapped
+	buffer into the pixel array, with byte swapping done in bulk by the NIO
+	buffer views. The file stays open until close() is called.
+	This class is thread safe; FileInfoVirtualStack uses one instance per stack.
+	@see ij.plugin.FileInfoVirtualStack
+*/
+public class MappedImageReader implements Closeable {
+	/** Windows start every WINDOW_STEP bytes and are twice as long, so that
+		any image up to WINDOW_STEP bytes is contained in a single window. */
+	private static final long WINDOW_STEP = 1L<<29; // 512 MB
+	private final String path;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private HashMap<Long,MappedByteBuffer> windows = new HashMap<Long,MappedByteBuffer>();
+
+	/** Creates a reader for the file with the specified path. The file is opened on first use. */
+	public MappedImageReader(String path) {
+		this.path = path;
+	}
+
+	/** Returns the path of the file read by this reader. */
+	public String getPath() {
+		return path;
+	}
+
+	/** Returns 'true' if the image described by 'fi' is an uncompressed local
+		file, not tiled, in one of the pixel formats supported by this reader. */
+	public static boolean canRead(FileInfo fi) {
+		if (fi.compression>FileInfo.COMPRESSION_NONE || fi.tileWidth>0 || fi.inputStream!=null
+		|| (fi.url!=null && !fi.url.equals("")) || fi.directory==null || fi.fileName==null)
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.RGB: case FileInfo.BGR: case FileInfo.ARGB:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/** Reads the image described by 'fi' and returns the pixel array (byte[] for
+		8-bit, short[] for 16-bit, float[] for 32-bit and int[] for RGB images), as
+		ImageReader.readPixels does. Returns null if the image extends beyond the end
+		of the file or is too large for a single buffer. Uncompressed strips that are
+		not contiguous are gathered first.
+	*/
+	public Object readPixels(FileInfo fi) throws IOException {
+		int nPixels = fi.width*fi.height;
+		long size = (long)nPixels*fi.getBytesPerPixel();
+		if (size>Integer.MAX_VALUE)
+			return null;
+		ByteBuffer buffer = getBuffer(fi, (int)size);
+		if (buffer==null)
+			return null;
+		buffer.order(fi.intelByteOrder?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN);
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+				byte[] bytes = new byte[nPixels];
+				buffer.get(bytes);
+				return bytes;
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+				short[] shorts = new short[nPixels];
+				buffer.asShortBuffer().get(shorts);
+				if (fi.fileType==FileInfo.GRAY16_SIGNED) {
+					for (int i=0; i<nPixels; i++)
+						shorts[i] = (short)(shorts[i]+32768);
+				}
+				return shorts;
+			case FileInfo.GRAY32_FLOAT:
+				float[] floats = new float[nPixels];
+				buffer.asFloatBuffer().get(floats);
+				return floats;
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED:
+				int[] ints = new int[nPixels];
+				buffer.asIntBuffer().get(ints);
+				float[] values = new float[nPixels];
+				if (fi.fileType==FileInfo.GRAY32_UNSIGNED) {
+					for (int i=0; i<nPixels; i++)
+						values[i] = (float)(ints[i]&0xffffffffL);
+				} else {
+					for (int i=0; i<nPixels; i++)
+						values[i] = ints[i];
+				}
+				return values;
+			case FileInfo.ARGB:  // stored as R, G, B, alpha
+				int[] argb = new int[nPixels];
+				buffer.order(ByteOrder.BIG_ENDIAN).asIntBuffer().get(argb);
+				for (int i=0; i<nPixels; i++)
+					argb[i] = 0xff000000 | (argb[i]>>>8);
+				return argb;
+			case FileInfo.RGB: case FileInfo.BGR:
+				return readChunkyRGB(buffer, nPixels, fi.fileType==FileInfo.BGR);
+			default:
+				throw new IllegalArgumentException("Unsupported file type: "+fi.fileType);
+		}
+	}
+
+	private int[] readChunkyRGB(ByteBuffer buffer, int nPixels, boolean bgr) {
+		int[] pixels = new int[nPixels];
+		byte[] row = new byte[Math.min(nPixels, 8192)*3];
+		for (int base=0; base<nPixels; base+=row.length/3) {
+			int n = Math.min(row.length/3, nPixels-base);
+			buffer.get(row, 0, n*3);
+			for (int i=0, j=0; i<n; i++, j+=3) {
+				int c1=row[j]&0xff, c2=row[j+1]&0xff, c3=row[j+2]&0xff;
+				pixels[base+i] = bgr ? 0xff000000|(c3<<16)|(c2<<8)|c1 : 0xff000000|(c1<<16)|(c2<<8)|c3;
+			}
+		}
+		return pixels;
+	}
+
+	/** Returns a buffer positioned at the start of the image data, or null if the file is too short.
+		Strip offsets are taken relative to the first strip, since the FileInfo objects of a
+		virtual stack are clones of the first one with only the offset changed. */
+	private ByteBuffer getBuffer(FileInfo fi, int size) throws IOException {
+		long offset = fi.getOffset();
+		int[] offsets = fi.stripOffsets;
+		int[] lengths = fi.stripLengths;
+		boolean contiguous = true;
+		if (offsets!=null && lengths!=null && offsets.length>1 && lengths.length==offsets.length) {
+			for (int i=1; i<offsets.length; i++) {
+				if (fi.getStripOffset(i)!=fi.getStripOffset(i-1)+(lengths[i-1]&0xffffffffL))
+					contiguous = false;
+			}
+		}
+		if (contiguous)
+			return map(offset, size);
+		byte[] bytes = new byte[size];
+		long first = fi.getStripOffset(0);
+		int position = 0;
+		for (int i=0; i<offsets.length && position<size; i++) {
+			int length = Math.min(lengths[i], size-position);
+			ByteBuffer strip = map(offset+fi.getStripOffset(i)-first, length);
+			if (strip==null)
+				return null;
+			strip.get(bytes, position, length);
+			position += length;
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+
+	/** Returns a buffer with 'size' bytes from 'position' on, backed by a cached mapped window. */
+	private ByteBuffer map(long position, int size) throws IOException {
+		ByteBuffer window;
+		long start;
+		synchronized(this) {
+			if (channel==null || !channel.isOpen()) {  // closed by an interrupt of a reading thread
+				if (file!=null)
+					file.close();  // the mapped windows stay valid
+				file = new RandomAccessFile(path, "r");
+				channel = file.getChannel();
+			}
+			long fileLength = channel.size();
+			if (position<0 || position+size>fileLength)
+				return null;
+			if (size>WINDOW_STEP)  // too large for a window: map this image only
+				return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+			Long index = Long.valueOf(position/WINDOW_STEP);
+			start = index.longValue()*WINDOW_STEP;
+			MappedByteBuffer mapped = windows.get(index);
+			if (mapped==null || start+mapped.capacity()<position+size) {  // new window, or the file has grown
+				long length = Math.min(2*WINDOW_STEP, fileLength-start);
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+				windows.put(index, mapped);
+			}
+			window = mapped.duplicate();  // own position and limit for this thread
+		}
+		window.position((int)(position-start));
+		window.limit((int)(position-start)+size);
+		return window.slice();
+	}
+
+	/** Closes the file. The mapped windows are released by the garbage collector;
+		a later call of readPixels opens the file again. */
+	public synchronized void close() throws IOException {
+		windows.clear();
+		if (file!=null)
+			file.close();
+		file = null;
+		channel = null;
+	}
+
+}
@@ -7,6 +7,7 @@ import ij.plugin.*;
 import ij.text.TextWindow;
 import ij.util.Java2;
 import ij.measure.ResultsTable;
+import ij.measure.Calibration;
 import ij.macro.Interpreter;
 import ij.util.Tools;
 import java.awt.*;
@@ -853,6 +854,7 @@ ImagePlus openJpegOrGifUsingURL(String title, URL url) {
 						return null;
 					}
 					fi.stripOffsets = info[i].stripOffsets;
+					fi.longStripOffsets = info[i].longStripOffsets;
 					fi.stripLengths = info[i].stripLengths;
 					int bpp = info[i].getBytesPerPixel();
 					if (info[i].samplesPerPixel>1 && !(bpp==3||bpp==4||bpp==6)) {
@@ -868,7 +870,7 @@ ImagePlus openJpegOrGifUsingURL(String title, URL url) {
 					loc += imageSize*nChannels+skip;
 					if (i<(info.length-1)) {
 						skip = info[i+1].getOffset()-loc;
-						if (info[i+1].compression>=FileInfo.LZW) skip = 0;
+						if (info[i+1].compression>=FileInfo.LZW || info[i+1].tileWidth>0) skip = 0;
 						if (skip<0L) {
 							IJ.error("Opener", "Unexpected image offset");
 							break;
@@ -911,11 +913,22 @@ ImagePlus openJpegOrGifUsingURL(String title, URL url) {
 			}
 			//if (fi.whiteIsZero)
 			//	new StackProcessor(stack, stack.getProcessor(1)).invert();
+			if (fi.sliceLabels!=null && fi.sliceLabels.length<=stack.size()) {  // compressed ImageJ stacks
+				for (int i=0; i<fi.sliceLabels.length; i++)
+					stack.setSliceLabel(fi.sliceLabels[i], i+1);
+			}
 			ImagePlus imp = new ImagePlus(fi.fileName, stack);
-			new FileOpener(fi).setCalibration(imp);
+			FileOpener fo = new FileOpener(fi);
+			fo.setCalibration(imp);
 			imp.setFileInfo(fi);
 			if (fi.info!=null)
 				imp.setProperty("Info", fi.info);
+			if (fi.roi!=null)
+				fo.decodeAndSetRoi(imp, fi);
+			if (fi.overlay!=null)
+				fo.setOverlay(imp, fi.overlay);
+			if (fi.properties!=null)
+				imp.setProperties(fi.properties);
 			if (fi.description!=null && fi.description.contains("order=zct"))
 				new HyperStackConverter().shuffle(imp, HyperStackConverter.ZCT);
 			int stackSize = stack.size();
@@ -951,6 +964,38 @@ ImagePlus openJpegOrGifUsingURL(String title, URL url) {
 	
 	/** Opens the nth image of the specified TIFF stack. */
 	public ImagePlus openTiff(String path, int n) {
+		FileInfo fi = getTiffInfo(path, n);
+		if (fi==null) return null;
+		FileOpener fo = new FileOpener(fi);
+		return fo.openImage();
+	}
+
+	/** Opens the part inside the rectangle 'r' of the nth image of the
+		specified TIFF stack. Only the tiles or strips that intersect 'r'
+		are read, so this is a fast way to crop large images.
+		@see FileOpener#openProcessor(Rectangle)
+	*/
+	public ImagePlus openTiff(String path, int n, Rectangle r) {
+		FileInfo fi = getTiffInfo(path, n);
+		if (fi==null) return null;
+		FileOpener fo = new FileOpener(fi);
+		ImageProcessor ip = fo.openProcessor(r);
+		if (ip==null) return null;
+		ImagePlus imp = new ImagePlus(fi.fileName, ip);
+		fo.setCalibration(imp);
+		Calibration cal = imp.getCalibration();
+		r = r.intersection(new Rectangle(0, 0, fi.width, fi.height));
+		if (cal.xOrigin!=0.0 || cal.yOrigin!=0.0) {
+			cal.xOrigin -= r.x;
+			cal.yOrigin -= r.y;
+		}
+		if (fi.info!=null)
+			imp.setProperty("Info", fi.info);
+		return imp;
+	}
+
+	/** Returns the FileInfo of the nth image of the specified TIFF stack. */
+	private FileInfo getTiffInfo(String path, int n) {
 		TiffDecoder td = new TiffDecoder(getDir(path), getName(path));
 		if (IJ.debugMode) td.enableDebugging();
 		FileInfo[] info=null;
@@ -977,10 +1022,10 @@ ImagePlus openJpegOrGifUsingURL(String title, URL url) {
 			fi.longOffset = info[n-1].getOffset();
 			fi.offset = 0;
 			fi.stripOffsets = info[n-1].stripOffsets; 
+			fi.longStripOffsets = info[n-1].longStripOffsets; 
 			fi.stripLengths = info[n-1].stripLengths; 
 		}
-		FileOpener fo = new FileOpener(fi);
-		return fo.openImage();
+		return fi;
 	}
 
 	/** Returns the FileInfo of the specified TIFF file. */
@@ -1151,9 +1196,9 @@ ImagePlus openJpegOrGifUsingURL(String title, URL url) {
 		if (imp==null)
 			return null;
 		int[] offsets = info[0].stripOffsets;
-		if (offsets!=null&&offsets.length>1) {
-			long firstOffset = (long)offsets[0]&0xffffffffL;
-			long lastOffset = (long)offsets[offsets.length-1]&0xffffffffL;
+		if (offsets!=null&&offsets.length>1&&info[0].tileWidth==0) {
+			long firstOffset = info[0].getStripOffset(0);
+			long lastOffset = info[0].getStripOffset(offsets.length-1);
 			if (lastOffset<firstOffset)
 				ij.IJ.run(imp, "Flip Vertically", "stack");
 		}
@@ -1336,12 +1381,12 @@ ImagePlus openJpegOrGifUsingURL(String title, URL url) {
 		if (!doNotUseBioFormats && bioformats && name.contains(".ome.tif"))
 				return UNKNOWN; // Open with Bio-formats plugin
 				
-		// TIFF
-		if (b0==73 && b1==73 && b2==42 && b3==0 && !(bioformats&&name.endsWith(".flex")))
+		// TIFF (42) or BigTIFF (43)
+		if (b0==73 && b1==73 && (b2==42||b2==43) && b3==0 && !(bioformats&&name.endsWith(".flex")))
 			return TIFF;
 
 		 // Little-endian TIFF ("II")
-		if (b0==77 && b1==77 && b2==0 && b3==42)
+		if (b0==77 && b1==77 && b2==0 && (b3==42||b3==43))
 			return TIFF;
 
 		 // JPEG
@@ -1446,10 +1491,9 @@ ImagePlus openJpegOrGifUsingURL(String title, URL url) {
 			if (f==null || f.isDirectory())
 				return null;
 			else {
-				InputStream is = new FileInputStream(f);
-				if (fi.compression>=FileInfo.LZW || (fi.stripOffsets!=null&&fi.stripOffsets.length>1))
-					is = new RandomAccessStream(is);
-				return is;
+				if (fi.compression>=FileInfo.LZW || fi.tileWidth>0 || (fi.stripOffsets!=null&&fi.stripOffsets.length>1))
+					return new RandomAccessStream(new RandomAccessFile(f, "r")); // strips beyond 4GB are not kept in memory
+				return new FileInputStream(f);
 			}
 		}
 	}
@@ -4,16 +4,23 @@ import java.io.*;
 import java.util.Vector;
 
 
-/** This class uses a memory cache to allow seeking within
-	an InputStream. Based on the JAI MemoryCacheSeekableStream class.
-	Can also be constructed from a RandomAccessFile, which uses less
-	memory since the memory cache is not required.
-*/ 
+/** This class uses a cache to allow seeking within an InputStream.
+	Based on the JAI MemoryCacheSeekableStream class. The first
+	MEMORY_CACHE_SIZE bytes read from the InputStream are kept in memory,
+	the following ones in a temporary file that is deleted by close(), so
+	that streams larger than the heap can be read.
+	Can also be constructed from a RandomAccessFile, which is read with
+	a small buffer and needs no cache. Files are read and written with
+	RandomAccessFile.seek and read/write rather than a FileChannel, since
+	a FileChannel is closed for good if the reading thread is interrupted.
+*/
 public final class RandomAccessStream extends InputStream {
 
-    private static final int BLOCK_SIZE = 1024;
-    private static final int BLOCK_MASK = 1023;
-    private static final int BLOCK_SHIFT = 10;
+    private static final int BLOCK_SIZE = 8192;
+    private static final int BLOCK_MASK = 8191;
+    private static final int BLOCK_SHIFT = 13;
+    /** Number of bytes of an InputStream that are cached in memory. */
+    public static final long MEMORY_CACHE_SIZE = 32L<<20;  // 32 MB
 
     private InputStream src;
     private RandomAccessFile ras;
@@ -21,9 +28,18 @@ public final class RandomAccessStream extends InputStream {
     private Vector data;
     private long length;
     private boolean foundEOS;
-    
+    private long memoryCacheSize = MEMORY_CACHE_SIZE;
+    private File cacheFile;  // the bytes of 'src' beyond memoryCacheSize
+    private RandomAccessFile cache;
+    private RandomAccessFile file;  // 'ras', or 'cache'
+    private long fileStart;  // stream position of the start of 'file'
+    private byte[] buffer;  // bytes read from 'file'
+    private byte[] block;  // block of 'src' being copied to the cache file
+    private long bufferStart;
+    private int bufferLength;
+
     /** Constructs a RandomAccessStream from an InputStream. Seeking
-		backwards is supported using a memory cache. */
+		backwards is supported using a memory and file cache. */
 	public RandomAccessStream(InputStream inputstream) {
         pointer = 0L;
         data = new Vector();
@@ -35,53 +51,87 @@ public final class RandomAccessStream extends InputStream {
     /** Constructs a RandomAccessStream from an RandomAccessFile. */
 	public RandomAccessStream(RandomAccessFile ras) {
 		this.ras = ras;
+		file = ras;
+		buffer = new byte[BLOCK_SIZE];
     }
 
     public int getFilePointer() throws IOException {
-    	if (ras!=null)
-    		return (int)ras.getFilePointer();
-    	else
-        	return (int)pointer;
+       	return (int)pointer;
     }
 
     public long getLongFilePointer() throws IOException {
-    	if (ras!=null)
-    		return ras.getFilePointer();
-    	else
-        	return pointer;
+       	return pointer;
     }
 
     public int read() throws IOException {
-    	if (ras!=null)
-    		return ras.read();
-        long l = pointer + 1L;
-        long l1 = readUntil(l);
-        if (l1>=l) {
-            byte abyte0[] = (byte[])data.elementAt((int)(pointer>>BLOCK_SHIFT));
-            return abyte0[(int)(pointer++ & BLOCK_MASK)] & 0xff;
-        } else
-            return -1;
+    	if (ras==null) {
+	        long l = pointer + 1L;
+	        long l1 = readUntil(l);
+	        if (l1<l)
+	            return -1;
+	        if (pointer<memoryCacheSize) {
+	            byte abyte0[] = (byte[])data.elementAt((int)(pointer>>BLOCK_SHIFT));
+	            return abyte0[(int)(pointer++ & BLOCK_MASK)] & 0xff;
+	        }
+	    }
+		if (pointer<bufferStart || pointer>=bufferStart+bufferLength) {
+			if (!fillBuffer())
+				return -1;
+		}
+		return buffer[(int)(pointer++ - bufferStart)] & 0xff;
     }
 
     public int read(byte[] bytes, int off, int len) throws IOException {
         if(bytes == null)
             throw new NullPointerException();
-     	if (ras!=null)
-    		return ras.read(bytes, off, len);
         if (off<0 || len<0 || off+len>bytes.length)
             throw new IndexOutOfBoundsException();
         if (len == 0)
             return 0;
-        long l = readUntil(pointer+len);
-        if (l<=pointer)
-            return -1;
-        else {
-            byte abyte1[] = (byte[])data.elementAt((int)(pointer >> BLOCK_SHIFT));
-            int k = Math.min(len, BLOCK_SIZE - (int)(pointer & BLOCK_MASK));
-            System.arraycopy(abyte1, (int)(pointer & BLOCK_MASK), bytes, off, k);
-            pointer += k;
-            return k;
-        }
+        if (ras==null) {
+	        long l = readUntil(pointer+len);
+	        if (l<=pointer)
+	            return -1;
+	        if (pointer<memoryCacheSize) {
+	            byte abyte1[] = (byte[])data.elementAt((int)(pointer >> BLOCK_SHIFT));
+	            int k = (int)Math.min(Math.min(len, BLOCK_SIZE - (int)(pointer & BLOCK_MASK)), l-pointer);
+	            System.arraycopy(abyte1, (int)(pointer & BLOCK_MASK), bytes, off, k);
+	            pointer += k;
+	            return k;
+	        }
+	        len = (int)Math.min(len, l-pointer);
+	    }
+		if (pointer>=bufferStart && pointer<bufferStart+bufferLength) {
+			int k = Math.min(len, (int)(bufferStart+bufferLength-pointer));
+			System.arraycopy(buffer, (int)(pointer-bufferStart), bytes, off, k);
+			pointer += k;
+			return k;
+		}
+		if (len<BLOCK_SIZE) {
+			if (!fillBuffer())
+				return -1;
+			return read(bytes, off, len);
+		}
+		file.seek(pointer-fileStart);
+		int k = file.read(bytes, off, len);  // large reads bypass the buffer
+		if (k<=0)
+			return -1;
+		pointer += k;
+		return k;
+    }
+
+    /** Reads the bytes at the file pointer from 'file' into the buffer. */
+    private boolean fillBuffer() throws IOException {
+		bufferStart = pointer;
+		bufferLength = 0;
+		file.seek(pointer-fileStart);
+		while (bufferLength<buffer.length) {
+			int n = file.read(buffer, bufferLength, buffer.length-bufferLength);
+			if (n<0)
+				break;
+			bufferLength += n;
+		}
+		return bufferLength>0;
     }
 
     public final void readFully(byte[] bytes) throws IOException {
@@ -102,31 +152,67 @@ public final class RandomAccessStream extends InputStream {
             return l;
         if (foundEOS)
             return length;
-        int i = (int)(l>>BLOCK_SHIFT);
-        int j = (int)(length>>BLOCK_SHIFT);
-        for (int k=j; k<=i; k++) {
-            byte abyte0[] = new byte[BLOCK_SIZE];
-            data.addElement(abyte0);
+        long i = l>>BLOCK_SHIFT;
+        long j = length>>BLOCK_SHIFT;
+        for (long k=j; k<=i; k++) {
+            boolean inMemory = (k<<BLOCK_SHIFT)<memoryCacheSize;
+            if (!inMemory && block==null)
+                block = new byte[BLOCK_SIZE];
+            byte abyte0[] = inMemory?new byte[BLOCK_SIZE]:block;
+            if (inMemory)
+                data.addElement(abyte0);
             int i1 = BLOCK_SIZE;
             int j1 = 0;
             while (i1>0) {
                 int k1 = src.read(abyte0, j1, i1);
                 if (k1==-1) {
                     foundEOS = true;
-                    return length;
+                    break;
                 }
                 j1 += k1;
                 i1 -= k1;
                 length += k1;
             }
+            if (!inMemory && j1>0) {  // the temporary file is only created for bytes beyond the memory cache
+                if (createCache()) {
+                    cache.seek((k<<BLOCK_SHIFT) - fileStart);
+                    cache.write(abyte0, 0, j1);
+                } else {  // memoryCacheSize is now Long.MAX_VALUE
+                    data.addElement(abyte0);
+                    block = null;
+                }
+            }
+            if (foundEOS)
+                return length;
         }
         return length;
     }
 
+    /** Creates the temporary file for the bytes beyond the memory cache,
+    	if this has not been done yet. Returns false if the file cannot be
+    	created; the whole stream is then kept in memory. */
+    private boolean createCache() {
+		if (cache!=null)
+			return true;
+		try {
+			cacheFile = File.createTempFile("ij-stream", ".cache");
+			cacheFile.deleteOnExit();
+			cache = new RandomAccessFile(cacheFile, "rw");
+		} catch (IOException e) {
+			if (IJ.debugMode) IJ.log("RandomAccessStream: "+e);
+			if (cacheFile!=null)
+				cacheFile.delete();
+			memoryCacheSize = Long.MAX_VALUE;
+			return false;
+		}
+		file = cache;
+		fileStart = memoryCacheSize;
+		buffer = new byte[BLOCK_SIZE];
+		return true;
+    }
+
     public void seek(long loc) throws IOException {
 		//IJ.log("seek (long): "+loc+"  "+(ras!=null));
-    	if (ras!=null)
-    		{ras.seek(loc); return;}
         if (loc<0L)
 			pointer = 0L;
         else
@@ -136,10 +222,6 @@ public final class RandomAccessStream extends InputStream {
 	public void seek(int loc) throws IOException {
 		long lloc = ((long)loc)&0xffffffffL;
 		//IJ.log("seek (int): "+lloc+"  "+(ras!=null));
-		if (ras!=null) {
-			ras.seek(lloc);
-			return;
-		}
 		if (lloc<0L)
 			pointer = 0L;
 		else
@@ -177,16 +259,28 @@ public final class RandomAccessStream extends InputStream {
     public final float readFloat() throws IOException {
         return Float.intBitsToFloat(readInt());
     }
-    
+
     public void close() throws IOException {
 		//ij.IJ.log("close: "+(data!=null?""+data.size():""));
  		if (ras!=null)
  			ras.close();
  		else {
- 			data.removeAllElements();
+ 			closeCache();
     		src.close();
     	}
     }
-    
- 
+
+    /** Frees the memory cache and deletes the temporary file, but does not
+    	close the InputStream; used when the stream is only a wrapper. */
+    void closeCache() throws IOException {
+ 		if (data!=null)
+ 			data.removeAllElements();
+ 		if (cache!=null) {
+ 			cache.close();
+ 			cache = null;
+ 			cacheFile.delete();
+ 		}
+    }
+
+
 }
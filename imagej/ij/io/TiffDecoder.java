@@ -35,6 +35,9 @@ public class TiffDecoder {
 	public static final int PREDICTOR = 317;
 	public static final int COLOR_MAP = 320;
 	public static final int TILE_WIDTH = 322;
+	public static final int TILE_LENGTH = 323;
+	public static final int TILE_OFFSETS = 324;
+	public static final int TILE_BYTE_COUNTS = 325;
 	public static final int SAMPLE_FORMAT = 339;
 	public static final int JPEG_TABLES = 347;
 	public static final int METAMORPH1 = 33628;
@@ -50,8 +53,14 @@ public class TiffDecoder {
 	static final int FLOATING_POINT = 3;
 
 	//field types
+	static final int BYTE = 1;
+	static final int ASCII = 2;
 	static final int SHORT = 3;
 	static final int LONG = 4;
+	static final int RATIONAL = 5;
+	static final int DOUBLE = 12;
+	static final int LONG8 = 16;  // BigTIFF
+	static final int IFD8 = 18;   // BigTIFF
 
 	// metadata types
 	static final int MAGIC_NUMBER = 0x494a494a;  // "IJIJ"
@@ -70,6 +79,9 @@ public class TiffDecoder {
 	protected RandomAccessStream in;
 	protected boolean debugMode;
 	private boolean littleEndian;
+	private boolean bigTiff;
+	private long firstIFD;
+	private FileInfo firstInfo;  // decoded by getIFDOffsets()
 	private String dInfo;
 	private int ifdCount;
 	private int[] metaDataCounts;
@@ -128,7 +140,7 @@ public class TiffDecoder {
     }
 
 	long OpenImageFileHeader() throws IOException {
-	// Open 8-byte Image File Header at start of file.
+	// Open 8-byte (16-byte for BigTIFF) Image File Header at start of file.
 	// Returns the offset in bytes to the first IFD or -1
 	// if this is not a valid tiff file.
 		int byteOrder = in.readShort();
@@ -140,7 +152,17 @@ public class TiffDecoder {
 			in.close();
 			return -1;
 		}
-		int magicNumber = getShort(); // 42
+		int magicNumber = getShort(); // 42, or 43 for BigTIFF
+		if (magicNumber==43) {
+			bigTiff = true;
+			int offsetSize = getShort(); // 8
+			int unused = getShort();
+			if (offsetSize!=8) {
+				in.close();
+				return -1;
+			}
+			return readLong();
+		}
 		long offset = ((long)getInt())&0xffffffffL;
 		return offset;
 	}
@@ -155,6 +177,61 @@ public class TiffDecoder {
 			value = getInt();
 		return value;
 	}	
+
+	/** Reads the 8-byte value field of a BigTIFF IFD entry. Returns the value
+		if it is a single SHORT, LONG or LONG8, otherwise the offset of the data,
+		which is the position of the field itself if the data fits into it. */
+	long getBigTiffValue(int fieldType, long count) throws IOException {
+		long position = in.getLongFilePointer();
+		long value;
+		if (count==1 && fieldType==SHORT) {
+			value = getShort();
+			in.seek(position+8);
+		} else if (count==1 && fieldType==LONG) {
+			value = getUnsignedInt();
+			in.seek(position+8);
+		} else if (count==1 && (fieldType==LONG8 || fieldType==IFD8)) {
+			value = readLong();
+		} else {
+			value = readLong();
+			if (count*getTypeSize(fieldType)<=8)
+				value = position;
+		}
+		return value;
+	}
+
+	/** Returns the size in bytes of a value of the specified TIFF field type. */
+	static int getTypeSize(int fieldType) {
+		switch (fieldType) {
+			case SHORT: case 8: // SSHORT
+				return 2;
+			case LONG: case 9: case 11: case 13: // SLONG, FLOAT, IFD
+				return 4;
+			case RATIONAL: case 10: case DOUBLE: case LONG8: case 17: case IFD8: // SRATIONAL, SLONG8
+				return 8;
+			default: // BYTE, ASCII, SBYTE, UNDEFINED
+				return 1;
+		}
+	}
+
+	/** Reads an array of strip or tile offsets, which may be SHORT, LONG or LONG8 values. */
+	long[] getOffsets(int fieldType, int count, long lvalue) throws IOException {
+		if (count==1)
+			return new long[] {lvalue};
+		long saveLoc = in.getLongFilePointer();
+		in.seek(lvalue);
+		long[] offsets = new long[count];
+		for (int c=0; c<count; c++) {
+			if (fieldType==LONG8 || fieldType==IFD8)
+				offsets[c] = readLong();
+			else if (fieldType==SHORT)
+				offsets[c] = getShort();
+			else
+				offsets[c] = getUnsignedInt();
+		}
+		in.seek(saveLoc);
+		return offsets;
+	}
 	
 	void getColorMap(long offset, FileInfo fi) throws IOException {
 		byte[] colorTable16 = new byte[768*2];
@@ -338,6 +415,10 @@ public class TiffDecoder {
 			case PLANAR_CONFIGURATION: name="PlanarConfiguration"; break;
 			case COMPRESSION: name="Compression"; break; 
 			case PREDICTOR: name="Predictor"; break; 
+			case TILE_WIDTH: name="TileWidth"; break; 
+			case TILE_LENGTH: name="TileLength"; break; 
+			case TILE_OFFSETS: name="TileOffsets"; break; 
+			case TILE_BYTE_COUNTS: name="TileByteCounts"; break; 
 			case COLOR_MAP: name="ColorMap"; break; 
 			case SAMPLE_FORMAT: name="SampleFormat"; break; 
 			case JPEG_TABLES: name="JPEGTables"; break; 
@@ -364,7 +445,7 @@ public class TiffDecoder {
 	FileInfo OpenIFD() throws IOException {
 	// Get Image File Directory data
 		int tag, fieldType, count, value;
-		int nEntries = getShort();
+		long nEntries = bigTiff?readLong():getShort();
 		if (nEntries<1 || nEntries>1000)
 			return null;
 		ifdCount++;
@@ -375,9 +456,17 @@ public class TiffDecoder {
 		for (int i=0; i<nEntries; i++) {
 			tag = getShort();
 			fieldType = getShort();
-			count = getInt();
-			value = getValue(fieldType, count);
-			long lvalue = ((long)value)&0xffffffffL;
+			long lvalue;
+			if (bigTiff) {
+				long lcount = readLong();
+				count = lcount>Integer.MAX_VALUE?0:(int)lcount;
+				lvalue = getBigTiffValue(fieldType, lcount);
+				value = (int)lvalue;
+			} else {
+				count = getInt();
+				value = getValue(fieldType, count);
+				lvalue = ((long)value)&0xffffffffL;
+			}
 			if (debugMode && ifdCount<10) dumpTag(tag, count, value, fi);
 			switch (tag) {
 				case IMAGE_WIDTH: 
@@ -388,21 +477,27 @@ public class TiffDecoder {
 					fi.height = value;
 					break;
  				case STRIP_OFFSETS:
-					if (count==1)
-						fi.stripOffsets = new int[] {value};
-					else {
-						long saveLoc = in.getLongFilePointer();
-						in.seek(lvalue);
-						fi.stripOffsets = new int[count];
-						for (int c=0; c<count; c++)
-							fi.stripOffsets[c] = getInt();
-						in.seek(saveLoc);
+ 				case TILE_OFFSETS:
+					long[] offsets = getOffsets(fieldType, count, lvalue);
+					fi.stripOffsets = new int[offsets.length];
+					boolean above4GB = false;
+					for (int c=0; c<offsets.length; c++) {
+						fi.stripOffsets[c] = (int)offsets[c];
+						if (offsets[c]>0xffffffffL)
+							above4GB = true;
 					}
-					fi.offset = count>0?fi.stripOffsets[0]:value;
-					if (count>1 && (((long)fi.stripOffsets[count-1])&0xffffffffL)<(((long)fi.stripOffsets[0])&0xffffffffL))
-						fi.offset = fi.stripOffsets[count-1];
+					if (above4GB)
+						fi.longStripOffsets = offsets;
+					long offset = count>0?offsets[0]:lvalue;
+					if (count>1 && tag==STRIP_OFFSETS && offsets[count-1]<offsets[0])
+						offset = offsets[count-1];
+					if (offset>0xffffffffL)
+						fi.longOffset = offset;
+					else
+						fi.offset = (int)offset;
 					break;
 				case STRIP_BYTE_COUNT:
+				case TILE_BYTE_COUNTS:
 					if (count==1)
 						fi.stripLengths = new int[] {value};
 					else {
@@ -412,6 +507,8 @@ public class TiffDecoder {
 						for (int c=0; c<count; c++) {
 							if (fieldType==SHORT)
 								fi.stripLengths[c] = getShort();
+							else if (fieldType==LONG8)
+								fi.stripLengths[c] = (int)readLong();
 							else
 								fi.stripLengths[c] = getInt();
 						}
@@ -536,7 +633,13 @@ public class TiffDecoder {
 						getColorMap(lvalue, fi);
 					break;
 				case TILE_WIDTH:
-					error("ImageJ cannot open tiled TIFFs.\nTry using the Bio-Formats plugin.");
+					if (fi.compression==FileInfo.JPEG || fi.fileType==FileInfo.BITMAP || fi.fileType==FileInfo.GRAY12_UNSIGNED
+					|| fi.fileType==FileInfo.GRAY10_UNSIGNED || fi.fileType==FileInfo.RGB48_PLANAR)
+						error("ImageJ cannot open tiled TIFFs of this type.\nTry using the Bio-Formats plugin.");
+					fi.tileWidth = value;
+					break;
+				case TILE_LENGTH:
+					fi.tileHeight = value;
 					break;
 				case SAMPLE_FORMAT:
 					if (fi.fileType==FileInfo.GRAY32_INT && value==FLOATING_POINT)
@@ -581,11 +684,11 @@ public class TiffDecoder {
 					in.seek(lvalue);
 					metaDataCounts = new int[count];
 					for (int c=0; c<count; c++)
-						metaDataCounts[c] = getInt();
+						metaDataCounts[c] = fieldType==LONG8?(int)readLong():getInt();
 					in.seek(saveLoc);
 					break;
  				case META_DATA: 
- 					getMetaData(value, fi);
+ 					getMetaData(lvalue, fi);
  					break;
 				default:
 					if (tag>10000 && tag<32768 && ifdCount>1)
@@ -600,7 +703,7 @@ public class TiffDecoder {
 		return fi;
 	}
 
-	void getMetaData(int loc, FileInfo fi) throws IOException {
+	void getMetaData(long loc, FileInfo fi) throws IOException {
 		if (metaDataCounts==null || metaDataCounts.length==0)
 			return;
 		int maxTypes = 10;
@@ -826,7 +929,7 @@ public class TiffDecoder {
 			FileInfo fi = OpenIFD();
 			if (fi!=null) {
 				list.add(fi);
-				ifdOffset = ((long)getInt())&0xffffffffL;
+				ifdOffset = bigTiff?readLong():((long)getInt())&0xffffffffL;
 			} else
 				ifdOffset = 0L;
 			if (debugMode && ifdCount<10) dInfo += "nextIFD=" + ifdOffset + "\n";
@@ -844,11 +947,8 @@ public class TiffDecoder {
 				info[0].inputStream = in;
 			} else
 				in.close();
-			if (info[0].info==null)
-				info[0].info = tiffMetadata;
 			FileInfo fi = info[0];
-			if (fi.fileType==FileInfo.GRAY16_UNSIGNED && fi.description==null)
-				fi.lutSize = 0; // ignore troublesome non-ImageJ 16-bit LUTs
+			setFirstInfo(fi);
 			if (debugMode) {
 				int n = info.length;
 				fi.debugInfo += "number of IFDs: "+ n + "\n";
@@ -860,6 +960,96 @@ public class TiffDecoder {
 		}
 	}
 	
+	/** Returns the offsets of all the IFDs in the file, or null if it is not a
+		TIFF file. Only the first IFD is decoded; for the others, only the chain
+		of next-IFD offsets is followed, reading the entry count and the next-IFD
+		offset of each IFD, so this is much faster than getTiffInfo() for files with
+		thousands of IFDs. As with getTiffInfo(), only the first IFD of ImageJ stacks
+		with contiguous images is returned. The IFDs can then be decoded when needed
+		with getTiffInfo(long); the file stays open until close() is called.
+		@see TiffIndex
+	*/
+	public long[] getIFDOffsets() throws IOException {
+		if (in==null)
+			in = new RandomAccessStream(new RandomAccessFile(new File(directory+name), "r"));
+		long ifdOffset = OpenImageFileHeader();
+		if (ifdOffset<0L) {
+			in = null;
+			return null;
+		}
+		firstIFD = ifdOffset;
+		long length = url==null?new File(directory+name).length():Long.MAX_VALUE;
+		long[] offsets = new long[64];
+		int n = 0;
+		HashSet<Long> visited = new HashSet<Long>();
+		in.seek(ifdOffset);
+		firstInfo = OpenIFD();
+		if (firstInfo==null) {
+			close();
+			return null;
+		}
+		setFirstInfo(firstInfo);
+		if (firstInfo.nImages>1)
+			return new long[] {ifdOffset};  // ignore extra IFDs in ImageJ and NIH Image stacks
+		while (ifdOffset>0L && ifdOffset<length && visited.add(Long.valueOf(ifdOffset))) {
+			in.seek(ifdOffset);
+			long nEntries = bigTiff?readLong():getShort();
+			if (nEntries<1 || nEntries>1000)
+				break;
+			if (n==offsets.length) {
+				long[] tmp = new long[n*2];
+				System.arraycopy(offsets, 0, tmp, 0, n);
+				offsets = tmp;
+			}
+			offsets[n++] = ifdOffset;
+			if ((n%1000)==0)
+				ij.IJ.showStatus("Locating IFDs: "+n);
+			in.seek(bigTiff?ifdOffset+8+nEntries*20:ifdOffset+2+nEntries*12);
+			ifdOffset = bigTiff?readLong():getUnsignedInt();
+		}
+		long[] offsets2 = new long[n];
+		System.arraycopy(offsets, 0, offsets2, 0, n);
+		return offsets2;
+	}
+
+	/** Decodes the IFD at the specified offset, as returned by getIFDOffsets(),
+		and returns its FileInfo, or null if it does not describe an image. */
+	public FileInfo getTiffInfo(long ifdOffset) throws IOException {
+		if (firstInfo!=null && ifdOffset==firstIFD)
+			return firstInfo;
+		if (in==null) {
+			in = new RandomAccessStream(new RandomAccessFile(new File(directory+name), "r"));
+			firstIFD = OpenImageFileHeader();
+			if (firstIFD<0L) {
+				in = null;
+				return null;
+			}
+		}
+		if (ifdCount==0 && ifdOffset!=firstIFD)
+			ifdCount++;  // OpenIFD() ignores IFDs with private tags, except the first one
+		in.seek(ifdOffset);
+		FileInfo fi = OpenIFD();
+		if (fi!=null && ifdOffset==firstIFD) {
+			setFirstInfo(fi);
+			firstInfo = fi;
+		}
+		return fi;
+	}
+
+	private void setFirstInfo(FileInfo fi) {
+		if (fi.info==null)
+			fi.info = tiffMetadata;
+		if (fi.fileType==FileInfo.GRAY16_UNSIGNED && fi.description==null)
+			fi.lutSize = 0; // ignore troublesome non-ImageJ 16-bit LUTs
+	}
+
+	/** Closes the file opened by getIFDOffsets() or getTiffInfo(long). */
+	public void close() throws IOException {
+		if (in!=null)
+			in.close();
+		in = null;
+	}
+
 	String getGapInfo(FileInfo[] fi) {
 		if (fi.length<2) return "0";
 		long minGap = Long.MAX_VALUE;
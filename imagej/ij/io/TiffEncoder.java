@@ -1,12 +1,22 @@
 package ij.io;
 import java.io.*;
 
-/**Saves an image described by a FileInfo object as an uncompressed TIFF file.*/
+/**Saves an image described by a FileInfo object as a TIFF file. The image is
+	uncompressed unless fi.compression is FileInfo.LZW, PACK_BITS or ZIP (or LZW or
+	ZIP with differencing, which adds the horizontal predictor) and the image is
+	8-bit, 16-bit, 32-bit or RGB. Compressed images are divided into strips of about
+	STRIP_SIZE bytes, which are compressed in parallel by the ImageWriter.
+	Files that would be larger than 4GB are saved as BigTIFFs (version 43, with 64-bit
+	offsets); since the compressed size is not known in advance, compressed stacks
+	are saved as BigTIFFs if their uncompressed size is BIG_TIFF_COMPRESSED_SIZE or more.*/
 public class TiffEncoder {
 	static final int HDR_SIZE = 8;
+	static final int BIG_TIFF_HDR_SIZE = 16;
+	static final long BIG_TIFF_COMPRESSED_SIZE = 1L<<31;
 	static final int MAP_SIZE = 768; // in 16-bit words
 	static final int BPS_DATA_SIZE = 6;
 	static final int SCALE_DATA_SIZE = 16;
+	static final int STRIP_SIZE = 65536; // uncompressed bytes per strip of compressed images
 		
 	private FileInfo fi;
 	private int bitsPerSample;
@@ -27,6 +37,12 @@ public class TiffEncoder {
 	private boolean littleEndian = ij.Prefs.intelByteOrder;
 	private byte buffer[] = new byte[8];
 	private int colorMapSize = 0;
+	private int compression = 1; // value of the Compression tag
+	private boolean predictor;
+	private int rowsPerStrip, nStrips;
+	private int stripDataSize; // StripOffsets and StripByteCounts arrays of compressed images
+	private boolean bigTiff;
+	private int bpsSize, descriptionSize, metaDataCountsSize; // 0 if the data is in the IFD entry
 
 		
 	public TiffEncoder (FileInfo fi) {
@@ -36,7 +52,6 @@ public class TiffEncoder {
 		samplesPerPixel = 1;
 		nEntries = 10;
 		int bytesPerPixel = 1;
-		int bpsSize = 0;
 
 		switch (fi.fileType) {
 			case FileInfo.GRAY8:
@@ -87,6 +102,11 @@ public class TiffEncoder {
 			nEntries += 3; // XResolution, YResolution and ResolutionUnit
 		if (fi.fileType==fi.GRAY32_FLOAT)
 			nEntries++; // SampleFormat tag
+		rowsPerStrip = fi.height;
+		nStrips = 1;
+		setCompression(bytesPerPixel);
+		if (predictor)
+			nEntries++; // Predictor tag
 		makeDescriptionString();
 		if (description!=null)
 			nEntries++;  // ImageDescription tag
@@ -96,43 +116,104 @@ public class TiffEncoder {
 		metaDataSize = getMetaDataSize();
 		if (metaDataSize>0)
 			nEntries += 2; // MetaData & MetaDataCounts
-		ifdSize = 2 + nEntries*12 + 4;
-		int descriptionSize = description!=null?description.length:0;
+		descriptionSize = description!=null?description.length:0;
 		scaleSize = fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0?SCALE_DATA_SIZE:0;
-		imageOffset = HDR_SIZE+ifdSize+bpsSize+descriptionSize+scaleSize+colorMapSize + nMetaDataEntries*4 + metaDataSize;
+		metaDataCountsSize = metaDataSize>0?nMetaDataEntries*4:0;
+		setImageOffset();
+		if (fi.compression>FileInfo.COMPRESSION_NONE)
+			bigTiff = stackSize+(long)fi.nImages*(ifdSize+stripDataSize)>=BIG_TIFF_COMPRESSED_SIZE;
+		else
+			bigTiff = imageOffset+stackSize+(long)fi.nImages*ifdSize>=0xffffffffL;
+		if (bigTiff) {
+			if (stripDataSize>0)
+				stripDataSize = nStrips*16;  // LONG8 offsets and byte counts
+			if (bpsSize<=8) bpsSize = 0;
+			if (descriptionSize<=8) descriptionSize = 0;
+			scaleSize = 0;  // the rationals fit in the XResolution and YResolution entries
+			if (metaDataCountsSize<=8) metaDataCountsSize = 0;
+			setImageOffset();
+		}
 		fi.offset = (int)imageOffset;
-		//ij.IJ.log(imageOffset+", "+ifdSize+", "+bpsSize+", "+descriptionSize+", "+scaleSize+", "+colorMapSize+", "+nMetaDataEntries*4+", "+metaDataSize);
+		if (imageOffset>0xffffffffL)
+			fi.longOffset = imageOffset;
+		//ij.IJ.log(imageOffset+", "+ifdSize+", "+bpsSize+", "+descriptionSize+", "+scaleSize+", "+colorMapSize+", "+metaDataCountsSize+", "+metaDataSize);
+	}
+
+	/** Sets the IFD size and the offset of the first image, which follows the header,
+		the first IFD and the tag data that does not fit in its entries. */
+	private void setImageOffset() {
+		if (bigTiff)
+			ifdSize = 8 + nEntries*20 + 8;
+		else
+			ifdSize = 2 + nEntries*12 + 4;
+		imageOffset = getHeaderSize()+ifdSize+bpsSize+descriptionSize+scaleSize+colorMapSize + metaDataCountsSize + metaDataSize + stripDataSize;
+	}
+
+	private int getHeaderSize() {
+		return bigTiff?BIG_TIFF_HDR_SIZE:HDR_SIZE;
+	}
+
+	/** Returns 'true' if the file is saved as a BigTIFF. */
+	public boolean isBigTiff() {
+		return bigTiff;
 	}
 	
+	/** Sets the Compression tag, the predictor and the strips from fi.compression. */
+	private void setCompression(int bytesPerPixel) {
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY32_FLOAT: case FileInfo.RGB:
+				break;
+			default:
+				fi.compression = FileInfo.COMPRESSION_NONE;
+		}
+		if (fi.fileType==FileInfo.GRAY32_FLOAT) {  // ImageReader only supports integer differencing
+			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
+				fi.compression = FileInfo.LZW;
+			else if (fi.compression==FileInfo.ZIP_WITH_DIFFERENCING)
+				fi.compression = FileInfo.ZIP;
+		}
+		switch (fi.compression) {
+			case FileInfo.LZW: case FileInfo.LZW_WITH_DIFFERENCING:
+				compression = 5;
+				break;
+			case FileInfo.ZIP: case FileInfo.ZIP_WITH_DIFFERENCING:
+				compression = 8;  // Adobe Deflate
+				break;
+			case FileInfo.PACK_BITS:
+				compression = 32773;
+				break;
+			default:
+				fi.compression = FileInfo.COMPRESSION_NONE;
+				return;
+		}
+		predictor = fi.compression==FileInfo.LZW_WITH_DIFFERENCING || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING;
+		rowsPerStrip = (int)Math.max(1, Math.min(fi.height, STRIP_SIZE/((long)fi.width*bytesPerPixel)));
+		nStrips = (fi.height+rowsPerStrip-1)/rowsPerStrip;
+		stripDataSize = nStrips>1 ? nStrips*8 : 0;
+	}
+
 	/** Saves the image as a TIFF file. The OutputStream is not closed.
 		The fi.pixels field must contain the image data. If fi.nImages>1
 		then fi.pixels must be a 2D array. The fi.offset field is ignored. */
 	public void write(OutputStream out) throws IOException {
+		if (fi.compression>FileInfo.COMPRESSION_NONE) {
+			writeCompressed(out);
+			return;
+		}
 		writeHeader(out);
 		long nextIFD = 0L;
 		if (fi.nImages>1)
 			nextIFD = imageOffset+stackSize;
-		boolean bigTiff = nextIFD+fi.nImages*ifdSize>=0xffffffffL;
-		if (bigTiff)
-			nextIFD = 0L;
-		writeIFD(out, (int)imageOffset, (int)nextIFD);
-		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48)
-			writeBitsPerPixel(out);
-		if (description!=null)
-			writeDescription(out);
-		if (scaleSize>0)
-			writeScale(out);
-		if (colorMapSize>0)
-			writeColorMap(out);
-		if (metaDataSize>0)
-			writeMetaData(out);
+		writeIFD(out, imageOffset, nextIFD);
+		writeTagData(out);
 		new ImageWriter(fi).write(out);
 		if (nextIFD>0L) {
 			int ifdSize2 = ifdSize;
 			if (metaDataSize>0) {
 				metaDataSize = 0;
 				nEntries -= 2;
-				ifdSize2 -= 2*12;
+				ifdSize2 -= 2*getEntrySize();
 			}
 			for (int i=2; i<=fi.nImages; i++) {
 				if (i==fi.nImages)
@@ -140,16 +221,82 @@ public class TiffEncoder {
 				else
 					nextIFD += ifdSize2;
 				imageOffset += imageSize;
-				writeIFD(out, (int)imageOffset, (int)nextIFD);
+				writeIFD(out, imageOffset, nextIFD);
 			}
-		} else if (bigTiff)
-				ij.IJ.log("Stack is larger than 4GB. Most TIFF readers will only open the first image. Use this information to open as raw:\n"+fi);
+		}
 	}
 	
 	public void write(DataOutputStream out) throws IOException {
 		write((OutputStream)out);
 	}
 
+	/** Writes a compressed image or stack. Each image is compressed just before
+		it is written; the IFDs of the second and following images precede their
+		strips, so that the file can be written in one pass. */
+	private void writeCompressed(OutputStream out) throws IOException {
+		ImageWriter writer = new ImageWriter(fi);
+		int ifdSize2 = ifdSize + stripDataSize;  // IFD and strip arrays of the following images
+		if (metaDataSize>0)
+			ifdSize2 -= 2*getEntrySize();
+		long position = 0L;
+		for (int i=1; i<=fi.nImages; i++) {
+			if (fi.nImages>1)
+				ImageWriter.showStatus(out, i, fi.nImages);
+			byte[][] strips = writer.compressImage(i, rowsPerStrip);
+			long stripData, dataOffset;
+			if (i==1) {
+				stripData = imageOffset - stripDataSize;
+				dataOffset = imageOffset;
+			} else {
+				stripData = position + ifdSize2 - stripDataSize;
+				dataOffset = position + ifdSize2;
+			}
+			long[] offsets = new long[nStrips];
+			int[] counts = new int[nStrips];
+			long end = dataOffset;
+			for (int s=0; s<nStrips; s++) {
+				offsets[s] = end;
+				counts[s] = strips[s].length;
+				end += strips[s].length;
+			}
+			int pad = (int)(end&1);  // IFDs start on a word boundary
+			long nextIFD = i<fi.nImages ? end+pad : 0L;
+			if (!bigTiff && end+pad+ifdSize2>=0xffffffffL)
+				throw new IOException("Compressed TIFF is larger than 4GB; stacks of less than "+(BIG_TIFF_COMPRESSED_SIZE>>20)+"MB are not saved as BigTIFFs");
+			if (i==1) {
+				writeHeader(out);
+				writeIFD(out, offsets, counts, stripData, nextIFD);
+				writeTagData(out);
+				if (metaDataSize>0) {
+					metaDataSize = 0;  // only in the first IFD
+					nEntries -= 2;
+				}
+			} else
+				writeIFD(out, offsets, counts, stripData, nextIFD);
+			if (stripDataSize>0) {
+				for (int s=0; s<nStrips; s++) {
+					if (bigTiff)
+						writeLong(out, offsets[s]);
+					else
+						writeInt(out, (int)offsets[s]);
+				}
+				for (int s=0; s<nStrips; s++) {
+					if (bigTiff)
+						writeLong(out, counts[s]&0xffffffffL);
+					else
+						writeInt(out, counts[s]);
+				}
+			}
+			for (int s=0; s<nStrips; s++)
+				out.write(strips[s]);
+			if (pad>0 && nextIFD>0L)
+				out.write(0);
+			position = nextIFD;
+			if (fi.nImages>1)
+				ij.IJ.showProgress(i, fi.nImages);
+		}
+	}
+
 	int getMetaDataSize() {
 		nSliceLabels = 0;
 		nMetaDataEntries = 0;
@@ -240,8 +387,17 @@ public class TiffEncoder {
 		return size;
 	}
 	
-	/** Writes the 8-byte image file header. */
+	/** Writes the 8-byte image file header, or the 16-byte BigTIFF header. */
 	void writeHeader(OutputStream out) throws IOException {
+		if (bigTiff) {
+			out.write(littleEndian?73:77); // "II" or "MM"
+			out.write(littleEndian?73:77);
+			writeShort(out, 43);  // 43 (BigTIFF magic number)
+			writeShort(out, 8);   // size of offsets
+			writeShort(out, 0);
+			writeLong(out, BIG_TIFF_HDR_SIZE);  // offset to first IFD
+			return;
+		}
 		byte[] hdr = new byte[8];
 		if (littleEndian) {
 			hdr[0] = 73; // "II" (Intel byte order)
@@ -265,44 +421,100 @@ public class TiffEncoder {
 		out.write(hdr);
 	}
 	
-	/** Writes one 12-byte IFD entry. */
-	void writeEntry(OutputStream out, int tag, int fieldType, int count, int value) throws IOException {
+	/** Writes one 12-byte IFD entry, or a 20-byte BigTIFF entry. */
+	void writeEntry(OutputStream out, int tag, int fieldType, int count, long value) throws IOException {
 		writeShort(out, tag);
 		writeShort(out, fieldType);
+		if (bigTiff) {
+			writeLong(out, count);
+			if (count==1 && fieldType==TiffDecoder.SHORT) {
+				writeShort(out, (int)value);
+				writeShort(out, 0);
+				writeInt(out, 0);
+			} else if (count==1 && fieldType==TiffDecoder.LONG) {
+				writeInt(out, (int)value);
+				writeInt(out, 0);
+			} else
+				writeLong(out, value); // may be an offset
+			return;
+		}
 		writeInt(out, count);
 		if (count==1 && fieldType==TiffDecoder.SHORT) {
-			writeShort(out, value);
+			writeShort(out, (int)value);
 			writeShort(out, 0);
 		} else
-			writeInt(out, value); // may be an offset
+			writeInt(out, (int)value); // may be an offset
+	}
+
+	/** Writes a BigTIFF IFD entry whose data (up to 8 bytes) is in the entry itself. */
+	void writeEntry(OutputStream out, int tag, int fieldType, int count, byte[] data, int offset, int length) throws IOException {
+		writeShort(out, tag);
+		writeShort(out, fieldType);
+		writeLong(out, count);
+		out.write(data, offset, length);
+		for (int i=length; i<8; i++)
+			out.write(0);
+	}
+
+	private int getEntrySize() {
+		return bigTiff?20:12;
 	}
 	
 	/** Writes one IFD (Image File Directory). */
-	void writeIFD(OutputStream out, int imageOffset, int nextIFD) throws IOException {	
-		int tagDataOffset = HDR_SIZE + ifdSize;
-		writeShort(out, nEntries);
+	void writeIFD(OutputStream out, long imageOffset, long nextIFD) throws IOException {	
+		writeIFD(out, new long[] {imageOffset}, new int[] {imageSize}, 0L, nextIFD);
+	}
+
+	/** Writes one IFD for an image stored in the specified strips. With more than one
+		strip, the StripOffsets and StripByteCounts arrays are at 'stripData'. */
+	void writeIFD(OutputStream out, long[] stripOffsets, int[] stripByteCounts, long stripData, long nextIFD) throws IOException {
+		long tagDataOffset = getHeaderSize() + ifdSize;
+		ByteArrayOutputStream data = new ByteArrayOutputStream(SCALE_DATA_SIZE);  // for BigTIFF entries with the data inline
+		if (bigTiff)
+			writeLong(out, nEntries);
+		else
+			writeShort(out, nEntries);
 		writeEntry(out, TiffDecoder.NEW_SUBFILE_TYPE, 4, 1, 0);
 		writeEntry(out, TiffDecoder.IMAGE_WIDTH, 4, 1, fi.width);
 		writeEntry(out, TiffDecoder.IMAGE_LENGTH, 4, 1, fi.height);
 		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48) {
-			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 3, tagDataOffset);
-			tagDataOffset += BPS_DATA_SIZE;
+			if (bpsSize>0) {
+				writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 3, tagDataOffset);
+				tagDataOffset += BPS_DATA_SIZE;
+			} else {
+				data.reset();
+				writeBitsPerPixel(data);
+				writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 3, data.toByteArray(), 0, BPS_DATA_SIZE);
+			}
 		} else
 			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 1, bitsPerSample);
-		writeEntry(out, TiffDecoder.COMPRESSION,  3, 1, 1);	//No Compression
+		writeEntry(out, TiffDecoder.COMPRESSION,  3, 1, compression);
 		writeEntry(out, TiffDecoder.PHOTO_INTERP, 3, 1, photoInterp);
 		if (description!=null) {
-			writeEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, tagDataOffset);
-			tagDataOffset += description.length;
-		}
-		writeEntry(out, TiffDecoder.STRIP_OFFSETS,    4, 1, imageOffset);
+			if (descriptionSize>0) {
+				writeEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, tagDataOffset);
+				tagDataOffset += description.length;
+			} else
+				writeEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, description, 0, description.length);
+		}
+		int n = stripOffsets.length;
+		int offsetType = bigTiff?TiffDecoder.LONG8:TiffDecoder.LONG;
+		writeEntry(out, TiffDecoder.STRIP_OFFSETS,    offsetType, n, n>1?stripData:stripOffsets[0]);
 		writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
-		writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   4, 1, fi.height);
-		writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, 1, imageSize);
+		writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   4, 1, rowsPerStrip);
+		writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, offsetType, n, n>1?stripData+stripDataSize/2:stripByteCounts[0]&0xffffffffL);
 		if (fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0) {
-			writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, tagDataOffset);
-			writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, tagDataOffset+8);
-			tagDataOffset += SCALE_DATA_SIZE;
+			if (scaleSize>0) {
+				writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, tagDataOffset);
+				writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, tagDataOffset+8);
+				tagDataOffset += SCALE_DATA_SIZE;
+			} else {
+				data.reset();
+				writeScale(data);
+				byte[] scale = data.toByteArray();
+				writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, scale, 0, 8);
+				writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, scale, 8, 8);
+			}
 			int unit = 1;
 			if (fi.unit.equals("inch"))
 				unit = 2;
@@ -310,6 +522,8 @@ public class TiffEncoder {
 				unit = 3;
 			writeEntry(out, TiffDecoder.RESOLUTION_UNIT, 3, 1, unit);
 		}
+		if (predictor)
+			writeEntry(out, TiffDecoder.PREDICTOR, 3, 1, 2); // horizontal differencing
 		if (fi.fileType==fi.GRAY32_FLOAT) {
 			int format = TiffDecoder.FLOATING_POINT;
 			writeEntry(out, TiffDecoder.SAMPLE_FORMAT, 3, 1, format);
@@ -319,11 +533,35 @@ public class TiffEncoder {
 			tagDataOffset += MAP_SIZE*2;
 		}
 		if (metaDataSize>0) {
-			writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, tagDataOffset);
-			writeEntry(out, TiffDecoder.META_DATA, 1, metaDataSize, tagDataOffset+4*nMetaDataEntries);
-			tagDataOffset += nMetaDataEntries*4 + metaDataSize;
+			if (metaDataCountsSize>0) {
+				writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, tagDataOffset);
+				tagDataOffset += metaDataCountsSize;
+			} else {
+				data.reset();
+				writeMetaDataCounts(data);
+				writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, data.toByteArray(), 0, data.size());
+			}
+			writeEntry(out, TiffDecoder.META_DATA, 1, metaDataSize, tagDataOffset);
+			tagDataOffset += metaDataSize;
 		}
-		writeInt(out, nextIFD);
+		if (bigTiff)
+			writeLong(out, nextIFD);
+		else
+			writeInt(out, (int)nextIFD);
+	}
+
+	/** Writes the data of the first IFD that does not fit in its entries. */
+	void writeTagData(OutputStream out) throws IOException {
+		if (bpsSize>0)
+			writeBitsPerPixel(out);
+		if (descriptionSize>0)
+			writeDescription(out);
+		if (scaleSize>0)
+			writeScale(out);
+		if (colorMapSize>0)
+			writeColorMap(out);
+		if (metaDataSize>0)
+			writeMetaData(out);
 	}
 	
 	/** Writes the 6 bytes of data required by RGB BitsPerSample tag. */
@@ -369,37 +607,8 @@ public class TiffEncoder {
 		stack slice labels, channel display ranges, luts, ROIs,
 		overlays, properties and extra metadata). */
 	void writeMetaData(OutputStream out) throws IOException {
-	
-		// write byte counts (META_DATA_BYTE_COUNTS tag)
-		writeInt(out, 4+nMetaDataTypes*8); // header size	
-		if (fi.info!=null && fi.info.length()>0)
-			writeInt(out, fi.info.length()*2);
-		for (int i=0; i<nSliceLabels; i++) {
-			if (fi.sliceLabels[i]==null)
-				writeInt(out, 0);
-			else
-				writeInt(out, fi.sliceLabels[i].length()*2);
-		}
-		if (fi.displayRanges!=null)
-			writeInt(out, fi.displayRanges.length*8);
-		if (fi.channelLuts!=null) {
-			for (int i=0; i<fi.channelLuts.length; i++)
-				writeInt(out, fi.channelLuts[i].length);
-		}
-		if (fi.plot!=null)
-			writeInt(out, fi.plot.length);
-		if (fi.roi!=null)
-			writeInt(out, fi.roi.length);
-		if (fi.overlay!=null) {
-			for (int i=0; i<fi.overlay.length; i++)
-				writeInt(out, fi.overlay[i].length);
-		}
-		if (fi.properties!=null) {
-			for (int i=0; i<fi.properties.length; i++)
-				writeInt(out, fi.properties[i].length()*2);
-		}
-		for (int i=0; i<extraMetaDataEntries; i++)
-			writeInt(out, fi.metaData[i].length);	
+		if (metaDataCountsSize>0)
+			writeMetaDataCounts(out);
 		
 		// write header (META_DATA tag header)
 		writeInt(out, TiffDecoder.MAGIC_NUMBER); // "IJIJ"
@@ -471,6 +680,39 @@ public class TiffEncoder {
 			out.write(fi.metaData[i]); 					
 	}
 
+	/** Writes the byte counts of the metadata (META_DATA_BYTE_COUNTS tag). */
+	void writeMetaDataCounts(OutputStream out) throws IOException {
+		writeInt(out, 4+nMetaDataTypes*8); // header size	
+		if (fi.info!=null && fi.info.length()>0)
+			writeInt(out, fi.info.length()*2);
+		for (int i=0; i<nSliceLabels; i++) {
+			if (fi.sliceLabels[i]==null)
+				writeInt(out, 0);
+			else
+				writeInt(out, fi.sliceLabels[i].length()*2);
+		}
+		if (fi.displayRanges!=null)
+			writeInt(out, fi.displayRanges.length*8);
+		if (fi.channelLuts!=null) {
+			for (int i=0; i<fi.channelLuts.length; i++)
+				writeInt(out, fi.channelLuts[i].length);
+		}
+		if (fi.plot!=null)
+			writeInt(out, fi.plot.length);
+		if (fi.roi!=null)
+			writeInt(out, fi.roi.length);
+		if (fi.overlay!=null) {
+			for (int i=0; i<fi.overlay.length; i++)
+				writeInt(out, fi.overlay[i].length);
+		}
+		if (fi.properties!=null) {
+			for (int i=0; i<fi.properties.length; i++)
+				writeInt(out, fi.properties[i].length()*2);
+		}
+		for (int i=0; i<extraMetaDataEntries; i++)
+			writeInt(out, fi.metaData[i].length);
+	}
+
 	/** Creates an optional image description string for saving calibration data.
 		For stacks, also saves the stack size so ImageJ can open the stack without
 		decoding an IFD for each slice.*/
@@ -0,0 +1,281 @@
+package ij.io;
+import ij.IJ;
+import java.io.*;
+
+/** The IFDs (images) of a multi-page TIFF file, decoded on demand. Creating
+	a TiffIndex only follows the chain of next-IFD offsets and decodes the first
+	IFD, so that the first image can be displayed at once; the other IFDs are
+	decoded by getInfo() when their image is read, and by a background thread
+	started with indexInBackground(). Once all the IFDs have been decoded, the
+	strip offsets and byte counts of the images are saved in a small index
+	file next to the TIFF (see getIndexPath), so that the IFDs do not have to
+	be read when the file is opened again. The index file is only saved for
+	files with at least MIN_IMAGES images that all have the size, type and
+	compression of the first one, and it is ignored if the TIFF file has been
+	modified since it was saved.
+	@see ij.plugin.FileInfoVirtualStack
+*/
+public class TiffIndex implements Closeable {
+	/** Minimum number of images of the files for which an index file is saved. */
+	public static final int MIN_IMAGES = 500;
+	private static final int MAGIC_NUMBER = 0x494a5458;  // "IJTX"
+	private static final int VERSION = 1;
+
+	private final String directory, name;
+	private final TiffDecoder decoder;
+	private long[] ifdOffsets;
+	private FileInfo[] info;  // null for the IFDs not decoded yet
+	private long[] offsets;  // image offsets read from the index file, or null
+	private long[][] stripOffsets;
+	private int[][] stripLengths;
+	private int nDecoded;
+	private boolean uniform = true;
+	private Thread indexer;
+	private boolean closed;
+	private boolean decoderClosed;  // guarded by 'decoder'; close it again after reading an IFD
+
+	/** Opens the TIFF file with the specified directory and name. The offsets of
+		the IFDs are read from the index file if it is up to date, otherwise the
+		chain of IFDs is followed. Throws an IOException if the file cannot be
+		read or is not a TIFF. */
+	public TiffIndex(String directory, String name) throws IOException {
+		this.directory = IJ.addSeparator(directory);
+		this.name = name;
+		decoder = new TiffDecoder(this.directory, name);
+		if (!readIndex()) {
+			ifdOffsets = decoder.getIFDOffsets();
+			if (ifdOffsets==null || ifdOffsets.length==0)
+				throw new IOException("Not a TIFF file: "+name);
+		}
+		info = new FileInfo[ifdOffsets.length];
+		FileInfo fi = decoder.getTiffInfo(ifdOffsets[0]);
+		if (fi==null)
+			throw new IOException("No image in the first IFD of "+name);
+		info[0] = fi;
+		nDecoded = 1;
+		if (offsets!=null) {
+			nDecoded = info.length;  // the other images are created from the index file
+			decoder.close();
+		}
+	}
+
+	/** Returns the number of IFDs. */
+	public int size() {
+		return ifdOffsets.length;
+	}
+
+	/** Returns the FileInfo of image 'n' ({@literal 0<=n<size()}), decoding
+		its IFD if this has not been done yet. Returns null if the IFD does
+		not describe an image or cannot be read. */
+	public FileInfo getInfo(int n) {
+		synchronized(this) {
+			if (info[n]!=null)
+				return info[n];
+			if (offsets!=null) {
+				info[n] = createInfo(n);
+				return info[n];
+			}
+		}
+		FileInfo fi = null;
+		synchronized(decoder) {
+			try {
+				fi = decoder.getTiffInfo(ifdOffsets[n]);
+			} catch (IOException e) {
+				if (IJ.debugMode) IJ.log("TiffIndex: "+name+", IFD "+(n+1)+": "+e);
+			}
+			if (decoderClosed)
+				try {decoder.close();} catch (IOException e) {}
+		}
+		boolean complete;
+		synchronized(this) {
+			if (info[n]!=null)
+				return info[n];
+			info[n] = fi;
+			nDecoded++;
+			if (fi==null || !isUniform(fi))
+				uniform = false;
+			complete = nDecoded==info.length;
+		}
+		if (complete && info.length>=MIN_IMAGES)
+			writeIndex();
+		return fi;
+	}
+
+	/** Returns 'true' if all the IFDs have been decoded or read from the index file. */
+	public synchronized boolean isComplete() {
+		return nDecoded==info.length;
+	}
+
+	/** Decodes the IFDs that have not been decoded yet in a background
+		thread, which then saves the index file. Does nothing if all the
+		IFDs are known. */
+	public synchronized void indexInBackground() {
+		if (indexer!=null || nDecoded==info.length)
+			return;
+		indexer = new Thread(new Runnable() {
+			public void run() {
+				for (int n=1; n<info.length && !isClosed(); n++)
+					getInfo(n);
+				try {
+					closeDecoder();
+				} catch (IOException e) {}
+			}
+		}, "TiffIndex-"+name);
+		indexer.setDaemon(true);
+		indexer.setPriority(Thread.NORM_PRIORITY-1);
+		indexer.start();
+	}
+
+	private synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/** Stops the background thread and closes the file. Images can still be
+		read; the file is opened again while an IFD has to be decoded. */
+	public void close() throws IOException {
+		Thread thread;
+		synchronized(this) {
+			closed = true;
+			thread = indexer;
+		}
+		if (thread!=null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		closeDecoder();
+	}
+
+	/** Closes the file; it is opened only temporarily for the IFDs decoded later on. */
+	private void closeDecoder() throws IOException {
+		synchronized(decoder) {
+			decoderClosed = true;
+			decoder.close();
+		}
+	}
+
+	/** Returns the path of the index file of the specified TIFF file, a hidden
+		file in the same directory, such as ".stack.tif.index" for "stack.tif". */
+	public static String getIndexPath(String directory, String name) {
+		return IJ.addSeparator(directory)+"."+name+".index";
+	}
+
+	/** The images of the index file have the properties of the first one. */
+	private boolean isUniform(FileInfo fi) {
+		FileInfo fi0 = info[0];
+		return fi.width==fi0.width && fi.height==fi0.height && fi.fileType==fi0.fileType
+			&& fi.compression==fi0.compression && fi.intelByteOrder==fi0.intelByteOrder
+			&& fi.samplesPerPixel==fi0.samplesPerPixel && fi.rowsPerStrip==fi0.rowsPerStrip
+			&& fi.tileWidth==fi0.tileWidth && fi.tileHeight==fi0.tileHeight
+			&& fi.whiteIsZero==fi0.whiteIsZero && fi.lutSize==fi0.lutSize
+			&& fi.stripOffsets!=null && fi.stripLengths!=null
+			&& fi.stripOffsets.length==fi.stripLengths.length;
+	}
+
+	/** Creates the FileInfo of image 'n' from the index file. */
+	private FileInfo createInfo(int n) {
+		FileInfo fi = (FileInfo)info[0].clone();
+		fi.nImages = 1;
+		fi.offset = 0;
+		fi.longOffset = offsets[n];
+		long[] longOffsets = stripOffsets[n];
+		fi.stripOffsets = new int[longOffsets.length];
+		fi.longStripOffsets = null;
+		for (int i=0; i<longOffsets.length; i++) {
+			fi.stripOffsets[i] = (int)longOffsets[i];
+			if (longOffsets[i]>0xffffffffL)
+				fi.longStripOffsets = longOffsets;
+		}
+		fi.stripLengths = stripLengths[n];
+		return fi;
+	}
+
+	/** Reads the index file, if it exists and the TIFF file has not been modified since it was saved. */
+	private boolean readIndex() {
+		File file = new File(directory+name);
+		File indexFile = new File(getIndexPath(directory, name));
+		if (!indexFile.isFile() || indexFile.lastModified()<file.lastModified())
+			return false;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			if (in.readInt()!=MAGIC_NUMBER || in.readInt()!=VERSION
+			|| in.readLong()!=file.length() || in.readLong()!=file.lastModified())
+				return false;
+			int n = in.readInt();
+			if (n<1)
+				return false;
+			long[] ifdOffsets = new long[n];
+			long[] offsets = new long[n];
+			long[][] stripOffsets = new long[n][];
+			int[][] stripLengths = new int[n][];
+			for (int i=0; i<n; i++) {
+				ifdOffsets[i] = in.readLong();
+				offsets[i] = in.readLong();
+				int nStrips = in.readInt();
+				stripOffsets[i] = new long[nStrips];
+				stripLengths[i] = new int[nStrips];
+				for (int s=0; s<nStrips; s++)
+					stripOffsets[i][s] = in.readLong();
+				for (int s=0; s<nStrips; s++)
+					stripLengths[i][s] = in.readInt();
+			}
+			this.ifdOffsets = ifdOffsets;
+			this.offsets = offsets;
+			this.stripOffsets = stripOffsets;
+			this.stripLengths = stripLengths;
+			return true;
+		} catch (Exception e) {  // IOException, or a corrupted index file
+			if (IJ.debugMode) IJ.log("TiffIndex: "+indexFile+": "+e);
+			return false;
+		} finally {
+			if (in!=null)
+				try {in.close();} catch (IOException e) {}
+		}
+	}
+
+	/** Saves the index file if all the images are like the first one. Errors are
+		ignored, since the index file only makes opening the TIFF file faster. */
+	private void writeIndex() {
+		FileInfo[] info;
+		synchronized(this) {
+			if (!uniform || offsets!=null)
+				return;
+			info = (FileInfo[])this.info.clone();
+		}
+		File file = new File(directory+name);
+		File indexFile = new File(getIndexPath(directory, name));
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+			out.writeInt(MAGIC_NUMBER);
+			out.writeInt(VERSION);
+			out.writeLong(file.length());
+			out.writeLong(file.lastModified());
+			out.writeInt(info.length);
+			for (int i=0; i<info.length; i++) {
+				FileInfo fi = info[i];
+				out.writeLong(ifdOffsets[i]);
+				out.writeLong(fi.getOffset());
+				int nStrips = fi.stripOffsets.length;
+				out.writeInt(nStrips);
+				for (int s=0; s<nStrips; s++)
+					out.writeLong(fi.getStripOffset(s));
+				for (int s=0; s<nStrips; s++)
+					out.writeInt(fi.stripLengths[s]);
+			}
+			out.close();
+			out = null;
+			if (IJ.debugMode) IJ.log("TiffIndex: saved "+indexFile);
+		} catch (IOException e) {  // for example, a read-only directory
+			if (IJ.debugMode) IJ.log("TiffIndex: "+indexFile+": "+e);
+			if (out!=null) {
+				try {out.close();} catch (IOException e2) {}
+				indexFile.delete();
+			}
+		}
+	}
+
+}
@@ -245,13 +245,18 @@ public class Duplicator implements PlugIn, TextListener, ItemListener {
 				IJ.showStatus("Duplicating: "+i+"/"+n);
 				IJ.showProgress(i,n);
 			}
-			ImageProcessor ip2 = stack.getProcessor(i);
-			if (ip2==null) { // work around for Fiji Import>Movie (FFMPEG) bug
-				imp.setSlice(i);
-				ip2 = imp.getProcessor();
+			ImageProcessor ip2 = null;
+			if (rect!=null && stack instanceof VirtualStack)
+				ip2 = ((VirtualStack)stack).getProcessor(i, rect); // reads only the selected part
+			if (ip2==null) {
+				ip2 = stack.getProcessor(i);
+				if (ip2==null) { // work around for Fiji Import>Movie (FFMPEG) bug
+					imp.setSlice(i);
+					ip2 = imp.getProcessor();
+				}
+				ip2.setRoi(rect);
+				ip2 = ip2.crop();
 			}
-			ip2.setRoi(rect);
-			ip2 = ip2.crop();
 			if (stack2==null)
 				stack2 = new ImageStack(ip2.getWidth(), ip2.getHeight(), imp.getProcessor().getColorModel());
 			stack2.addSlice(stack.getSliceLabel(i), ip2);
@@ -362,9 +367,14 @@ public class Duplicator implements PlugIn, TextListener, ItemListener {
 				IJ.showStatus("Duplicating: "+i+"/"+lastSlice);
 				IJ.showProgress(i-firstSlice,n);
 			}
-			ImageProcessor ip2 = stack.getProcessor(i);
-			ip2.setRoi(rect);
-			ip2 = ip2.crop();
+			ImageProcessor ip2;
+			if (rect!=null && stack instanceof VirtualStack)
+				ip2 = ((VirtualStack)stack).getProcessor(i, rect); // reads only the selected part
+			else {
+				ip2 = stack.getProcessor(i);
+				ip2.setRoi(rect);
+				ip2 = ip2.crop();
+			}
 			if (stack2==null)
 				stack2 = new ImageStack(ip2.getWidth(), ip2.getHeight(), imp.getProcessor().getColorModel());
 			stack2.addSlice(stack.getSliceLabel(i), ip2);
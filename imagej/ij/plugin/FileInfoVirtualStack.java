@@ -4,6 +4,7 @@ import ij.process.*;
 import ij.gui.*;
 import ij.io.*;
 import java.awt.*;
+import java.awt.image.ColorModel;
 import java.io.*;
 import java.util.Properties;
 
@@ -12,6 +13,8 @@ import java.util.Properties;
 public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 	private FileInfo[] info;
 	private int nImages;
+	private MappedImageReader mappedReader;  // keeps the file open and mapped between slices
+	private TiffIndex index;  // decodes the IFDs of multi-page TIFFs on demand; null entries of 'info' are not decoded yet
 	
 	/* Default constructor. */
 	public FileInfoVirtualStack() {}
@@ -75,6 +78,8 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 			IJ.error("Virtual Stack", "ZIP compressed stacks not supported");
 			return;
 		}
+		if (!IJ.debugMode && initIndex(dir, name))
+			return;
 		TiffDecoder td = new TiffDecoder(dir, name);
 		if (IJ.debugMode) td.enableDebugging();
 		IJ.showStatus("Decoding TIFF header...");
@@ -93,6 +98,42 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 		if (IJ.debugMode)
 			IJ.log(info[0].debugInfo);
 	}
+
+	/** Opens the file with a TiffIndex, which only decodes the first IFD and reads
+		the others when their images are needed, or in the background. Returns
+		false if the file has to be opened with TiffDecoder.getTiffInfo(). */
+	private boolean initIndex(String dir, String name) {
+		TiffIndex index;
+		try {
+			IJ.showStatus("Locating IFDs...");
+			index = new TiffIndex(dir, name);
+		} catch (IOException e) {
+			return false;
+		}
+		info = new FileInfo[index.size()];
+		info[0] = index.getInfo(0);
+		if (info.length==1) {  // single image, or ImageJ stack
+			try {
+				index.close();
+			} catch (IOException e) {}
+		} else {
+			this.index = index;
+			index.indexInBackground();
+		}
+		IJ.showStatus("");
+		return true;
+	}
+
+	/** Returns the FileInfo of image 'n', decoding its IFD if needed,
+		or null if the IFD does not describe an image. */
+	private FileInfo getInfo(int n) {
+		FileInfo fi = info[n-1];
+		if (fi==null && index!=null) {
+			fi = index.getInfo(n-1);
+			info[n-1] = fi;
+		}
+		return fi;
+	}
 		
 	private ImagePlus open() {
 		FileInfo fi = info[0];
@@ -186,23 +227,33 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 		if (n<1 || n>nImages)
 			throw new IllegalArgumentException("Argument out of range: "+n);
 		if (nImages<1) return;
+		if (index!=null) {  // the positions of the images in the index change
+			for (int i=1; i<=nImages; i++)
+				getInfo(i);
+			index = null;
+		}
 		for (int i=n; i<nImages; i++)
 			info[i-1] = info[i];
 		info[nImages-1] = null;
 		nImages--;
+		clearCache();
 	}
 	
-	/** Returns an ImageProcessor for the specified image,
-		where {@literal 1<=n<=nImages}. Returns null if the stack is empty.
+	/** Reads the specified image, where {@literal 1<=n<=nImages}.
+		getProcessor() returns a copy of it, kept in the slice cache.
 	*/
-	public ImageProcessor getProcessor(int n) {
+	protected ImageProcessor readProcessor(int n) {
 		n = translate(n);  // update n for hyperstacks not in default CZT order
 		if (n<1 || n>nImages)
 			throw new IllegalArgumentException("Argument out of range: "+n);
 		//if (n>1) IJ.log("  "+(info[n-1].getOffset()-info[n-2].getOffset()));
+		if (getInfo(n)==null)
+			return readError(n, "not an image");
 		info[n-1].nImages = 1; // why is this needed?
-		ImageProcessor ip = null;
-		if (IJ.debugMode) {
+		ImageProcessor ip = openMapped(info[n-1]);
+		if (ip!=null) {
+			if (IJ.debugMode) IJ.log("FileInfoVirtualStack: "+n+", offset="+info[n-1].getOffset()+" (mapped)");
+		} else if (IJ.debugMode) {
 			long t0 = System.currentTimeMillis();
 			FileOpener fo = new FileOpener(info[n-1]);
 			ip = fo.openProcessor();
@@ -222,19 +273,133 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 				ip.setCalibrationTable(cTable);
 			ip.setSliceNumber(n);
 			return ip;
-		} else {
-			int w=getWidth(), h=getHeight();
-			IJ.log("Read error or file not found ("+n+"): "+info[n-1].directory+info[n-1].fileName);
-			switch (getBitDepth()) {
-				case 8: return new ByteProcessor(w, h);
-				case 16: return new ShortProcessor(w, h);
-				case 24: return new ColorProcessor(w, h);
-				case 32: return new FloatProcessor(w, h);
-				default: return null;
+		} else
+			return readError(n, "Read error or file not found");
+	 }
+
+	/** Reads the specified image on a read-ahead thread of the SliceCache,
+		with MappedImageReader or FileOpener.readProcessor(), which do not
+		report errors; returns null if it cannot be read this way.
+	*/
+	protected ImageProcessor readProcessorInBackground(int n) {
+		n = translate(n);
+		if (n<1 || n>nImages || getInfo(n)==null || info[n-1].fileType==FileInfo.RGB48)
+			return null;
+		info[n-1].nImages = 1;
+		ImageProcessor ip = openMapped(info[n-1]);
+		if (ip==null) {
+			try {
+				ip = new FileOpener(info[n-1]).readProcessor();
+			} catch (IOException e) {
+				return null;
 			}
 		}
-	 }
+		if (ip==null)
+			return null;
+		if (cTable!=null)
+			ip.setCalibrationTable(cTable);
+		ip.setSliceNumber(n);
+		return ip;
+	}
+
+	/** Logs the error and returns a blank image. */
+	private ImageProcessor readError(int n, String msg) {
+		int w=getWidth(), h=getHeight();
+		FileInfo fi = info[n-1]!=null?info[n-1]:info[0];
+		IJ.log(msg+" ("+n+"): "+fi.directory+fi.fileName);
+		switch (getBitDepth()) {
+			case 8: return new ByteProcessor(w, h);
+			case 16: return new ShortProcessor(w, h);
+			case 24: return new ColorProcessor(w, h);
+			case 32: return new FloatProcessor(w, h);
+			default: return null;
+		}
+	}
  
+	/** Returns the part inside the rectangle 'r' of the specified image, reading
+		only the tiles, strips or rows that intersect 'r', unless the image is cached.
+		Used by Image>Crop and Image>Duplicate. */
+	public ImageProcessor getProcessor(int n, Rectangle r) {
+		SliceCache cache = getCache();
+		if (r==null || (cache!=null && cache.contains(n)))
+			return super.getProcessor(n, r);
+		int n2 = translate(n);
+		if (n2<1 || n2>nImages)
+			throw new IllegalArgumentException("Argument out of range: "+n);
+		FileInfo fi = getInfo(n2);
+		if (fi==null || fi.fileType==FileInfo.RGB48 || fi.fileType==FileInfo.RGB48_PLANAR)
+			return super.getProcessor(n, r);
+		fi.nImages = 1;
+		ImageProcessor ip = new FileOpener(fi).openProcessor(r);
+		if (ip==null)
+			return super.getProcessor(n, r);
+		if (cTable!=null)
+			ip.setCalibrationTable(cTable);
+		ip.setSliceNumber(n2);
+		return ip;
+	}
+
+	/** The images are read from files, so they are cached. */
+	protected boolean isFileBacked() {
+		return true;
+	}
+
+	/** Reads uncompressed images directly from the memory-mapped file, without
+		reopening it for every slice. Returns null if this is not possible, in
+		which case the image is read with a FileOpener. */
+	private ImageProcessor openMapped(FileInfo fi) {
+		if (!MappedImageReader.canRead(fi))
+			return null;
+		MappedImageReader reader;
+		synchronized(this) {
+			String path = fi.getFilePath();
+			if (mappedReader!=null && !mappedReader.getPath().equals(path)) {
+				try {
+					mappedReader.close();  // slices in several files: keep only one open
+				} catch (IOException e) {}
+				mappedReader = null;
+			}
+			if (mappedReader==null)
+				mappedReader = new MappedImageReader(path);
+			reader = mappedReader;
+		}
+		Object pixels;
+		try {
+			pixels = reader.readPixels(fi);
+		} catch (Throwable e) {  // IOException, or OutOfMemoryError if the address space is exhausted
+			if (IJ.debugMode) IJ.log("FileInfoVirtualStack: "+e);
+			return null;
+		}
+		if (pixels==null)
+			return null;
+		ColorModel cm = new FileOpener(fi).createColorModel(fi);
+		int w = fi.width, h = fi.height;
+		if (pixels instanceof byte[])
+			return new ByteProcessor(w, h, (byte[])pixels, cm);
+		else if (pixels instanceof short[])
+			return new ShortProcessor(w, h, (short[])pixels, cm);
+		else if (pixels instanceof float[])
+			return new FloatProcessor(w, h, (float[])pixels, cm);
+		else
+			return new ColorProcessor(w, h, (int[])pixels);
+	}
+
+	/** Closes the file kept open for reading uncompressed images.
+		It is opened again when the next slice is read. */
+	public synchronized void close() {
+		if (index!=null) {
+			try {
+				index.close();
+			} catch (IOException e) {}
+		}
+		if (mappedReader!=null) {
+			try {
+				mappedReader.close();
+			} catch (IOException e) {}
+			mappedReader = null;
+		}
+	}
+
 	/** Returns the number of slices in this stack. */
 	public int size() {
 		return getSize();
@@ -287,7 +452,7 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 	public String getFileName(int n) {
 		int index = n - 1;
 		if (index>=0 && info!=null && info.length>index)
-			return info[index].fileName;
+			return info[index]!=null?info[index].fileName:info[0].fileName;  // not decoded yet: same file
 		else
 			return null;
 	}
@@ -3,10 +3,8 @@ package ij.plugin;
 import ij.*;
 import ij.process.*;
 import ij.gui.GenericDialog;
-import ij.util.ThreadUtil;
 import ij.plugin.RGBStackMerge;
 import ij.gui.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * This plugin implements most of the 3D filters in the Process/Filters submenu.
@@ -14,7 +12,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class Filters3D implements PlugIn {
     public final static int MEAN=10, MEDIAN=11, MIN=12, MAX=13, VAR=14, MAXLOCAL=15;
+	/** Kernel shapes */
+	public final static int ELLIPSOID=0, BOX=1;
+	private static final String[] shapeStrings = {"Ellipsoid", "Box"};
 	private static float xradius = 2, yradius = 2, zradius = 2;
+	private static int kernelShape = ELLIPSOID;
 
 	public void run(String arg) {
 		String name = null;
@@ -53,6 +55,8 @@ public class Filters3D implements PlugIn {
 		gd.addNumericField("X radius:", xradius, 1);
 		gd.addNumericField("Y radius:", yradius, 1);
 		gd.addNumericField("Z radius:", zradius, 1);
+		int shape = Macro.getOptions()==null ? kernelShape : ELLIPSOID;
+		gd.addChoice("Kernel:", shapeStrings, shapeStrings[shape]);
 		gd.showDialog();
 		if (gd.wasCanceled()) {
 			return false;
@@ -60,6 +64,7 @@ public class Filters3D implements PlugIn {
 		xradius = (float) gd.getNextNumber();
 		yradius = (float) gd.getNextNumber();
 		zradius = (float) gd.getNextNumber();
+		kernelShape = gd.getNextChoiceIndex();
 		return true;
 	}
 
@@ -68,52 +73,29 @@ public class Filters3D implements PlugIn {
 			filterHyperstack(imp, filter, radX, radY, radZ);
 			return;
 		}
-		ImageStack res = filter(imp.getStack(), filter, radX, radY, radZ);
+		ImageStack res = filter(imp.getStack(), filter, radX, radY, radZ, kernelShape);
 		imp.setStack(res);
 	}
 	
+	/** Returns a new stack with the 3D mean, median, minimum, maximum or variance
+	 *  (MEAN, MEDIAN, MIN, MAX or VAR) in an ellipsoid with the given radii. */
 	public static ImageStack filter(ImageStack stackorig, int filter, float vx, float vy, float vz) {
-	
-		if (stackorig.getBitDepth()==24)
-			return filterRGB(stackorig, filter, vx, vy, vz);
+		return filter(stackorig, filter, vx, vy, vz, ELLIPSOID);
+	}
 
-		// get stack info
-		final ImageStack stack = stackorig;
-		final float voisx = vx;
-		final float voisy = vy;
-		final float voisz = vz;
-		final int width= stack.getWidth();
-		final int height= stack.getHeight();
-		final int depth= stack.size();
-		ImageStack res = null;
-		
+	/** Returns a new stack with the 3D mean, median, minimum, maximum or variance
+	 *  (MEAN, MEDIAN, MIN, MAX or VAR) in an ellipsoid or box (kernelShape ELLIPSOID
+	 *  or BOX) with the given radii. The variance of 8-bit and 16-bit stacks is
+	 *  returned as 32-bit stack. With a box, the mean, minimum, maximum and variance
+	 *  take a time that does not depend on the radii; see ij.process.VolumeFilter. */
+	public static ImageStack filter(ImageStack stackorig, int filter, float vx, float vy, float vz, int kernelShape) {
+		if (stackorig.getBitDepth()==24)
+			return filterRGB(stackorig, filter, vx, vy, vz, kernelShape);
 		if ((filter==MEAN) || (filter==MEDIAN) || (filter==MIN) || (filter==MAX) || (filter==VAR)) {
-			if (filter==VAR)
-				res = ImageStack.create(width, height, depth, 32);
-			else
-				res = ImageStack.create(width, height, depth, stackorig.getBitDepth());
 			IJ.showStatus("3D filtering...");
-			// PARALLEL 
-			final ImageStack out = res;
-			final AtomicInteger ai = new AtomicInteger(0);
-			final int n_cpus = Prefs.getThreads();
-
-			final int f = filter;
-			final int dec = (int) Math.ceil((double) stack.size() / (double) n_cpus);
-			Thread[] threads = ThreadUtil.createThreadArray(n_cpus);
-			for (int ithread = 0; ithread < threads.length; ithread++) {
-				threads[ithread] = new Thread() {
-					public void run() {
-						StackProcessor processor = new StackProcessor(stack);
-						for (int k = ai.getAndIncrement(); k < n_cpus; k = ai.getAndIncrement()) {
-							processor.filter3D(out, voisx, voisy, voisz, dec * k, dec * (k + 1), f);
-						}
-					}
-				};
-			}
-			ThreadUtil.startAndJoin(threads);
+			return VolumeFilter.filter(stackorig, filter, vx, vy, vz, kernelShape);
 		}
-		return res;
+		return null;
 	}
 	
 	private static void filterHyperstack(ImagePlus imp, int filter, float vx, float vy, float vz) {
@@ -122,14 +104,14 @@ public class Filters3D implements PlugIn {
 			return;
 		}
 		if (imp.getNChannels()==1) {
-			ImageStack stack = filter(imp.getStack(), filter, vx, vy, vz);
+			ImageStack stack = filter(imp.getStack(), filter, vx, vy, vz, kernelShape);
 			imp.setStack(stack);
 			return;
 		}
         ImagePlus[] channels = ChannelSplitter.split(imp);
         int n = channels.length;
         for (int i=0; i<n; i++) {
-			ImageStack stack = filter(channels[i].getStack(), filter, vx, vy, vz);
+			ImageStack stack = filter(channels[i].getStack(), filter, vx, vy, vz, kernelShape);
 			channels[i].setStack(stack);
 		}
 		ImagePlus imp2 = RGBStackMerge.mergeChannels(channels, false);
@@ -137,11 +119,11 @@ public class Filters3D implements PlugIn {
 		imp.setC(1);
 	}
 
-	private static ImageStack filterRGB(ImageStack rgb_in, int filter, float vx, float vy, float vz) {
+	private static ImageStack filterRGB(ImageStack rgb_in, int filter, float vx, float vy, float vz, int kernelShape) {
         ImageStack[] channels = ChannelSplitter.splitRGB(rgb_in, false);
-		ImageStack red = filter(channels[0], filter, vx, vy, vz);
-		ImageStack green = filter(channels[1], filter, vx, vy, vz);
-		ImageStack blue = filter(channels[2], filter, vx, vy, vz);
+		ImageStack red = filter(channels[0], filter, vx, vy, vz, kernelShape);
+		ImageStack green = filter(channels[1], filter, vx, vy, vz, kernelShape);
+		ImageStack blue = filter(channels[2], filter, vx, vy, vz, kernelShape);
         return RGBStackMerge.mergeStacks(red, green, blue, false);
 	}
 
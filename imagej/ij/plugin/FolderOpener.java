@@ -4,6 +4,7 @@ import java.io.*;
 import java.awt.event.*;
 import java.awt.image.ColorModel;
 import java.util.*;
+import java.util.concurrent.*;
 import ij.*;
 import ij.io.*;
 import ij.gui.*;
@@ -17,7 +18,8 @@ import ij.plugin.frame.Recorder;
 public class FolderOpener implements PlugIn, TextListener {
 	private static final int MAX_SEPARATE = 100;
 	private static final String DIR_KEY = "import.sequence.dir";
-	private static final String[] types = {"default", "16-bit", "32-bit", "RGB"};
+	private static final String[] types = {"default", "8-bit", "16-bit", "32-bit", "RGB"};
+	private static final int LOOKAHEAD = 2;  // images opened ahead per thread
 	private static String[] excludedTypes = {".txt",".lut",".roi",".pty",".hdr",".java",".ijm",".py",".js",".bsh",".xml",".rar",".h5",".doc",".xls"};
 	private static boolean staticSortFileNames = true;
 	private static boolean staticOpenAsVirtualStack;
@@ -41,6 +43,7 @@ public class FolderOpener implements PlugIn, TextListener {
 	private int start = 1;
 	private int step = 1;
 	private double scale = 100.0;
+	private int bin = 1;
 	private boolean openAsSeparateImages;
 	private boolean runningOpen;	
 	private TextField dirField, filterField, startField, countField, stepField;
@@ -56,8 +59,8 @@ public class FolderOpener implements PlugIn, TextListener {
 		the images as a virtual stack if the 'options' string contains
 		'virtual' or 'use'. Add ' filter=abc' to the options string to only open
 		images with, for example, 'abc' in their name. The image type, start,
-		step, count and scale can also be set, for example
-		"bitdepth=32 start=10 step=2 count=10 scale=50".
+		step, count, scale and bin size can also be set, for example
+		"bitdepth=32 start=10 step=2 count=10 scale=50" or "bitdepth=8 bin=2".
 		Add ' noMetaSort' to disable sorting of DICOM stacks by series
 		number (0020,0011). Displays the Import/Sequence dialog if the
 		the 'path' argument is null.
@@ -98,6 +101,7 @@ public class FolderOpener implements PlugIn, TextListener {
 		this.start = (int)Tools.getNumberFromList(options,"start=",1);
 		this.step = (int)Tools.getNumberFromList(options,"step=",1);
 		this.scale = Tools.getNumberFromList(options,"scale=",100);
+		this.bin = Math.max(1, (int)Tools.getNumberFromList(options,"bin=",1));
 		this.nFiles = (int)Tools.getNumberFromList(options,"count=",0);
 		if (options.contains(" open")) {
 			this.openAsSeparateImages = true;
@@ -195,6 +199,7 @@ public class FolderOpener implements PlugIn, TextListener {
 		if (this.nFiles==0)
 			this.nFiles = list.length;
 		boolean dicomImages = false;
+		ParallelOpener parallelOpener = null;
 		try {
 			for (int i=0; i<list.length; i++) {
 				Opener opener = new Opener();
@@ -235,8 +240,16 @@ public class FolderOpener implements PlugIn, TextListener {
 			int count = 0;
 			int counter = 0;
 			ImagePlus imp = null;
+			ImageProcessor[] slices = null;
 			boolean firstMessage = true;
 			boolean fileInfoStack = false;
+			int threads = Prefs.getThreads();
+			if (!openAsVirtualStack && threads>1 && this.nFiles>1) {
+				if (stackWidth>0 && stackHeight>0)
+					parallelOpener = new ParallelOpener(list, threads, stackWidth, stackHeight);
+				else
+					parallelOpener = new ParallelOpener(list, threads, width, height);
+			}
 			
 			// open images as stack
 			for (int i=this.start-1; i<list.length; i++) {
@@ -249,10 +262,18 @@ public class FolderOpener implements PlugIn, TextListener {
 					IJ.open(directory+list[i]);
 					imp = null;
 				} else if (!openAsVirtualStack||stack==null) {
-					imp = opener.openTempImage(directory, list[i]);
+					if (parallelOpener!=null) {
+						Decoded decoded = parallelOpener.take(i);
+						if (decoded==null)
+							break;  // interrupted
+						imp = decoded.imp;
+						slices = decoded.processors;
+					} else
+						imp = opener.openTempImage(directory, list[i]);
 					stackSize = imp!=null?imp.getStackSize():1;
 				}
-				IJ.redirectErrorMessages(false);
+				if (parallelOpener==null)
+					IJ.redirectErrorMessages(false);
 				if (imp!=null && stack==null) {
 					width = imp.getWidth();
 					height = imp.getHeight();
@@ -278,8 +299,8 @@ public class FolderOpener implements PlugIn, TextListener {
 							else
 								stack = new VirtualStack(width, height, cm, directory);
 						}
-					}  else if (this.scale<100.0)						
-						stack = new ImageStack((int)(width*this.scale/100.0), (int)(height*this.scale/100.0), cm);
+					}  else if (this.scale<100.0 || bin>1)
+						stack = new ImageStack(reducedSize(width), reducedSize(height), cm);
 					else
 						stack = new ImageStack(width, height, cm);
 					if (bitDepth!=0)
@@ -296,6 +317,7 @@ public class FolderOpener implements PlugIn, TextListener {
 						ip2.insert(ip, 0, 0);
 						imp2.setProcessor(ip2);
 						imp = imp2;
+						slices = null;
 					} else {
 						IJ.log(list[i] + ": wrong size; "+width+"x"+height+" expected, "+imp.getWidth()+"x"+imp.getHeight()+" found");
 						continue;
@@ -345,9 +367,12 @@ public class FolderOpener implements PlugIn, TextListener {
 							else if (label2!=null && !label2.equals(""))
 								label2 += ":"+slice;
 						}
-						ip = inputStack.getProcessor(slice);
+						if (slices!=null)  // binned, scaled or converted by a ParallelOpener thread
+							ip = slices[slice-1];
+						else
+							ip = inputStack.getProcessor(slice);
 						if (bitDepth2!=bitDepth) {
-							if (dicomImages && bitDepth==16 && bitDepth2==32 && this.scale==100) {
+							if (dicomImages && bitDepth==16 && bitDepth2==32 && this.scale==100 && bin==1) {
 								ip = ip.convertToFloat();
 								bitDepth = 32;
 								ImageStack stack2 = new ImageStack(width, height, stack.getColorModel());
@@ -361,8 +386,8 @@ public class FolderOpener implements PlugIn, TextListener {
 								stack = stack2;
 							}
 						}
-						if (this.scale<100.0)
-							ip = ip.resize((int)(width*this.scale/100.0), (int)(height*this.scale/100.0));
+						if (slices==null)
+							ip = reduce(ip, width, height, bitDepth==8);
 						if (ip.getMin()<min) min = ip.getMin();
 						if (ip.getMax()>max) max = ip.getMax();
 						stack.addSlice(label2, ip);
@@ -380,6 +405,11 @@ public class FolderOpener implements PlugIn, TextListener {
 		} catch(OutOfMemoryError e) {
 			IJ.outOfMemory("FolderOpener");
 			if (stack!=null) stack.trim();
+		} finally {
+			if (parallelOpener!=null) {
+				parallelOpener.shutdown();
+				IJ.redirectErrorMessages(false);
+			}
 		}
 		if (stack!=null && stack.size()>0) {
 			ImagePlus imp2 = new ImagePlus(title, stack);
@@ -403,6 +433,10 @@ public class FolderOpener implements PlugIn, TextListener {
 					cal.pixelWidth /= this.scale/100.0;
 					cal.pixelHeight /= this.scale/100.0;
 				}
+				if (bin>1 && cal.scaled()) {
+					cal.pixelWidth *= bin;
+					cal.pixelHeight *= bin;
+				}
 				if (cal.pixelWidth!=1.0 && cal.pixelDepth==1.0)
 					cal.pixelDepth = cal.pixelWidth;
 				imp2.setCalibration(cal);
@@ -467,6 +501,8 @@ public class FolderOpener implements PlugIn, TextListener {
 				options = options + " step=" + step;				
 			if (scale!=100)
 				options = options + " scale=" + scale;				
+			if (bin!=1)
+				options = options + " bin=" + bin;
 			if (!sortByMetaData)
 				options = options + " noMetaSort";
 			if (!Recorder.scriptMode() && openAsSeparateImages)
@@ -518,6 +554,26 @@ public class FolderOpener implements PlugIn, TextListener {
 		}	
 	}
 
+	/** Returns the width or height of the stack after binning and scaling. */
+	private int reducedSize(int size) {
+		size /= bin;
+		if (this.scale<100.0)
+			size = (int)(size*this.scale/100.0);
+		return size;
+	}
+
+	/** Bins, scales and, if 'to8Bits' is true, converts to 8 bits a
+		slice of the expected 'width' and 'height'. */
+	private ImageProcessor reduce(ImageProcessor ip, int width, int height, boolean to8Bits) {
+		if (bin>1)
+			ip = new Binner().shrink(ip, bin, bin, Binner.AVERAGE);
+		if (this.scale<100.0)
+			ip = ip.resize(reducedSize(width), reducedSize(height));
+		if (to8Bits && ip.getBitDepth()!=8)
+			ip = ip.convertToByte(true);
+		return ip;
+	}
+
 	public static boolean useInfo(String info) {
 		return info!=null && !(info.startsWith("Software")||info.startsWith("ImageDescription"));
 	 }
@@ -599,6 +655,7 @@ public class FolderOpener implements PlugIn, TextListener {
 			stepField.addTextListener(this);
 		}
 		gd.addNumericField("Scale:", this.scale, 0, 6, "%");
+		gd.addNumericField("Bin:", this.bin, 0, 6, "");
 		gd.addCheckbox("Sort names numerically", sortFileNames);
 		gd.addCheckbox("Use virtual stack", openAsVirtualStack);
 		gd.addCheckbox("Open as separate images", false);		
@@ -625,12 +682,16 @@ public class FolderOpener implements PlugIn, TextListener {
 		this.scale = gd.getNextNumber();
 		if (this.scale<5.0) this.scale = 5.0;
 		if (this.scale>100.0) this.scale = 100.0;
+		this.bin = (int)gd.getNextNumber();
+		if (this.bin<1) this.bin = 1;
 		sortFileNames = gd.getNextBoolean();
 		if (!sortFileNames)
 			sortByMetaData = false;
 		openAsVirtualStack = gd.getNextBoolean();
-		if (openAsVirtualStack)
+		if (openAsVirtualStack) {
 			scale = 100.0;
+			bin = 1;
+		}
 		openAsSeparateImages = gd.getNextBoolean();
 		if (openAsSeparateImages)
 			openAsVirtualStack = true;
@@ -707,7 +768,8 @@ public class FolderOpener implements PlugIn, TextListener {
 	
 	private int typeToBitDepth(String type) {
 		int depth = 0;
-		if (type.equals("16-bit")) depth=16;
+		if (type.equals("8-bit")) depth=8;
+		else if (type.equals("16-bit")) depth=16;
 		else if (type.equals("32-bit")) depth=32;
 		else if (type.equals("RGB")) depth=24;
 		return depth;
@@ -716,9 +778,10 @@ public class FolderOpener implements PlugIn, TextListener {
 	private String bitDepthToType(int bitDepth) {
 		switch (bitDepth) {
 			case 0: return types[0];
-			case 16: return types[1];
-			case 32: return types[2];
-			case 24: return types[3];
+			case 8: return types[1];
+			case 16: return types[2];
+			case 32: return types[3];
+			case 24: return types[4];
 		}
 		return types[0];
 	}
@@ -803,6 +866,114 @@ public class FolderOpener implements PlugIn, TextListener {
 		countField.setText(countStr);
 	}
 
+	/** An image of the sequence, with its slices binned, scaled and converted
+		to 8 bits, or with 'processors' null if this was not needed or possible. */
+	private static class Decoded {
+		final int index;
+		final ImagePlus imp;
+		final ImageProcessor[] processors;
+
+		Decoded(int index, ImagePlus imp, ImageProcessor[] processors) {
+			this.index = index;
+			this.imp = imp;
+			this.processors = processors;
+		}
+	}
+
+	/** Opens the images of the sequence on several threads and returns them in
+		order. At most LOOKAHEAD images per thread are opened ahead of the one
+		being added to the stack, and each thread bins, scales and converts to 8 bits
+		the images it opens, so that only a few full size images are in memory. */
+	private class ParallelOpener {
+		private final String[] list;
+		private final int[] indexes;  // the files to open, in order
+		private final int width, height, maxPending;
+		private final boolean to8Bits, reduce;
+		private final ExecutorService executor;
+		private final ArrayDeque<Future<Decoded>> pending = new ArrayDeque<Future<Decoded>>();
+		private int next;
+
+		ParallelOpener(String[] list, int threads, int width, int height) {
+			this.list = list;
+			this.width = width;
+			this.height = height;
+			to8Bits = bitDepth==8;
+			reduce = scale<100.0 || bin>1 || to8Bits;
+			maxPending = threads*LOOKAHEAD;
+			int n = 0;
+			int[] indexes = new int[list.length];
+			for (int i=start-1; i<list.length; i+=step) {
+				if (!"RoiSet.zip".equals(list[i]))
+					indexes[n++] = i;
+			}
+			this.indexes = Arrays.copyOf(indexes, n);
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "FolderOpener");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		/** Returns file 'index' of the list, waiting until it has been opened, or
+			null if the current thread is interrupted. The 'imp' of the returned
+			object is null if the file could not be opened. */
+		Decoded take(int index) {
+			while (true) {
+				while (pending.size()<maxPending && next<indexes.length)
+					pending.add(executor.submit(new Open(indexes[next++])));
+				Future<Decoded> future = pending.poll();
+				if (future==null)
+					return new Decoded(index, null, null);
+				Decoded decoded;
+				try {
+					decoded = future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Error) throw (Error)cause;  // OutOfMemoryError
+					if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+					throw new RuntimeException(cause);
+				}
+				if (decoded.index>=index)
+					return decoded;
+			}
+		}
+
+		/** Cancels the images not needed anymore. */
+		void shutdown() {
+			for (Future<Decoded> future : pending)
+				future.cancel(false);
+			pending.clear();
+			executor.shutdownNow();
+		}
+
+		private class Open implements Callable<Decoded> {
+			private final int index;
+
+			Open(int index) {
+				this.index = index;
+			}
+
+			public Decoded call() {
+				Opener opener = new Opener();
+				opener.setSilentMode(true);
+				IJ.redirectErrorMessages(true);
+				ImagePlus imp = opener.openTempImage(directory, list[index]);
+				if (imp==null || !reduce || imp.getWidth()!=width || imp.getHeight()!=height)
+					return new Decoded(index, imp, null);
+				ImageStack stack = imp.getStack();
+				ImageProcessor[] processors = new ImageProcessor[stack.size()];
+				for (int slice=1; slice<=processors.length; slice++)
+					processors[slice-1] = reduce(stack.getProcessor(slice), width, height, to8Bits);
+				return new Decoded(index, imp, processors);
+			}
+		}
+	}
+
 } // FolderOpener
 
 
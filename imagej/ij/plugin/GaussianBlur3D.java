@@ -57,26 +57,21 @@ public class GaussianBlur3D implements PlugIn {
 		}
 	}
 
-	private static void blurZ(ImageStack stack, double sigmaZ) {
-		GaussianBlur gb = new GaussianBlur();
-		double accuracy = (stack.getBitDepth()==8||stack.getBitDepth()==24)?0.002:0.0002;
-		int w=stack.getWidth(), h=stack.getHeight(), d=stack.size();
-		float[] zpixels = null;
-		FloatProcessor fp =null;
+	/** Blurs in z direction. The z lines are processed in bundles of neighboring lines
+	 *  (see VolumeFilter.filterLines), each bundle by one thread. */
+	private static void blurZ(ImageStack stack, final double sigmaZ) {
+		final double accuracy = (stack.getBitDepth()==8||stack.getBitDepth()==24)?0.002:0.0002;
 		IJ.showStatus("Z blurring");
-		gb.showProgress(false);
-		int channels = stack.getProcessor(1).getNChannels();
-		for (int y=0; y<h; y++) {
-			IJ.showProgress(y, h-1);
-			for (int channel=0; channel<channels; channel++) {
-				zpixels = stack.getVoxels(0, y, 0, w, 1, d, zpixels, channel);
-				if (fp==null)
-					fp = new FloatProcessor(w, d, zpixels);
-				//if (y==h/2) new ImagePlus("before-"+h/2, fp.duplicate()).show();
-				gb.blur1Direction(fp, sigmaZ, accuracy, false, 0);
-				stack.setVoxels(0, y, 0, w, 1, d, zpixels, channel);
+		VolumeFilter.filterLines(stack, VolumeFilter.Z_DIRECTION, new VolumeFilter.LineFilter() {
+			public void filter(float[] lines, int nLines, int length) {
+				GaussianBlur gb = new GaussianBlur();
+				gb.showProgress(false);
+				gb.setNThreads(1);
+				FloatProcessor fp = new FloatProcessor(length, lines.length/length, lines);
+				fp.setRoi(0, 0, length, nLines);
+				gb.blur1Direction(fp, sigmaZ, accuracy, true, 0);
 			}
-		}
+		});
 		IJ.showStatus("");
 	}
 
@@ -150,7 +150,11 @@ public class Resizer implements PlugIn, TextListener, ItemListener  {
 		if (roi!=null || newWidth!=origWidth || newHeight!=origHeight) {
 			try {
 				StackProcessor sp = new StackProcessor(imp.getStack(), ip);
-				ImageStack s2 = sp.resize(newWidth, newHeight, averageWhenDownsizing);
+				ImageStack s2;
+				if (crop && roi!=null && imp.getStack().isVirtual())
+					s2 = sp.crop(r.x, r.y, r.width, r.height); // reads only the selected part of each slice
+				else
+					s2 = sp.resize(newWidth, newHeight, averageWhenDownsizing);
 				int newSize = s2.getSize();
 				if (s2.getWidth()>0 && newSize>0) {
 					if (restoreRoi)
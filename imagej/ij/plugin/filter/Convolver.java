@@ -6,13 +6,27 @@ import ij.io.*;
 import ij.plugin.TextReader;
 import ij.plugin.frame.Recorder;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.awt.event.*;
 import java.io.*;
 
-/** This plugin convolves images using user user defined kernels. */
+/** This plugin convolves images using user user defined kernels.
+	Kernels that are the product of a column and a row vector (separable,
+	such as a Gaussian or a uniform kernel) are applied as two 1D passes,
+	other kernels with at least FFT_KERNEL_SIZE elements via FFT (ij.process.FHT),
+	in overlapping tiles, and smaller kernels directly. Rows (or tiles) are
+	processed in parallel using Prefs.getThreads() threads. With
+	Edit>Options>Misc "Debug mode", the method used is shown in the Log window.
+*/
 public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionListener {
+	/** Non-separable kernels with at least this many elements are convolved via FFT. */
+	public static final int FFT_KERNEL_SIZE = 9*9;
+	private static final String[] methods = {"direct", "separable", "FFT"};
+	private static final int DIRECT=0, SEPARABLE=1, FFT=2;
 
 	private ImagePlus imp;
 	private int kw, kh;
@@ -37,6 +51,7 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 	private String kernelText = defaultKernelText;
 	private boolean normalizeFlag = defaultNormalizeFlag;
 	private boolean dialogItemChangedCalled;
+	private int numThreads = Prefs.getThreads();
 
 	public int setup(String arg, ImagePlus imp) {
  		this.imp = imp;
@@ -52,10 +67,6 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 		Roi roi = imp.getRoi();
 		isLineRoi= roi!=null && roi.isLine();
 		nSlices = imp.getStackSize();
-		if (imp.getStackSize()==1)
-			flags |= PARALLELIZE_IMAGES;
-		else
-			flags |= PARALLELIZE_STACKS;
 		imp.startTiming();
 		return flags;
 	}
@@ -92,7 +103,12 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 			lastKernelText = kernelText;
 			lastNormalizeFlag = normalizeFlag;
 		}
-		return IJ.setupDialog(imp, flags);
+		flags = IJ.setupDialog(imp, flags);
+		if ((flags&DOES_STACKS)!=0 && nSlices>=2*numThreads) {
+			numThreads = 1;  // process the slices in parallel rather than the rows of each slice
+			flags |= PARALLELIZE_STACKS;
+		}
+		return flags;
 	}
 
     public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
@@ -249,50 +265,264 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
         Thread thread = Thread.currentThread();
         boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
         if (isMainThread) pass++;
-		double sum;
-		int offset, i;
-		boolean edgePixel;
-		int xedge = width-uc;
-		int yedge = height-vc;
+		float[][] factors = getSeparableFactors(kernel, kw, kh);
+		int method = factors!=null ? SEPARABLE : (kw*kh>=FFT_KERNEL_SIZE ? FFT : DIRECT);
+		if (IJ.debugMode)
+			IJ.log("Convolver: "+kw+"x"+kh+" kernel, "+methods[method]+", "+r.width+"x"+r.height+", "+numThreads+" thread(s)");
+		switch (method) {
+			case SEPARABLE:
+				return convolveSeparable(ip, factors[0], factors[1], r, pixels, pixels2, scale, isMainThread);
+			case FFT:
+				return convolveFFT(ip, kernel, kw, kh, r, pixels, pixels2, scale, isMainThread);
+			default:
+				return convolveDirect(ip, kernel, kw, kh, r, pixels, pixels2, scale, isMainThread);
+		}
+	}
+
+	private boolean convolveDirect(ImageProcessor ip, final float[] kernel, int kw, int kh, Rectangle r,
+	final float[] pixels, final float[] pixels2, final double scale, boolean isMainThread) {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final int x1 = r.x;
+		final int y1 = r.y;
+		final int x2 = x1 + r.width;
+		final int uc = kw/2;
+		final int vc = kh/2;
+		final int xedge = width-uc;
+		final int yedge = height-vc;
+		RowTask task = new RowTask() {
+			void processRow(int n) {
+				int y = y1 + n;
+				double sum;
+				int offset, i;
+				boolean edgePixel;
+				for (int x=x1; x<x2; x++) {
+					sum = 0.0;
+					i = 0;
+					edgePixel = y<vc || y>=yedge || x<uc || x>=xedge;
+					for (int v=-vc; v <= vc; v++) {
+						offset = x+(y+v)*width;
+						for(int u = -uc; u <= uc; u++) {
+							if (edgePixel)
+								sum += getPixel(x+u, y+v, pixels2, width, height)*kernel[i++];
+							else
+								sum += pixels2[offset+u]*kernel[i++];
+						}
+			    	}
+					pixels[x+y*width] = (float)(sum*scale);
+				}
+			}
+		};
+		return processRows(task, r.height, ip, isMainThread, 0.0, 1.0);
+   	}
+
+	/** Convolves with the kernel column[v]*row[u] as a horizontal pass over the
+		rows of the rectangle and the rows above and below within the kernel
+		height, followed by a vertical pass. The edge pixels are duplicated
+		as with the direct convolution, so the result is the same. */
+	private boolean convolveSeparable(ImageProcessor ip, final float[] column, final float[] row, Rectangle r,
+	final float[] pixels, final float[] pixels2, final double scale, boolean isMainThread) {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final int x1 = r.x;
+		final int y1 = r.y;
+		final int x2 = x1 + r.width;
+		final int rw = r.width;
+		final int uc = row.length/2;
+		final int vc = column.length/2;
+		final int ya = Math.max(0, y1-vc);
+		final int yb = Math.min(height, y1+r.height+vc);
+		final float[] rows = new float[rw*(yb-ya)];  // result of the horizontal pass
+		RowTask horizontal = new RowTask() {
+			void processRow(int n) {
+				int y = ya + n;
+				int offset = y*width;
+				int xedge = width-uc;
+				for (int x=x1, i=n*rw; x<x2; x++, i++) {
+					double sum = 0.0;
+					if (x<uc || x>=xedge) {
+						for (int u=-uc, k=0; u<=uc; u++, k++) {
+							int x3 = x+u<0 ? 0 : (x+u>=width ? width-1 : x+u);
+							sum += pixels2[offset+x3]*row[k];
+						}
+					} else {
+						for (int u=-uc, k=0; u<=uc; u++, k++)
+							sum += pixels2[offset+x+u]*row[k];
+					}
+					rows[i] = (float)sum;
+				}
+			}
+		};
+		RowTask vertical = new RowTask() {
+			void processRow(int n) {
+				int y = y1 + n;
+				int[] offsets = new int[column.length];
+				for (int v=-vc, k=0; v<=vc; v++, k++) {
+					int y3 = y+v<0 ? 0 : (y+v>=height ? height-1 : y+v);
+					offsets[k] = (y3-ya)*rw;
+				}
+				for (int x=0; x<rw; x++) {
+					double sum = 0.0;
+					for (int k=0; k<offsets.length; k++)
+						sum += rows[offsets[k]+x]*column[k];
+					pixels[x1+x+y*width] = (float)(sum*scale);
+				}
+			}
+		};
+		return processRows(horizontal, yb-ya, ip, isMainThread, 0.0, 0.5)
+			&& processRows(vertical, r.height, ip, isMainThread, 0.5, 1.0);
+	}
+
+	/** Convolves via FFT, in overlapping square tiles with a power of 2 size (overlap-save
+		method), so that the tiles can be processed in parallel. The pixels of a tile
+		outside the image are the nearest edge pixels, as with the direct convolution. */
+	private boolean convolveFFT(ImageProcessor ip, float[] kernel, int kw, int kh, Rectangle r,
+	final float[] pixels, final float[] pixels2, final double scale, boolean isMainThread) {
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final int x1 = r.x;
+		final int y1 = r.y;
+		final int x2 = x1 + r.width;
+		final int y2 = y1 + r.height;
+		final int uc = kw/2;
+		final int vc = kh/2;
+		final int size = getTileSize(kw, kh, r);
+		final int stepX = size-kw+1;  // output pixels per tile
+		final int stepY = size-kh+1;
+		final int nx = (r.width+stepX-1)/stepX;
+		final int ny = (r.height+stepY-1)/stepY;
+		// the kernel, flipped and wrapped around, so that the product is a correlation as with direct convolution
+		float[] k = new float[size*size];
+		for (int v=0; v<kh; v++)
+			for (int u=0; u<kw; u++)
+				k[((size-v)%size)*size+(size-u)%size] = kernel[u+v*kw];
+		final FHT kernelFHT = new FHT(new FloatProcessor(size, size, k, null));
+		kernelFHT.rc2DFHT((float[])kernelFHT.getPixels(), false, size);
+		RowTask task = new RowTask() {
+			void processRow(int n) {
+				int ox = x1 + (n%nx)*stepX;
+				int oy = y1 + (n/nx)*stepY;
+				float[] tile = new float[size*size];
+				for (int j=0; j<size; j++) {
+					int y = Math.max(0, Math.min(height-1, oy-vc+j));
+					for (int i=0; i<size; i++) {
+						int x = Math.max(0, Math.min(width-1, ox-uc+i));
+						tile[i+j*size] = pixels2[x+y*width];
+					}
+				}
+				FHT fht = new FHT(new FloatProcessor(size, size, tile, null));
+				fht.rc2DFHT((float[])fht.getPixels(), false, size);
+				FHT product = fht.multiply(kernelFHT);
+				float[] result = (float[])product.getPixels();
+				product.rc2DFHT(result, true, size);
+				int w = Math.min(stepX, x2-ox);
+				int h = Math.min(stepY, y2-oy);
+				for (int j=0; j<h; j++)
+					for (int i=0; i<w; i++)
+						pixels[ox+i+(oy+j)*width] = (float)(result[i+j*size]*scale);
+			}
+		};
+		return processRows(task, nx*ny, ip, isMainThread, 0.0, 1.0);
+	}
+
+	/** Returns the FFT size, a power of 2 about four times the kernel
+		size, but not larger than needed for the whole rectangle. */
+	private static int getTileSize(int kw, int kh, Rectangle r) {
+		int kernelSize = Math.max(kw, kh);
+		int imageSize = Math.max(r.width+kw-1, r.height+kh-1);
+		int size = 64;
+		while (size<4*kernelSize && size<imageSize)
+			size *= 2;
+		return size;
+	}
+
+	/** If the kernel is the product of a column and a row vector (within float accuracy),
+		returns these vectors as {column, row}, otherwise returns null. One-dimensional
+		kernels (kw or kh is 1) are not considered separable. */
+	static float[][] getSeparableFactors(float[] kernel, int kw, int kh) {
+		if (kw<=1 || kh<=1)
+			return null;
+		int pivot = 0;
+		for (int i=1; i<kernel.length; i++)
+			if (Math.abs(kernel[i])>Math.abs(kernel[pivot]))
+				pivot = i;
+		double max = Math.abs(kernel[pivot]);
+		if (max==0.0)
+			return null;
+		int pu = pivot%kw, pv = pivot/kw;
+		float[] row = new float[kw];
+		float[] column = new float[kh];
+		for (int u=0; u<kw; u++)
+			row[u] = kernel[u+pv*kw];
+		for (int v=0; v<kh; v++)
+			column[v] = (float)(kernel[pu+v*kw]/(double)kernel[pivot]);
+		double tolerance = 1e-6*max;
+		for (int v=0; v<kh; v++)
+			for (int u=0; u<kw; u++)
+				if (Math.abs(kernel[u+v*kw]-(double)column[v]*row[u])>tolerance)
+					return null;
+		return new float[][] {column, row};
+	}
+
+	/** Processes the rows (or tiles) of an image. */
+	private abstract static class RowTask {
+		abstract void processRow(int n);
+	}
+
+	/** Calls task.processRow(n) for n=0 to count-1, using numThreads threads. The
+		current thread takes part; if it is the main thread, it shows the progress,
+		from 'progress1' to 'progress2' within this pass, and checks for 'Esc'.
+		Returns false if the operation is canceled or interrupted. */
+	private boolean processRows(final RowTask task, final int count, ImageProcessor ip, boolean isMainThread, double progress1, double progress2) {
+		if (canceled) return false;
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicBoolean stop = new AtomicBoolean();
+		int threads = Math.max(1, Math.min(numThreads, count));
+		Callable[] callables = new Callable[threads-1];
+		for (int t=0; t<callables.length; t++) {
+			callables[t] = new Callable<Void>() {
+				public Void call() {
+					Thread thread = Thread.currentThread();
+					for (int n=next.getAndIncrement(); n<count; n=next.getAndIncrement()) {
+						if (stop.get() || canceled || thread.isInterrupted())
+							break;
+						task.processRow(n);
+					}
+					return null;
+				}
+			};
+		}
+		Future[] futures = ThreadUtil.start(callables);
+		Thread thread = Thread.currentThread();
 		long lastTime = System.currentTimeMillis();
-		for (int y=y1; y<y2; y++) {
+		boolean interrupted = false, escape = false;
+		for (int n=next.getAndIncrement(); n<count; n=next.getAndIncrement()) {
 			long time = System.currentTimeMillis();
 			if (time-lastTime>100) {
 				lastTime = time;
-				if (thread.isInterrupted()) return false;
+				if (thread.isInterrupted())
+					{interrupted=true; break;}
 				if (isMainThread) {
-					if (IJ.escapePressed()) {
-						canceled = true;
-						ip.reset();
-						ImageProcessor originalIp = imp.getProcessor();
-						if (originalIp.getNChannels() > 1)
-							originalIp.reset();
-						return false;
-					}
-					showProgress((y-y1)/(double)(y2-y1));
+					if (IJ.escapePressed())
+						{escape=true; break;}
+					showProgress(progress1+(progress2-progress1)*n/count);
 				}
 			}
-			for (int x=x1; x<x2; x++) {
-				if (canceled) return false;
-				sum = 0.0;
-				i = 0;
-				edgePixel = y<vc || y>=yedge || x<uc || x>=xedge;
-				for (int v=-vc; v <= vc; v++) {
-					offset = x+(y+v)*width;
-					for(int u = -uc; u <= uc; u++) {
-						if (edgePixel) {
- 							if (i>=kernel.length) // work around for JIT compiler bug on Linux
- 								IJ.log("kernel index error: "+i);
-							sum += getPixel(x+u, y+v, pixels2, width, height)*kernel[i++];
-						} else
-							sum += pixels2[offset+u]*kernel[i++];
-					}
-		    	}
-				pixels[x+y*width] = (float)(sum*scale);
-			}
-    	}
-   		return true;
-   	 }
+			if (canceled) break;
+			task.processRow(n);
+		}
+		if (interrupted || escape)
+			stop.set(true);
+		ThreadUtil.joinAll(futures);
+		if (escape) {
+			canceled = true;
+			ip.reset();
+			ImageProcessor originalIp = imp.getProcessor();
+			if (originalIp.getNChannels() > 1)
+				originalIp.reset();
+		}
+		return !(interrupted || escape || canceled);
+	}
 
 	/** Convolves the image <code>ip</code> with a kernel of width
 		<code>kw</code> and height <code>kh</code>. */
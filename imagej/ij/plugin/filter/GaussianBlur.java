@@ -26,6 +26,12 @@ import java.util.concurrent.atomic.AtomicLong;
  * - For increased speed, except for small blur radii, the lines (rows or
  * columns of the image) are downscaled before convolution and upscaled
  * to their original length thereafter.
+ * - Alternatively (method RECURSIVE, see setMethod), a recursive (IIR) filter
+ * approximating the Gaussian can be used, with a computing time per pixel that
+ * does not depend on the blur radius: Deriche's 4th-order filter, or with a
+ * low accuracy (see getRecursiveOrder), the 3rd-order filter of Young and
+ * van Vliet. Where downscaling with a short kernel is faster, the kernel is
+ * used nevertheless.
  * 
  * Version 03-Jun-2007 M. Schmid with preview, progressBar stack-aware,
  * snapshot via snapshot flag; restricted range for resetOutOfRoi
@@ -36,13 +42,32 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
 
+    /** Methods: KERNEL convolves with a Gaussian kernel of the accuracy given.
+     *  RECURSIVE uses a recursive filter for sigma>=1, unless the downscaled kernel
+     *  is faster. The accuracy given selects the filter: Deriche's 4th-order filter
+     *  deviates from the Gaussian by about 5e-4 of the kernel maximum in each
+     *  direction; for accuracy >= RECURSIVE_ORDER3_ACCURACY, the 3rd-order filter
+     *  of Young and van Vliet deviates by about 0.01 (sigma>=30) to 0.05 (sigma=2),
+     *  and more for smaller sigma. */
+    public static final int KERNEL = 0, RECURSIVE = 1;
+    private static final String[] methodStrings = {"Kernel", "Recursive (fast)"};
+    /** Parameters of the recursive filter: per pair of complex conjugate poles, the impulse
+     *  response for x>=0 is (a0*cos(w*x/sigma) + a1*sin(w*x/sigma))*exp(-b*x/sigma), in the
+     *  sequence a0, a1, w, b. From R. Deriche, INRIA Research Report 1893 (1993) */
+    private static final double[] RECURSIVE_PARAMS =
+            {1.680, 3.735, 0.6318, 1.783, -0.6803, -0.2598, 1.997, 1.723};
+    /** Accuracy from which on the 3rd-order recursive filter is used, see getRecursiveOrder */
+    public static final double RECURSIVE_ORDER3_ACCURACY = 0.01;
     /** for remembering till the next invocation */
     private static double sigmaS = 2.0;
     private static boolean sigmaScaledS = false;
+    private static int methodS = KERNEL;
     /** the standard deviation of the Gaussian*/
     private double sigma = sigmaS;
     /** whether sigma is given in units corresponding to the pixel scale (not pixels)*/
     private boolean sigmaScaled = sigmaScaledS;
+    /** KERNEL or RECURSIVE */
+    private int method = KERNEL;
     /** The flags specifying the capabilities and needs */
     private int flags = DOES_ALL|SUPPORTS_MASKING|KEEP_PREVIEW;
     private ImagePlus imp;              // The ImagePlus of the setup call, needed to get the spatial calibration
@@ -51,6 +76,7 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
     private int nChannels = 1;        // The number of color channels
     private int pass;                        // Current pass
     private boolean noProgress;      // Do not show progress bar
+    private int numThreads = Prefs.getThreads(); // Maximum number of threads of blur1Direction
     private boolean calledAsPlugin;
     
     /** Method to return types supported
@@ -91,6 +117,8 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
             gd.addCheckbox("Scaled Units ("+imp.getCalibration().getUnits()+")", sigmaScaled);
         } else
             sigmaScaled = false;
+        method = options==null ? methodS : KERNEL;
+        gd.addChoice("Method:", methodStrings, methodStrings[method]);
         gd.addPreviewCheckbox(pfr);
         gd.addDialogListener(this);
         gd.showDialog();                    // input by the user (or macro) happens here
@@ -98,6 +126,7 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         if (options==null) {                // interactive use: remember values as default for the next invocation
             sigmaS = sigma;
             sigmaScaledS = sigmaScaled;
+            methodS = method;
         }
         if (oldMacro) sigma /= 2.5;         // for old macros, "radius" was 2.5 sigma
         IJ.register(this.getClass());       // protect static class variables (parameters) from garbage collection
@@ -111,9 +140,17 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
             return false;
         if (hasScale)
             sigmaScaled = gd.getNextBoolean();
+        method = gd.getNextChoiceIndex();
         return true;
     }
 
+    /** Sets the method for the following blur operations: KERNEL (the default) or RECURSIVE */
+    public void setMethod(int method) {
+        if (method!=KERNEL && method!=RECURSIVE)
+            throw new IllegalArgumentException("Invalid method: "+method);
+        this.method = method;
+    }
+
     /** Set the number of passes of the blur1Direction method. If called by the
      *  PlugInFilterRunner of ImageJ, an ImagePlus is known and conversion of RGB images
      *  to float as well as the two filter directions are taken into account.
@@ -125,6 +162,15 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         pass = 0;
     }
 
+    /** Set the maximum number of threads used by the blur1Direction method. With 1,
+     *  it runs in the calling thread, e.g. if the caller blurs many small images
+     *  in parallel. The default is the number of threads set in
+     *  Edit>Options>Memory & Threads.
+     */
+    public void setNThreads(int nThreads) {
+        this.numThreads = Math.max(nThreads, 1);
+    }
+
     /** This method is invoked for each slice during execution
      * @param ip The image subject to filtering. It must have a valid snapshot if
      * the height of the roi is less than the full image height.
@@ -214,7 +260,8 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
     /** Blur an image in one direction (x or y) by a Gaussian, using multiple threads on multiprocessor machines
      * @param ip        The Image with the original data where also the result will be stored
      * @param sigma     Standard deviation of the Gaussian
-     * @param accuracy  Accuracy of kernel, should not be > 0.02
+     * @param accuracy  Accuracy of kernel, should not be > 0.02. With a recursive filter
+     *                  (see setMethod), selects its order and the pixels read outside the roi.
      * @param xDirection True for bluring in x direction, false for y direction
      * @param extraLines Number of lines (parallel to the blurring direction) 
      *                  below and above the roi bounds that should be processed.
@@ -224,6 +271,7 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         
         final int UPSCALE_K_RADIUS = 2;                     //number of pixels to add for upscaling
         final double MIN_DOWNSCALED_SIGMA = 4.;             //minimum standard deviation in the downscaled image
+        final double MAX_DOWNSCALED_KERNEL_RATIO = 2.;      //RECURSIVE: downscaling is faster up to this kernel radius/reduceBy
         final float[] pixels = (float[])ip.getPixels();
         final int width = ip.getWidth();
         final int height = ip.getHeight();
@@ -243,17 +291,26 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         final int writeTo = xDirection ? roi.x+roi.width : roi.y+roi.height;
         
         /* large radius (sigma): scale down, then convolve, then scale up */
-        final boolean doDownscaling = sigma > 2*MIN_DOWNSCALED_SIGMA + 0.5;
-        final int reduceBy = doDownscaling ?                //downscale by this factor
+        final boolean canDownscale = sigma > 2*MIN_DOWNSCALED_SIGMA + 0.5;
+        final int reduce = canDownscale ?                   //downscale by this factor
                 Math.min((int)Math.floor(sigma/MIN_DOWNSCALED_SIGMA), length)
                 : 1;
         /* Downscaling and upscaling blur the image a bit - we have to correct the standard
          * deviation for this:
          * Downscaling gives std devation sigma = 1/sqrt(3); upscale gives sigma = 1/2 (in downscaled pixels).
          * All sigma^2 values add to full sigma^2, which should be the desired value  */
-        final double sigmaGauss = doDownscaling ?
-                Math.sqrt(sigma*sigma/(reduceBy*reduceBy) - 1./3. - 1./4.)
+        final double sigmaDownscaled = canDownscale ?
+                Math.sqrt(sigma*sigma/(reduce*reduce) - 1./3. - 1./4.)
                 : sigma;
+        /* recursive filter: the computing time does not depend on sigma. With strong
+         * downscaling, a convolution with the short downscaled kernel is faster */
+        final boolean useRecursive = method==RECURSIVE && sigma>=1 && (!canDownscale ||
+                Math.ceil(sigmaDownscaled*Math.sqrt(-2*Math.log(accuracy)))+1 > MAX_DOWNSCALED_KERNEL_RATIO*reduce);
+        final double[] recursiveCoeffs = useRecursive ?
+                makeRecursiveCoefficients(sigma, getRecursiveOrder(accuracy)) : null;
+        final boolean doDownscaling = canDownscale && !useRecursive;
+        final int reduceBy = doDownscaling ? reduce : 1;
+        final double sigmaGauss = doDownscaling ? sigmaDownscaled : sigma;
         final int maxLength = doDownscaling ?
                 (length+reduceBy-1)/reduceBy + 2*(UPSCALE_K_RADIUS + 1) //downscaled line can't be longer
                 : length;
@@ -270,8 +327,9 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         final float[] downscaleKernel = doDownscaling ? makeDownscaleKernel(reduceBy) : null;
         final float[] upscaleKernel = doDownscaling ? makeUpscaleKernel(reduceBy) : null;
 
-        int numThreads1 = Math.min(Prefs.getThreads(), lineTo-lineFrom);
-        int numThreads2 = (int)((lineTo - lineFrom)*(long)(writeTo - writeFrom)*gaussKernel[0].length/
+        int numThreads1 = Math.min(this.numThreads, lineTo-lineFrom);
+        int costPerPoint = recursiveCoeffs!=null ? recursiveCoeffs.length : gaussKernel[0].length;
+        int numThreads2 = (int)((lineTo - lineFrom)*(long)(writeTo - writeFrom)*costPerPoint/
                 (doDownscaling ? 8000 : 16000)) + 1; //use fewer threads if a small task
         final int numThreads = Math.min(numThreads1, numThreads2);
         final Callable[] callables = new Callable[numThreads];
@@ -280,7 +338,7 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
            
         for ( int t = 0; t < numThreads; t++ ) {
             final float[] cache1 = new float[newLength];  //holds data before convolution (after downscaling, if any)
-            final float[] cache2 = doDownscaling ? new float[newLength] : null;  //holds data after convolution
+            final float[] cache2 = doDownscaling || recursiveCoeffs!=null ? new float[newLength] : null;  //holds data after convolution
             
             callables[t] = new Callable() {
                 final public Void call() { /*try{*/
@@ -299,6 +357,11 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
                             downscaleLine(pixels, cache1, downscaleKernel, reduceBy, pixel0, unscaled0, length, pointInc, newLength);
                             convolveLine(cache1, cache2, gaussKernel, 0, newLength, 1, newLength-1, 0, 1);
                             upscaleLine(cache2, pixels, upscaleKernel, reduceBy, pixel0, unscaled0, writeFrom, writeTo, pointInc);
+                        } else if (recursiveCoeffs != null) {
+                            int p = pixel0 + readFrom*pointInc;
+                            for (int i=readFrom; i<readTo; i++ ,p+=pointInc)
+                                cache1[i] = pixels[p];
+                            recursiveLine(cache1, cache2, pixels, recursiveCoeffs, readFrom, readTo, writeFrom, writeTo, pixel0, pointInc);
                         } else {
                             int p = pixel0 + readFrom*pointInc;
                             for (int i=readFrom; i<readTo; i++ ,p+=pointInc)
@@ -508,6 +571,164 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         }
     }
 
+    /** Filter a line with a recursive filter approximating a Gaussian and write to the pixels
+     * array of a FloatProcessor (as a row or column or part thereof). The output is the sum
+     * of a causal filter (running in positive direction, including the current point) and
+     * an anticausal one (running in negative direction). Points outside readFrom ... readTo-1
+     * are replaced by the nearest edge points; thus the filters start in the steady state for
+     * the values at the edges.
+     *
+     * @param input     Input array containing the line, elements readFrom ... readTo-1
+     * @param cache     Array for the output of the causal filter, of the same length
+     * @param pixels    Float array for output, can be the pixels of a FloatProcessor
+     * @param coeffs    Filter coefficients, as created by makeRecursiveCoefficients
+     * @param readFrom  First array element of the line that should be read
+     * @param readTo    Last array element+1 of the line that should be read
+     * @param writeFrom Index of the first point in the line that should be written
+     * @param writeTo   Index+1 of the last point in the line that should be written
+     * @param point0    Array index of first element of the 'line' in pixels (i.e., lineNumber * lineInc)
+     * @param pointInc  Increment of the pixels array index to the next point
+     */
+    final static private void recursiveLine(final float[] input, final float[] cache, final float[] pixels, final double[] coeffs,
+            final int readFrom, final int readTo, final int writeFrom, final int writeTo, final int point0, final int pointInc) {
+        final double n0 = coeffs[0], n1 = coeffs[1], n2 = coeffs[2], n3 = coeffs[3];
+        final double d1 = coeffs[4], d2 = coeffs[5], d3 = coeffs[6], d4 = coeffs[7];
+        final double m1 = coeffs[8], m2 = coeffs[9], m3 = coeffs[10], m4 = coeffs[11];
+        final double sumD = 1 + d1 + d2 + d3 + d4;
+        // causal filter, starting in the steady state for the first point
+        double x1 = input[readFrom], x2 = x1, x3 = x1, x4;
+        double y1 = x1*(n0 + n1 + n2 + n3)/sumD, y2 = y1, y3 = y1, y4 = y1;
+        for (int i=readFrom; i<readTo; i++) {
+            double x0 = input[i];
+            double y0 = n0*x0 + n1*x1 + n2*x2 + n3*x3 - d4*y4 - d3*y3 - d2*y2 - d1*y1;
+            cache[i] = (float)y0;
+            x3 = x2; x2 = x1; x1 = x0;
+            y4 = y3; y3 = y2; y2 = y1; y1 = y0;
+        }
+        // anticausal filter, starting in the steady state for the last point, added to the causal one
+        x1 = input[readTo-1]; x2 = x1; x3 = x1; x4 = x1;
+        y1 = x1*(m1 + m2 + m3 + m4)/sumD; y2 = y1; y3 = y1; y4 = y1;
+        int p = point0 + (readTo-1)*pointInc;
+        for (int i=readTo-1; i>=readFrom; i--, p-=pointInc) {
+            double y0 = m1*x1 + m2*x2 + m3*x3 + m4*x4 - d4*y4 - d3*y3 - d2*y2 - d1*y1;
+            if (i>=writeFrom && i<writeTo)
+                pixels[p] = (float)(cache[i] + y0);
+            x4 = x3; x3 = x2; x2 = x1; x1 = input[i];
+            y4 = y3; y3 = y2; y2 = y1; y1 = y0;
+        }
+    }
+
+    /** Returns the order of the recursive filter used for a given accuracy: 3 (Young and
+     *  van Vliet) for accuracy >= RECURSIVE_ORDER3_ACCURACY, otherwise 4 (Deriche) */
+    public static int getRecursiveOrder(double accuracy) {
+        return accuracy >= RECURSIVE_ORDER3_ACCURACY ? 3 : 4;
+    }
+
+    /** Create the coefficients of a recursive filter approximating a Gaussian with standard
+     *  deviation sigma, as a sum of a causal and an anticausal filter:
+     *  <pre>
+     *  causal[i] = n0*x[i] + n1*x[i-1] + ... - d1*causal[i-1] - d2*causal[i-2] - ...
+     *  anticausal[i] = m1*x[i+1] + m2*x[i+2] + ... - d1*anticausal[i+1] - d2*anticausal[i+2] - ...
+     *  </pre>
+     *  With order 3, the poles are those of the filter of Young and van Vliet, Signal
+     *  Processing 44, 139 (1995); with order 4, the impulse response is the one of Deriche
+     *  (see RECURSIVE_PARAMS). Both are normalized to a sum of 1 over the kernel.
+     * @param sigma     Standard deviation, in pixels; should be 1 or more
+     * @param order     3 or 4, see getRecursiveOrder
+     * @return          The coefficients n0...n3, d1...d4, m1...m4 (with n3=d4=m4=0 for order 3)
+     */
+    public static double[] makeRecursiveCoefficients(double sigma, int order) {
+        double[] zRe = new double[order], zIm = new double[order];  //poles
+        double[] aRe = new double[order], aIm = new double[order];  //amplitudes of the exponentials z^x
+        if (order == 3) {
+            // poles q/(m0+q) and q/(m1+q +/- i*m2); impulse response from the residues of
+            // 1/(D(z)*D(1/z)), where D(z) = (1 - z0/z)(1 - z1/z)(1 - z2/z) is the causal denominator
+            double q = sigma >= 2.5 ? 0.98711*sigma - 0.96330 : 3.97156 - 4.14554*Math.sqrt(1 - 0.26891*sigma);
+            double m0 = 1.16680, m1 = 1.10783, m2 = 1.40586;
+            double norm = (m1+q)*(m1+q) + m2*m2;
+            zRe[0] = q/(m0+q);
+            zRe[1] = zRe[2] = q*(m1+q)/norm;
+            zIm[1] = -q*m2/norm;
+            zIm[2] = -zIm[1];
+            for (int k=0; k<order; k++) {
+                double pRe = 1, pIm = 0;            //product of the factors of the denominator
+                for (int j=0; j<order; j++) {
+                    double fRe, fIm;
+                    if (j != k) {                   //1 - z[j]/z[k]
+                        double abs2 = zRe[k]*zRe[k] + zIm[k]*zIm[k];
+                        fRe = 1 - (zRe[j]*zRe[k] + zIm[j]*zIm[k])/abs2;
+                        fIm = -(zIm[j]*zRe[k] - zRe[j]*zIm[k])/abs2;
+                        double re = pRe*fRe - pIm*fIm;
+                        pIm = pRe*fIm + pIm*fRe;
+                        pRe = re;
+                    }
+                    fRe = 1 - (zRe[j]*zRe[k] - zIm[j]*zIm[k]);  //1 - z[j]*z[k]
+                    fIm = -(zRe[j]*zIm[k] + zIm[j]*zRe[k]);
+                    double re = pRe*fRe - pIm*fIm;
+                    pIm = pRe*fIm + pIm*fRe;
+                    pRe = re;
+                }
+                double abs2 = pRe*pRe + pIm*pIm;
+                aRe[k] = pRe/abs2;
+                aIm[k] = -pIm/abs2;
+            }
+        } else if (order == 4) {
+            double[] params = RECURSIVE_PARAMS;
+            for (int k=0; k<order; k+=2) {
+                double a0 = params[2*k], a1 = params[2*k+1], w = params[2*k+2]/sigma, b = params[2*k+3]/sigma;
+                zRe[k] = zRe[k+1] = Math.exp(-b)*Math.cos(w);
+                zIm[k] = Math.exp(-b)*Math.sin(w);
+                zIm[k+1] = -zIm[k];
+                aRe[k] = aRe[k+1] = 0.5*a0;             //a0*cos + a1*sin = Re((a0 - i*a1)*exp(i*w*x))
+                aIm[k] = -0.5*a1;
+                aIm[k+1] = 0.5*a1;
+            }
+        } else
+            throw new IllegalArgumentException("Invalid order: "+order);
+        // causal filter: sum of a[k]/(1 - z[k]/z) = (n0 + n1/z + ...)/(1 + d1/z + ...)
+        double[] dRe = new double[order+1], dIm = new double[order+1];
+        double[] nRe = new double[order], nIm = new double[order];
+        dRe[0] = 1;
+        for (int k=0; k<order; k++)
+            multiplyByFactor(dRe, dIm, k+1, zRe[k], zIm[k]);
+        for (int k=0; k<order; k++) {
+            double[] pRe = new double[order], pIm = new double[order];
+            pRe[0] = aRe[k];
+            pIm[0] = aIm[k];
+            for (int j=0, degree=0; j<order; j++)
+                if (j != k)
+                    multiplyByFactor(pRe, pIm, ++degree, zRe[j], zIm[j]);
+            for (int j=0; j<order; j++) {
+                nRe[j] += pRe[j];
+                nIm[j] += pIm[j];
+            }
+        }
+        // anticausal filter: the same without the point x[i] itself, i.e., numerator n - n0*d
+        double[] coeffs = new double[12];
+        double sumN = 0, sumD = 1;
+        for (int k=0; k<order; k++) {
+            coeffs[k] = nRe[k];
+            coeffs[4+k] = dRe[k+1];
+            coeffs[8+k] = (k+1<order ? nRe[k+1] : 0) - nRe[0]*dRe[k+1];
+            sumN += nRe[k];
+            sumD += dRe[k+1];
+        }
+        double sum = 2*sumN/sumD - nRe[0];          //sum over the kernel: causal + anticausal
+        for (int k=0; k<order; k++) {
+            coeffs[k] /= sum;
+            coeffs[8+k] /= sum;
+        }
+        return coeffs;
+    }
+
+    /** Multiplies the complex polynomial p[0] + p[1]*x + ... + p[degree-1]*x^(degree-1) by (1 - z*x) */
+    final static private void multiplyByFactor(double[] pRe, double[] pIm, int degree, double zRe, double zIm) {
+        for (int j=degree; j>=1; j--) {
+            pRe[j] -= zRe*pRe[j-1] - zIm*pIm[j-1];
+            pIm[j] -= zRe*pIm[j-1] + zIm*pRe[j-1];
+        }
+    }
+
     /** Create a 1-dimensional normalized Gaussian kernel with standard deviation sigma
      *  and the running sum over the kernel
      *  Note: this is one side of the kernel only, not the full kernel as used by the
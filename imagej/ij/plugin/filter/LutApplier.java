@@ -7,6 +7,7 @@ import ij.util.*;
 import ij.plugin.frame.ContrastAdjuster;
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plugin implements the Image/Lookup Tables/Apply LUT command. */
 public class LutApplier implements PlugInFilter {
@@ -79,15 +80,7 @@ public class LutApplier implements PlugInFilter {
 				return;
 			}
 			if (flags==PlugInFilter.DOES_STACKS) {
-				int current = imp.getCurrentSlice();
-				for (int i=1; i<=imp.getStackSize(); i++) {
-					imp.setSlice(i);
-					ip = imp.getProcessor();
-					if (mask!=null) ip.snapshot();
-					ip.applyTable(table);
-					ip.reset(mask);
-				}
-				imp.setSlice(current);
+				applyTable(stack, table, ip.getRoi(), mask);
 				Undo.reset();
 			} else {
 				ip.applyTable(table);
@@ -102,6 +95,33 @@ public class LutApplier implements PlugInFilter {
 		resetContrastAdjuster();
 	}
 	
+	/** Applies the table to all slices of the stack. The slices are processed in
+		parallel threads, each with its own ImageProcessor (and, with a
+		non-rectangular selection, its own snapshot for restoring outside the mask). */
+	private void applyTable(final ImageStack stack, final int[] table, final Rectangle roi, final ImageProcessor mask) {
+		final int n = stack.getSize();
+		final AtomicInteger nextSlice = new AtomicInteger(1);
+		final AtomicInteger slicesDone = new AtomicInteger();
+		Thread[] threads = ThreadUtil.createThreadArray(Math.min(Prefs.getThreads(), n));
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					ImageProcessor ip2 = stack.getProcessor(1);
+					ip2.setRoi(roi);
+					ip2.setMask(mask);
+					for (int i=nextSlice.getAndIncrement(); i<=n; i=nextSlice.getAndIncrement()) {
+						ip2.setPixels(stack.getPixels(i));
+						if (mask!=null) ip2.snapshot();
+						ip2.applyTable(table);
+						ip2.reset(mask);
+						IJ.showProgress(slicesDone.incrementAndGet(), n);
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+	}
+
 	private void resetContrastAdjuster() {
 		ContrastAdjuster.update();
 	}
@@ -8,6 +8,7 @@ import ij.measure.Calibration;
 import ij.macro.Interpreter;
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PlugInFilterRunner implements Runnable, DialogListener {
 	private String command;					// the command, can be but need not be the name of the PlugInFilter
@@ -29,7 +30,8 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 	private Hashtable<Thread, ImageProcessor> roisForThread;// gives ROI that a given thread should process
 	Hashtable sliceForThread = new Hashtable(); // here the stack slice currently processed is stored.
 	private int nPasses;						// the number of calls to the run(ip) method of the filter
-	private int pass;						// passes done so far
+	private final AtomicInteger pass = new AtomicInteger(); // passes done so far (by all threads)
+	private AtomicInteger nextSlice;		// next slice to be taken by a thread when processing a stack in parallel
 	private boolean doStack;
 
 	/** The constructor runs a PlugInFilter or ExtendedPlugInFilter by calling its
@@ -97,7 +99,7 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		if (doStack || processedAsPreview==0) {				// if processing during preview was not enough
 			//IJ.showStatus(command + (doStack ? " (Stack)..." : "..."));
 			ImageProcessor ip = imp.getProcessor();
-			pass = 0;
+			pass.set(0);
 			if (!doStack) {	   // single image
 				FloatProcessor fp = null;
 				prepareProcessor(ip, imp);
@@ -133,27 +135,32 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 				if ((flags&PlugInFilter.PARALLELIZE_STACKS)!=0) {
 					threads = Prefs.getThreads(); // multithread support for multiprocessor machines
 					if (threads>slicesToDo) threads = slicesToDo;
-					if (threads>1) slicesForThread = new Hashtable<Thread, int[]>(threads-1);
 				}
-				int startSlice = 1;
-				for (int i=1; i<threads; i++) {				// setup the background threads
-					int endSlice = (slicesToDo*i)/threads;
-					if (processedAsPreview!=0 && processedAsPreview<=endSlice) endSlice++;
-					Thread bgThread = new Thread(this, command+" "+startSlice+"-"+endSlice);
-					slicesForThread.put(bgThread, new int[] {startSlice, endSlice});
-					bgThread.start();
-					//IJ.log("Stack: Thread for slices "+startSlice+"-"+endSlice+" started");
-					startSlice = endSlice+1;
+				if (threads>1) {
+					// all threads take the next free slice from a shared counter, so slices that
+					// take longer (or threads that get less CPU) do not leave other cores idle
+					nextSlice = new AtomicInteger(1);
+					slicesForThread = new Hashtable<Thread, int[]>(threads-1);
+					for (int i=1; i<threads; i++) {			// setup the background threads
+						Thread bgThread = new Thread(this, command+" (stack thread "+i+")");
+						slicesForThread.put(bgThread, new int[] {1, slices});
+						bgThread.start();
+					}
 				}
-				//IJ.log("Stack: Slices "+startSlice+"-"+slices+" by main thread");
-				processStack(startSlice, slices);			// the current thread does the rest
-				if (slicesForThread != null) {
-					while (slicesForThread.size()>0) {	  // for all other threads:
-						Thread theThread = (Thread)slicesForThread.keys().nextElement();
-						try {
-							theThread.join();				// wait until thread has finished
-						} catch (InterruptedException e) {}
-						slicesForThread.remove(theThread);	// and remove it from the list.
+				try {
+					processStack(1, slices);			// the current thread takes part, too
+				} finally {
+					if (slicesForThread != null) {
+						nextSlice.set(slices+1);			// after an exception, the other threads stop after their current slice
+						while (slicesForThread.size()>0) {	  // for all other threads:
+							Thread theThread = (Thread)slicesForThread.keys().nextElement();
+							try {
+								theThread.join();				// wait until thread has finished
+							} catch (InterruptedException e) {}
+							slicesForThread.remove(theThread);	// and remove it from the list.
+						}
+						slicesForThread = null;
+						nextSlice = null;
 					}
 				}
 			}
@@ -180,6 +187,10 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 
 	/** Process a stack or part of it. The slice given by class variable
 	 *	processedAsPreview remains unchanged.
+	 *	When processing in parallel threads (class variable nextSlice is set),
+	 *	each thread calls this method with the full range and takes the next
+	 *	unprocessed slice from nextSlice. Each thread has its own ImageProcessor
+	 *	and its own snapshot buffer, which is reused for all of its slices.
 	 * @param firstSlice Slice number of the first slice to be processed
 	 * @param endSlice	 Slice number of the last slice to be processed
 	 */
@@ -189,15 +200,28 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		prepareProcessor(ip, imp);
 		ip.setLineWidth(Line.getWidth());		//in contrast to imp.getProcessor, stack.getProcessor does not do this
 		FloatProcessor fp = null;
-		int slices = imp.getNSlices();
-		for (int i=firstSlice; i<=endSlice; i++) {
+		boolean convertToFloat = (flags&PlugInFilter.CONVERT_TO_FLOAT)!=0 && !(ip instanceof FloatProcessor);
+		boolean doMasking = (flags&PlugInFilter.SUPPORTS_MASKING)!=0 && ip.getMask() != null;
+		// processOneImage takes a new snapshot of each slice in these cases, so the buffer may be reused
+		boolean snapshotEachSlice = doMasking || ((flags&PlugInFilter.SNAPSHOT)!=0 && !convertToFloat);
+		Object snapshot = null;
+		AtomicInteger counter = nextSlice;
+		for (int i=counter!=null?counter.getAndIncrement():firstSlice; i<=endSlice;
+				i=counter!=null?counter.getAndIncrement():i+1) {
 			if (i != processedAsPreview) {
 				announceSliceNumber(i);
-				ip.setPixels(stack.getPixels(i));
+				Object pixels = stack.getPixels(i);
+				ip.setPixels(pixels);
 				ip.setSliceNumber(i);
-				ip.setSnapshotPixels(null);
+				ip.setSnapshotPixels(snapshotEachSlice?snapshot:null);
 				processOneImage(ip, fp, null);
-				if (IJ.escapePressed()) {IJ.beep(); break;}
+				if (snapshotEachSlice && ip.getSnapshotPixels()!=pixels)	// (unless the filter has swapped the arrays)
+					snapshot = ip.getSnapshotPixels();
+				if (IJ.escapePressed()) {
+					if (counter==null || counter.getAndSet(endSlice+1)<=endSlice)
+						IJ.beep();						// only once, not for every thread
+					break;
+				}
 			}
 		}
 	}
@@ -250,11 +274,11 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 				fp.setSliceNumber(ip.getSliceNumber());
 				if (thread.isInterrupted()) return;			// interrupt processing for preview?
 				if ((flags&PlugInFilter.SNAPSHOT)!=0) fp.snapshot();
-				if (doStack) IJ.showProgress(pass/(double)nPasses);
+				if (doStack) IJ.showProgress(pass.get()/(double)nPasses);
 				((PlugInFilter)theFilter).run(fp);
 				if (thread.isInterrupted()) return;
-				//IJ.log("slice="+getSliceNumber()+" pass="+pass+"/"+nPasses);
-				pass++;
+				//IJ.log("slice="+getSliceNumber()+" pass="+pass.get()+"/"+nPasses);
+				pass.incrementAndGet();
 				if ((flags&PlugInFilter.NO_CHANGES)==0) {
 					ipChanged = true;
 					ip.setPixels(i, fp);
@@ -262,9 +286,9 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 			}
 		} else {
 			if ((flags&PlugInFilter.NO_CHANGES)==0) ipChanged = true;
-				if (doStack) IJ.showProgress(pass/(double)nPasses);
+				if (doStack) IJ.showProgress(pass.get()/(double)nPasses);
 			((PlugInFilter)theFilter).run(ip);
-			pass++;
+			pass.incrementAndGet();
 		}
 
 		if (thread.isInterrupted()) return;
@@ -291,10 +315,10 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 				fp.setSliceNumber(ip.getSliceNumber());
 				if (thread.isInterrupted()) return;			// interrupt processing for preview?
 				if ((flags&PlugInFilter.SNAPSHOT)!=0) fp.snapshot();
-				if (doStack) IJ.showProgress(pass/(double)nPasses);
+				if (doStack) IJ.showProgress(pass.get()/(double)nPasses);
 				processChannelUsingThreads(fp);
 				if (thread.isInterrupted()) return;
-				//IJ.log("slice="+getSliceNumber()+" pass="+pass+"/"+nPasses);
+				//IJ.log("slice="+getSliceNumber()+" pass="+pass.get()+"/"+nPasses);
 				if ((flags&PlugInFilter.NO_CHANGES)==0) {
 					ipChanged = true;
 					ip.setPixels(i, fp);
@@ -302,7 +326,7 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 			}
 		} else {
 			if ((flags&PlugInFilter.NO_CHANGES)==0) ipChanged = true;
-				if (doStack) IJ.showProgress(pass/(double)nPasses);
+				if (doStack) IJ.showProgress(pass.get()/(double)nPasses);
 			processChannelUsingThreads(ip);
 		}
 		if (thread.isInterrupted()) return;
@@ -338,7 +362,7 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 			IJ.log("  main thread "+y1+"-"+(roi.y+roi.height));
 		Rectangle roi2 = new Rectangle(roi.x, y1, roi.width, roi.y+roi.height-y1);
 		((PlugInFilter)theFilter).run(duplicateProcessor(ip, roi2)); 	// current thread does the rest
-		pass++;
+		pass.incrementAndGet();
 		if (roisForThread!=null) {
 			for (Enumeration<Thread> en = roisForThread.keys(); en.hasMoreElements();) {
 				Thread theThread = en.nextElement();
@@ -459,7 +483,13 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 				ip.setSnapshotPixels(null);
 			} else if (slicesForThread!=null && slicesForThread.containsKey(thread)) {
 				int[] range = (int[])slicesForThread.get(thread);
-				processStack(range[0], range[1]);
+				try {
+					processStack(range[0], range[1]);
+				} catch (RuntimeException e) {
+					AtomicInteger counter = nextSlice;
+					if (counter!=null) counter.set(range[1]+1);	// the other threads stop after their current slice
+					throw e;
+				}
 			} else
 				IJ.error("PlugInFilterRunner internal error:\nunsolicited background thread");
 		} catch (Exception err) {
@@ -512,7 +542,7 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 				ipChanged = false;
 				previewDataOk = false;
 				long startTime = System.currentTimeMillis();
-				pass = 0;
+				pass.set(0);
 				if (theFilter instanceof ExtendedPlugInFilter)
 					((ExtendedPlugInFilter)theFilter).setNPasses(nPasses); //this should reset pass in the filter
 				if (thread.isInterrupted())
@@ -26,7 +26,16 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			OPEN=8, CLOSE=9, TOP_HAT=10; //when adding a new filter, set HIGHEST_FILTER below.
 	public static final int BRIGHT_OUTLIERS = 0, DARK_OUTLIERS = 1;
 	private static final String[] outlierStrings = {"Bright","Dark"};
+	/** Kernel shapes: CIRCLE is the circular kernel of makeLineRadii(radius); SQUARE has the same
+	 *  width and height, and OCTAGON about the same number of pixels as the circle. With SQUARE and
+	 *  OCTAGON kernels, the computing time of MIN, MAX, OPEN, CLOSE and TOP_HAT does not increase
+	 *  with the radius. */
+	public static final int CIRCLE = 0, SQUARE = 1, OCTAGON = 2;
+	private static final String[] shapeStrings = {"Circle","Square","Octagon"};
 	private static int HIGHEST_FILTER = TOP_HAT;
+	/** Integer (8-bit, 16-bit, RGB) images are median-filtered with a histogram for kernel radii
+	 *  (in pixels, see makeLineRadii) of at least this value, with 'findNthLowestNumber' otherwise. */
+	private static final int HISTOGRAM_MEDIAN_RADIUS = 2;
 	// Filter parameters
 	private int filterType;
 	private double radius;
@@ -34,12 +43,14 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 	private int whichOutliers;
 	private boolean lightBackground = Prefs.get("bs.background", true); //this and the next for top hat only
 	private boolean dontSubtract;
+	private int kernelShape = CIRCLE;
 	// Remember filter parameters for the next time
 	private static double[] lastRadius = new double[HIGHEST_FILTER+1]; //separate for each filter type
 	private static double lastThreshold = 50.;
 	private static int lastWhichOutliers = BRIGHT_OUTLIERS;
 	private static boolean lastLightBackground = false;
 	private static boolean lastDontSubtract = false;
+	private static int lastKernelShape = CIRCLE;
 	//
 	// F u r t h e r   c l a s s   v a r i a b l e s
 	int flags = DOES_ALL|SUPPORTS_MASKING|KEEP_PREVIEW;
@@ -63,6 +74,11 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		return filterType>=OPEN && filterType<=TOP_HAT;
 	}
 
+	/** MIN, MAX, OPEN, CLOSE, TOPHAT support all kernel shapes in the dialog */
+	private boolean isMinMaxFilter(int filterType) {
+		return filterType==MIN || filterType==MAX || isMultiStepFilter(filterType);
+	}
+
 	/** Setup of the PlugInFilter. Returns the flags specifying the capabilities and needs
 	 * of the filter.
 	 *
@@ -122,6 +138,10 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			radius = lastRadius[filterType]<=0 ? 2 :  lastRadius[filterType];
 			if (filterType!=OUTLIERS)
 				gd.addNumericField("Radius", radius, 1, 6, "pixels");
+			if (isMinMaxFilter(filterType)) {
+				int shape = Macro.getOptions()==null ? lastKernelShape : CIRCLE;
+				gd.addChoice("Kernel", shapeStrings, shapeStrings[shape]);
+			}
 			if (filterType==OUTLIERS) {
 				int digits = imp.getType()==ImagePlus.GRAY32 ? 2 : 0;				
 				gd.addSlider("Radius:", 0.5, 25, radius, 0.5);
@@ -147,6 +167,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			IJ.register(this.getClass());	//protect static class variables (filter parameters) from garbage collection
 			if (Macro.getOptions() == null) { //interactive only: remember parameters entered
 				lastRadius[filterType] = radius;
+				if (isMinMaxFilter(filterType))
+					lastKernelShape = kernelShape;
 				if (filterType == OUTLIERS) {
 					lastThreshold = threshold;
 					lastWhichOutliers = whichOutliers;
@@ -168,6 +190,7 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			double workToDo = size*(double)radius;	//estimate computing time (arb. units)
 			if (filterType==MEAN || filterType==VARIANCE) workToDo *= 0.5;
 			else if (filterType==MEDIAN) workToDo *= radius*0.5;
+			else if (kernelShape!=CIRCLE && isMinMaxFilter(filterType)) workToDo = size*4.0;
 			if (workToDo < 1e6 && imp.getImageStackSize()>=2*numThreads) {
 				numThreads = 1;				//for fast operations, avoid overhead of multi-threading in each image
 				flags |= PARALLELIZE_STACKS;
@@ -178,6 +201,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 
 	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
 		radius = gd.getNextNumber();
+		if (isMinMaxFilter(filterType))
+			kernelShape = gd.getNextChoiceIndex();
 		if (filterType == OUTLIERS) {
 			threshold = gd.getNextNumber();
 			whichOutliers = gd.getNextChoiceIndex();
@@ -216,6 +241,25 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		rank(ip, radius, filterType, 0, 50f);
 	}
 
+	/** Filters an image with a kernel of the given shape, by any method except 'despecle', 'remove outliers', or top-hat
+	 *	@param ip	   The ImageProcessor that should be filtered (all 4 types supported)
+	 *	@param radius  Determines the kernel size, see Process>Filters>Show Circular Masks.
+	 *	@param filterType May be MEAN, MIN, MAX, VARIANCE, MEDIAN, OPEN or CLOSE.
+	 *	@param kernelShape CIRCLE, SQUARE or OCTAGON
+	 */
+	public void rank(ImageProcessor ip, double radius, int filterType, int kernelShape) {
+		setKernelShape(kernelShape);
+		rank(ip, radius, filterType, 0, 50f);
+	}
+
+	/** Sets the kernel shape (CIRCLE, SQUARE or OCTAGON) for the 'rank' methods without
+	 *	a 'kernelShape' argument. The default is CIRCLE. */
+	public void setKernelShape(int kernelShape) {
+		if (kernelShape<CIRCLE || kernelShape>OCTAGON)
+			throw new IllegalArgumentException("Invalid kernel shape: "+kernelShape);
+		this.kernelShape = kernelShape;
+	}
+
 	/** Filters an image by any method except 'despecle' and top-hat (for 'despeckle', use 'median' and radius=1)
 	 * @param ip The image subject to filtering
 	 * @param radius The kernel radius
@@ -243,7 +287,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		Rectangle roi = ip.getRoi();
 		ImageProcessor mask = ip.getMask();
 		Rectangle roi1 = null;
-		int[] lineRadii = makeLineRadii(radius);
+		int[] segments = kernelShape==CIRCLE ? null : makeSegments(radius, kernelShape);
+		int[] lineRadii = segments==null ? makeLineRadii(radius) : makeLineRadii(segments);
 
 		boolean snapshotRequired = (filterType==TOP_HAT && !dontSubtract) ||
 			(isMultiStepFilter(filterType) && (roi.width!=ip.getWidth() || roi.height!=ip.getHeight()));
@@ -281,13 +326,13 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 					ip.setRoi(roi1);
 				}
 			}
-			doFiltering(ip, lineRadii, filterType1, minMaxOutliersSign, threshold, ch, nextY);
+			doFiltering(ip, lineRadii, segments, filterType1, minMaxOutliersSign, threshold, ch, nextY);
 			if (isMultiStepFilter(filterType)) { //open, close, top-hat
 				ip.setRoi(roi);
 				ip.setMask(mask);
 				if (nextY.get() < 0) break;
 				int filterType2 = (minMaxOutliersSign == -1f) ? MAX : MIN;
-				doFiltering(ip, lineRadii, filterType2, -minMaxOutliersSign, threshold, ch, nextY);
+				doFiltering(ip, lineRadii, segments, filterType2, -minMaxOutliersSign, threshold, ch, nextY);
 				if (isImagePart)
 					resetRoiBoundary(ip, roi, roi1);
 			}
@@ -316,7 +361,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 	// Usually, one thread reads reads several lines into the cache, while the others are processing the data.
 	// 'nextY.get()' is set to a large negative number if the main thread has been interrupted (during preview) or ESC pressed.
 	// 'nextY' must not be a class variable because it is also used with one thread (with stack parallelization)
-	private void doFiltering(final ImageProcessor ip, final int[] lineRadii, final int filterType,
+	// Min and max with a kernel made of line segments ('segments' non-null) are done by doMinMax.
+	private void doFiltering(final ImageProcessor ip, final int[] lineRadii, final int[] segments, final int filterType,
 			final float minMaxOutliersSign, final float threshold, final int colorChannel, final AtomicInteger nextY) {
 		Rectangle roi = ip.getRoi();
 		int width = ip.getWidth();
@@ -324,6 +370,12 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		int numThreads = Math.min(roi.height, this.numThreads);
 		if (numThreads==0)
 			return;
+		if (segments!=null && (filterType==MIN || filterType==MAX)) {
+			doMinMax(ip, segments, minMaxOutliersSign, colorChannel, nextY);
+			showProgress(1.0, ip instanceof ColorProcessor);
+			pass++;
+			return;
+		}
 
 		int kHeight = kHeight(lineRadii);
 		int kRadius	 = kRadius(lineRadii);
@@ -411,6 +463,14 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		double[] sums = sumFilter ? new double[2] : null;
 		float[] medianBuf1 = (medianFilter||filterType==REMOVE_NAN) ? new float[kNPoints] : null;
 		float[] medianBuf2 = (medianFilter||filterType==REMOVE_NAN) ? new float[kNPoints] : null;
+		int[] histogram = null, coarseHistogram = null;
+		int coarseShift = 0;
+		if (filterType==MEDIAN && !(ip instanceof FloatProcessor) && kRadius>=HISTOGRAM_MEDIAN_RADIUS) {
+			boolean is16bit = ip instanceof ShortProcessor;
+			histogram = new int[is16bit ? 65536 : 256];
+			coarseShift = is16bit ? 8 : 4;
+			coarseHistogram = new int[histogram.length>>coarseShift];
+		}
 
 		boolean smallKernel = kRadius < 2;
 
@@ -506,7 +566,10 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			}
 
 			int cacheLineP = cacheWidth * (y % cacheHeight) + kRadius;	//points to pixel (roi.x, y)
-			filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y,	// F I L T E R
+			if (histogram != null)															// F I L T E R
+				getHistogramRanks(values, roi.width, cache, cachePointers, kNPoints/2, histogram, coarseHistogram, coarseShift);
+			else
+				filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y,
 					sums, medianBuf1, medianBuf2, minMaxOutliersSign, maxValue, isFloat, filterType,
 					smallKernel, sumFilter, minOrMax, minOrMaxOrOutliers, threshold);
 			if (!isFloat)		//Float images: data are written already during 'filterLine'
@@ -515,6 +578,152 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		} // while (true); loop over y (lines)
 	}
 
+	// Minimum or maximum (sign=-1 or +1) with a kernel that is the sum (dilation) of line segments:
+	// horizontal, vertical and the two diagonals, with half lengths segments[0...3].
+	// Implementation: the roi with a border of the kernel radius is copied into a float buffer,
+	// padded with the nearest edge pixels as the cache of doFiltering. Then the buffer is filtered
+	// along the lines in each direction with the van Herk/Gil-Werman algorithm, which needs
+	// 3 comparisons per pixel independent of the segment length. The lines of each direction
+	// are processed in parallel. The main thread checks for abort and shows the progress.
+	private void doMinMax(ImageProcessor ip, int[] segments, final float sign, int colorChannel, final AtomicInteger nextY) {
+		if (nextY.get() < 0 || Thread.currentThread().isInterrupted()) return;
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		Rectangle roi = ip.getRoi();
+		int kRadiusX = segments[0] + segments[2] + segments[3];
+		int kRadiusY = segments[1] + segments[2] + segments[3];
+		final int bufWidth = roi.width + 2*kRadiusX;
+		final int bufHeight = roi.height + 2*kRadiusY;
+		final float[] buf = new float[bufWidth*bufHeight];
+		Object pixels = ip.getPixels();
+		int xmin = roi.x - kRadiusX;
+		int xmax = roi.x + roi.width + kRadiusX;
+		int padLeft = xmin<0 ? -xmin : 0;
+		int padRight = xmax>width? xmax-width : 0;
+		int xminInside = xmin>0 ? xmin : 0;
+		int widthInside = (xmax<width ? xmax : width) - xminInside;
+		for (int by=0; by<bufHeight; by++) {		//read the data, multiplied by 'sign'
+			int y = roi.y - kRadiusY + by;
+			y = y<0 ? 0 : (y>=height ? height-1 : y);
+			readLineToCache(pixels, y*width, xminInside, widthInside, buf, by*bufWidth, padLeft, padRight, colorChannel);
+			for (int p=by*bufWidth; p<(by+1)*bufWidth; p++)
+				buf[p] = Float.isNaN(buf[p]) ? -Float.MAX_VALUE : buf[p]*sign; //NaN is ignored as in getAreaMax
+		}
+		int nDirections = 0;
+		for (int i=0; i<segments.length; i++)
+			if (segments[i] > 0) nDirections++;
+		boolean rgb = ip instanceof ColorProcessor;
+		for (int direction=0, n=0; direction<segments.length; direction++) {
+			final int halfLength = segments[direction];
+			if (halfLength == 0) continue;
+			final int dir = direction;
+			final int nLines = dir==0 ? bufHeight : (dir==1 ? bufWidth : bufWidth+bufHeight-1);
+			final int tempLength = Math.max(bufWidth, bufHeight) + 4*halfLength + 1;
+			final AtomicInteger nextLine = new AtomicInteger();
+			int numThreads = Math.min(nLines, this.numThreads);
+			Callable[] callables = new Callable[numThreads-1];
+			for (int i=0; i<numThreads-1; i++) {
+				callables[i] = new Callable<Void>() {
+					final public Void call() {
+						float[] temp = new float[3*tempLength];
+						for (int line=nextLine.getAndIncrement(); line<nLines && nextY.get()>=0; line=nextLine.getAndIncrement())
+							lineMax(buf, bufWidth, bufHeight, dir, line, halfLength, temp, tempLength);
+						return null;
+					}
+				};
+			}
+			Future[] futures = ThreadUtil.start(callables);
+			float[] temp = new float[3*tempLength];
+			long lastTime = System.currentTimeMillis();
+			for (int line=nextLine.getAndIncrement(); line<nLines && nextY.get()>=0; line=nextLine.getAndIncrement()) {
+				long time = System.currentTimeMillis();
+				if (time-lastTime>100) {
+					lastTime = time;
+					showProgress((n+line/(double)nLines)/nDirections, rgb);
+					if (Thread.currentThread().isInterrupted() || (imp!= null && IJ.escapePressed())) {
+						nextY.set(Integer.MIN_VALUE);
+						break;
+					}
+				}
+				lineMax(buf, bufWidth, bufHeight, dir, line, halfLength, temp, tempLength);
+			}
+			ThreadUtil.joinAll(futures);
+			if (nextY.get() < 0) return;
+			n++;
+		}
+		boolean isFloat = pixels instanceof float[];
+		float[] values = isFloat ? (float[])pixels : new float[roi.width];
+		for (int y=roi.y; y<roi.y+roi.height; y++) {		//write the result
+			int bufP = (y-roi.y+kRadiusY)*bufWidth + kRadiusX;
+			int valuesP = isFloat ? roi.x+y*width : 0;
+			for (int x=0; x<roi.width; x++)
+				values[valuesP+x] = buf[bufP+x]*sign;
+			if (!isFloat)
+				writeLineToPixels(values, pixels, roi.x+y*width, roi.width, colorChannel);
+		}
+	}
+
+	/** Maximum over 2*halfLength+1 points along a line of the buffer, in direction 'dir' (0 horizontal,
+	 *	1 vertical, 2 down and right, 3 down and left). The line number counts the rows (dir=0), columns
+	 *	(dir=1) or diagonals starting at the top row and then those starting at the left or right edge.
+	 *	Points outside the buffer are ignored. 'temp' is used as three arrays of size tempLength, which
+	 *	must be at least the length of the line + 4*halfLength + 1. */
+	private static void lineMax(float[] buf, int bufWidth, int bufHeight, int dir, int line, int halfLength,
+			float[] temp, int tempLength) {
+		int start, step, length;
+		if (dir == 0) {
+			start = line*bufWidth; step = 1; length = bufWidth;
+		} else if (dir == 1) {
+			start = line; step = bufWidth; length = bufHeight;
+		} else {
+			int x = dir==2 ? 0 : bufWidth-1;		//x of the lines starting at the left or right edge
+			int y = 0;
+			if (line < bufWidth)
+				x = line;
+			else
+				y = line - bufWidth + 1;
+			start = x + y*bufWidth;
+			if (dir == 2) {
+				step = bufWidth+1;
+				length = Math.min(bufWidth-x, bufHeight-y);
+			} else {
+				step = bufWidth-1;
+				length = Math.min(x+1, bufHeight-y);
+			}
+		}
+		// van Herk/Gil-Werman: in blocks of the kernel size, the running maximum from the block start
+		// ('left') and to the block end ('right'); any kernel-sized range covers the end of one block
+		// and the start of the next one.
+		int kSize = 2*halfLength + 1;
+		int n = ((length + 2*halfLength + kSize - 1)/kSize)*kSize;	//data with padding, full blocks only
+		int left = tempLength, right = 2*tempLength;				//offsets of these arrays in 'temp'
+		for (int i=0; i<halfLength; i++)
+			temp[i] = Float.NEGATIVE_INFINITY;
+		for (int i=0, p=start; i<length; i++, p+=step)
+			temp[halfLength+i] = buf[p];
+		for (int i=halfLength+length; i<n; i++)
+			temp[i] = Float.NEGATIVE_INFINITY;
+		for (int blockStart=0; blockStart<n; blockStart+=kSize) {
+			float max = Float.NEGATIVE_INFINITY;
+			for (int i=blockStart; i<blockStart+kSize; i++) {
+				float v = temp[i];
+				if (max < v) max = v;
+				temp[left+i] = max;
+			}
+			max = Float.NEGATIVE_INFINITY;
+			for (int i=blockStart+kSize-1; i>=blockStart; i--) {
+				float v = temp[i];
+				if (max < v) max = v;
+				temp[right+i] = max;
+			}
+		}
+		for (int i=0, p=start; i<length; i++, p+=step) {
+			float vRight = temp[right+i];
+			float vLeft = temp[left+i+2*halfLength];
+			buf[p] = vRight > vLeft ? vRight : vLeft;
+		}
+	}
+
 	//returns the minimum of the array, which may be modified concurrently, but not less than 0
 	private int arrayMinNonNegative(AtomicIntegerArray array) {
 		int min = Integer.MAX_VALUE;
@@ -751,6 +960,70 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			return guess;
 	}
 
+	/** Get the value with a given rank (0 for the minimum, kNPoints/2 for the median) within
+	 *	the kernel area for all pixels of a line of integer data, with a histogram of the kernel
+	 *	area. As for the sums in addSideSums, this histogram is updated by adding the values at
+	 *	the right border inside and removing those at the left border outside the kernel area,
+	 *	so the time per pixel depends on the kernel height, not on the kernel area.
+	 *	The search for the value with the given rank starts at the value of the previous pixel,
+	 *	and skips ranges of 2^coarseShift values using the coarse histogram.
+	 *	Both histograms must be all zero initially, and they are all zero at the end.
+	 *	Output is written to values[0] ... values[width-1] */
+	private static void getHistogramRanks(float[] values, int width, float[] cache, int[] kernel, int rank,
+			int[] histogram, int[] coarse, int coarseShift) {
+		int coarseBins = 1<<coarseShift;
+		int value = 0;	//the output value of the previous pixel
+		int below = 0;	//number of values < 'value' in the kernel area
+		for (int kk=0; kk<kernel.length; kk++) {	//the kernel area of the first pixel
+			for (int p=kernel[kk++]; p<=kernel[kk]; p++) {
+				int v = (int)cache[p];
+				histogram[v]++;
+				coarse[v>>coarseShift]++;
+			}
+		}
+		for (int x=0; x<width; x++) {
+			if (x > 0) {
+				for (int kk=0; kk<kernel.length; /*k++;k++ below*/) {
+					int v = (int)cache[kernel[kk++]+(x-1)];		//this value is not in the kernel area any more
+					histogram[v]--;
+					coarse[v>>coarseShift]--;
+					if (v < value) below--;
+					v = (int)cache[kernel[kk++]+x];				//this value comes into the kernel area
+					histogram[v]++;
+					coarse[v>>coarseShift]++;
+					if (v < value) below++;
+				}
+			}
+			while (below > rank) {							//search downwards
+				int coarseBelow = (value&(coarseBins-1))==0 ? coarse[(value>>coarseShift)-1] : -1;
+				if (coarseBelow >= 0 && below-coarseBelow > rank) {
+					value -= coarseBins;
+					below -= coarseBelow;
+				} else {
+					value--;
+					below -= histogram[value];
+				}
+			}
+			while (below+histogram[value] <= rank) {		//search upwards
+				if ((value&(coarseBins-1))==0 && below+coarse[value>>coarseShift] <= rank) {
+					below += coarse[value>>coarseShift];
+					value += coarseBins;
+				} else {
+					below += histogram[value];
+					value++;
+				}
+			}
+			values[x] = value;
+		}
+		for (int kk=0; kk<kernel.length; kk++) {	//clear the histograms for the next line
+			for (int p=kernel[kk++]+width-1; p<=kernel[kk]+width-1; p++) {
+				int v = (int)cache[p];
+				histogram[v]--;
+				coarse[v>>coarseShift]--;
+			}
+		}
+	}
+
 	/** Get median of values within kernel-sized neighborhood.
 	 *	NaN data values are ignored; the output is NaN only if there are only NaN values in the
 	 *	kernel-sized neighborhood */
@@ -889,6 +1162,49 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		return kernel;
 	}
 
+	/** Kernel of a given shape (SQUARE or OCTAGON) as the sum (dilation) of line segments
+	 *	through the center, with the half lengths for the directions horizontal, vertical,
+	 *	diagonal down-right and diagonal down-left in elements 0-3 of the output array.
+	 *	The square has the width of the circular kernel of the given radius. The
+	 *	octagon, the sum of a square and a diamond, has about the same area as the
+	 *	circle; its width is about 0.97 times the width of the circle. */
+	protected int[] makeSegments(double radius, int kernelShape) {
+		int[] lineRadii = makeLineRadii(radius);
+		if (kernelShape == SQUARE) {
+			int kRadius = kRadius(lineRadii);
+			return new int[] {kRadius, kRadius, 0, 0};
+		}
+		// octagon with inner radius r, area 8*tan(pi/8)*r^2; with horizontal&vertical
+		// segments of length 2*a+1 and diagonal ones of 2*b+1 (b steps in x&y each)
+		double r = Math.sqrt(kNPoints(lineRadii)/(8*Math.tan(Math.PI/8)));
+		int b = (int)Math.round(r*(1-Math.sqrt(0.5)));
+		int a = (int)Math.round(r*(Math.sqrt(2)-1));
+		if (a < 1) a = 1;	//otherwise the diagonals alone would leave holes in the kernel
+		return new int[] {a, a, b, b};
+	}
+
+	/** Create the kernel (in the format of makeLineRadii(double radius)) for the sum of line segments
+	 *	given by makeSegments. Note that the diagonal segments of length 2*b+1 together
+	 *	make a diamond-shaped kernel with holes (every second pixel), which are filled
+	 *	by the horizontal segments (with half length a>=1) */
+	protected int[] makeLineRadii(int[] segments) {
+		int a = segments[0], aY = segments[1], b = segments[2];
+		int kRadius = a + 2*b;
+		int kRadiusY = aY + 2*b;
+		int kHeight = 2*kRadiusY + 1;
+		int[] kernel = new int[2*kHeight + 2];
+		int nPoints = 0;
+		for (int y=-kRadiusY; y<=kRadiusY; y++) {
+			int dx = kRadius - Math.max(0, Math.abs(y)-aY);
+			kernel[2*(y+kRadiusY)]	 = -dx;
+			kernel[2*(y+kRadiusY)+1] =  dx;
+			nPoints += 2*dx+1;
+		}
+		kernel[kernel.length-2] = nPoints;
+		kernel[kernel.length-1] = kRadius;
+		return kernel;
+	}
+
 	//kernel height
 	private int kHeight(int[] lineRadii) {
 		return (lineRadii.length-2)/2;
@@ -138,12 +138,17 @@ public class StackProcessor {
 	public ImageStack crop(int x, int y, int width, int height) {
 	    ImageStack stack2 = new ImageStack(width, height);
  		ImageProcessor ip2;
+		Rectangle r = new Rectangle(x, y, width, height);
 		for (int i=1; i<=nSlices; i++) {
-			ImageProcessor ip1 = stack.getProcessor(1);
-			ip1.setRoi(x, y, width, height);
 			String label = stack.getSliceLabel(1);
+			if (stack instanceof VirtualStack)
+				ip2 = ((VirtualStack)stack).getProcessor(1, r); // reads only the part inside 'r'
+			else {
+				ImageProcessor ip1 = stack.getProcessor(1);
+				ip1.setRoi(r);
+				ip2 = ip1.crop();
+			}
 			stack.deleteSlice(1);
-			ip2 = ip1.crop();
 			stack2.addSlice(label, ip2);
 			IJ.showProgress((double)i/nSlices);
 		}
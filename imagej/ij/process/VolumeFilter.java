@@ -0,0 +1,605 @@
+package ij.process;
+import ij.*;
+import ij.plugin.Filters3D;
+import ij.util.ThreadUtil;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** 3D filters that work directly on the pixel arrays of an ImageStack (not a virtual stack),
+ * using the threads of the ThreadUtil thread pool. Each thread fetches the next piece of work
+ * (a bundle of lines, a band of rows or an output row) when it has finished the previous one.
+ * - filterLines applies a 1D filter to all lines in x, y or z direction. Lines in y and z are
+ *   read and written in bundles of BUNDLE_SIZE neighboring lines, so that each access to a
+ *   slice reads or writes a few cache lines, not a single pixel as with ImageStack.getVoxels.
+ * - filter calculates the 3D mean, median, minimum, maximum or variance in an ellipsoid or
+ *   box; voxels outside the stack are ignored, as in StackProcessor.filter3D.
+ *   With a box, the mean and variance are calculated from running sums in x, y and z, and the
+ *   minimum and maximum with the van Herk/Gil-Werman algorithm in x, y and z, so the time per
+ *   voxel does not depend on the radii. With an ellipsoid, each line (in x) of the kernel is
+ *   handled by a running sum, the van Herk/Gil-Werman algorithm or, for the median of 8-bit
+ *   and 16-bit stacks, a sliding histogram, so the time is proportional to the number of
+ *   kernel lines, not the number of kernel voxels.
+ */
+public class VolumeFilter {
+	/** Directions for filterLines */
+	public static final int X_DIRECTION=0, Y_DIRECTION=1, Z_DIRECTION=2;
+	/** Number of neighboring lines in y or z direction that are read and written together */
+	public static final int BUNDLE_SIZE = 64;
+	private static final int MEAN=Filters3D.MEAN, MEDIAN=Filters3D.MEDIAN, MIN=Filters3D.MIN,
+		MAX=Filters3D.MAX, VAR=Filters3D.VAR;
+
+	/** A 1D filter for filterLines */
+	public interface LineFilter {
+		/** Filters 'nLines' lines of 'length' values each, in place. Line i starts at
+		 *  lines[i*length]. Called by several threads in parallel, with different arrays. */
+		void filter(float[] lines, int nLines, int length);
+	}
+
+	/** Applies a 1D filter to the lines of an 8-bit, 16-bit, RGB or float stack in x, y or z
+	 *  direction (X_DIRECTION, Y_DIRECTION or Z_DIRECTION), in place. The filter gets the
+	 *  data as float values; for 8-bit, 16-bit and RGB stacks, the results are rounded and
+	 *  clamped to the range of the data type, as with ImageStack.setVoxels. The color
+	 *  channels of RGB stacks are filtered separately. */
+	public static void filterLines(ImageStack stack, final int direction, final LineFilter filter) {
+		if (direction<X_DIRECTION || direction>Z_DIRECTION)
+			throw new IllegalArgumentException("Invalid direction: "+direction);
+		final Object[] slices = stack.getImageArray();
+		final int width=stack.getWidth(), height=stack.getHeight(), depth=stack.size();
+		final int nChannels = stack.getBitDepth()==24 ? 3 : 1;
+		final int length = direction==X_DIRECTION ? width : (direction==Y_DIRECTION ? height : depth);
+		final int nAcross = direction==X_DIRECTION ? height : width;  //lines per slice (x, y) or per row (z)
+		final int bundlesPerPlane = (nAcross+BUNDLE_SIZE-1)/BUNDLE_SIZE;
+		final int nBundles = bundlesPerPlane*(direction==Z_DIRECTION ? height : depth);
+		final AtomicInteger nextBundle = new AtomicInteger();
+		final AtomicLong lastProgressTime = new AtomicLong(System.currentTimeMillis());
+		Callable[] callables = new Callable[Math.max(1, Math.min(Prefs.getThreads(), nBundles))];
+		for (int t=0; t<callables.length; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					float[] lines = new float[nChannels*BUNDLE_SIZE*length];
+					for (int b=nextBundle.getAndIncrement(); b<nBundles; b=nextBundle.getAndIncrement()) {
+						int plane = b/bundlesPerPlane;  //slice for x and y direction, row for z
+						int first = (b%bundlesPerPlane)*BUNDLE_SIZE;
+						int n = Math.min(BUNDLE_SIZE, nAcross-first);
+						transferBundle(slices, direction, plane, first, n, width, length, nChannels, lines, false);
+						filter.filter(lines, nChannels*n, length);
+						transferBundle(slices, direction, plane, first, n, width, length, nChannels, lines, true);
+						showProgress(lastProgressTime, b, nBundles);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		IJ.showProgress(1.0);
+	}
+
+	/** Reads (write=false) or writes the lines of a bundle: for x direction, rows 'first'
+	 *  to first+n-1 of slice 'plane'; for y direction, columns 'first' to first+n-1 of slice
+	 *  'plane'; for z direction, the voxels at x='first' to first+n-1 in row 'plane' of all slices. */
+	private static void transferBundle(Object[] slices, int direction, int plane, int first, int n,
+			int width, int length, int nChannels, float[] lines, boolean write) {
+		for (int c=0; c<nChannels; c++) {
+			int index0 = c*n*length;
+			if (direction==X_DIRECTION) {
+				for (int i=0; i<n; i++)
+					transfer(slices[plane], (first+i)*width, length, c, lines, index0+i*length, 1, write);
+			} else {
+				for (int p=0; p<length; p++) {
+					if (direction==Y_DIRECTION)
+						transfer(slices[plane], p*width+first, n, c, lines, index0+p, length, write);
+					else
+						transfer(slices[p], plane*width+first, n, c, lines, index0+p, length, write);
+				}
+			}
+		}
+	}
+
+	/** Copies 'count' pixels from 'offset' on (for RGB, color channel 'channel') to 'values', at
+	 *  index, index+inc, index+2*inc, ..., or, with write=true, in the opposite direction. */
+	private static void transfer(Object pixels, int offset, int count, int channel,
+			float[] values, int index, int inc, boolean write) {
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			if (write) {
+				for (int i=offset; i<offset+count; i++, index+=inc) {
+					float v = values[index];
+					bytes[i] = (byte)(v>255f ? 255f : (v<0f ? 0.5f : v+0.5f));
+				}
+			} else {
+				for (int i=offset; i<offset+count; i++, index+=inc)
+					values[index] = bytes[i]&0xff;
+			}
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			if (write) {
+				for (int i=offset; i<offset+count; i++, index+=inc) {
+					float v = values[index];
+					shorts[i] = (short)(v>65535f ? 65535f : (v<0f ? 0.5f : v+0.5f));
+				}
+			} else {
+				for (int i=offset; i<offset+count; i++, index+=inc)
+					values[index] = shorts[i]&0xffff;
+			}
+		} else if (pixels instanceof float[]) {
+			float[] floats = (float[])pixels;
+			if (write) {
+				for (int i=offset; i<offset+count; i++, index+=inc)
+					floats[i] = values[index];
+			} else {
+				for (int i=offset; i<offset+count; i++, index+=inc)
+					values[index] = floats[i];
+			}
+		} else {
+			int[] ints = (int[])pixels;
+			int shift = 16 - 8*channel;
+			if (write) {
+				int mask = ~(0xff<<shift);
+				for (int i=offset; i<offset+count; i++, index+=inc) {
+					float v = values[index];
+					int c = (int)(v>255f ? 255f : (v<0f ? 0.5f : v+0.5f));
+					ints[i] = (ints[i]&mask) | (c<<shift);
+				}
+			} else {
+				for (int i=offset; i<offset+count; i++, index+=inc)
+					values[index] = (ints[i]>>shift)&0xff;
+			}
+		}
+	}
+
+	/** Returns a new stack with the 3D mean, median, minimum, maximum or variance (filter type
+	 *  Filters3D.MEAN, MEDIAN, MIN, MAX or VAR) of an 8-bit, 16-bit or float stack, with
+	 *  an ellipsoid or box kernel (kernelShape Filters3D.ELLIPSOID or BOX) with the given radii.
+	 *  The box extends by (int)radx, (int)rady and (int)radz in each direction, like the ellipsoid.
+	 *  The variance is returned as float stack, the other filters have the type of the input. */
+	public static ImageStack filter(ImageStack stack, int filter, float radx, float rady, float radz, int kernelShape) {
+		if (filter<MEAN || filter>VAR)
+			throw new IllegalArgumentException("Invalid filter type: "+filter);
+		if (kernelShape!=Filters3D.ELLIPSOID && kernelShape!=Filters3D.BOX)
+			throw new IllegalArgumentException("Invalid kernel shape: "+kernelShape);
+		int bitDepth = stack.getBitDepth();
+		if (bitDepth==24)
+			throw new IllegalArgumentException("RGB stacks not supported");
+		int width=stack.getWidth(), height=stack.getHeight(), depth=stack.size();
+		radx = Math.max(radx, 0f);
+		rady = Math.max(rady, 0f);
+		radz = Math.max(radz, 0f);
+		ImageStack out = ImageStack.create(width, height, depth, filter==VAR ? 32 : bitDepth);
+		Object[] inSlices = stack.getImageArray();
+		Object[] outSlices = out.getImageArray();
+		boolean box = kernelShape==Filters3D.BOX;
+		if (box && (filter==MIN || filter==MAX)) {
+			for (int z=0; z<depth; z++)
+				System.arraycopy(inSlices[z], 0, outSlices[z], 0, width*height);
+			int[] radii = {(int)radx, (int)rady, (int)radz};
+			for (int direction=X_DIRECTION; direction<=Z_DIRECTION; direction++) {
+				if (radii[direction]>0)
+					filterLines(out, direction, new MinMaxLineFilter(radii[direction], filter==MAX));
+			}
+		} else if (box && (filter==MEAN || filter==VAR))
+			boxSums(inSlices, outSlices, filter==VAR, width, height, depth, (int)radx, (int)rady, (int)radz);
+		else
+			filterKernelLines(inSlices, outSlices, filter, width, height, depth,
+					makeKernelLines(radx, rady, radz, kernelShape), bitDepth);
+		IJ.showProgress(1.0);
+		return out;
+	}
+
+	/** Returns the lines (in x) of the kernel as triplets {dy, dz, r}, each line extending
+	 *  from dx=-r to dx=+r. The ellipsoid is the same as in StackProcessor.createKernelEllipsoid. */
+	private static int[] makeKernelLines(float radx, float rady, float radz, int kernelShape) {
+		boolean box = kernelShape==Filters3D.BOX;
+		int vx = box ? (int)radx : (int)Math.ceil(radx);
+		int vy = box ? (int)rady : (int)Math.ceil(rady);
+		int vz = box ? (int)radz : (int)Math.ceil(radz);
+		double rx2 = radx*radx, ry2 = rady*rady, rz2 = radz*radz;
+		rx2 = rx2!=0 ? 1.0/rx2 : 0;
+		ry2 = ry2!=0 ? 1.0/ry2 : 0;
+		rz2 = rz2!=0 ? 1.0/rz2 : 0;
+		int[] lines = new int[3*(2*vy+1)*(2*vz+1)];
+		int n = 0;
+		for (int k=-vz; k<=vz; k++) {
+			for (int j=-vy; j<=vy; j++) {
+				int r = -1;
+				for (int i=0; i<=vx; i++) {
+					double dist = ((double)(i*i))*rx2 + ((double)(j*j))*ry2 + ((double)(k*k))*rz2;
+					if (box || dist<=1.0)
+						r = i;
+				}
+				if (r>=0) {
+					lines[n++] = j;
+					lines[n++] = k;
+					lines[n++] = r;
+				}
+			}
+		}
+		return Arrays.copyOf(lines, n);
+	}
+
+	/** Mean or variance in a box, from running sums over x, y and z. Each thread processes bands
+	 *  of rows; for each row y, it keeps the sums over x and y for all slices and calculates the
+	 *  sums over z for all x at once while moving through the slices. */
+	private static void boxSums(final Object[] inSlices, final Object[] outSlices, final boolean variance,
+			final int width, final int height, final int depth, final int rx, final int ry, final int rz) {
+		final int numThreads = Math.max(1, Math.min(Prefs.getThreads(), height));
+		final int bandHeight = Math.max((height+4*numThreads-1)/(4*numThreads), 2*ry+1);
+		final int nBands = (height+bandHeight-1)/bandHeight;
+		final int[] nx = new int[width];  //number of pixels in x direction inside the stack
+		for (int x=0; x<width; x++)
+			nx[x] = Math.min(x+rx, width-1) - Math.max(x-rx, 0) + 1;
+		final AtomicInteger nextBand = new AtomicInteger();
+		final AtomicInteger rowsDone = new AtomicInteger();
+		final AtomicLong lastProgressTime = new AtomicLong(System.currentTimeMillis());
+		Callable[] callables = new Callable[Math.min(numThreads, nBands)];
+		for (int t=0; t<callables.length; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					double[][] sums = new double[depth][width];  //sums over x and y
+					double[][] sums2 = variance ? new double[depth][width] : null;
+					double[] zSums = new double[width];
+					double[] zSums2 = variance ? new double[width] : null;
+					float[] row = new float[width];
+					double[] result = new double[width];
+					for (int band=nextBand.getAndIncrement(); band<nBands; band=nextBand.getAndIncrement()) {
+						int y0 = band*bandHeight;
+						int y1 = Math.min(y0+bandHeight, height);
+						for (int z=0; z<depth; z++) {
+							Arrays.fill(sums[z], 0.0);
+							if (variance) Arrays.fill(sums2[z], 0.0);
+						}
+						for (int y=Math.max(y0-ry, 0); y<=Math.min(y0+ry, height-1); y++)
+							addRowSums(inSlices, y, width, rx, row, sums, sums2, 1.0);
+						for (int y=y0; y<y1; y++) {
+							if (y>y0) {
+								if (y+ry<height)
+									addRowSums(inSlices, y+ry, width, rx, row, sums, sums2, 1.0);
+								if (y-ry-1>=0)
+									addRowSums(inSlices, y-ry-1, width, rx, row, sums, sums2, -1.0);
+							}
+							int ny = Math.min(y+ry, height-1) - Math.max(y-ry, 0) + 1;
+							Arrays.fill(zSums, 0.0);
+							if (variance) Arrays.fill(zSums2, 0.0);
+							for (int z=0; z<=Math.min(rz, depth-1); z++)
+								addArray(zSums, zSums2, sums, sums2, z, 1.0);
+							for (int z=0; z<depth; z++) {
+								int nyz = ny*(Math.min(z+rz, depth-1) - Math.max(z-rz, 0) + 1);
+								for (int x=0; x<width; x++) {
+									double n = nx[x]*nyz;
+									if (variance)
+										result[x] = n>1 ? (zSums2[x] - zSums[x]*zSums[x]/n)/(n-1) : 0.0;
+									else
+										result[x] = zSums[x]/n;
+								}
+								setRow(outSlices[z], y*width, width, result);
+								if (z+rz+1<depth)
+									addArray(zSums, zSums2, sums, sums2, z+rz+1, 1.0);
+								if (z-rz>=0)
+									addArray(zSums, zSums2, sums, sums2, z-rz, -1.0);
+							}
+							showProgress(lastProgressTime, rowsDone.incrementAndGet(), height);
+						}
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+	}
+
+	/** Adds the running sums over x of row y of all slices to 'sums' (one array per slice) and,
+	 *  if not null, the running sums of the squares to 'sums2', multiplied by 'sign' (1 or -1). */
+	private static void addRowSums(Object[] slices, int y, int width, int rx, float[] row,
+			double[][] sums, double[][] sums2, double sign) {
+		for (int z=0; z<sums.length; z++) {
+			transfer(slices[z], y*width, width, 0, row, 0, 1, false);
+			double[] s = sums[z];
+			double sum = 0;
+			for (int x=0; x<=Math.min(rx, width-1); x++)
+				sum += row[x];
+			for (int x=0; x<width; x++) {
+				s[x] += sign*sum;
+				if (x+rx+1<width) sum += row[x+rx+1];
+				if (x-rx>=0) sum -= row[x-rx];
+			}
+			if (sums2==null)
+				continue;
+			s = sums2[z];
+			sum = 0;
+			for (int x=0; x<=Math.min(rx, width-1); x++)
+				sum += (double)row[x]*row[x];
+			for (int x=0; x<width; x++) {
+				s[x] += sign*sum;
+				if (x+rx+1<width) sum += (double)row[x+rx+1]*row[x+rx+1];
+				if (x-rx>=0) sum -= (double)row[x-rx]*row[x-rx];
+			}
+		}
+	}
+
+	private static void addArray(double[] zSums, double[] zSums2, double[][] sums, double[][] sums2, int z, double sign) {
+		double[] s = sums[z];
+		for (int x=0; x<zSums.length; x++)
+			zSums[x] += sign*s[x];
+		if (zSums2==null)
+			return;
+		s = sums2[z];
+		for (int x=0; x<zSums.length; x++)
+			zSums2[x] += sign*s[x];
+	}
+
+	/** Filtering with an arbitrary kernel given as lines in x direction (see makeKernelLines).
+	 *  The output rows are distributed to the threads one by one; for each output row, each
+	 *  kernel line that is inside the stack contributes a running sum, a van Herk/Gil-Werman
+	 *  maximum or minimum, or values for the median. */
+	private static void filterKernelLines(final Object[] inSlices, final Object[] outSlices, final int filter,
+			final int width, final int height, final int depth, final int[] kernel, final int bitDepth) {
+		final int nKernelLines = kernel.length/3;
+		int maxR = 0;
+		for (int i=2; i<kernel.length; i+=3)
+			maxR = Math.max(maxR, kernel[i]);
+		final int bufferLength = width + 2*maxR;
+		final boolean histogramMedian = filter==MEDIAN && bitDepth!=32;
+		final int nRows = height*depth;
+		final AtomicInteger nextRow = new AtomicInteger();
+		final AtomicLong lastProgressTime = new AtomicLong(System.currentTimeMillis());
+		Callable[] callables = new Callable[Math.max(1, Math.min(Prefs.getThreads(), nRows))];
+		for (int t=0; t<callables.length; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					boolean sums = filter==MEAN || filter==VAR;
+					float[][] rows = new float[filter==MEDIAN ? nKernelLines : 1][width];
+					int[] radii = new int[nKernelLines];
+					double[] result = new double[width];
+					double[] prefix = sums ? new double[width+1] : null;
+					double[] prefix2 = filter==VAR ? new double[width+1] : null;
+					double[] sums2 = filter==VAR ? new double[width] : null;
+					int[] counts = sums ? new int[width] : null;
+					float[] g = filter==MIN || filter==MAX ? new float[bufferLength] : null;
+					float[] h = g!=null ? new float[bufferLength] : null;
+					float[] lineResult = g!=null ? new float[width] : null;
+					float[] values = filter==MEDIAN && !histogramMedian ? new float[nKernelLines*width] : null;
+					int[] histogram = histogramMedian ? new int[bitDepth==8 ? 256 : 65536] : null;
+					int coarseShift = bitDepth==8 ? 4 : 8;
+					int[] coarse = histogramMedian ? new int[histogram.length>>coarseShift] : null;
+					for (int r=nextRow.getAndIncrement(); r<nRows; r=nextRow.getAndIncrement()) {
+						int z = r/height, y = r%height;
+						if (sums) {
+							Arrays.fill(result, 0.0);
+							Arrays.fill(counts, 0);
+							if (sums2!=null) Arrays.fill(sums2, 0.0);
+						} else if (filter!=MEDIAN)
+							Arrays.fill(result, filter==MAX ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY);
+						int nLines = 0;
+						for (int i=0; i<kernel.length; i+=3) {
+							int yy = y+kernel[i], zz = z+kernel[i+1], rx = kernel[i+2];
+							if (yy<0 || yy>=height || zz<0 || zz>=depth)
+								continue;
+							float[] row = rows[filter==MEDIAN ? nLines : 0];
+							transfer(inSlices[zz], yy*width, width, 0, row, 0, 1, false);
+							radii[nLines++] = rx;
+							if (sums) {
+								for (int x=0; x<width; x++)
+									prefix[x+1] = prefix[x] + row[x];
+								if (prefix2!=null) {
+									for (int x=0; x<width; x++)
+										prefix2[x+1] = prefix2[x] + (double)row[x]*row[x];
+								}
+								for (int x=0; x<width; x++) {
+									int lo = Math.max(x-rx, 0), hi = Math.min(x+rx+1, width);
+									result[x] += prefix[hi] - prefix[lo];
+									if (prefix2!=null) sums2[x] += prefix2[hi] - prefix2[lo];
+									counts[x] += hi - lo;
+								}
+							} else if (filter==MAX) {
+								lineMax(row, 0, width, rx, g, h, lineResult, 0);
+								for (int x=0; x<width; x++)
+									if (lineResult[x]>result[x]) result[x] = lineResult[x];
+							} else if (filter==MIN) {
+								for (int x=0; x<width; x++)
+									row[x] = -row[x];
+								lineMax(row, 0, width, rx, g, h, lineResult, 0);
+								for (int x=0; x<width; x++)
+									if (-lineResult[x]<result[x]) result[x] = -lineResult[x];
+							}
+						}
+						if (filter==MEAN) {
+							for (int x=0; x<width; x++)
+								result[x] /= counts[x];
+						} else if (filter==VAR) {
+							for (int x=0; x<width; x++) {
+								double n = counts[x];
+								result[x] = n>1 ? (sums2[x] - result[x]*result[x]/n)/(n-1) : 0.0;
+							}
+						} else if (histogramMedian)
+							histogramMedians(rows, radii, nLines, width, histogram, coarse, coarseShift, result);
+						else if (filter==MEDIAN)
+							sortMedians(rows, radii, nLines, width, values, result);
+						setRow(outSlices[z], y*width, width, result);
+						showProgress(lastProgressTime, r, nRows);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+	}
+
+	/** Medians of a row of 8-bit or 16-bit data, with a histogram that slides along the row.
+	 *  For each x, the values entering and leaving the kernel lines are added and removed;
+	 *  the bin of the median is moved from its position at the previous x, skipping empty
+	 *  parts of the histogram by means of a coarse histogram. The histogram must be empty. */
+	private static void histogramMedians(float[][] rows, int[] radii, int nLines, int width,
+			int[] histogram, int[] coarse, int coarseShift, double[] result) {
+		int coarseSize = 1<<coarseShift;
+		int n = 0;  //number of values in the histogram
+		int bin = 0;  //bin of the (lower) median
+		int below = 0;  //number of values in the bins below 'bin'
+		for (int l=0; l<nLines; l++) {
+			float[] row = rows[l];
+			for (int x=0; x<=Math.min(radii[l], width-1); x++) {
+				int v = (int)row[x];
+				histogram[v]++;
+				coarse[v>>coarseShift]++;
+			}
+			n += Math.min(radii[l], width-1) + 1;
+		}
+		for (int x=0; x<width; x++) {
+			int rank = (n-1)/2;
+			while (below>rank) {  //move down
+				if ((bin&(coarseSize-1))==0 && below-coarse[(bin>>coarseShift)-1]>rank) {
+					below -= coarse[(bin>>coarseShift)-1];
+					bin -= coarseSize;
+				} else {
+					bin--;
+					below -= histogram[bin];
+				}
+			}
+			while (below+histogram[bin]<=rank) {  //move up
+				if ((bin&(coarseSize-1))==0 && below+coarse[bin>>coarseShift]<=rank) {
+					below += coarse[bin>>coarseShift];
+					bin += coarseSize;
+				} else {
+					below += histogram[bin];
+					bin++;
+				}
+			}
+			if ((n&1)==1 || below+histogram[bin]>rank+1)
+				result[x] = bin;
+			else {  //even number of values, the upper one is in a higher bin
+				int bin2 = bin+1;
+				while (histogram[bin2]==0) {
+					if ((bin2&(coarseSize-1))==0 && coarse[bin2>>coarseShift]==0)
+						bin2 += coarseSize;
+					else
+						bin2++;
+				}
+				result[x] = 0.5f*(bin+bin2);
+			}
+			for (int l=0; l<nLines; l++) {
+				float[] row = rows[l];
+				int r = radii[l];
+				if (x+r+1<width) {  //add the value entering the kernel line
+					int v = (int)row[x+r+1];
+					histogram[v]++;
+					coarse[v>>coarseShift]++;
+					n++;
+					if (v<bin) below++;
+				}
+				if (x-r>=0 || x==width-1) {  //remove the leaving value(s); at the end, empty the histogram
+					for (int xx=Math.max(x-r, 0); xx<=(x==width-1 ? width-1 : x-r); xx++) {
+						int v = (int)row[xx];
+						histogram[v]--;
+						coarse[v>>coarseShift]--;
+						n--;
+						if (v<bin) below--;
+					}
+				}
+			}
+		}
+	}
+
+	/** Medians of a row of float data, by sorting the values in the kernel */
+	private static void sortMedians(float[][] rows, int[] radii, int nLines, int width, float[] values, double[] result) {
+		for (int x=0; x<width; x++) {
+			int n = 0;
+			for (int l=0; l<nLines; l++) {
+				int lo = Math.max(x-radii[l], 0), hi = Math.min(x+radii[l]+1, width);
+				System.arraycopy(rows[l], lo, values, n, hi-lo);
+				n += hi-lo;
+			}
+			Arrays.sort(values, 0, n);
+			result[x] = (n&1)==1 ? values[n/2] : 0.5f*(values[n/2-1]+values[n/2]);
+		}
+	}
+
+	/** Writes a row of results, rounded and clamped for 8-bit and 16-bit data as with
+	 *  ImageStack.setVoxel. */
+	private static void setRow(Object pixels, int offset, int width, double[] values) {
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			for (int x=0; x<width; x++) {
+				double v = values[x];
+				bytes[offset+x] = (byte)(v>255.0 ? 255.0 : (v<0.0 ? 0.5 : v+0.5));
+			}
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			for (int x=0; x<width; x++) {
+				double v = values[x];
+				shorts[offset+x] = (short)(v>65535.0 ? 65535.0 : (v<0.0 ? 0.5 : v+0.5));
+			}
+		} else {
+			float[] floats = (float[])pixels;
+			for (int x=0; x<width; x++)
+				floats[offset+x] = (float)values[x];
+		}
+	}
+
+	/** Minimum or maximum of lines over a range of +/- radius, for filterLines */
+	private static class MinMaxLineFilter implements LineFilter {
+		private final int radius;
+		private final boolean isMax;
+
+		MinMaxLineFilter(int radius, boolean isMax) {
+			this.radius = radius;
+			this.isMax = isMax;
+		}
+
+		public void filter(float[] lines, int nLines, int length) {
+			float[] g = new float[length+2*radius];
+			float[] h = new float[length+2*radius];
+			if (!isMax)
+				for (int i=0; i<nLines*length; i++)
+					lines[i] = -lines[i];
+			for (int line=0; line<nLines; line++)
+				lineMax(lines, line*length, length, radius, g, h, lines, line*length);
+			if (!isMax)
+				for (int i=0; i<nLines*length; i++)
+					lines[i] = -lines[i];
+		}
+	}
+
+	/** Maximum over x-radius to x+radius (without the points outside the line) for all points of
+	 *  a line, with the van Herk/Gil-Werman algorithm: In a line padded by 'radius' points at both
+	 *  ends and divided into blocks of 2*radius+1 points, each window covers the end of one block
+	 *  and the start of the next one, so its maximum is the maximum of a running maximum from the
+	 *  block end backwards ('h') and one from the block start forward ('g').
+	 *  'g' and 'h' must have a length of at least length+2*radius. 'out' may be the same as 'in'. */
+	private static void lineMax(float[] in, int inOffset, int length, int radius, float[] g, float[] h,
+			float[] out, int outOffset) {
+		int blockSize = 2*radius+1;
+		int n = length + 2*radius;
+		float max = Float.NEGATIVE_INFINITY;
+		for (int i=0, inBlock=0; i<n; i++, inBlock++) {
+			if (inBlock==blockSize) {
+				inBlock = 0;
+				max = Float.NEGATIVE_INFINITY;
+			}
+			if (i>=radius && i<radius+length) {
+				float v = in[inOffset+i-radius];
+				if (v>max) max = v;
+			}
+			g[i] = max;
+		}
+		max = Float.NEGATIVE_INFINITY;
+		for (int i=n-1; i>=0; i--) {
+			if (i%blockSize==blockSize-1)
+				max = Float.NEGATIVE_INFINITY;
+			if (i>=radius && i<radius+length) {
+				float v = in[inOffset+i-radius];
+				if (v>max) max = v;
+			}
+			h[i] = max;
+		}
+		for (int x=0; x<length; x++)
+			out[outOffset+x] = h[x]>g[x+2*radius] ? h[x] : g[x+2*radius];
+	}
+
+	private static void showProgress(AtomicLong lastProgressTime, int done, int total) {
+		long time = System.currentTimeMillis();
+		long last = lastProgressTime.get();
+		if (time-last>100 && lastProgressTime.compareAndSet(last, time))
+			IJ.showProgress(done, total);
+	}
+
+}